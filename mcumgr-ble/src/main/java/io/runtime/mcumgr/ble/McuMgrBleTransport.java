@@ -23,15 +23,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import io.runtime.mcumgr.McuMgrCallback;
 import io.runtime.mcumgr.McuMgrHeader;
+import io.runtime.mcumgr.McuMgrMtuCache;
+import io.runtime.mcumgr.McuMgrMtuProvider;
 import io.runtime.mcumgr.McuMgrScheme;
+import io.runtime.mcumgr.McuMgrTransferProfile;
 import io.runtime.mcumgr.McuMgrTransport;
 import io.runtime.mcumgr.ble.callback.SmpMerger;
 import io.runtime.mcumgr.ble.callback.SmpProtocolSession;
@@ -43,14 +54,18 @@ import io.runtime.mcumgr.exception.McuMgrTimeoutException;
 import io.runtime.mcumgr.response.McuMgrResponse;
 import io.runtime.mcumgr.util.CBOR;
 import no.nordicsemi.android.ble.BleManager;
+import no.nordicsemi.android.ble.PhyRequest;
 import no.nordicsemi.android.ble.Request;
 import no.nordicsemi.android.ble.annotation.ConnectionPriority;
+import no.nordicsemi.android.ble.callback.ConnectionPriorityCallback;
 import no.nordicsemi.android.ble.callback.DataReceivedCallback;
 import no.nordicsemi.android.ble.callback.FailCallback;
 import no.nordicsemi.android.ble.callback.MtuCallback;
+import no.nordicsemi.android.ble.callback.PhyCallback;
 import no.nordicsemi.android.ble.callback.SuccessCallback;
+import no.nordicsemi.android.ble.callback.WriteProgressCallback;
 import no.nordicsemi.android.ble.data.Data;
-import no.nordicsemi.android.ble.data.DataMerger;
+import no.nordicsemi.android.ble.data.DataSplitter;
 import no.nordicsemi.android.ble.error.GattError;
 import no.nordicsemi.android.ble.exception.DeviceDisconnectedException;
 
@@ -62,10 +77,21 @@ import no.nordicsemi.android.ble.exception.DeviceDisconnectedException;
  * to perform your BLE actions by calling {@link BleManager#enqueue(Request)}.
  */
 @SuppressWarnings("unused")
-public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
+public class McuMgrBleTransport extends BleManager implements McuMgrTransport, McuMgrMtuProvider,
+        McuMgrTransferProfile {
 
     private static final Logger LOG = LoggerFactory.getLogger(McuMgrBleTransport.class);
 
+    /**
+     * The number of times the rest of a packet is written again after Android rejected a write.
+     */
+    private final static int MAX_WRITE_RETRIES = 5;
+
+    /**
+     * The time to wait before the first retry of a write, in milliseconds.
+     */
+    private final static long WRITE_RETRY_DELAY = 10;
+
     public final static UUID SMP_SERVICE_UUID =
             UUID.fromString("8D53DC1D-1DB7-4CD3-868B-8A527460AA84");
     private final static UUID SMP_CHAR_UUID =
@@ -111,7 +137,7 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
     /**
      * An instance of a merger used to merge SMP packets that are split into multiple BLE packets.
      */
-    private final DataMerger mSMPMerger = new SmpMerger();
+    private final SmpMerger mSMPMerger = new SmpMerger();
 
     /**
      * The maximum packet length supported by the target device.
@@ -122,6 +148,29 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
      */
     private int mMaxPacketLength;
 
+    /**
+     * The connection interval reported by the device, in units of 1.25 ms, or 0 if not known.
+     */
+    private volatile int mConnectionInterval;
+
+    /**
+     * Packets waiting to be written, in order. Only the head is in the request queue of the
+     * {@link BleManager}, so a packet resumed after a failed write is not overtaken by the
+     * next one, which the device would append to the part already received.
+     */
+    private final Queue<PendingWrite> mPendingWrites = new ArrayDeque<>();
+
+    /**
+     * Flag indicating whether the transfer profile is applied during uploads and downloads.
+     * Default to true. Call {@link #setTransferProfileEnabled(boolean)} to change.
+     */
+    private boolean mTransferProfileEnabled = true;
+
+    /**
+     * The number of uploads and downloads in progress.
+     */
+    private int mTransfers;
+
     /**
      * Flag indicating should low-level logging be enabled. Default to false.
      * Call {@link #setLoggingEnabled(boolean)} to change.
@@ -144,6 +193,35 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
      */
     private Handler mHandler;
 
+    /**
+     * The time to wait for a response to requests of command groups without a timeout set,
+     * in milliseconds, or 0 for the session default.
+     */
+    private long mDefaultTimeout;
+
+    /**
+     * Timeouts of command groups, in milliseconds, by group ID.
+     */
+    private final Map<Integer, Long> mGroupTimeouts = new ConcurrentHashMap<>();
+
+    /**
+     * An executor running the callbacks directly on the thread completing the request.
+     *
+     * @see #setCallbackExecutor(Executor)
+     */
+    public final static Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * The executor running protocol callbacks, or null to post them to the handler.
+     */
+    @Nullable
+    private Executor mCallbackExecutor;
+
     /**
      * Construct a McuMgrBleTransport object.
      *
@@ -209,6 +287,255 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
      */
     public void setDeviceSidePacketMergingSupported(int maxLength) {
         mMaxPacketLength = maxLength;
+        if (isConnected()) {
+            McuMgrMtuCache.getInstance().put(mDevice.getAddress(), maxLength);
+        }
+    }
+
+    /**
+     * Returns the maximum packet length supported by the target device.
+     * <p>
+     * When connected, this is the length negotiated with the device, or the one set using
+     * {@link #setDeviceSidePacketMergingSupported(int)}, if greater. Otherwise, the length
+     * negotiated during a previous connection to the same device is returned, if known, so that
+     * packets are sized correctly before the connection is established.
+     *
+     * @return The maximum packet length, or 0 if not known.
+     * @see McuMgrMtuCache
+     */
+    @Override
+    public int getMaxPacketLength() {
+        if (isConnected() && mMaxPacketLength > 0) {
+            return mMaxPacketLength;
+        }
+        int cached = McuMgrMtuCache.getInstance().get(mDevice.getAddress());
+        return cached > 0 ? cached : mMaxPacketLength;
+    }
+
+    /**
+     * Returns the number of requests waiting to be sent. Requests are queued, rather than failed,
+     * while the maximum number of requests is in flight. Callers producing requests faster than
+     * the device answers them may use this value to throttle themselves.
+     *
+     * @return The number of queued requests, or 0 if not connected.
+     */
+    public int getQueuedRequestCount() {
+        SmpProtocolSession session = mSmpProtocol;
+        return session != null ? session.getQueueDepth() : 0;
+    }
+
+    /**
+     * Returns the number of requests sent to the device and awaiting a response.
+     *
+     * @return The number of requests in flight, or 0 if not connected.
+     */
+    public int getInFlightRequestCount() {
+        SmpProtocolSession session = mSmpProtocol;
+        return session != null ? session.getInFlightCount() : 0;
+    }
+
+    /**
+     * Enables or disables the transfer profile.
+     * <p>
+     * While an upload or download is in progress, the transport requests the
+     * {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH high connection priority} and, on Android 8
+     * or newer, the LE 2M PHY. Once the last transfer has finished, the balanced connection
+     * priority and the LE 1M PHY are requested again. Android has no API for the LE Data Length
+     * Extension; the stack negotiates the maximum data length on its own, after the MTU has been
+     * raised during the connection setup.
+     * <p>
+     * The connection interval and PHY reported by the device are logged, see
+     * {@link #setLoggingEnabled(boolean)}.
+     *
+     * @param enabled true to enable the transfer profile (default), false to disable.
+     */
+    public synchronized void setTransferProfileEnabled(boolean enabled) {
+        if (mTransferProfileEnabled == enabled) {
+            return;
+        }
+        mTransferProfileEnabled = enabled;
+        if (mTransfers > 0 && isConnected()) {
+            applyTransferProfile(enabled);
+        }
+    }
+
+    @Override
+    public synchronized void onTransferStarted() {
+        if (mTransfers++ == 0 && mTransferProfileEnabled && isConnected()) {
+            applyTransferProfile(true);
+        }
+    }
+
+    @Override
+    public synchronized void onTransferFinished() {
+        if (mTransfers == 0) {
+            return;
+        }
+        if (--mTransfers == 0 && mTransferProfileEnabled && isConnected()) {
+            applyTransferProfile(false);
+        }
+    }
+
+    /**
+     * Returns the connection interval reported by the device.
+     *
+     * @return The connection interval in milliseconds, or 0 if not known.
+     */
+    public double getConnectionInterval() {
+        return mConnectionInterval * 1.25;
+    }
+
+    /**
+     * Requests the connection priority and PHY of the transfer profile, or the balanced ones.
+     */
+    private void applyTransferProfile(boolean transfer) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        log(Log.INFO, transfer ? "Applying transfer profile" : "Restoring balanced profile");
+        requestConnectionPriority(transfer
+                ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                : BluetoothGatt.CONNECTION_PRIORITY_BALANCED)
+                .with(mConnectionPriorityCallback)
+                .enqueue();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            int phy = transfer ? PhyRequest.PHY_LE_2M_MASK : PhyRequest.PHY_LE_1M_MASK;
+            setPreferredPhy(phy, phy, PhyRequest.PHY_OPTION_NO_PREFERRED)
+                    .with(new PhyCallback() {
+                        @Override
+                        public void onPhyChanged(@NonNull BluetoothDevice device,
+                                                 int txPhy, int rxPhy) {
+                            log(Log.INFO, "PHY: TX " + getPhyName(txPhy)
+                                    + ", RX " + getPhyName(rxPhy));
+                        }
+                    })
+                    .fail(new FailCallback() {
+                        @Override
+                        public void onRequestFailed(@NonNull BluetoothDevice device, int status) {
+                            log(Log.WARN, "PHY request failed: " + GattError.parse(status));
+                        }
+                    })
+                    .enqueue();
+        }
+    }
+
+    /**
+     * Records and logs the connection parameters reported by the device, on Android 8 or newer.
+     */
+    private final ConnectionPriorityCallback mConnectionPriorityCallback = new ConnectionPriorityCallback() {
+        @Override
+        public void onConnectionUpdated(@NonNull BluetoothDevice device,
+                                        int interval, int latency, int timeout) {
+            mConnectionInterval = interval;
+            log(Log.INFO, String.format(Locale.US,
+                    "Connection parameters: interval %.2f ms, latency %d, timeout %d ms",
+                    interval * 1.25, latency, timeout * 10));
+        }
+    };
+
+    @NonNull
+    private static String getPhyName(int phy) {
+        switch (phy) {
+            case PhyCallback.PHY_LE_1M:
+                return "LE 1M";
+            case PhyCallback.PHY_LE_2M:
+                return "LE 2M";
+            case PhyCallback.PHY_LE_CODED:
+                return "LE Coded";
+            default:
+                return "unknown (" + phy + ")";
+        }
+    }
+
+    /**
+     * Sets the time to wait for a response to a request before failing it with a timeout.
+     * The timeout applies to requests of command groups without a timeout set using
+     * {@link #setGroupTimeout(int, long)}. By default, requests time out after 10 seconds.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public synchronized void setDefaultTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+        mDefaultTimeout = timeout;
+        SmpProtocolSession session = mSmpProtocol;
+        if (session != null) {
+            session.setDefaultTimeout(timeout);
+        }
+    }
+
+    /**
+     * Sets the time to wait for a response to requests of the given command group. Some commands
+     * take much longer than others, e.g. erasing the image slot on the first image upload request
+     * may take several seconds.
+     *
+     * @param groupId the command group ID, e.g. 1 for the image group.
+     * @param timeout the timeout in milliseconds, or 0 to use the default timeout.
+     */
+    public synchronized void setGroupTimeout(int groupId, long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative: " + timeout);
+        }
+        if (timeout == 0) {
+            mGroupTimeouts.remove(groupId);
+        } else {
+            mGroupTimeouts.put(groupId, timeout);
+        }
+        SmpProtocolSession session = mSmpProtocol;
+        if (session != null) {
+            session.setGroupTimeout(groupId, timeout);
+        }
+    }
+
+    /**
+     * Sets the executor on which the protocol layer sends requests and calls back
+     * {@link McuMgrCallback}s. By default, these run on the handler given in the constructor,
+     * which is the main thread unless set otherwise, so every response, e.g. each acknowledged
+     * chunk of an image upload, passes through the main thread queue.
+     * <p>
+     * Use {@link #DIRECT_EXECUTOR} to call back directly on the thread receiving the response,
+     * for the highest throughput. In that case callbacks must not block, and must switch to the
+     * main thread themselves when updating the UI.
+     * {@link io.runtime.mcumgr.dfu.FirmwareUpgradeManager} does so for its callbacks, see
+     * {@link io.runtime.mcumgr.dfu.FirmwareUpgradeManager#setCallbackOnUiThread(boolean)}.
+     *
+     * @param executor the executor, or null to use the handler.
+     */
+    public synchronized void setCallbackExecutor(@Nullable Executor executor) {
+        mCallbackExecutor = executor;
+        SmpProtocolSession session = mSmpProtocol;
+        if (session != null) {
+            session.setExecutor(getCallbackExecutor());
+        }
+    }
+
+    @Nullable
+    private Executor getCallbackExecutor() {
+        if (mCallbackExecutor == DIRECT_EXECUTOR) {
+            return null;
+        }
+        if (mCallbackExecutor != null) {
+            return mCallbackExecutor;
+        }
+        final Handler handler = mHandler;
+        return new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    private synchronized SmpProtocolSession newSession() {
+        SmpProtocolSession session = new SmpProtocolSession(getCallbackExecutor());
+        if (mDefaultTimeout > 0) {
+            session.setDefaultTimeout(mDefaultTimeout);
+        }
+        for (Map.Entry<Integer, Long> entry : mGroupTimeouts.entrySet()) {
+            session.setGroupTimeout(entry.getKey(), entry.getValue());
+        }
+        return session;
     }
 
     //*******************************************************************************************
@@ -283,6 +610,25 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
     public <T extends McuMgrResponse> void send(@NonNull final byte[] payload,
                                                 @NonNull final Class<T> responseType,
                                                 @NonNull final McuMgrCallback<T> callback) {
+        send(payload, responseType, 0, callback);
+    }
+
+    /**
+     * Sends the request, waiting for the response for the given time instead of the timeout of
+     * the command group.
+     *
+     * @param payload      the request packet.
+     * @param responseType the type of the response.
+     * @param timeout      the time to wait for the response in milliseconds, or 0 to use the
+     *                     timeout of the command group.
+     * @param callback     the callback.
+     * @param <T>          the response type.
+     * @see #setGroupTimeout(int, long)
+     */
+    public <T extends McuMgrResponse> void send(@NonNull final byte[] payload,
+                                                @NonNull final Class<T> responseType,
+                                                final long timeout,
+                                                @NonNull final McuMgrCallback<T> callback) {
 
         // If device is not connected, connect.
         // If the device was already connected, the completion callback will be called immediately.
@@ -303,7 +649,7 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
                 }
 
                 // Send a new transaction to the protocol layer
-                mSmpProtocol.send(payload, new SmpTransaction() {
+                mSmpProtocol.enqueue(payload, new SmpTransaction() {
                     @Override
                     public void send(@NotNull byte[] data) {
 
@@ -317,28 +663,7 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
                             }
                         }
 
-                        writeCharacteristic(mSmpCharacteristicWrite, payload).split()
-                                .fail(new FailCallback() {
-                                    @Override
-                                    public void onRequestFailed(@NonNull BluetoothDevice device,
-                                                                int status) {
-                                        switch (status) {
-                                            case REASON_TIMEOUT:
-                                                callback.onError(new McuMgrException("Request timed out"));
-                                                break;
-                                            case REASON_DEVICE_DISCONNECTED:
-                                                callback.onError(new McuMgrException("Device has disconnected"));
-                                                break;
-                                            case REASON_BLUETOOTH_DISABLED:
-                                                callback.onError(new McuMgrException("Bluetooth adapter disabled"));
-                                                break;
-                                            default:
-                                                callback.onError(new McuMgrException(GattError.parse(status)));
-                                                break;
-                                        }
-                                    }
-                                })
-                                .enqueue();
+                        write(new PendingWrite(payload, this, callback));
                     }
 
                     @Override
@@ -353,13 +678,15 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
 
                     @Override
                     public void onFailure(@NotNull Throwable e) {
+                        // Do not write the packet after its sequence number has been reused
+                        removePendingWrite(this);
                         if (e instanceof McuMgrException) {
                             callback.onError((McuMgrException) e);
                         } else {
                             callback.onError(new McuMgrException(e));
                         }
                     }
-                });
+                }, timeout);
             }
         }).fail(new FailCallback() {
             @Override
@@ -394,6 +721,152 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
         .enqueue();
     }
 
+    /**
+     * Queues the packet, writing it at once unless another packet is being written.
+     */
+    private void write(@NonNull PendingWrite write) {
+        synchronized (mPendingWrites) {
+            mPendingWrites.add(write);
+            if (mPendingWrites.size() > 1) {
+                return;
+            }
+        }
+        writeHead();
+    }
+
+    /**
+     * Writes the packet at the head of the queue, from the first chunk not written yet.
+     * <p>
+     * Android rejects a write without response while its buffer is full, which the
+     * {@link BleManager} reports as {@link FailCallback#REASON_REQUEST_FAILED}. The rest of the
+     * packet is then written again after a back-off time, doubling with each retry.
+     */
+    private void writeHead() {
+        final PendingWrite write;
+        synchronized (mPendingWrites) {
+            write = mPendingWrites.peek();
+        }
+        if (write == null) {
+            return;
+        }
+        final int start = write.offset;
+        writeCharacteristic(mSmpCharacteristicWrite, write.packet)
+                .split(new DataSplitter() {
+                    @Nullable
+                    @Override
+                    public byte[] chunk(@NonNull byte[] message, int index, int maxLength) {
+                        int offset = start + index * maxLength;
+                        if (offset >= message.length) {
+                            return null;
+                        }
+                        return Arrays.copyOfRange(message, offset,
+                                Math.min(message.length, offset + maxLength));
+                    }
+                }, new WriteProgressCallback() {
+                    @Override
+                    public void onPacketSent(@NonNull BluetoothDevice device,
+                                             @Nullable byte[] data, int index) {
+                        if (data != null) {
+                            write.offset += data.length;
+                        }
+                    }
+                })
+                .done(new SuccessCallback() {
+                    @Override
+                    public void onRequestCompleted(@NonNull BluetoothDevice device) {
+                        writeNext(write);
+                    }
+                })
+                .fail(new FailCallback() {
+                    @Override
+                    public void onRequestFailed(@NonNull BluetoothDevice device, int status) {
+                        if (status == REASON_REQUEST_FAILED
+                                && write.retries < MAX_WRITE_RETRIES) {
+                            long delay = WRITE_RETRY_DELAY << write.retries++;
+                            log(Log.DEBUG, "Write failed, retrying in " + delay + " ms");
+                            mHandler.postDelayed(new Runnable() {
+                                @Override
+                                public void run() {
+                                    writeHead();
+                                }
+                            }, delay);
+                            return;
+                        }
+                        write.callback.onError(getWriteError(status));
+                        writeNext(write);
+                    }
+                })
+                .enqueue();
+    }
+
+    /**
+     * Removes the packet written, or failed, from the queue and writes the next one.
+     */
+    private void writeNext(@NonNull PendingWrite write) {
+        synchronized (mPendingWrites) {
+            // The queue is cleared on disconnection
+            if (mPendingWrites.peek() != write) {
+                return;
+            }
+            mPendingWrites.poll();
+        }
+        writeHead();
+    }
+
+    /**
+     * Removes the queued packet of the transaction, unless it is being written.
+     */
+    private void removePendingWrite(@NonNull SmpTransaction transaction) {
+        synchronized (mPendingWrites) {
+            Iterator<PendingWrite> iterator = mPendingWrites.iterator();
+            // Skip the head, which is in the request queue already
+            if (iterator.hasNext()) {
+                iterator.next();
+            }
+            while (iterator.hasNext()) {
+                if (iterator.next().transaction == transaction) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * A packet waiting to be written, or being written.
+     */
+    private static class PendingWrite {
+        @NonNull
+        final byte[] packet;
+        @NonNull
+        final SmpTransaction transaction;
+        @NonNull
+        final McuMgrCallback<?> callback;
+        // The number of bytes written and the number of retries, accessed on the handler thread
+        int offset;
+        int retries;
+
+        PendingWrite(@NonNull byte[] packet, @NonNull SmpTransaction transaction,
+                     @NonNull McuMgrCallback<?> callback) {
+            this.packet = packet;
+            this.transaction = transaction;
+            this.callback = callback;
+        }
+    }
+
+    @NonNull
+    private static McuMgrException getWriteError(int status) {
+        switch (status) {
+            case REASON_TIMEOUT:
+                return new McuMgrException("Request timed out");
+            case REASON_DEVICE_DISCONNECTED:
+                return new McuMgrException("Device has disconnected");
+            case REASON_BLUETOOTH_DISABLED:
+                return new McuMgrException("Bluetooth adapter disabled");
+            default:
+                return new McuMgrException(GattError.parse(status));
+        }
+    }
+
     @Override
     public void connect(@Nullable final ConnectionCallback callback) {
         if (isConnected()) {
@@ -477,7 +950,9 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
             @Override
             public void onRequestCompleted(@NonNull BluetoothDevice device) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                    McuMgrBleTransport.super.requestConnectionPriority(priority).enqueue();
+                    McuMgrBleTransport.super.requestConnectionPriority(priority)
+                            .with(mConnectionPriorityCallback)
+                            .enqueue();
                 } // else ignore... :(
             }
         })
@@ -538,6 +1013,8 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
                         @Override
                         public void onMtuChanged(@NonNull final BluetoothDevice device, final int mtu) {
                             mMaxPacketLength = Math.max(mtu - 3, mMaxPacketLength);
+                            McuMgrMtuCache.getInstance().put(device.getAddress(), mMaxPacketLength);
+                            log(Log.INFO, "Maximum packet length: " + mMaxPacketLength);
                         }
                     })
                     .fail(new FailCallback() {
@@ -548,9 +1025,16 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
                         }
                     }).enqueue();
             enableNotifications(mSmpCharacteristicNotify).enqueue();
-            mSmpProtocol = new SmpProtocolSession(mHandler);
+            synchronized (McuMgrBleTransport.this) {
+                // A transfer started before the device was connected
+                if (mTransfers > 0 && mTransferProfileEnabled) {
+                    applyTransferProfile(true);
+                }
+            }
+            mSmpProtocol = newSession();
+            // Notifications are merged in the callback, directly into a buffer of the message size
+            mSMPMerger.reset();
             setNotificationCallback(mSmpCharacteristicNotify)
-                    .merge(mSMPMerger)
                     .with(mAsyncNotificationCallback);
         }
 
@@ -560,7 +1044,11 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
 
             @Override
             public void onDataReceived(@NonNull BluetoothDevice device, @NonNull Data data) {
-                byte[] bytes = data.getValue();
+                byte[] packet = data.getValue();
+                if (packet == null) {
+                    return;
+                }
+                final byte[] bytes = mSMPMerger.append(packet);
                 if (bytes == null) {
                     return;
                 }
@@ -582,6 +1070,11 @@ public class McuMgrBleTransport extends BleManager implements McuMgrTransport {
         @Override
         protected void onDeviceDisconnected() {
             removeNotificationCallback(mSmpCharacteristicNotify);
+            mSMPMerger.reset();
+            synchronized (mPendingWrites) {
+                mPendingWrites.clear();
+            }
+            mConnectionInterval = 0;
             if (mSmpProtocol != null) {
                 mSmpProtocol.close(new DeviceDisconnectedException());
             }
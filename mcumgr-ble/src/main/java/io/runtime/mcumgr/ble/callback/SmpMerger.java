@@ -9,35 +9,101 @@ package io.runtime.mcumgr.ble.callback;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.IOException;
-
-import io.runtime.mcumgr.McuMgrScheme;
-import io.runtime.mcumgr.response.McuMgrResponse;
+import io.runtime.mcumgr.McuMgrHeader;
 import no.nordicsemi.android.ble.data.DataMerger;
 import no.nordicsemi.android.ble.data.DataStream;
 
+/**
+ * Reassembles SMP messages split into multiple notifications.
+ * <p>
+ * The length of the message is read from the header in the first notification, and the
+ * notifications passed to {@link #append(byte[])} are copied into a buffer of exactly that size,
+ * which is handed over as the message, so it is allocated once and never grows. Each message
+ * gets a buffer of its own, rather than one reused between messages, because the response
+ * decoded from it keeps a reference to the bytes. Messages received in a single notification
+ * are not copied at all.
+ * <p>
+ * The merger is not thread safe; notifications must be passed to it in the order of reception.
+ */
 public class SmpMerger implements DataMerger {
-    private Integer mExpectedLength;
+
+    /** The message being reassembled, or null. */
+    @Nullable
+    private byte[] mMessage;
+    private int mLength;
+
+    /**
+     * Appends the notification to the message being reassembled.
+     *
+     * @param packet the received notification.
+     * @return The complete message, or null if more notifications are expected.
+     */
+    @Nullable
+    public byte[] append(@NonNull final byte[] packet) {
+        if (mMessage == null) {
+            int expectedLength = getExpectedLength(packet);
+            // A message in a single notification, or one without a valid header
+            if (expectedLength <= packet.length) {
+                return packet;
+            }
+            mMessage = new byte[expectedLength];
+            mLength = 0;
+        }
+        mLength = copy(packet, mMessage, mLength, mMessage.length);
+        if (mLength < mMessage.length) {
+            return null;
+        }
+        byte[] message = mMessage;
+        mMessage = null;
+        return message;
+    }
+
+    /**
+     * Drops the message being reassembled, e.g. after the device has disconnected.
+     */
+    public void reset() {
+        mMessage = null;
+        mLength = 0;
+    }
 
     @Override
     public boolean merge(@NonNull final DataStream output, @Nullable final byte[] lastPacket, final int index) {
-        // Add the new packet to the output stream
-        output.write(lastPacket);
-
-        // If it's a first or a single packet of this message, try to read the expected length
+        // This should never happen, but let's not crash if it did
+        if (lastPacket == null) {
+            return true;
+        }
+        // The first packet of a message starts a new one
         if (index == 0) {
-            try {
-                // This should never happen, but let's not crash if it did
-                if (lastPacket == null) {
-                    return true;
-                }
-                // Read the expected length from the header
-                mExpectedLength = McuMgrResponse.getExpectedLength(McuMgrScheme.BLE, lastPacket);
-            } catch (final IOException e) {
-                return true;
-            }
+            reset();
         }
-        // The message is complete when the stream size is equal to expected length
-        return output.size() == mExpectedLength;
+        final byte[] message = append(lastPacket);
+        if (message == null) {
+            return false;
+        }
+        output.write(message);
+        return true;
+    }
+
+    /**
+     * Returns the length of the message from the header at the beginning of the packet, or 0 if
+     * the packet is too short to contain a header.
+     */
+    private static int getExpectedLength(@NonNull final byte[] packet) {
+        if (packet.length < McuMgrHeader.HEADER_LENGTH) {
+            return 0;
+        }
+        return McuMgrHeader.readLen(packet, 0) + McuMgrHeader.HEADER_LENGTH;
+    }
+
+    /**
+     * Copies the packet into the buffer at the given offset, up to the given length.
+     *
+     * @return The offset after the copied data.
+     */
+    private static int copy(@NonNull final byte[] packet, @NonNull final byte[] buffer,
+                            final int offset, final int length) {
+        int count = Math.min(packet.length, length - offset);
+        System.arraycopy(packet, 0, buffer, offset, count);
+        return offset + count;
     }
 }
@@ -1,142 +1,359 @@
 package io.runtime.mcumgr.ble.callback
 
-import android.os.Handler
 import io.runtime.mcumgr.McuMgrHeader
 import io.runtime.mcumgr.ble.util.RotatingCounter
-import kotlinx.coroutines.CoroutineExceptionHandler
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
 import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.channels.consumeEach
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.channels.ClosedReceiveChannelException
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withTimeoutOrNull
+import org.slf4j.LoggerFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
 import kotlin.coroutines.EmptyCoroutineContext
 
 private const val SMP_SEQ_NUM_MAX = 255
 
-internal class SmpProtocolSession(
-    private val handler: Handler? = null
+/**
+ * The default time to wait for a response, in milliseconds.
+ */
+internal const val DEFAULT_TIMEOUT = 10_000L
+
+/**
+ * Matches SMP requests with their responses by the sequence number.
+ *
+ * Requests are admitted into a queue of bounded capacity. Senders calling [send] suspend while
+ * the queue is full, and requests passed to [enqueue] wait for admission in the session instead
+ * of failing. A request leaves the queue once a sequence number not used by any transaction in
+ * flight is available, so at most 256 transactions are in flight and a sequence number is never
+ * reused before the transaction holding it has completed, failed or timed out.
+ *
+ * Transactions in flight are kept in a table indexed by the sequence number. Entries are only
+ * added and removed with compare-and-set, so responses are matched without locking, and a
+ * response racing with the timeout of the same transaction is delivered by exactly one of them.
+ *
+ * Transactions in flight are failed with [TransactionTimeoutException] if no response is received
+ * in time. The timeout is taken from the request, if given, the timeout set for the command group
+ * using [setGroupTimeout], or the [defaultTimeout]. The deadline is stored with the transaction
+ * in the table and watched by a single timer coroutine, which sleeps until the earliest deadline.
+ * Removing the transaction on response also cancels its timeout.
+ *
+ * Transactions are sent and called back on the [executor], if set. Otherwise responses are
+ * delivered directly on the thread calling [receive], and requests are sent and failures called
+ * back on the session's coroutines, running on [kotlinx.coroutines.Dispatchers.Default].
+ */
+internal class SmpProtocolSession @JvmOverloads constructor(
+    executor: Executor? = null,
+    queueCapacity: Int = SMP_SEQ_NUM_MAX + 1,
+    private val clock: () -> Long = System::nanoTime
 ) {
 
-    private data class Outgoing(val data: ByteArray, val transaction: SmpTransaction)
+    private data class Outgoing(
+        val data: ByteArray,
+        val transaction: SmpTransaction,
+        val timeout: Long
+    )
+
+    /**
+     * A transaction in flight with the deadline of its response.
+     */
+    private class InFlight(val transaction: SmpTransaction, val deadline: Long)
 
     private val scope = CoroutineScope(EmptyCoroutineContext)
-    private val txChannel: Channel<Outgoing> = Channel(SMP_SEQ_NUM_MAX + 1)
-    private val rxChannel: Channel<ByteArray> = Channel(SMP_SEQ_NUM_MAX + 1)
+    private val txChannel: Channel<Outgoing> = Channel(queueCapacity)
+    // Wakes up the timer when a deadline earlier than the one it sleeps until has been added.
+    private val timerChannel: Channel<Unit> = Channel(Channel.CONFLATED)
+    // Only used by the writer.
     private val sequenceCounter = RotatingCounter(SMP_SEQ_NUM_MAX)
-    private val transactions: Array<SmpTransaction?> = arrayOfNulls(SMP_SEQ_NUM_MAX + 1)
-    private val transactionsMutex = Mutex()
+    private val sequenceNumbers = Semaphore(SMP_SEQ_NUM_MAX + 1)
+    private val transactions = AtomicReferenceArray<InFlight?>(SMP_SEQ_NUM_MAX + 1)
+    private val groupTimeouts = ConcurrentHashMap<Int, Long>()
+    private val queued = AtomicInteger()
+    private val inFlight = AtomicInteger()
+
+    @Volatile
+    private var closeCause: Throwable? = null
+
+    /**
+     * The executor sending and calling back the transactions, or null to do so directly on
+     * the session's threads.
+     */
+    @Volatile
+    var executor: Executor? = executor
+
+    // The deadline the timer sleeps until, valid if scheduled.
+    @Volatile
+    private var timerDeadline = 0L
+    @Volatile
+    private var timerScheduled = false
+
+    /**
+     * The time to wait for a response to requests of command groups without a timeout set,
+     * in milliseconds.
+     */
+    @Volatile
+    var defaultTimeout: Long = DEFAULT_TIMEOUT
+        set(value) {
+            require(value > 0) { "Timeout must be positive: $value" }
+            field = value
+        }
+
+    /**
+     * The number of requests waiting to be sent, including requests waiting for admission.
+     */
+    val queueDepth: Int
+        get() = queued.get()
 
     /**
-     * Launches the main coroutine and channel consumers.
+     * The number of requests sent and awaiting a response.
+     */
+    val inFlightCount: Int
+        get() = inFlight.get()
+
+    /**
+     * Launches the channel consumer and the timer.
      */
     init {
-        scope.launch(
-            // When the session is closed, fail all remaining transactions.
-            // Exception is propagated from close through the channels.
-            CoroutineExceptionHandler { _, throwable ->
-                for (transaction in transactions) {
-                    transaction?.onFailure(handler, throwable)
-                }
-            }
-        ) {
-            // Launch the reader and writer
-            launch { reader() }
-            launch { writer() }
+        require(queueCapacity > 0) { "Queue capacity must be positive: $queueCapacity" }
+        scope.launch { writer() }
+        scope.launch { timer() }
+    }
+
+    /**
+     * Sets the time to wait for a response to requests of the given command group.
+     *
+     * @param groupId the command group ID.
+     * @param timeout the timeout in milliseconds, or 0 to use the [defaultTimeout].
+     */
+    fun setGroupTimeout(groupId: Int, timeout: Long) {
+        require(timeout >= 0) { "Timeout must not be negative: $timeout" }
+        if (timeout == 0L) {
+            groupTimeouts.remove(groupId)
+        } else {
+            groupTimeouts[groupId] = timeout
         }
     }
 
-    fun send(data: ByteArray, transaction: SmpTransaction) {
-        check(txChannel.offer(Outgoing(data, transaction))) {
-            "Cannot send request, transmit channel buffer is full."
+    /**
+     * Sends the request, suspending while the queue is full.
+     *
+     * @param timeout the time to wait for the response in milliseconds, or 0 to use the timeout
+     * of the command group.
+     */
+    suspend fun send(data: ByteArray, transaction: SmpTransaction, timeout: Long = 0) {
+        require(timeout >= 0) { "Timeout must not be negative: $timeout" }
+        queued.incrementAndGet()
+        try {
+            txChannel.send(Outgoing(data, transaction, timeout))
+        } catch (e: Throwable) {
+            queued.decrementAndGet()
+            transaction.onFailure(executor, closeCause ?: e)
         }
     }
 
+    /**
+     * Sends the request without suspending the caller. If the queue is full, the request waits
+     * for admission in the session, after the requests already waiting.
+     *
+     * @param timeout the time to wait for the response in milliseconds, or 0 to use the timeout
+     * of the command group.
+     */
+    @JvmOverloads
+    fun enqueue(data: ByteArray, transaction: SmpTransaction, timeout: Long = 0) {
+        // Undispatched, the request is queued or starts waiting before this method returns.
+        scope.launch(start = CoroutineStart.UNDISPATCHED) { send(data, transaction, timeout) }
+    }
+
+    /**
+     * Matches the response with its transaction and calls it back on the [executor], or directly
+     * on the calling thread if there is none. Responses to transactions which have already
+     * completed, failed or timed out, e.g. after the session has been closed, are ignored.
+     */
     fun receive(data: ByteArray) {
-        check(rxChannel.offer(data)) {
-            "Cannot receive response, receive channel buffer is full."
+        // Drop packets too short to hold a header
+        if (data.size < McuMgrHeader.HEADER_LENGTH) {
+            log.warn("Dropping response of ${data.size} bytes, shorter than the header")
+            return
         }
+        // Parse header to get sequence number
+        val header = McuMgrHeader.fromBytes(data)
+        val sequenceNumber = header.sequenceNum
+
+        // Get the transaction from the store, clear the entry, and call the callback
+        val transaction = take(sequenceNumber)
+        transaction?.onResponse(executor, data)
     }
 
+    /**
+     * Closes the session, failing all queued and in-flight transactions with the given exception.
+     */
     fun close(e: Exception) {
-        txChannel.close(e)
-        rxChannel.close(e)
+        closeCause = e
+        // The channels are closed without a cause, which ends the consumers normally. Senders
+        // fail their transactions with the close cause.
+        txChannel.close()
+        timerChannel.close()
+        for (id in 0 until transactions.length()) {
+            take(id)?.onFailure(executor, e)
+        }
     }
 
     /**
      * Consumes messages off the tx channel until the channel is closed.
      */
     private suspend fun writer() {
+        for (outgoing in txChannel) {
+            // Wait until a sequence number is free
+            sequenceNumbers.acquire()
+            val timeout = outgoing.timeout.takeIf { it > 0 }
+                ?: groupTimeouts[outgoing.data.groupId]
+                ?: defaultTimeout
+            val sequenceNumber = register(outgoing.transaction, timeout)
+            queued.decrementAndGet()
+            if (sequenceNumber == null) {
+                sequenceNumbers.release()
+                outgoing.transaction.onFailure(executor, closeCause!!)
+                continue
+            }
+            // If the session has been closed meanwhile, the transaction may have been
+            // registered after close has failed the others.
+            val cause = closeCause
+            if (cause != null) {
+                take(sequenceNumber)?.onFailure(executor, cause)
+                continue
+            }
 
-        txChannel.consumeEach { outgoing ->
-
-            // Set sequence number in outgoing data
-            val sequenceNumber = sequenceCounter.getAndRotate()
+            // Set sequence number in outgoing data and send the transaction
             outgoing.data.setSequenceNumber(sequenceNumber)
+            try {
+                outgoing.transaction.send(executor, outgoing.data)
+            } catch (e: Exception) {
+                log.error("Sending transaction $sequenceNumber failed", e)
+                take(sequenceNumber)?.onFailure(executor, e)
+            }
+        }
+    }
 
-            // Add transaction to store. Fail an existing transaction on overwrite
-            val oldTransaction = getAndSetTransaction(sequenceNumber, outgoing.transaction)
-            oldTransaction?.onFailure(handler, TransactionOverwriteException(sequenceNumber))
-
-            // Send the transaction and launch timeout coroutine
-            outgoing.transaction.send(handler, outgoing.data)
-
-            scope.launch {
-                delay(10000)
-                val transaction = getAndSetTransaction(sequenceNumber, null)
-                transaction?.onFailure(handler, TransactionTimeoutException(sequenceNumber))
+    /**
+     * Fails the transactions whose deadline has passed, then sleeps until the next deadline or
+     * until an earlier one is added.
+     */
+    private suspend fun timer() {
+        try {
+            while (true) {
+                // Transactions registered while scanning wake up the timer again.
+                timerScheduled = false
+                val now = clock()
+                var next: Long? = null
+                for (id in 0 until transactions.length()) {
+                    val entry = transactions.get(id) ?: continue
+                    if (entry.deadline - now <= 0) {
+                        // The response may have been received meanwhile.
+                        if (transactions.compareAndSet(id, entry, null)) {
+                            release()
+                            entry.transaction.onFailure(executor, TransactionTimeoutException(id))
+                        }
+                    } else if (next == null || entry.deadline - next < 0) {
+                        next = entry.deadline
+                    }
+                }
+                if (next == null) {
+                    timerChannel.receive()
+                } else {
+                    timerDeadline = next
+                    timerScheduled = true
+                    val delay = TimeUnit.NANOSECONDS.toMillis(next - now) + 1
+                    withTimeoutOrNull(delay) { timerChannel.receive() }
+                }
             }
+        } catch (e: ClosedReceiveChannelException) {
+            // The session has been closed
         }
     }
 
     /**
-     * Consumes messages of the rx channel until the channel is closed.
+     * Stores the transaction under the next free sequence number and returns the number, or null
+     * if the session has been closed. The caller must hold a permit of [sequenceNumbers], which
+     * guarantees a free number.
      */
-    private suspend fun reader() {
-        rxChannel.consumeEach { data ->
-            // Parse header to get sequence number
-            val header = McuMgrHeader.fromBytes(data)
-            val sequenceNumber = header.sequenceNum
-
-            // Get the transaction from the store, clear the entry, and call
-            // the callback
-            val transaction = getAndSetTransaction(sequenceNumber, null)
-            transaction?.onResponse(handler, data)
+    private fun register(transaction: SmpTransaction, timeout: Long): Int? {
+        if (closeCause != null) {
+            return null
+        }
+        val deadline = clock() + TimeUnit.MILLISECONDS.toNanos(timeout)
+        val entry = InFlight(transaction, deadline)
+        repeat(transactions.length()) {
+            val id = sequenceCounter.getAndRotate()
+            if (transactions.compareAndSet(id, null, entry)) {
+                inFlight.incrementAndGet()
+                if (!timerScheduled || deadline - timerDeadline < 0) {
+                    timerChannel.offer(Unit)
+                }
+                return id
+            }
         }
+        throw IllegalStateException("No free sequence number")
     }
 
-    private suspend fun getAndSetTransaction(
-        id: Int,
-        transaction: SmpTransaction?
-    ): SmpTransaction? = transactionsMutex.withLock {
-        val oldTransaction = transactions[id]
-        transactions[id] = transaction
-        return oldTransaction
+    /**
+     * Removes and returns the transaction with the given sequence number, cancelling its
+     * timeout and freeing the number.
+     */
+    private fun take(id: Int): SmpTransaction? {
+        val entry = transactions.getAndSet(id, null) ?: return null
+        release()
+        return entry.transaction
     }
 
+    private fun release() {
+        inFlight.decrementAndGet()
+        sequenceNumbers.release()
+    }
+
+    private val ByteArray.groupId: Int
+        get() = (this[4].toInt() and 0xff shl 8) or (this[5].toInt() and 0xff)
+
     private fun ByteArray.setSequenceNumber(value: Int) {
         this[6] = (value and 0xff).toByte()
     }
 }
 
-private fun SmpTransaction.send(handler: Handler?, data: ByteArray) {
-    when (handler) {
+private val log = LoggerFactory.getLogger("SmpProtocolSession")
+
+private fun SmpTransaction.send(executor: Executor?, data: ByteArray) {
+    when (executor) {
         null -> send(data)
-        else -> handler.post { send(data) }
+        else -> executor.execute { send(data) }
+    }
+}
+
+private fun SmpTransaction.onResponse(executor: Executor?, data: ByteArray) {
+    when (executor) {
+        null -> callback { onResponse(data) }
+        else -> executor.execute { onResponse(data) }
     }
 }
 
-private fun SmpTransaction.onResponse(handler: Handler?, data: ByteArray) {
-    when (handler) {
-        null -> onResponse(data)
-        else -> handler.post { onResponse(data) }
+private fun SmpTransaction.onFailure(executor: Executor?, e: Throwable) {
+    when (executor) {
+        null -> callback { onFailure(e) }
+        else -> executor.execute { onFailure(e) }
     }
 }
 
-private fun SmpTransaction.onFailure(handler: Handler?, e: Throwable) {
-    when (handler) {
-        null -> onFailure(e)
-        else -> handler.post { onFailure(e) }
+/**
+ * Calls back the transaction directly. An exception thrown by the callback must not end the
+ * session's coroutines nor reach the thread receiving the response.
+ */
+private inline fun callback(block: () -> Unit) {
+    try {
+        block()
+    } catch (e: Exception) {
+        log.error("Transaction callback failed", e)
     }
 }
@@ -6,6 +6,7 @@ class TransactionTimeoutException internal constructor(
     val id: Int
 ) : TimeoutException("Transaction $id timed out without receiving a response")
 
+@Deprecated("Sequence numbers of transactions in flight are no longer reused.")
 class TransactionOverwriteException internal constructor(
     val id: Int
 ) : Exception("Transaction $id has been overwritten")
@@ -0,0 +1,77 @@
+package io.runtime.mcumgr.transport.ble
+
+import io.runtime.mcumgr.McuManager
+import io.runtime.mcumgr.McuMgrScheme
+import io.runtime.mcumgr.ble.callback.SmpMerger
+import no.nordicsemi.android.ble.data.DataStream
+import org.junit.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class SmpMergerTest {
+
+    private val merger = SmpMerger()
+
+    @Test
+    fun `append single packet message is not copied`() {
+        val message = newMessage(10)
+        assertSame(message, merger.append(message))
+    }
+
+    @Test
+    fun `append packet without header is passed through`() {
+        val packet = byteArrayOf(1, 2, 3)
+        assertSame(packet, merger.append(packet))
+    }
+
+    @Test
+    fun `append reassembles split messages`() {
+        repeat(2) {
+            val message = newMessage(100)
+            val packets = message.split(20)
+            packets.dropLast(1).forEach { assertNull(merger.append(it)) }
+            assertTrue(message.contentEquals(merger.append(packets.last())!!))
+        }
+    }
+
+    @Test
+    fun `reset drops partial message`() {
+        val message = newMessage(100)
+        merger.append(message.split(20).first())
+        merger.reset()
+        val next = newMessage(10)
+        assertSame(next, merger.append(next))
+    }
+
+    @Test
+    fun `merge reassembles split messages`() {
+        listOf(200, 100).forEach { size ->
+            val message = newMessage(size)
+            val output = DataStream()
+            message.split(20).forEachIndexed { index, packet ->
+                val last = (index + 1) * 20 >= message.size
+                assertEquals(last, merger.merge(output, packet, index))
+            }
+            assertTrue(message.contentEquals(output.toByteArray()))
+        }
+    }
+
+    @Test
+    fun `merge single packet message`() {
+        val message = newMessage(10)
+        val output = DataStream()
+        assertTrue(merger.merge(output, message, 0))
+        assertTrue(message.contentEquals(output.toByteArray()))
+        assertFalse(merger.merge(DataStream(), newMessage(100).copyOf(20), 0))
+    }
+
+    private fun newMessage(payloadSize: Int): ByteArray = McuManager.buildPacket(
+        McuMgrScheme.BLE, 0, 0, 0, 0, 0, mapOf("d" to "x".repeat(payloadSize))
+    )
+
+    private fun ByteArray.split(size: Int): List<ByteArray> =
+        (indices step size).map { copyOfRange(it, minOf(it + size, this.size)) }
+}
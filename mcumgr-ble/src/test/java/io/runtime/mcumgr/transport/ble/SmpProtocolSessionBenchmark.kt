@@ -0,0 +1,162 @@
+package io.runtime.mcumgr.transport.ble
+
+import io.runtime.mcumgr.McuManager
+import io.runtime.mcumgr.McuMgrHeader
+import io.runtime.mcumgr.McuMgrScheme
+import io.runtime.mcumgr.ble.callback.SmpProtocolSession
+import io.runtime.mcumgr.ble.callback.SmpTransaction
+import io.runtime.mcumgr.ble.callback.TransactionTimeoutException
+import io.runtime.mcumgr.response.McuMgrResponse
+import io.runtime.mcumgr.response.dflt.McuMgrEchoResponse
+import io.runtime.mcumgr.util.CBOR
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Test
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+/**
+ * Drives thousands of concurrent echo transactions through a session. Senders on several threads
+ * compete for admission, responses are delivered from a pool of threads, and in the second test
+ * responses race with the timeouts of their transactions.
+ *
+ * Both tests check that each transaction completes exactly once, with its own response or its
+ * timeout. The throughput floor of the first one is far below what the session achieves even on
+ * a loaded machine, so it catches senders stalling on the session, not small regressions.
+ */
+class SmpProtocolSessionBenchmark {
+
+    private val responders = Executors.newScheduledThreadPool(RESPONDERS)
+
+    @After
+    fun tearDown() {
+        responders.shutdownNow()
+    }
+
+    /**
+     * Echo transaction answering from the responder pool, after the given delay in milliseconds.
+     */
+    private inner class EchoTransaction(
+        private val session: SmpProtocolSession,
+        private val responseDelay: Long = 0
+    ) : SmpTransaction {
+
+        val result = CompletableDeferred<Any>()
+        val completions = AtomicInteger()
+
+        override fun send(data: ByteArray) {
+            responders.schedule(
+                { session.receive(echo(data)) },
+                responseDelay,
+                TimeUnit.MILLISECONDS
+            )
+        }
+
+        override fun onResponse(data: ByteArray) {
+            completions.incrementAndGet()
+            result.complete(data)
+        }
+
+        override fun onFailure(e: Throwable) {
+            completions.incrementAndGet()
+            result.complete(e)
+        }
+    }
+
+    @Test
+    fun `concurrent echo transactions`() = runBlocking {
+        val session = SmpProtocolSession()
+        repeat(WARMUP_ROUNDS) { round(session, TRANSACTIONS) }
+        val start = System.nanoTime()
+        val transactions = round(session, TRANSACTIONS)
+        val elapsed = System.nanoTime() - start
+
+        transactions.forEach { transaction ->
+            val response = McuMgrResponse.buildResponse(
+                McuMgrScheme.BLE,
+                transaction.result.await() as ByteArray,
+                McuMgrEchoResponse::class.java
+            )
+            assertEquals("Hello!", response.r)
+            assertEquals(1, transaction.completions.get())
+        }
+        assertEquals(0, session.inFlightCount)
+        assertEquals(0, session.queueDepth)
+        val throughput = TRANSACTIONS * 1_000_000_000L / elapsed
+        assertTrue(throughput >= MIN_THROUGHPUT, "$throughput transactions/s")
+    }
+
+    @Test
+    fun `responses racing with timeouts`() = runBlocking {
+        val session = SmpProtocolSession()
+        val random = Random(0)
+        val transactions = List(RACING_TRANSACTIONS) {
+            EchoTransaction(session, responseDelay = random.nextLong(0, 2 * RACE_TIMEOUT))
+        }
+        withContext(Dispatchers.Default) {
+            transactions.chunked(RACING_TRANSACTIONS / SENDERS).forEach { chunk ->
+                launch {
+                    chunk.forEach { session.send(newEchoRequest(), it, RACE_TIMEOUT) }
+                }
+            }
+        }
+        val results = withTimeout(60_000) { transactions.map { it.result }.awaitAll() }
+
+        // Every transaction completes exactly once, either with the response or the timeout.
+        transactions.forEach { assertEquals(1, it.completions.get()) }
+        val timeouts = results.count { it is TransactionTimeoutException }
+        assertTrue(results.all { it is ByteArray || it is TransactionTimeoutException })
+        assertTrue(timeouts > 0)
+        assertEquals(0, session.inFlightCount)
+    }
+
+    private suspend fun round(session: SmpProtocolSession, count: Int): List<EchoTransaction> {
+        val transactions = List(count) { EchoTransaction(session) }
+        withContext(Dispatchers.Default) {
+            transactions.chunked(count / SENDERS).forEach { chunk ->
+                launch {
+                    chunk.forEach { session.send(newEchoRequest(), it) }
+                }
+            }
+        }
+        withTimeout(60_000) { transactions.map { it.result }.awaitAll() }
+        return transactions
+    }
+
+    private fun echo(data: ByteArray): ByteArray {
+        val header = McuMgrHeader.fromBytes(data)
+        val echo = CBOR.getString(data.copyOfRange(8, data.size), "d")
+        return McuManager.buildPacket(
+            McuMgrScheme.BLE,
+            3, header.flags, header.groupId, header.sequenceNum, header.commandId,
+            mapOf("r" to echo)
+        )
+    }
+
+    private fun newEchoRequest(): ByteArray = McuManager.buildPacket(
+        McuMgrScheme.BLE,
+        0, 0, 0, 0, 0,
+        mapOf("d" to "Hello!")
+    )
+
+    private companion object {
+        const val SENDERS = 8
+        const val RESPONDERS = 4
+        const val WARMUP_ROUNDS = 2
+        const val TRANSACTIONS = 5000
+        const val RACING_TRANSACTIONS = 2000
+        const val RACE_TIMEOUT = 20L
+        /** Transactions per second, far below what the session achieves on a loaded machine. */
+        const val MIN_THROUGHPUT = 500L
+    }
+}
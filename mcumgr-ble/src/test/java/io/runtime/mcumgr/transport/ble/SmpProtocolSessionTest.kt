@@ -13,11 +13,14 @@ import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
 import no.nordicsemi.android.ble.exception.DeviceDisconnectedException
 import org.junit.Test
-import java.lang.IllegalStateException
+import java.util.concurrent.Executors
 import kotlin.test.assertEquals
 import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
 
 class SmpProtocolSessionTest {
 
@@ -25,7 +28,7 @@ class SmpProtocolSessionTest {
 
     private abstract class TestTransaction : SmpTransaction {
 
-        val result = Channel<ByteArray>(Channel.RENDEZVOUS)
+        val result = Channel<ByteArray>(Channel.UNLIMITED)
 
         override fun onResponse(data: ByteArray) {
             result.offer(data)
@@ -124,6 +127,74 @@ class SmpProtocolSessionTest {
         Unit
     }
 
+    @Test
+    fun `send, request timeout`() = runBlocking {
+        val transaction = object : TestTransaction() {
+            override fun send(data: ByteArray) {}
+        }
+        session.send(newEchoRequest("Hello!"), transaction, timeout = 100)
+        assertFailsWith(TransactionTimeoutException::class) {
+            withTimeout(1000) { transaction.result.receive() }
+        }
+        assertEquals(0, session.inFlightCount)
+    }
+
+    @Test
+    fun `send, group timeout`() = runBlocking {
+        val slow = object : TestTransaction() {
+            override fun send(data: ByteArray) {}
+        }
+        val fast = object : TestTransaction() {
+            override fun send(data: ByteArray) {}
+        }
+        // Echo is in the default group 0
+        session.setGroupTimeout(1, 60_000)
+        session.setGroupTimeout(0, 100)
+        session.send(newEchoRequest("Hello!"), slow, timeout = 60_000)
+        session.send(newEchoRequest("Hello!"), fast)
+        assertFailsWith(TransactionTimeoutException::class) {
+            withTimeout(1000) { fast.result.receive() }
+        }
+        // The earlier deadline did not fail the transaction with the later one.
+        assertEquals(1, session.inFlightCount)
+        assertFalse(slow.result.isClosedForReceive)
+    }
+
+    @Test
+    fun `send and receive, timeout cancelled`() = runBlocking {
+        session.defaultTimeout = 100
+        session.send(newEchoRequest("Hello!"), echoTransaction)
+        echoTransaction.result.receive()
+        delay(300)
+        assertFalse(echoTransaction.result.isClosedForReceive)
+        assertEquals(0, session.inFlightCount)
+    }
+
+    @Test
+    fun `send and receive, callbacks on executor`() = runBlocking {
+        val executor = Executors.newSingleThreadExecutor { Thread(it, "callbacks") }
+        val session = SmpProtocolSession(executor)
+        val threads = Channel<String>(Channel.UNLIMITED)
+        val transaction = object : SmpTransaction {
+            override fun send(data: ByteArray) {
+                threads.offer(Thread.currentThread().name)
+                session.receive(data)
+            }
+
+            override fun onResponse(data: ByteArray) {
+                threads.offer(Thread.currentThread().name)
+            }
+
+            override fun onFailure(e: Throwable) {
+                threads.close(e)
+            }
+        }
+        session.send(newEchoRequest("Hello!"), transaction)
+        assertEquals("callbacks", threads.receive())
+        assertEquals("callbacks", threads.receive())
+        executor.shutdown()
+    }
+
     @Test
     fun `close fails active transactions`() = runBlocking {
         val echo = "Hello!"
@@ -143,30 +214,128 @@ class SmpProtocolSessionTest {
     }
 
     @Test
-    fun `send overflows transmit buffer`() = runBlocking {
-        val echo = "Hello!"
-        val request = newEchoRequest(echo)
-        val transaction = object : TestTransaction() {
+    fun `receive after close is ignored`() {
+        session.close(DeviceDisconnectedException())
+        session.receive(newEchoRequest("Hello!"))
+    }
+
+    @Test
+    fun `short response and throwing callback do not end the session`() = runBlocking {
+        val throwing = object : TestTransaction() {
             override fun send(data: ByteArray) {
-                runBlocking { delay (10000) }
+                session.receive(data.copyOf(3))
+                session.receive(data)
             }
-        }
-        // First request is consumed which blocks the channel, remaining 256
-        // fills the channel buffer to capacity
-        repeat(257) {
-            launch {
-                session.send(request, transaction)
+
+            override fun onResponse(data: ByteArray) {
+                throw IllegalStateException("Callback failed")
             }
         }
-        launch {
-            assertFailsWith(IllegalStateException::class) {
-                session.send(request, transaction)
-            }
+        session.send(newEchoRequest("Hello!"), throwing)
+
+        // Later responses are still matched
+        session.send(newEchoRequest("Hello!"), echoTransaction)
+        val response = McuMgrResponse.buildResponse(
+            McuMgrScheme.BLE,
+            withTimeout(5000) { echoTransaction.result.receive() },
+            McuMgrEchoResponse::class.java
+        )
+        assertEquals("Hello!", response.r)
+    }
+
+    @Test
+    fun `send suspends while transmit buffer is full`() = runBlocking {
+        val session = SmpProtocolSession(queueCapacity = 1)
+        val results = Channel<Any>(Channel.UNLIMITED)
+        val transactions = List(258) { RecordingTransaction(results) }
+        transactions.forEach { session.enqueue(newEchoRequest("Hello!"), it) }
+        awaitCondition { session.inFlightCount == 256 }
+
+        // 256 requests are in flight, one waits for a sequence number and one fills the buffer
+        val job = launch { session.send(newEchoRequest("Hello!"), RecordingTransaction(results)) }
+        delay(100)
+        assertFalse(job.isCompleted)
+        assertEquals(3, session.queueDepth)
+
+        // Completing a transaction admits the suspended request
+        session.receive(transactions[0].sent!!)
+        withTimeout(5000) { job.join() }
+        assertEquals(2, session.queueDepth)
+        assertTrue(withTimeout(5000) { results.receive() } is ByteArray)
+    }
+
+    @Test
+    fun `send over in-flight limit, queued without overwrite`() = runBlocking {
+        val results = Channel<Any>(Channel.UNLIMITED)
+        val transactions = List(300) { RecordingTransaction(results) }
+        transactions.forEach { session.enqueue(newEchoRequest("Hello!"), it) }
+
+        awaitCondition { session.inFlightCount == 256 && session.queueDepth == 44 }
+        assertTrue(results.isEmpty)
+        val sequenceNumbers = transactions.mapNotNull { it.sent?.sequenceNumber }
+        assertEquals(256, sequenceNumbers.toSet().size)
+
+        // Answering the requests sends the queued ones
+        for (transaction in transactions) {
+            session.receive(awaitCondition { transaction.sent }!!)
         }
-        Unit
+        repeat(300) {
+            assertTrue(withTimeout(5000) { results.receive() } is ByteArray)
+        }
+        assertEquals(0, session.inFlightCount)
+        assertEquals(0, session.queueDepth)
+    }
+
+    @Test
+    fun `close fails queued transactions`() = runBlocking {
+        val results = Channel<Any>(Channel.UNLIMITED)
+        repeat(260) { session.enqueue(newEchoRequest("Hello!"), RecordingTransaction(results)) }
+        awaitCondition { session.inFlightCount == 256 }
+
+        val cause = DeviceDisconnectedException()
+        session.close(cause)
+
+        repeat(260) {
+            assertEquals<Any>(cause, withTimeout(5000) { results.receive() })
+        }
+        assertEquals(0, session.inFlightCount)
+        assertEquals(0, session.queueDepth)
+    }
+
+    /**
+     * Transaction which does not answer the request, recording the data sent and the result.
+     */
+    private class RecordingTransaction(private val results: Channel<Any>) : SmpTransaction {
+
+        @Volatile
+        var sent: ByteArray? = null
+
+        override fun send(data: ByteArray) {
+            sent = data
+        }
+
+        override fun onResponse(data: ByteArray) {
+            results.offer(data)
+        }
+
+        override fun onFailure(e: Throwable) {
+            results.offer(e)
+        }
+    }
+
+    private suspend fun <T> awaitCondition(condition: () -> T?): T? = withTimeout(5000) {
+        var result = condition()
+        while (result == null || result == false) {
+            delay(1)
+            result = condition()
+        }
+        result
     }
 }
 
+private val ByteArray.sequenceNumber: Int
+    get() = McuMgrHeader.fromBytes(this).sequenceNum
+
 private fun newEchoRequest(echo: String): ByteArray {
     return McuManager.buildPacket(
         McuMgrScheme.BLE,
@@ -12,18 +12,15 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 
 import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.response.McuMgrResponse;
-import io.runtime.mcumgr.util.CBOR;
 
 /**
  * TODO
@@ -35,13 +32,14 @@ public abstract class McuManager {
 
     // Transport constants
     private final static int DEFAULT_MTU = 515;
+    private final static int MIN_MTU = 20;
+    private final static int MAX_MTU = 1024;
 
     // Date format
     private final static String MCUMGR_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSSSSZZZZZ";
 
     // CoAP constants
     private final static String COAP_URI = "/omgr";
-    private final static String HEADER_KEY = "_h";
 
     // Mcu Manager operation codes
     protected final static int OP_READ = 0;
@@ -77,6 +75,11 @@ public abstract class McuManager {
      */
     protected int mMtu = DEFAULT_MTU;
 
+    /**
+     * Whether the MTU has been set using {@link #setUploadMtu(int)}.
+     */
+    private boolean mMtuSet;
+
     /**
      * Construct a McuManager instance.
      *
@@ -121,29 +124,46 @@ public abstract class McuManager {
      * Sets the upload MTU. MTU must be between 20 and 1024.
      * This is transport independent value, so should be equal to the maximum length of a packet
      * with selected transport.
+     * <p>
+     * If the transport is a {@link McuMgrMtuProvider}, the MTU is additionally limited to the
+     * maximum packet length reported by the transport.
      *
      * @param mtu the MTU to use for packets.
      * @return True if the upload has been set, false otherwise.
      */
     public synchronized boolean setUploadMtu(int mtu) {
-        if (mtu < 20) {
+        if (mtu < MIN_MTU) {
             LOG.error("MTU is too small! Must be greater than 20.");
             return false;
-        } else if (mtu > 1024) {
+        } else if (mtu > MAX_MTU) {
             LOG.error("MTU is too large! Must be less than 1024.");
             return false;
         } else {
             mMtu = mtu;
+            mMtuSet = true;
             return true;
         }
     }
 
     /**
      * Returns the upload MTU. MTU must be between 20 and 1024.
+     * <p>
+     * If the transport is a {@link McuMgrMtuProvider} which knows the maximum packet length,
+     * the MTU is updated to that length, unless a lower value has been set using
+     * {@link #setUploadMtu(int)}.
      *
-     * @return The MTY.
+     * @return The MTU.
      */
     public synchronized int getMtu() {
+        if (mTransporter instanceof McuMgrMtuProvider) {
+            int maxPacketLength = ((McuMgrMtuProvider) mTransporter).getMaxPacketLength();
+            if (maxPacketLength >= MIN_MTU) {
+                int mtu = Math.min(maxPacketLength, MAX_MTU);
+                if (!mMtuSet || mtu < mMtu) {
+                    mMtu = mtu;
+                }
+            }
+        }
         return mMtu;
     }
 
@@ -168,6 +188,28 @@ public abstract class McuManager {
         send(op, 0, 0, commandId, payloadMap, respType, callback);
     }
 
+    /**
+     * Send an asynchronous Mcu Manager command, returning a future of the response.
+     * <p>
+     * No thread waits for the response, unless {@link McuMgrFuture#get()} is called.
+     *
+     * @param op         the operation ({@link McuManager#OP_READ}, {@link McuManager#OP_WRITE}).
+     * @param commandId  the ID of the command.
+     * @param payloadMap the map of values to send along. This argument can be null if the header is
+     *                   the only required field.
+     * @param respType   the response type.
+     * @param <T>        the response type.
+     * @return The future response.
+     */
+    @NotNull
+    public <T extends McuMgrResponse> McuMgrFuture<T> sendAsync(
+            int op, int commandId, @Nullable Map<String, Object> payloadMap,
+            @NotNull Class<T> respType) {
+        McuMgrFuture<T> future = new McuMgrFuture<>();
+        send(op, commandId, payloadMap, respType, future);
+        return future;
+    }
+
     /**
      * Send synchronous Mcu Manager command.
      * <p>
@@ -259,6 +301,22 @@ public abstract class McuManager {
         mTransporter.send(data, respType, callback);
     }
 
+    /**
+     * Send data asynchronously using the transporter, returning a future of the response.
+     *
+     * @param data     the data to send.
+     * @param respType the response type.
+     * @param <T>      the response type.
+     * @return The future response.
+     */
+    @NotNull
+    public <T extends McuMgrResponse> McuMgrFuture<T> sendAsync(@NotNull byte[] data,
+                                                                @NotNull Class<T> respType) {
+        McuMgrFuture<T> future = new McuMgrFuture<>();
+        send(data, respType, future);
+        return future;
+    }
+
     /**
      * Send data synchronously using the transporter.
      *
@@ -292,42 +350,24 @@ public abstract class McuManager {
                                      int sequenceNum, int commandId,
                                      @Nullable Map<String, Object> payloadMap)
             throws McuMgrException {
-        byte[] packet;
-        try {
-            // If the payload map is null initialize an empty payload map
-            if (payloadMap == null) {
-                payloadMap = new HashMap<>();
-            }
-
-            // Copy the payload map to remove the header key
-            HashMap<String, Object> payloadMapCopy = new HashMap<>(payloadMap);
-            // Remove the header if present (for CoAP schemes)
-            payloadMapCopy.remove(HEADER_KEY);
-
-            // Get the length
-            int len = CBOR.toBytes(payloadMapCopy).length;
-
-            // Build header
-            byte[] header = McuMgrHeader.build(op, flags, len, groupId, sequenceNum, commandId);
+        return McuMgrPacketBuilder.obtain(scheme)
+                .begin(op, flags, groupId, sequenceNum, commandId)
+                .putAll(payloadMap)
+                .build();
+    }
 
-            // Build the packet based on scheme
-            if (scheme.isCoap()) {
-                // CoAP Scheme puts the header as a key-value pair in the payload
-                if (payloadMap.get(HEADER_KEY) == null) {
-                    payloadMap.put(HEADER_KEY, header);
-                }
-                packet = CBOR.toBytes(payloadMap);
-            } else {
-                // Standard scheme appends the CBOR payload to the header.
-                byte[] cborPayload = CBOR.toBytes(payloadMap);
-                packet = new byte[header.length + cborPayload.length];
-                System.arraycopy(header, 0, packet, 0, header.length);
-                System.arraycopy(cborPayload, 0, packet, header.length, cborPayload.length);
-            }
-        } catch (IOException e) {
-            throw new McuMgrException("An error occurred serializing CBOR payload", e);
-        }
-        return packet;
+    /**
+     * Starts a new packet for this manager's group and transport scheme. The returned builder
+     * is owned by the calling thread and must be built before another packet is started.
+     *
+     * @param op        the operation ({@link McuManager#OP_READ}, {@link McuManager#OP_WRITE}).
+     * @param commandId ID of the command in the group.
+     * @return The packet builder.
+     * @throws McuMgrException if the packet could not be started.
+     */
+    @NotNull
+    protected McuMgrPacketBuilder newPacket(int op, int commandId) throws McuMgrException {
+        return McuMgrPacketBuilder.obtain(getScheme()).begin(op, 0, mGroupId, 0, commandId);
     }
 
     //******************************************************************
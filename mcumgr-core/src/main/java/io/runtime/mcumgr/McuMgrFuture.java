@@ -0,0 +1,182 @@
+package io.runtime.mcumgr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.response.McuMgrResponse;
+
+/**
+ * The pending result of an asynchronous Mcu Manager command.
+ * <p>
+ * The future is the callback of the command, so no thread waits for the response; only
+ * {@link #get()} blocks the calling thread. Callbacks added using
+ * {@link #whenComplete(McuMgrCallback)} are called on the thread delivering the response, or on
+ * the calling thread if the future has already completed. From Kotlin, use the suspending
+ * {@code await()} extension.
+ * <p>
+ * Canceling the future does not stop the request, whose response is ignored; the callbacks
+ * get a {@link McuMgrException}.
+ *
+ * @param <T> the response type.
+ */
+@SuppressWarnings("unused")
+public class McuMgrFuture<T extends McuMgrResponse> implements Future<T>, McuMgrCallback<T> {
+
+    // Guarded by this
+    @Nullable
+    private T mResponse;
+    @Nullable
+    private McuMgrException mError;
+    private boolean mDone;
+    private boolean mCanceled;
+    @Nullable
+    private List<McuMgrCallback<T>> mCallbacks;
+
+    /**
+     * Adds a callback called when the command completes, fails or is canceled.
+     *
+     * @param callback the callback.
+     * @return This future.
+     */
+    @NotNull
+    public McuMgrFuture<T> whenComplete(@NotNull McuMgrCallback<T> callback) {
+        synchronized (this) {
+            if (!mDone) {
+                if (mCallbacks == null) {
+                    mCallbacks = new ArrayList<>(1);
+                }
+                mCallbacks.add(callback);
+                return this;
+            }
+        }
+        dispatch(callback);
+        return this;
+    }
+
+    @Override
+    public void onResponse(@NotNull T response) {
+        complete(response, null, false);
+    }
+
+    @Override
+    public void onError(@NotNull McuMgrException error) {
+        complete(null, error, false);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, new McuMgrException("Request canceled"), true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCanceled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized T get(long timeout, @NotNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    /**
+     * Returns the response, or null if the command has not completed successfully.
+     *
+     * @return The response, or null.
+     */
+    @Nullable
+    public synchronized T getResponse() {
+        return mResponse;
+    }
+
+    /**
+     * Returns the error, or null if the command has not failed nor been canceled.
+     *
+     * @return The error, or null.
+     */
+    @Nullable
+    public synchronized McuMgrException getError() {
+        return mError;
+    }
+
+    //******************************************************************
+    // Implementation
+    //******************************************************************
+
+    private T result() throws ExecutionException {
+        if (mCanceled) {
+            throw new CancellationException();
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mResponse;
+    }
+
+    private boolean complete(@Nullable T response, @Nullable McuMgrException error,
+                             boolean canceled) {
+        List<McuMgrCallback<T>> callbacks;
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mResponse = response;
+            mError = error;
+            mCanceled = canceled;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        if (callbacks != null) {
+            for (McuMgrCallback<T> callback : callbacks) {
+                dispatch(callback);
+            }
+        }
+        return true;
+    }
+
+    private void dispatch(@NotNull McuMgrCallback<T> callback) {
+        T response;
+        McuMgrException error;
+        synchronized (this) {
+            response = mResponse;
+            error = mError;
+        }
+        if (response != null) {
+            callback.onResponse(response);
+        } else if (error != null) {
+            callback.onError(error);
+        }
+    }
+}
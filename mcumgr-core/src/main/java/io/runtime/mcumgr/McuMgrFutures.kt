@@ -0,0 +1,34 @@
+package io.runtime.mcumgr
+
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.response.McuMgrResponse
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Suspends until the command completes, without blocking a thread, and returns the response.
+ * Cancelling the coroutine cancels the future.
+ *
+ * ```
+ * val state = imageManager.listAsync().await()
+ * ```
+ *
+ * @throws McuMgrException if the command failed.
+ */
+suspend fun <T : McuMgrResponse> McuMgrFuture<T>.await(): T =
+    suspendCancellableCoroutine { continuation ->
+        continuation.invokeOnCancellation { cancel(false) }
+        whenComplete(object : McuMgrCallback<T> {
+            override fun onResponse(response: T) {
+                continuation.resume(response)
+            }
+
+            override fun onError(error: McuMgrException) {
+                // The continuation has been cancelled already if the future was cancelled by it
+                if (continuation.isActive) {
+                    continuation.resumeWithException(error)
+                }
+            }
+        })
+    }
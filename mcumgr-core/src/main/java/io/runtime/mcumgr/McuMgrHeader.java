@@ -10,9 +10,6 @@ package io.runtime.mcumgr;
 
 import org.jetbrains.annotations.NotNull;
 
-import io.runtime.mcumgr.util.ByteUtil;
-import io.runtime.mcumgr.util.Endian;
-
 /**
  * The Mcu Manager header is an 8-byte array which identifies the specific command and provides
  * fields for optional values such as flags and sequence numbers. This class is used to parse
@@ -109,18 +106,44 @@ public class McuMgrHeader {
      */
     @NotNull
     public static McuMgrHeader fromBytes(@NotNull byte[] header) {
-        if (header.length < HEADER_LENGTH) {
-            throw new IllegalArgumentException("Failed to parse mcumgr header from bytes; too short - length=" + header.length);
+        return fromBytes(header, 0);
+    }
+
+    /**
+     * Parse the mcumgr header in place, starting at the given offset of a byte array.
+     * This function will parse 8 bytes from the offset, discounting any additional bytes.
+     *
+     * @param data   the byte array containing the header.
+     * @param offset the offset of the header in the array.
+     * @return The parsed mcumgr header.
+     * @throws IllegalArgumentException when there are less than 8 bytes from the offset
+     */
+    @NotNull
+    public static McuMgrHeader fromBytes(@NotNull byte[] data, int offset) {
+        if (offset < 0 || data.length - offset < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Failed to parse mcumgr header from bytes; too short - length=" + (data.length - offset));
         }
-        int op          = ByteUtil.byteArrayToUnsignedInt(header, 0, Endian.BIG, 1);
-        int flags       = ByteUtil.byteArrayToUnsignedInt(header, 1, Endian.BIG, 1);
-        int len         = ByteUtil.byteArrayToUnsignedInt(header, 2, Endian.BIG, 2);
-        int groupId     = ByteUtil.byteArrayToUnsignedInt(header, 4, Endian.BIG, 2);
-        int sequenceNum = ByteUtil.byteArrayToUnsignedInt(header, 6, Endian.BIG, 1);
-        int commandId   = ByteUtil.byteArrayToUnsignedInt(header, 7, Endian.BIG, 1);
+        int op          = data[offset] & 0xFF;
+        int flags       = data[offset + 1] & 0xFF;
+        int len         = readLen(data, offset);
+        int groupId     = ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+        int sequenceNum = data[offset + 6] & 0xFF;
+        int commandId   = data[offset + 7] & 0xFF;
         return new McuMgrHeader(op, flags, len, groupId, sequenceNum, commandId);
     }
 
+    /**
+     * Reads the LENGTH field of the header starting at the given offset, without parsing the
+     * remaining fields. The caller must ensure the array contains the whole header.
+     *
+     * @param data   the byte array containing the header.
+     * @param offset the offset of the header in the array.
+     * @return The length of the payload following the header.
+     */
+    public static int readLen(@NotNull byte[] data, int offset) {
+        return ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
     /**
      * Builds a new manager header.
      *
@@ -0,0 +1,70 @@
+package io.runtime.mcumgr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers the largest working SMP packet length per device, so that transfers to a device
+ * which has been connected before are sized correctly from the first packet, even before the
+ * connection is established.
+ * <p>
+ * Transports record the length negotiated on connection using {@link #put}, replacing the value
+ * of the previous connection. Devices are identified by a key, e.g. the Bluetooth device address.
+ * <p>
+ * Only negotiated lengths are recorded. When a packet turns out to be too long, managers lower
+ * their own packet size on
+ * {@link io.runtime.mcumgr.exception.InsufficientMtuException}. That lower size is not
+ * remembered here, so the next manager, or the next connection, finds it again.
+ */
+@SuppressWarnings("unused")
+public class McuMgrMtuCache {
+
+    private final static McuMgrMtuCache INSTANCE = new McuMgrMtuCache();
+
+    @NotNull
+    private final ConcurrentMap<String, Integer> mMaxPacketLengths = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the cache shared by all transports in the process.
+     *
+     * @return The shared cache.
+     */
+    @NotNull
+    public static McuMgrMtuCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the largest working packet length of the given device.
+     *
+     * @param key the device key.
+     * @return The maximum packet length, or 0 if not known.
+     */
+    public int get(@NotNull String key) {
+        Integer maxPacketLength = mMaxPacketLengths.get(key);
+        return maxPacketLength != null ? maxPacketLength : 0;
+    }
+
+    /**
+     * Records the packet length negotiated with the given device, replacing the previous value.
+     *
+     * @param key             the device key.
+     * @param maxPacketLength the maximum packet length.
+     */
+    public void put(@NotNull String key, int maxPacketLength) {
+        if (maxPacketLength > 0) {
+            mMaxPacketLengths.put(key, maxPacketLength);
+        }
+    }
+
+    /**
+     * Forgets the packet length of the given device.
+     *
+     * @param key the device key.
+     */
+    public void remove(@NotNull String key) {
+        mMaxPacketLengths.remove(key);
+    }
+}
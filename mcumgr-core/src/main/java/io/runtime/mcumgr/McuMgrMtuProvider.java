@@ -0,0 +1,22 @@
+package io.runtime.mcumgr;
+
+/**
+ * Implemented by transports which know the largest SMP packet they are able to send.
+ * <p>
+ * A {@link McuManager} using such a transport sizes its packets to this length before the first
+ * request is sent, instead of learning it from an
+ * {@link io.runtime.mcumgr.exception.InsufficientMtuException}.
+ *
+ * @see McuMgrMtuCache
+ */
+public interface McuMgrMtuProvider {
+
+    /**
+     * Returns the largest SMP packet, in bytes, which can be sent to the device, including the
+     * header. Transports which are not connected may return the length learned during a previous
+     * connection.
+     *
+     * @return The maximum packet length, or 0 if not known.
+     */
+    int getMaxPacketLength();
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (c) 2017-2018 Runtime Inc.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.runtime.mcumgr;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.transfer.UploadSource;
+import io.runtime.mcumgr.util.CBOR;
+
+/**
+ * Builds Mcu Manager packets by streaming the header and the CBOR payload fields into a single,
+ * reusable buffer.
+ * <p>
+ * For standard schemes the 8-byte {@link McuMgrHeader} is written first with an empty length
+ * field, which is back-patched once the payload has been written. For CoAP schemes the payload
+ * fields are written first and the header, including the payload length, is appended as the
+ * {@code "_h"} key-value pair before the map is closed. In both cases the payload is serialized
+ * exactly once and the only array allocated per packet is the one returned by {@link #build()}.
+ * <p>
+ * Builders are not thread safe. Use {@link #obtain(McuMgrScheme)} to get a builder owned by the
+ * calling thread, or create a dedicated instance with the public constructor.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class McuMgrPacketBuilder {
+
+    private final static String HEADER_KEY = "_h";
+    private final static int DEFAULT_CAPACITY = 530;
+
+    private final static ThreadLocal<McuMgrPacketBuilder> sPool =
+            new ThreadLocal<McuMgrPacketBuilder>() {
+                @Override
+                protected McuMgrPacketBuilder initialValue() {
+                    return new McuMgrPacketBuilder(McuMgrScheme.BLE);
+                }
+            };
+
+    @NotNull
+    private McuMgrScheme mScheme;
+    @NotNull
+    private final PacketBuffer mBuffer;
+    @NotNull
+    private final SourceStream mSourceStream = new SourceStream();
+    @Nullable
+    private CBORGenerator mGenerator;
+    @Nullable
+    private byte[] mHeaderOverride;
+
+    private int mOp;
+    private int mFlags;
+    private int mGroupId;
+    private int mSequenceNum;
+    private int mCommandId;
+
+    /**
+     * Construct a packet builder with its own buffer.
+     *
+     * @param scheme the transport scheme which determines the packet format.
+     */
+    public McuMgrPacketBuilder(@NotNull McuMgrScheme scheme) {
+        this(scheme, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Construct a packet builder with its own buffer.
+     *
+     * @param scheme   the transport scheme which determines the packet format.
+     * @param capacity the initial capacity of the buffer. The buffer grows if needed and keeps
+     *                 its size between packets.
+     */
+    public McuMgrPacketBuilder(@NotNull McuMgrScheme scheme, int capacity) {
+        mScheme = scheme;
+        mBuffer = new PacketBuffer(capacity);
+    }
+
+    /**
+     * Returns the packet builder owned by the calling thread, set up for the given scheme.
+     * The builder must be used to completion (until {@link #build()} returns) before
+     * {@link #obtain(McuMgrScheme)} is called again on the same thread.
+     *
+     * @param scheme the transport scheme which determines the packet format.
+     * @return The packet builder of the calling thread.
+     */
+    @NotNull
+    public static McuMgrPacketBuilder obtain(@NotNull McuMgrScheme scheme) {
+        McuMgrPacketBuilder builder = sPool.get();
+        builder.mScheme = scheme;
+        return builder;
+    }
+
+    /**
+     * Starts a new packet, discarding any packet which has not been built.
+     *
+     * @param op          the operation ({@link McuManager#OP_READ}, {@link McuManager#OP_WRITE}).
+     * @param flags       additional flags.
+     * @param groupId     group ID of the command.
+     * @param sequenceNum sequence number.
+     * @param commandId   ID of the command in the group.
+     * @return This builder.
+     * @throws McuMgrException if the CBOR generator could not be created.
+     */
+    @NotNull
+    public McuMgrPacketBuilder begin(int op, int flags, int groupId, int sequenceNum,
+                                     int commandId) throws McuMgrException {
+        mOp = op;
+        mFlags = flags;
+        mGroupId = groupId;
+        mSequenceNum = sequenceNum;
+        mCommandId = commandId;
+        mHeaderOverride = null;
+        mBuffer.reset();
+        try {
+            if (!mScheme.isCoap()) {
+                // The length is back-patched in build().
+                mBuffer.write(McuMgrHeader.build(op, flags, 0, groupId, sequenceNum, commandId));
+            }
+            mGenerator = CBOR.createGenerator(mBuffer);
+            mGenerator.writeStartObject();
+        } catch (IOException e) {
+            mGenerator = null;
+            throw new McuMgrException("An error occurred serializing CBOR payload", e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a key-value pair into the payload. The value may be of any type supported by
+     * Jackson, including null.
+     * <p>
+     * For CoAP schemes, a value set for the {@code "_h"} key is used as the header instead of
+     * the one built from the values passed to {@link #begin}.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @return This builder.
+     * @throws McuMgrException if the value could not be serialized.
+     */
+    @NotNull
+    public McuMgrPacketBuilder put(@NotNull String key, @Nullable Object value)
+            throws McuMgrException {
+        if (HEADER_KEY.equals(key)) {
+            if (value instanceof byte[]) {
+                mHeaderOverride = (byte[]) value;
+            }
+            return this;
+        }
+        CBORGenerator generator = requireGenerator();
+        try {
+            generator.writeFieldName(key);
+            generator.writeObject(value);
+        } catch (IOException e) {
+            throw new McuMgrException("An error occurred serializing CBOR payload", e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes an integer key-value pair into the payload.
+     *
+     * @param key   the key.
+     * @param value the value.
+     * @return This builder.
+     * @throws McuMgrException if the value could not be serialized.
+     */
+    @NotNull
+    public McuMgrPacketBuilder put(@NotNull String key, int value) throws McuMgrException {
+        CBORGenerator generator = requireGenerator();
+        try {
+            generator.writeFieldName(key);
+            generator.writeNumber(value);
+        } catch (IOException e) {
+            throw new McuMgrException("An error occurred serializing CBOR payload", e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a byte string key-value pair into the payload, taken directly from the given range
+     * of the array. The range is not copied.
+     *
+     * @param key    the key.
+     * @param data   the array containing the value.
+     * @param offset the offset of the value in the array.
+     * @param length the length of the value.
+     * @return This builder.
+     * @throws McuMgrException if the value could not be serialized.
+     */
+    @NotNull
+    public McuMgrPacketBuilder put(@NotNull String key, @NotNull byte[] data, int offset,
+                                   int length) throws McuMgrException {
+        CBORGenerator generator = requireGenerator();
+        try {
+            generator.writeFieldName(key);
+            generator.writeBinary(data, offset, length);
+        } catch (IOException e) {
+            throw new McuMgrException("An error occurred serializing CBOR payload", e);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a byte string key-value pair into the payload, read from the given range of the
+     * source directly into the packet buffer.
+     *
+     * @param key      the key.
+     * @param source   the source containing the value.
+     * @param position the position of the value in the source.
+     * @param length   the length of the value.
+     * @return This builder.
+     * @throws McuMgrException if the value could not be read or serialized.
+     */
+    @NotNull
+    public McuMgrPacketBuilder put(@NotNull String key, @NotNull UploadSource source,
+                                   int position, int length) throws McuMgrException {
+        byte[] array = source.array();
+        if (array != null) {
+            return put(key, array, position, length);
+        }
+        CBORGenerator generator = requireGenerator();
+        try {
+            generator.writeFieldName(key);
+            mSourceStream.set(source, position, length);
+            generator.writeBinary(mSourceStream, length);
+        } catch (IOException e) {
+            throw new McuMgrException("An error occurred serializing CBOR payload", e);
+        } finally {
+            mSourceStream.set(null, 0, 0);
+        }
+        return this;
+    }
+
+    /**
+     * Writes all key-value pairs of the map into the payload.
+     *
+     * @param payloadMap the map of key-value pairs. May be null.
+     * @return This builder.
+     * @throws McuMgrException if a value could not be serialized.
+     */
+    @NotNull
+    public McuMgrPacketBuilder putAll(@Nullable Map<String, ?> payloadMap)
+            throws McuMgrException {
+        if (payloadMap != null) {
+            for (Map.Entry<String, ?> entry : payloadMap.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Completes the packet and returns its length, without allocating the packet array.
+     * The completed packet may then be obtained using {@link #build()} or
+     * {@link #build(byte[], int)}.
+     *
+     * @return The length of the packet.
+     * @throws McuMgrException if the packet could not be completed.
+     */
+    public int finish() throws McuMgrException {
+        CBORGenerator generator = mGenerator;
+        if (generator == null) {
+            // Already finished.
+            return mBuffer.size();
+        }
+        try {
+            if (mScheme.isCoap()) {
+                // The length of the payload without the header pair includes the break byte.
+                generator.flush();
+                int len = mBuffer.size() + 1;
+                byte[] header = mHeaderOverride != null ? mHeaderOverride :
+                        McuMgrHeader.build(mOp, mFlags, len, mGroupId, mSequenceNum, mCommandId);
+                generator.writeFieldName(HEADER_KEY);
+                generator.writeBinary(header);
+                generator.writeEndObject();
+                generator.close();
+            } else {
+                generator.writeEndObject();
+                generator.close();
+                // Back-patch the 16-bit length field of the header.
+                int len = mBuffer.size() - McuMgrHeader.HEADER_LENGTH;
+                mBuffer.set(2, (byte) (len >>> 8));
+                mBuffer.set(3, (byte) len);
+            }
+        } catch (IOException e) {
+            throw new McuMgrException("An error occurred serializing CBOR payload", e);
+        } finally {
+            mGenerator = null;
+        }
+        return mBuffer.size();
+    }
+
+    /**
+     * Completes the packet and returns it in a new array of the exact packet length.
+     *
+     * @return The packet data.
+     * @throws McuMgrException if the packet could not be completed.
+     */
+    @NotNull
+    public byte[] build() throws McuMgrException {
+        finish();
+        return mBuffer.toByteArray();
+    }
+
+    /**
+     * Completes the packet and copies it into the given array.
+     *
+     * @param dest   the destination array.
+     * @param offset the offset in the destination array.
+     * @return The length of the packet.
+     * @throws McuMgrException          if the packet could not be completed.
+     * @throws IllegalArgumentException if the packet does not fit into the destination array.
+     */
+    public int build(@NotNull byte[] dest, int offset) throws McuMgrException {
+        int length = finish();
+        if (dest.length - offset < length) {
+            throw new IllegalArgumentException("Packet (" + length +
+                    " bytes) does not fit into destination buffer");
+        }
+        mBuffer.copyTo(dest, offset);
+        return length;
+    }
+
+    @NotNull
+    private CBORGenerator requireGenerator() {
+        if (mGenerator == null) {
+            throw new IllegalStateException("Packet has not been started.");
+        }
+        return mGenerator;
+    }
+
+    /**
+     * Growable buffer which exposes in-place writes and copies of its content.
+     */
+    private static class PacketBuffer extends ByteArrayOutputStream {
+
+        PacketBuffer(int capacity) {
+            super(capacity);
+        }
+
+        void set(int index, byte value) {
+            buf[index] = value;
+        }
+
+        void copyTo(@NotNull byte[] dest, int offset) {
+            System.arraycopy(buf, 0, dest, offset, count);
+        }
+    }
+
+    /**
+     * Reads a range of an upload source, reused between packets. The generator may ask for more
+     * data than it writes, so the stream ends with the range.
+     */
+    private static class SourceStream extends InputStream {
+        private final byte[] mByte = new byte[1];
+        @Nullable
+        private UploadSource mSource;
+        private int mPosition;
+        private int mEnd;
+
+        void set(@Nullable UploadSource source, int position, int length) {
+            mSource = source;
+            mPosition = position;
+            mEnd = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(mByte, 0, 1) < 0 ? -1 : mByte[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            if (mSource == null) {
+                throw new IOException("Source not set");
+            }
+            int length = Math.min(len, mEnd - mPosition);
+            if (length <= 0) {
+                return -1;
+            }
+            mSource.read(mPosition, b, off, length);
+            mPosition += length;
+            return length;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package io.runtime.mcumgr;
+
+/**
+ * Implemented by transports which switch to a performance profile during bulk transfers, e.g. by
+ * requesting a shorter connection interval, and back to balanced settings once done.
+ * <p>
+ * Uploads and downloads notify the transport of their managers when they start and finish.
+ * Transfers may overlap; the profile should stay in effect until the last one has finished.
+ */
+public interface McuMgrTransferProfile {
+
+    /**
+     * Called when an upload or download has started.
+     */
+    void onTransferStarted();
+
+    /**
+     * Called when an upload or download has completed, failed or has been cancelled. Each call
+     * matches a previous call to {@link #onTransferStarted()}.
+     */
+    void onTransferFinished();
+}
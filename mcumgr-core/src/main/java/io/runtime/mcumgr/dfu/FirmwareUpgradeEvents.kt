@@ -0,0 +1,108 @@
+package io.runtime.mcumgr.dfu
+
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.image.McuMgrImage
+import io.runtime.mcumgr.transfer.DEFAULT_PROGRESS_INTERVAL
+import io.runtime.mcumgr.transfer.TransferEvent
+import io.runtime.mcumgr.transfer.transferEvents
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.coroutines.resume
+
+/**
+ * Starts the upgrade when collected, emitting its state changes, the progress of the image
+ * upload and its completion. Cancelling the collection cancels the upgrade.
+ *
+ * The flow replaces the callback of the manager while the upgrade runs, and delivers the events
+ * on the collector's context instead of posting each of them to the main thread. The callback and
+ * the [FirmwareUpgradeManager.setCallbackOnUiThread] setting are restored once the upgrade has
+ * ended. Upload progress is conflated and emitted at most once per [progressInterval]. If an
+ * upgrade is already in progress, the flow emits a [TransferEvent.Failed] event.
+ */
+fun FirmwareUpgradeManager.upgradeEvents(
+    image: McuMgrImage,
+    progressInterval: Long = DEFAULT_PROGRESS_INTERVAL
+): Flow<TransferEvent> {
+    val manager = this
+    val progress = AtomicReference<TransferEvent.Progress?>()
+    return transferEvents(progressInterval, { progress.get() }) { events ->
+        check(manager.state == FirmwareUpgradeManager.State.NONE) {
+            "Firmware upgrade is already in progress"
+        }
+        val callback = manager.firmwareUpgradeCallback
+        val callbackOnUiThread = manager.isCallbackOnUiThread
+        val restored = AtomicBoolean()
+        val restore = {
+            if (restored.compareAndSet(false, true)) {
+                manager.setFirmwareUpgradeCallback(callback)
+                manager.setCallbackOnUiThread(callbackOnUiThread)
+            }
+        }
+        try {
+            upgrade(manager, image, events, progress, restore)
+        } finally {
+            // A canceled upgrade which has not stopped yet restores them when it ends.
+            if (!manager.state.isInProgress) {
+                restore()
+            }
+        }
+    }
+}
+
+private suspend fun upgrade(
+    manager: FirmwareUpgradeManager,
+    image: McuMgrImage,
+    events: SendChannel<TransferEvent>,
+    progress: AtomicReference<TransferEvent.Progress?>,
+    restore: () -> Unit
+) {
+    suspendCancellableCoroutine<Unit> { continuation ->
+        manager.setCallbackOnUiThread(false)
+        manager.setFirmwareUpgradeCallback(object : FirmwareUpgradeCallback {
+            override fun onUpgradeStarted(controller: FirmwareUpgradeController) = Unit
+
+            override fun onStateChanged(
+                prevState: FirmwareUpgradeManager.State,
+                newState: FirmwareUpgradeManager.State
+            ) {
+                events.offer(TransferEvent.StateChanged(prevState, newState))
+            }
+
+            override fun onUploadProgressChanged(
+                bytesSent: Int,
+                imageSize: Int,
+                timestamp: Long
+            ) {
+                progress.set(TransferEvent.Progress(bytesSent, imageSize))
+            }
+
+            override fun onUpgradeCompleted() {
+                finish(TransferEvent.Completed())
+            }
+
+            override fun onUpgradeFailed(
+                state: FirmwareUpgradeManager.State,
+                error: McuMgrException
+            ) {
+                finish(TransferEvent.Failed(error, state))
+            }
+
+            override fun onUpgradeCanceled(state: FirmwareUpgradeManager.State) {
+                finish(TransferEvent.Canceled(state))
+            }
+
+            private fun finish(event: TransferEvent) {
+                restore()
+                events.offer(event)
+                if (continuation.isActive) {
+                    continuation.resume(Unit)
+                }
+            }
+        })
+        continuation.invokeOnCancellation { manager.cancel() }
+        manager.start(image)
+    }
+}
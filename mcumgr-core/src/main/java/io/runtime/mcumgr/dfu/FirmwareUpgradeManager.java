@@ -25,6 +25,7 @@ import io.runtime.mcumgr.response.McuMgrResponse;
 import io.runtime.mcumgr.response.img.McuMgrImageStateResponse;
 import io.runtime.mcumgr.transfer.TransferController;
 import io.runtime.mcumgr.transfer.UploadCallback;
+import io.runtime.mcumgr.transfer.UploadSource;
 import static io.runtime.mcumgr.transfer.ImageUploaderKt.windowUpload;
 
 // TODO Add retries for each step
@@ -50,6 +51,24 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
 
     private final static Logger LOG = LoggerFactory.getLogger(FirmwareUpgradeManager.class);
 
+    /**
+     * Measures the time since the reset, in milliseconds, including time spent in deep sleep.
+     */
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    /**
+     * The clock of the Android framework, used unless another one has been set using
+     * {@link #setClock(Clock)}.
+     */
+    final static Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
     public enum Mode {
         /**
          * When this mode is set, the manager will send the test and reset commands to
@@ -102,7 +121,7 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
     /**
      * Image data to upload.
      */
-    private byte[] mImageData;
+    private UploadSource mImageSource;
 
     /**
      * Hash of the image data.
@@ -144,6 +163,12 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
      */
     private long mResetResponseTime;
 
+    /**
+     * The clock timing the swap after the reset.
+     */
+    @NotNull
+    private Clock mClock = SYSTEM_CLOCK;
+
     /**
      * The upload window capacity for faster image uploads. A capacity greater than 1 will enable
      * using the faster window upload implementation.
@@ -169,12 +194,39 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
      */
     public FirmwareUpgradeManager(@NotNull McuMgrTransport transport,
                                   @Nullable FirmwareUpgradeCallback callback) {
+        this(new ImageManager(transport), new DefaultManager(transport), callback);
+    }
+
+    /**
+     * Construct a firmware upgrade manager using the given managers, e.g. managers shared with
+     * other operations on the same device. The managers must use the same transport.
+     *
+     * @param imageManager   the manager uploading, testing and confirming the image.
+     * @param defaultManager the manager resetting the device.
+     * @param callback       the callback.
+     */
+    public FirmwareUpgradeManager(@NotNull ImageManager imageManager,
+                                  @NotNull DefaultManager defaultManager,
+                                  @Nullable FirmwareUpgradeCallback callback) {
+        if (imageManager.getTransporter() != defaultManager.getTransporter()) {
+            throw new IllegalArgumentException("Managers must use the same transport");
+        }
         mState = State.NONE;
-        mImageManager = new ImageManager(transport);
-        mDefaultManager = new DefaultManager(transport);
+        mImageManager = imageManager;
+        mDefaultManager = defaultManager;
         mCallback = callback;
     }
 
+    /**
+     * Sets the clock timing the swap after the reset, e.g. in unit tests, which run without the
+     * Android framework.
+     *
+     * @param clock the clock.
+     */
+    void setClock(@NotNull Clock clock) {
+        mClock = clock;
+    }
+
     /**
      * Get the transporter.
      *
@@ -213,6 +265,15 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
         mUiThreadCallbacks = uiThreadCallbacks;
     }
 
+    /**
+     * Returns whether the callbacks run on the UI thread.
+     *
+     * @return True if all callbacks run on the UI thread.
+     */
+    public boolean isCallbackOnUiThread() {
+        return mUiThreadCallbacks;
+    }
+
     /**
      * Sets the manager callback.
      *
@@ -222,6 +283,16 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
         mCallback = callback;
     }
 
+    /**
+     * Returns the manager callback.
+     *
+     * @return The callback, or null if not set.
+     */
+    @Nullable
+    public FirmwareUpgradeCallback getFirmwareUpgradeCallback() {
+        return mCallback;
+    }
+
     /**
      * Sets the manager mode. By default the {@link Mode#TEST_AND_CONFIRM} mode is used.
      * The mode may be set only before calling {@link #start(byte[])} method.
@@ -282,13 +353,50 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
      * the upload.
      */
     public synchronized void start(@NotNull byte[] imageData) throws McuMgrException {
+        start(UploadSource.wrap(imageData));
+    }
+
+    /**
+     * Start the upgrade, reading the image from the given source.
+     * <p>
+     * Chunks of the image are read from the source as they are sent, so the image does not have
+     * to be loaded into memory. The source must not change, and must not be closed, until the
+     * upgrade has finished.
+     *
+     * @param imageSource the source of the image.
+     * @throws McuMgrException if the image could not be read or is not valid.
+     * @see #start(byte[])
+     */
+    public synchronized void start(@NotNull UploadSource imageSource) throws McuMgrException {
         if (mState != State.NONE) {
             LOG.info("Firmware upgrade is already in progress");
             return;
         }
         // Set image and validate
-        mImageData = imageData;
-        mHash = McuMgrImage.getHash(imageData);
+        mImageSource = imageSource;
+        mHash = McuMgrImage.getHash(imageSource);
+
+        // Begin the upload
+        mInternalCallback.onUpgradeStarted(this);
+        validate();
+    }
+
+    /**
+     * Start the upgrade with an image parsed beforehand.
+     * <p>
+     * The image is not parsed nor hashed again, so one image may be used for the upgrades of many
+     * devices, which share its data read-only.
+     *
+     * @param image the image.
+     * @see #start(byte[])
+     */
+    public synchronized void start(@NotNull McuMgrImage image) {
+        if (mState != State.NONE) {
+            LOG.info("Firmware upgrade is already in progress");
+            return;
+        }
+        mImageSource = image.getSource();
+        mHash = image.getHash();
 
         // Begin the upload
         mInternalCallback.onUpgradeStarted(this);
@@ -362,10 +470,10 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
         setState(State.UPLOAD);
         if (!mPaused) {
             if (mWindowCapacity > 1) {
-                mUploadController = windowUpload(mImageManager, mImageData, mWindowCapacity,
+                mUploadController = windowUpload(mImageManager, mImageSource, mWindowCapacity,
                         mImageUploadCallback);
             } else {
-                mUploadController = mImageManager.imageUpload(mImageData, mImageUploadCallback);
+                mUploadController = mImageManager.imageUpload(mImageSource, mImageUploadCallback);
             }
         }
     }
@@ -614,7 +722,7 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
             // Calculate the delay needed before verification.
             // It may have taken 20 sec before the phone realized that it's
             // disconnected. No need to wait more, perhaps?
-            long now = SystemClock.elapsedRealtime();
+            long now = mClock.elapsedRealtime();
             long timeSinceReset = now - mResetResponseTime;
             long remainingTime = mEstimatedSwapTime - timeSinceReset;
 
@@ -690,7 +798,7 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
                 fail(new McuMgrErrorException(response.getReturnCode()));
                 return;
             }
-            mResetResponseTime = SystemClock.elapsedRealtime();
+            mResetResponseTime = mClock.elapsedRealtime();
             LOG.trace("Reset request success. Waiting for disconnect...");
         }
 
@@ -966,15 +1074,42 @@ public class FirmwareUpgradeManager implements FirmwareUpgradeController {
             }
         }
 
+        // The latest progress not yet delivered to the main thread, guarded by mProgressLock
+        private final Object mProgressLock = new Object();
+        private boolean mProgressPending;
+        private int mPendingBytesSent;
+        private int mPendingImageSize;
+        private long mPendingTimestamp;
+
         @Override
         public void onUploadProgressChanged(final int bytesSent, final int imageSize, final long timestamp) {
             if (mCallback == null) {
                 return;
             }
             if (mUiThreadCallbacks) {
+                // Progress is conflated: while an update waits for the main thread, newer
+                // values replace it instead of posting an update per chunk.
+                synchronized (mProgressLock) {
+                    mPendingBytesSent = bytesSent;
+                    mPendingImageSize = imageSize;
+                    mPendingTimestamp = timestamp;
+                    if (mProgressPending) {
+                        return;
+                    }
+                    mProgressPending = true;
+                }
                 getMainThreadExecutor().execute(new Runnable() {
                     @Override
                     public void run() {
+                        int bytesSent;
+                        int imageSize;
+                        long timestamp;
+                        synchronized (mProgressLock) {
+                            mProgressPending = false;
+                            bytesSent = mPendingBytesSent;
+                            imageSize = mPendingImageSize;
+                            timestamp = mPendingTimestamp;
+                        }
                         mCallback.onUploadProgressChanged(bytesSent, imageSize, timestamp);
                     }
                 });
@@ -0,0 +1,32 @@
+package io.runtime.mcumgr.dfu;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Callbacks for batches of firmware upgrades started using the {@link FleetUpgradeManager}.
+ * Callbacks are called on the threads of the transports and must not block.
+ */
+public interface FleetUpgradeCallback {
+
+    /**
+     * Called when the upgrade of a device has finished, successfully or not.
+     *
+     * @param result the result of the device.
+     */
+    void onDeviceFinished(@NotNull FleetUpgradeReport.DeviceResult result);
+
+    /**
+     * Called when the canary devices have finished. The remaining devices are upgraded only if
+     * all canaries succeeded. Not called when no canaries were set.
+     *
+     * @param success true if all canary upgrades succeeded.
+     */
+    void onCanaryFinished(boolean success);
+
+    /**
+     * Called when the upgrades of all devices have finished or been skipped.
+     *
+     * @param report the report of the batch.
+     */
+    void onBatchFinished(@NotNull FleetUpgradeReport report);
+}
@@ -0,0 +1,473 @@
+package io.runtime.mcumgr.dfu;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.image.McuMgrImage;
+import io.runtime.mcumgr.session.McuMgrSessionRegistry;
+
+/**
+ * Upgrades the firmware of many devices with the same image, running up to a given number of
+ * {@link FirmwareUpgradeManager}s at once.
+ * <p>
+ * The image is parsed and hashed once, and its data is shared read-only by all upgrades. With a
+ * window upload capacity above 1, set using {@link #setWindowUploadCapacity(int)}, the image
+ * upload of each device runs without blocking a thread, so the concurrency is limited only by the
+ * devices and transports. Otherwise, each upload takes a transfer thread for its duration: a
+ * thread of the {@link McuMgrSessionRegistry}, if set, which bounds the number of uploads running
+ * at once to the registry's transfer threads, or a thread of each device's manager.
+ * <p>
+ * Optionally, the first devices are upgraded as canaries: the remaining devices are upgraded
+ * only after all canaries succeeded, and are skipped otherwise. The {@link FleetUpgradeReport}
+ * given on completion holds the result of each device and the time it spent in each state.
+ */
+@SuppressWarnings("unused")
+public class FleetUpgradeManager {
+
+    private final static Logger LOG = LoggerFactory.getLogger(FleetUpgradeManager.class);
+
+    /**
+     * The default number of devices upgraded at once.
+     */
+    public final static int DEFAULT_CONCURRENCY = 4;
+
+    private final List<McuMgrTransport> mTransports;
+    private final McuMgrImage mImage;
+
+    private int mConcurrency = DEFAULT_CONCURRENCY;
+    private int mCanaryCount = 0;
+    private FirmwareUpgradeManager.Mode mMode = FirmwareUpgradeManager.Mode.TEST_AND_CONFIRM;
+    private int mEstimatedSwapTime = 0;
+    private int mWindowCapacity = 1;
+    @Nullable
+    private McuMgrSessionRegistry mRegistry;
+    @NotNull
+    private FirmwareUpgradeManager.Clock mClock = FirmwareUpgradeManager.SYSTEM_CLOCK;
+
+    // Guarded by this
+    @Nullable
+    private FleetUpgradeCallback mCallback;
+    @Nullable
+    private DeviceUpgrade[] mUpgrades;
+    private FleetUpgradeReport.DeviceResult[] mResults;
+    /** The index of the next device to start. */
+    private int mNext;
+    /** The index after the last device of the current stage. */
+    private int mStageEnd;
+    private int mFinished;
+    private int mRunning;
+    private long mStartTime;
+    private volatile boolean mCanceled;
+
+    /**
+     * Construct a fleet upgrade manager.
+     *
+     * @param transports the transports of the devices to upgrade.
+     * @param image      the image to upgrade the devices with.
+     */
+    public FleetUpgradeManager(@NotNull List<McuMgrTransport> transports,
+                               @NotNull McuMgrImage image) {
+        mTransports = new ArrayList<>(transports);
+        mImage = image;
+    }
+
+    /**
+     * Construct a fleet upgrade manager.
+     *
+     * @param transports the transports of the devices to upgrade.
+     * @param imageData  the image to upgrade the devices with.
+     * @throws McuMgrException if the image is not valid.
+     */
+    public FleetUpgradeManager(@NotNull List<McuMgrTransport> transports,
+                               @NotNull byte[] imageData) throws McuMgrException {
+        this(transports, McuMgrImage.fromBytes(imageData));
+    }
+
+    /**
+     * Sets the maximum number of devices upgraded at once. {@link #DEFAULT_CONCURRENCY} by
+     * default.
+     *
+     * @param concurrency the maximum number of upgrades running at once.
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Concurrency must be positive");
+        }
+        mConcurrency = concurrency;
+    }
+
+    /**
+     * Sets the number of canary devices, taken from the start of the list of transports. The
+     * remaining devices are upgraded only if all canaries succeeded. 0 by default.
+     *
+     * @param canaryCount the number of canary devices.
+     */
+    public void setCanaryCount(int canaryCount) {
+        mCanaryCount = Math.max(canaryCount, 0);
+    }
+
+    /**
+     * Sets the mode of the upgrade of each device.
+     *
+     * @param mode the mode.
+     * @see FirmwareUpgradeManager#setMode(FirmwareUpgradeManager.Mode)
+     */
+    public void setMode(@NotNull FirmwareUpgradeManager.Mode mode) {
+        mMode = mode;
+    }
+
+    /**
+     * Sets the estimated time required for swapping images.
+     *
+     * @param swapTime the swap time, in milliseconds.
+     * @see FirmwareUpgradeManager#setEstimatedSwapTime(int)
+     */
+    public void setEstimatedSwapTime(int swapTime) {
+        mEstimatedSwapTime = Math.max(swapTime, 0);
+    }
+
+    /**
+     * Sets the window capacity of the image upload of each device. 1 by default, in which case
+     * each upload runs on a transfer thread.
+     *
+     * @param windowCapacity the maximum number of concurrent upload requests per device.
+     * @see FirmwareUpgradeManager#setWindowUploadCapacity(int)
+     */
+    public void setWindowUploadCapacity(int windowCapacity) {
+        if (windowCapacity <= 0) {
+            throw new IllegalArgumentException("window capacity must be > 0");
+        }
+        mWindowCapacity = windowCapacity;
+    }
+
+    /**
+     * Sets the registry whose sessions provide the managers of the devices, so that they are
+     * shared with other operations and the uploads are counted in the session throughput.
+     *
+     * @param registry the session registry, or null to create the managers for the upgrade.
+     */
+    public void setSessionRegistry(@Nullable McuMgrSessionRegistry registry) {
+        mRegistry = registry;
+    }
+
+    /**
+     * Starts upgrading the devices. A manager can only be started once.
+     *
+     * @param callback the callback.
+     * @throws IllegalStateException if the manager has already been started.
+     */
+    public void start(@NotNull FleetUpgradeCallback callback) {
+        List<DeviceUpgrade> toStart;
+        boolean finished;
+        synchronized (this) {
+            if (mUpgrades != null) {
+                throw new IllegalStateException("Fleet upgrade has already been started");
+            }
+            int count = mTransports.size();
+            mCallback = callback;
+            mUpgrades = new DeviceUpgrade[count];
+            mResults = new FleetUpgradeReport.DeviceResult[count];
+            for (int i = 0; i < count; i++) {
+                mUpgrades[i] = new DeviceUpgrade(i, mTransports.get(i), i < mCanaryCount);
+            }
+            mStageEnd = mCanaryCount > 0 ? Math.min(mCanaryCount, count) : count;
+            mStartTime = now();
+            LOG.info("Upgrading {} devices, {} at once", count, mConcurrency);
+            toStart = nextUpgrades();
+            finished = count == 0;
+        }
+        for (DeviceUpgrade upgrade : toStart) {
+            upgrade.start();
+        }
+        if (finished) {
+            callback.onBatchFinished(report());
+        }
+    }
+
+    /**
+     * Cancels the batch. Devices which have not started are skipped, and the upgrades running
+     * are canceled. An upgrade which has already uploaded the image can not be canceled and
+     * completes.
+     */
+    public void cancel() {
+        List<FirmwareUpgradeManager> running = new ArrayList<>();
+        List<FleetUpgradeReport.DeviceResult> skipped;
+        boolean finished;
+        synchronized (this) {
+            if (mUpgrades == null || mFinished == mUpgrades.length) {
+                return;
+            }
+            for (int i = 0; i < mNext; i++) {
+                FirmwareUpgradeManager manager = mUpgrades[i].mManager;
+                if (mResults[i] == null && manager != null) {
+                    running.add(manager);
+                }
+            }
+            mCanceled = true;
+            skipped = skipRemaining();
+            finished = mFinished == mUpgrades.length;
+        }
+        notifySkipped(skipped);
+        for (FirmwareUpgradeManager manager : running) {
+            manager.cancel();
+        }
+        if (finished) {
+            finish();
+        }
+    }
+
+    /**
+     * Returns true if the batch has been started and has not finished.
+     *
+     * @return True if in progress.
+     */
+    public synchronized boolean isInProgress() {
+        return mUpgrades != null && mFinished < mUpgrades.length;
+    }
+
+    /**
+     * Sets the clock of the firmware upgrade managers of the devices.
+     *
+     * @param clock the clock.
+     * @see FirmwareUpgradeManager#setClock(FirmwareUpgradeManager.Clock)
+     */
+    void setClock(@NotNull FirmwareUpgradeManager.Clock clock) {
+        mClock = clock;
+    }
+
+    //******************************************************************
+    // Implementation
+    //******************************************************************
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Takes the devices of the current stage which may be started within the concurrency limit.
+     */
+    private List<DeviceUpgrade> nextUpgrades() {
+        List<DeviceUpgrade> upgrades = new ArrayList<>();
+        while (mRunning < mConcurrency && mNext < mStageEnd) {
+            upgrades.add(mUpgrades[mNext++]);
+            mRunning++;
+        }
+        return upgrades;
+    }
+
+    /**
+     * Marks the devices which have not been started as skipped.
+     */
+    private List<FleetUpgradeReport.DeviceResult> skipRemaining() {
+        List<FleetUpgradeReport.DeviceResult> skipped = new ArrayList<>();
+        while (mNext < mUpgrades.length) {
+            DeviceUpgrade upgrade = mUpgrades[mNext++];
+            FleetUpgradeReport.DeviceResult result = new FleetUpgradeReport.DeviceResult(
+                    upgrade.mTransport, upgrade.mCanary, FleetUpgradeReport.Outcome.SKIPPED,
+                    null, null, new EnumMap<FirmwareUpgradeManager.State, Long>(
+                    FirmwareUpgradeManager.State.class), 0);
+            mResults[upgrade.mIndex] = result;
+            mFinished++;
+            skipped.add(result);
+        }
+        return skipped;
+    }
+
+    private void onDeviceFinished(@NotNull DeviceUpgrade upgrade,
+                                  @NotNull FleetUpgradeReport.DeviceResult result) {
+        List<DeviceUpgrade> toStart;
+        List<FleetUpgradeReport.DeviceResult> skipped = new ArrayList<>();
+        Boolean canarySuccess = null;
+        boolean finished;
+        FleetUpgradeCallback callback;
+        synchronized (this) {
+            mResults[upgrade.mIndex] = result;
+            mRunning--;
+            mFinished++;
+            if (mStageEnd < mUpgrades.length && mFinished == mStageEnd) {
+                // All canaries have finished
+                canarySuccess = true;
+                for (int i = 0; i < mStageEnd; i++) {
+                    if (mResults[i].getOutcome() != FleetUpgradeReport.Outcome.SUCCESS) {
+                        canarySuccess = false;
+                        break;
+                    }
+                }
+                if (canarySuccess) {
+                    mStageEnd = mUpgrades.length;
+                } else {
+                    LOG.warn("Canary upgrade failed, skipping remaining devices");
+                    skipped = skipRemaining();
+                }
+            }
+            toStart = nextUpgrades();
+            finished = mFinished == mUpgrades.length;
+            callback = mCallback;
+        }
+        callback.onDeviceFinished(result);
+        if (canarySuccess != null) {
+            callback.onCanaryFinished(canarySuccess);
+        }
+        notifySkipped(skipped);
+        for (DeviceUpgrade next : toStart) {
+            next.start();
+        }
+        if (finished) {
+            finish();
+        }
+    }
+
+    private void notifySkipped(@NotNull List<FleetUpgradeReport.DeviceResult> skipped) {
+        FleetUpgradeCallback callback;
+        synchronized (this) {
+            callback = mCallback;
+        }
+        for (FleetUpgradeReport.DeviceResult result : skipped) {
+            callback.onDeviceFinished(result);
+        }
+    }
+
+    private void finish() {
+        FleetUpgradeReport report;
+        FleetUpgradeCallback callback;
+        synchronized (this) {
+            report = report();
+            callback = mCallback;
+        }
+        LOG.info("Fleet upgrade finished: {}", report);
+        callback.onBatchFinished(report);
+    }
+
+    private synchronized FleetUpgradeReport report() {
+        List<FleetUpgradeReport.DeviceResult> results = new ArrayList<>(mResults.length);
+        for (FleetUpgradeReport.DeviceResult result : mResults) {
+            results.add(result);
+        }
+        return new FleetUpgradeReport(results, now() - mStartTime);
+    }
+
+    /**
+     * The upgrade of a single device, timing the states of its firmware upgrade manager.
+     */
+    private class DeviceUpgrade implements FirmwareUpgradeCallback {
+        private final int mIndex;
+        private final McuMgrTransport mTransport;
+        private final boolean mCanary;
+
+        // Guarded by this
+        private final Map<FirmwareUpgradeManager.State, Long> mStateTimes =
+                new EnumMap<>(FirmwareUpgradeManager.State.class);
+        private FirmwareUpgradeManager.State mState = FirmwareUpgradeManager.State.NONE;
+        private long mStartTime;
+        private long mStateStartTime;
+        private boolean mFinished;
+
+        @Nullable
+        private volatile FirmwareUpgradeManager mManager;
+
+        DeviceUpgrade(int index, @NotNull McuMgrTransport transport, boolean canary) {
+            mIndex = index;
+            mTransport = transport;
+            mCanary = canary;
+        }
+
+        void start() {
+            synchronized (this) {
+                mStartTime = now();
+                mStateStartTime = mStartTime;
+            }
+            FirmwareUpgradeManager manager;
+            try {
+                manager = mRegistry != null
+                        ? mRegistry.get(mTransport).newFirmwareUpgradeManager(this)
+                        : new FirmwareUpgradeManager(mTransport, this);
+            } catch (IllegalStateException e) {
+                onUpgradeFailed(FirmwareUpgradeManager.State.NONE, new McuMgrException(e));
+                return;
+            }
+            manager.setCallbackOnUiThread(false);
+            manager.setMode(mMode);
+            manager.setEstimatedSwapTime(mEstimatedSwapTime);
+            manager.setClock(mClock);
+            manager.setWindowUploadCapacity(mWindowCapacity);
+            mManager = manager;
+            manager.start(mImage);
+            // The batch may have been canceled while the manager was created
+            if (mCanceled) {
+                manager.cancel();
+            }
+        }
+
+        @Override
+        public void onUpgradeStarted(FirmwareUpgradeController controller) {
+            // Timing starts with the first state
+        }
+
+        @Override
+        public void onStateChanged(FirmwareUpgradeManager.State prevState,
+                                   FirmwareUpgradeManager.State newState) {
+            synchronized (this) {
+                long now = now();
+                addStateTime(prevState, now);
+                mState = newState;
+                mStateStartTime = now;
+            }
+        }
+
+        @Override
+        public void onUpgradeCompleted() {
+            finish(FleetUpgradeReport.Outcome.SUCCESS, null, null);
+        }
+
+        @Override
+        public void onUpgradeFailed(FirmwareUpgradeManager.State state, McuMgrException error) {
+            LOG.warn("Upgrade of {} failed in state {}", mTransport, state, error);
+            finish(FleetUpgradeReport.Outcome.FAILED, state, error);
+        }
+
+        @Override
+        public void onUpgradeCanceled(FirmwareUpgradeManager.State state) {
+            finish(FleetUpgradeReport.Outcome.CANCELED, state, null);
+        }
+
+        @Override
+        public void onUploadProgressChanged(int bytesSent, int imageSize, long timestamp) {
+            // Not reported per device
+        }
+
+        private void addStateTime(@NotNull FirmwareUpgradeManager.State state, long now) {
+            if (state == FirmwareUpgradeManager.State.NONE) {
+                return;
+            }
+            Long time = mStateTimes.get(state);
+            mStateTimes.put(state, (time != null ? time : 0) + now - mStateStartTime);
+        }
+
+        private void finish(@NotNull FleetUpgradeReport.Outcome outcome,
+                            @Nullable FirmwareUpgradeManager.State failedState,
+                            @Nullable McuMgrException error) {
+            FleetUpgradeReport.DeviceResult result;
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                long now = now();
+                addStateTime(mState, now);
+                result = new FleetUpgradeReport.DeviceResult(mTransport, mCanary, outcome,
+                        failedState, error, new EnumMap<>(mStateTimes), now - mStartTime);
+            }
+            onDeviceFinished(this, result);
+        }
+    }
+}
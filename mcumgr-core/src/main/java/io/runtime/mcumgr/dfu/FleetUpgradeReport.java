@@ -0,0 +1,206 @@
+package io.runtime.mcumgr.dfu;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.exception.McuMgrException;
+
+/**
+ * The report of a batch of firmware upgrades run by a {@link FleetUpgradeManager}, with the
+ * result of each device and the time spent in each {@link FirmwareUpgradeManager.State}.
+ */
+@SuppressWarnings("unused")
+public class FleetUpgradeReport {
+
+    /**
+     * The outcome of the upgrade of a device.
+     */
+    public enum Outcome {
+        /** The device runs the new image. */
+        SUCCESS,
+        /** The upgrade failed, see {@link DeviceResult#getError()}. */
+        FAILED,
+        /** The upgrade was canceled while running. */
+        CANCELED,
+        /** The upgrade was not started, because the canaries failed or the batch was canceled. */
+        SKIPPED
+    }
+
+    /**
+     * The result of the upgrade of a single device.
+     */
+    public static class DeviceResult {
+        private final McuMgrTransport mTransport;
+        private final boolean mCanary;
+        private final Outcome mOutcome;
+        @Nullable
+        private final FirmwareUpgradeManager.State mFailedState;
+        @Nullable
+        private final McuMgrException mError;
+        private final Map<FirmwareUpgradeManager.State, Long> mStateTimes;
+        private final long mDuration;
+
+        DeviceResult(@NotNull McuMgrTransport transport, boolean canary, @NotNull Outcome outcome,
+                     @Nullable FirmwareUpgradeManager.State failedState,
+                     @Nullable McuMgrException error,
+                     @NotNull Map<FirmwareUpgradeManager.State, Long> stateTimes, long duration) {
+            mTransport = transport;
+            mCanary = canary;
+            mOutcome = outcome;
+            mFailedState = failedState;
+            mError = error;
+            mStateTimes = Collections.unmodifiableMap(stateTimes);
+            mDuration = duration;
+        }
+
+        @NotNull
+        public McuMgrTransport getTransport() {
+            return mTransport;
+        }
+
+        /**
+         * Returns true if the device was upgraded in the canary stage.
+         */
+        public boolean isCanary() {
+            return mCanary;
+        }
+
+        @NotNull
+        public Outcome getOutcome() {
+            return mOutcome;
+        }
+
+        /**
+         * Returns the state the upgrade failed or was canceled in, or null.
+         */
+        @Nullable
+        public FirmwareUpgradeManager.State getFailedState() {
+            return mFailedState;
+        }
+
+        @Nullable
+        public McuMgrException getError() {
+            return mError;
+        }
+
+        /**
+         * Returns the time spent in each state the upgrade went through, in milliseconds.
+         */
+        @NotNull
+        public Map<FirmwareUpgradeManager.State, Long> getStateTimes() {
+            return mStateTimes;
+        }
+
+        /**
+         * Returns the time from the start to the end of the upgrade, in milliseconds, or 0 if
+         * the upgrade was skipped.
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        @NotNull
+        @Override
+        public String toString() {
+            return "DeviceResult{transport=" + mTransport + ", canary=" + mCanary +
+                    ", outcome=" + mOutcome + ", failedState=" + mFailedState +
+                    ", error=" + mError + ", stateTimes=" + mStateTimes +
+                    ", duration=" + mDuration + '}';
+        }
+    }
+
+    private final List<DeviceResult> mResults;
+    private final long mDuration;
+
+    FleetUpgradeReport(@NotNull List<DeviceResult> results, long duration) {
+        mResults = Collections.unmodifiableList(results);
+        mDuration = duration;
+    }
+
+    /**
+     * Returns the results of the devices, in the order of the transports given to the manager.
+     */
+    @NotNull
+    public List<DeviceResult> getResults() {
+        return mResults;
+    }
+
+    /**
+     * Returns the time from the start of the batch until the last upgrade finished, in
+     * milliseconds.
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Returns the number of devices with the given outcome.
+     */
+    public int getCount(@NotNull Outcome outcome) {
+        int count = 0;
+        for (DeviceResult result : mResults) {
+            if (result.getOutcome() == outcome) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if all devices have been upgraded successfully.
+     */
+    public boolean isSuccess() {
+        return getCount(Outcome.SUCCESS) == mResults.size();
+    }
+
+    /**
+     * Returns the total time spent by all devices in each state, in milliseconds.
+     */
+    @NotNull
+    public Map<FirmwareUpgradeManager.State, Long> getTotalStateTimes() {
+        Map<FirmwareUpgradeManager.State, Long> totals = new EnumMap<>(FirmwareUpgradeManager.State.class);
+        for (DeviceResult result : mResults) {
+            for (Map.Entry<FirmwareUpgradeManager.State, Long> entry : result.getStateTimes().entrySet()) {
+                Long total = totals.get(entry.getKey());
+                totals.put(entry.getKey(), (total != null ? total : 0) + entry.getValue());
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Returns the mean time spent in each state by the devices which went through it, in
+     * milliseconds.
+     */
+    @NotNull
+    public Map<FirmwareUpgradeManager.State, Long> getMeanStateTimes() {
+        Map<FirmwareUpgradeManager.State, Long> means = getTotalStateTimes();
+        for (Map.Entry<FirmwareUpgradeManager.State, Long> entry : means.entrySet()) {
+            int count = 0;
+            for (DeviceResult result : mResults) {
+                if (result.getStateTimes().containsKey(entry.getKey())) {
+                    count++;
+                }
+            }
+            entry.setValue(entry.getValue() / count);
+        }
+        return means;
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "FleetUpgradeReport{success=" + getCount(Outcome.SUCCESS) +
+                ", failed=" + getCount(Outcome.FAILED) +
+                ", canceled=" + getCount(Outcome.CANCELED) +
+                ", skipped=" + getCount(Outcome.SKIPPED) +
+                ", duration=" + mDuration +
+                ", meanStateTimes=" + getMeanStateTimes() + '}';
+    }
+}
@@ -10,8 +10,13 @@ package io.runtime.mcumgr.image;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.image.tlv.McuMgrImageTlv;
+import io.runtime.mcumgr.transfer.UploadSource;
 
 /**
  * Represents a firmware image for devices using McuBoot or the legacy Apache Mynewt bootloader.
@@ -25,6 +30,8 @@ import io.runtime.mcumgr.image.tlv.McuMgrImageTlv;
 public class McuMgrImage {
     public final static int IMG_HASH_LEN = 32;
 
+    private final static int DIGEST_BLOCK_SIZE = 8192;
+
     @NotNull
     private final McuMgrImageHeader mHeader;
     @Nullable
@@ -35,6 +42,8 @@ public class McuMgrImage {
     private final byte[] mHash;
     @NotNull
     private final byte[] mData;
+    @Nullable
+    private UploadSource mSource;
 
     public McuMgrImage(@NotNull McuMgrImageHeader header,
                        @Nullable McuMgrImageTlv protectedTlv,
@@ -83,11 +92,125 @@ public class McuMgrImage {
         return mHash;
     }
 
+    /**
+     * Returns a source reading the image data, which may be shared by uploads to many devices.
+     * The SHA-256 digest of the data, sent with the first chunk of each upload, is calculated
+     * once, when first needed, and reused by all uploads of the source.
+     *
+     * @return The source of the image data.
+     */
+    @NotNull
+    public synchronized UploadSource getSource() {
+        if (mSource == null) {
+            final UploadSource data = UploadSource.wrap(mData);
+            mSource = new UploadSource() {
+                @Nullable
+                private byte[] mSha256;
+
+                @Override
+                public int size() {
+                    return data.size();
+                }
+
+                @Override
+                public void read(int position, @NotNull byte[] dest, int offset, int length)
+                        throws IOException {
+                    data.read(position, dest, offset, length);
+                }
+
+                @NotNull
+                @Override
+                public byte[] array() {
+                    return mData;
+                }
+
+                @NotNull
+                @Override
+                public synchronized byte[] sha256() throws McuMgrException {
+                    if (mSha256 == null) {
+                        mSha256 = getSha256(data);
+                    }
+                    return mSha256;
+                }
+            };
+        }
+        return mSource;
+    }
+
     @NotNull
     public static byte[] getHash(@NotNull byte[] data) throws McuMgrException {
         return fromBytes(data).getHash();
     }
 
+    /**
+     * Returns the image hash from the TLV trailer of the image in the given source. Only the image
+     * header and the trailer are read from the source.
+     *
+     * @param source the image source.
+     * @return The image hash.
+     * @throws McuMgrException if the image could not be read or parsed.
+     */
+    @NotNull
+    public static byte[] getHash(@NotNull UploadSource source) throws McuMgrException {
+        try {
+            byte[] headerData = new byte[Math.min(McuMgrImageHeader.getSize(), source.size())];
+            source.read(0, headerData, 0, headerData.length);
+            McuMgrImageHeader header = McuMgrImageHeader.fromBytes(headerData);
+
+            int tlvOffset = header.getHdrSize() + header.getImgSize();
+            if (tlvOffset < 0 || tlvOffset >= source.size()) {
+                throw new McuMgrException("Image TLV trailer out of bounds");
+            }
+            byte[] trailer = new byte[source.size() - tlvOffset];
+            source.read(tlvOffset, trailer, 0, trailer.length);
+
+            McuMgrImageTlv tlv = McuMgrImageTlv.fromBytes(trailer, 0, header.isLegacy());
+            if (tlv.isProtected()) {
+                // If the first TLV is protected, we need to parse the next, unprotected TLV
+                tlv = McuMgrImageTlv.fromBytes(trailer, tlv.getSize(), header.isLegacy());
+            }
+            byte[] hash = tlv.getHash();
+            if (hash == null) {
+                throw new McuMgrException("Image TLV trailer does not contain an image hash!");
+            }
+            return hash;
+        } catch (IOException e) {
+            throw new McuMgrException("Failed to read image", e);
+        }
+    }
+
+    /**
+     * Calculates the SHA-256 digest of the whole content of the source, reading it in blocks.
+     *
+     * @param source the source.
+     * @return The SHA-256 digest.
+     * @throws McuMgrException if the source could not be read or SHA-256 is not available.
+     */
+    @NotNull
+    public static byte[] getSha256(@NotNull UploadSource source) throws McuMgrException {
+        byte[] known = source.sha256();
+        if (known != null) {
+            return known;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] array = source.array();
+            if (array != null) {
+                return digest.digest(array);
+            }
+            byte[] buffer = new byte[DIGEST_BLOCK_SIZE];
+            int size = source.size();
+            for (int position = 0; position < size; position += buffer.length) {
+                int length = Math.min(buffer.length, size - position);
+                source.read(position, buffer, 0, length);
+                digest.update(buffer, 0, length);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new McuMgrException("Failed to calculate image digest", e);
+        }
+    }
+
     @NotNull
     public static McuMgrImage fromBytes(@NotNull byte[] data) throws McuMgrException {
         McuMgrImageHeader header = McuMgrImageHeader.fromBytes(data);
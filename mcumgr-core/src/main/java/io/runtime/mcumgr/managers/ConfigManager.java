@@ -14,6 +14,7 @@ import java.util.HashMap;
 
 import io.runtime.mcumgr.McuManager;
 import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrFuture;
 import io.runtime.mcumgr.McuMgrTransport;
 import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.response.McuMgrResponse;
@@ -48,6 +49,19 @@ public class ConfigManager extends McuManager {
         send(OP_READ, ID_CONFIG, payloadMap, McuMgrConfigReadResponse.class, callback);
     }
 
+    /**
+     * Read a config variable.
+     *
+     * @param name     the name of the config variable.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrConfigReadResponse> readAsync(@Nullable String name) {
+        McuMgrFuture<McuMgrConfigReadResponse> future = new McuMgrFuture<>();
+        read(name, future);
+        return future;
+    }
+
     /**
      * Read a config variable (synchronous).
      *
@@ -80,6 +94,23 @@ public class ConfigManager extends McuManager {
         send(OP_WRITE, ID_CONFIG, payloadMap, McuMgrResponse.class, callback);
     }
 
+    /**
+     * Write a value to a config variable.
+     *
+     * @param name     the name of the config variable.
+     * @param value    the value to write.
+     * @param save     whether or not to save the value after it is set. A saved value will persist
+     *                 in flash across device resets.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> writeAsync(@Nullable String name, @Nullable String value,
+                                                   boolean save) {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        write(name, value, save, future);
+        return future;
+    }
+
     /**
      * Write a value to a config variable (synchronous).
      *
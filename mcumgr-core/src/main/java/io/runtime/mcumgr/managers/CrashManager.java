@@ -6,6 +6,7 @@ import java.util.HashMap;
 
 import io.runtime.mcumgr.McuManager;
 import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrFuture;
 import io.runtime.mcumgr.McuMgrTransport;
 import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.response.McuMgrResponse;
@@ -70,4 +71,16 @@ public class CrashManager extends McuManager {
         payloadMap.put("t", test.toString());
         send(OP_WRITE, ID_CRASH_TEST, payloadMap, McuMgrResponse.class, callback);
     }
+
+    /**
+     * Trigger a crash test.
+     * @param test The type of crash test.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> testAsync(@NotNull Test test) {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        test(test, future);
+        return future;
+    }
 }
@@ -16,6 +16,7 @@ import java.util.TimeZone;
 
 import io.runtime.mcumgr.McuManager;
 import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrFuture;
 import io.runtime.mcumgr.McuMgrTransport;
 import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.response.McuMgrResponse;
@@ -63,6 +64,19 @@ public class DefaultManager extends McuManager {
         send(OP_WRITE, ID_ECHO, payloadMap, McuMgrEchoResponse.class, callback);
     }
 
+    /**
+     * Echo a string.
+     *
+     * @param echo     the string to echo.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrEchoResponse> echoAsync(@Nullable String echo) {
+        McuMgrFuture<McuMgrEchoResponse> future = new McuMgrFuture<>();
+        echo(echo, future);
+        return future;
+    }
+
     /**
      * Echo a string (synchronous).
      *
@@ -89,6 +103,19 @@ public class DefaultManager extends McuManager {
         send(OP_WRITE, ID_CONS_ECHO_CTRL, payloadMap, McuMgrResponse.class, callback);
     }
 
+    /**
+     * Set the console echo on the device.
+     *
+     * @param echo     whether or not to echo to the console.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> consoleEchoAsync(boolean echo) {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        consoleEcho(echo, future);
+        return future;
+    }
+
     /**
      * Set the console echo on the device (synchronous).
      *
@@ -112,6 +139,18 @@ public class DefaultManager extends McuManager {
         send(OP_READ, ID_TASKSTATS, null, McuMgrTaskStatResponse.class, callback);
     }
 
+    /**
+     * Get task statistics from the device.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrTaskStatResponse> taskstatsAsync() {
+        McuMgrFuture<McuMgrTaskStatResponse> future = new McuMgrFuture<>();
+        taskstats(future);
+        return future;
+    }
+
     /**
      * Get task statistics from the device (synchronous).
      *
@@ -132,6 +171,18 @@ public class DefaultManager extends McuManager {
         send(OP_READ, ID_MPSTATS, null, McuMgrMpStatResponse.class, callback);
     }
 
+    /**
+     * Get memory pool statistics from the device.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrMpStatResponse> mpstatAsync() {
+        McuMgrFuture<McuMgrMpStatResponse> future = new McuMgrFuture<>();
+        mpstat(future);
+        return future;
+    }
+
     /**
      * Get memory pool statistics from the device (synchronous).
      *
@@ -152,6 +203,18 @@ public class DefaultManager extends McuManager {
         send(OP_READ, ID_DATETIME_STR, null, McuMgrReadDateTimeResponse.class, callback);
     }
 
+    /**
+     * Read the date and time on the device.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrReadDateTimeResponse> readDatetimeAsync() {
+        McuMgrFuture<McuMgrReadDateTimeResponse> future = new McuMgrFuture<>();
+        readDatetime(future);
+        return future;
+    }
+
     /**
      * Read the date and time on the device (synchronous).
      *
@@ -179,6 +242,23 @@ public class DefaultManager extends McuManager {
         send(OP_WRITE, ID_DATETIME_STR, payloadMap, McuMgrResponse.class, callback);
     }
 
+    /**
+     * Write the date and time on the device.
+     * <p>
+     * If date or timeZone are null, the current value will be used.
+     *
+     * @param date     the date to set the device to.
+     * @param timeZone the timezone to use with the date.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> writeDatetimeAsync(@Nullable Date date,
+                                                           @Nullable TimeZone timeZone) {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        writeDatetime(date, timeZone, future);
+        return future;
+    }
+
     /**
      * Write the date and time on the device (synchronous).
      * <p>
@@ -206,6 +286,18 @@ public class DefaultManager extends McuManager {
         send(OP_WRITE, ID_RESET, null, McuMgrResponse.class, callback);
     }
 
+    /**
+     * Reset the device.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> resetAsync() {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        reset(future);
+        return future;
+    }
+
     /**
      * Reset the device (synchronous).
      *
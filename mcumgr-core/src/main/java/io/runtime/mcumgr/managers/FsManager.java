@@ -11,11 +11,12 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.util.HashMap;
 
 import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrFuture;
 import io.runtime.mcumgr.McuMgrErrorCode;
+import io.runtime.mcumgr.McuMgrPacketBuilder;
 import io.runtime.mcumgr.McuMgrTransport;
 import io.runtime.mcumgr.exception.InsufficientMtuException;
 import io.runtime.mcumgr.exception.McuMgrErrorException;
@@ -26,11 +27,17 @@ import io.runtime.mcumgr.response.fs.McuMgrFsDownloadResponse;
 import io.runtime.mcumgr.response.fs.McuMgrFsUploadResponse;
 import io.runtime.mcumgr.transfer.Download;
 import io.runtime.mcumgr.transfer.DownloadCallback;
+import io.runtime.mcumgr.transfer.DownloadSink;
+import io.runtime.mcumgr.transfer.DownloaderKt;
+import io.runtime.mcumgr.transfer.FileDownloader;
+import io.runtime.mcumgr.transfer.FileUploader;
+import io.runtime.mcumgr.transfer.SinkDownloadCallback;
 import io.runtime.mcumgr.transfer.TransferController;
 import io.runtime.mcumgr.transfer.TransferManager;
 import io.runtime.mcumgr.transfer.Upload;
 import io.runtime.mcumgr.transfer.UploadCallback;
-import io.runtime.mcumgr.util.CBOR;
+import io.runtime.mcumgr.transfer.UploadSource;
+import io.runtime.mcumgr.transfer.UploaderKt;
 
 @SuppressWarnings({"WeakerAccess", "unused", "DeprecatedIsStillUsed", "deprecation"})
 public class FsManager extends TransferManager {
@@ -38,6 +45,7 @@ public class FsManager extends TransferManager {
     private final static Logger LOG = LoggerFactory.getLogger(FsManager.class);
 
     private final static int ID_FILE = 0;
+    private final static byte[] EMPTY = new byte[0];
 
     /**
      * Construct a McuManager instance.
@@ -67,6 +75,23 @@ public class FsManager extends TransferManager {
         send(OP_READ, ID_FILE, payloadMap, McuMgrFsDownloadResponse.class, callback);
     }
 
+    /**
+     * Read a packet of a file with given name from the specified offset from the device.
+     * <p>
+     * Use {@link #fileDownload} to download the whole file asynchronously using one command.
+     *
+     * @param name   the file name.
+     * @param offset the offset, from which the chunk will be requested.
+     * @return The future response.
+     * @see #fileDownload(String, DownloadCallback)
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrFsDownloadResponse> downloadAsync(@NotNull String name, int offset) {
+        McuMgrFuture<McuMgrFsDownloadResponse> future = new McuMgrFuture<>();
+        download(name, offset, future);
+        return future;
+    }
+
     /**
      * Read a packet of a file with given name from the specified offset from the device
      * (synchronous).
@@ -105,8 +130,38 @@ public class FsManager extends TransferManager {
      */
     public void upload(@NotNull String name, @NotNull byte[] data, int offset,
                        @NotNull McuMgrCallback<McuMgrFsUploadResponse> callback) {
-        HashMap<String, Object> payloadMap = buildUploadPayload(name, data, offset);
-        send(OP_WRITE, ID_FILE, payloadMap, McuMgrFsUploadResponse.class, callback);
+        byte[] packet;
+        try {
+            packet = buildUploadPacket(name, UploadSource.wrap(data), offset);
+        } catch (McuMgrException e) {
+            callback.onError(e);
+            return;
+        }
+        send(packet, McuMgrFsUploadResponse.class, callback);
+    }
+
+    /**
+     * Send a packet of given data from the specified offset to the device.
+     * <p>
+     * The chunk size is limited by the current MTU. If the current MTU set by
+     * {@link #setUploadMtu(int)} is too large, the {@link InsufficientMtuException} error will be
+     * thrown. Use {@link InsufficientMtuException#getMtu()} to get the current MTU and
+     * pass it to {@link #setUploadMtu(int)} and try again.
+     * <p>
+     * Use {@link #fileUpload} to upload the whole file asynchronously using one command.
+     *
+     * @param name   the file name.
+     * @param data   the file data.
+     * @param offset the offset, from which the chunk will be sent.
+     * @return The future response.
+     * @see #fileUpload(String, byte[], UploadCallback)
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrFsUploadResponse> uploadAsync(@NotNull String name,
+                                                            @NotNull byte[] data, int offset) {
+        McuMgrFuture<McuMgrFsUploadResponse> future = new McuMgrFuture<>();
+        upload(name, data, offset, future);
+        return future;
     }
 
     /**
@@ -128,35 +183,54 @@ public class FsManager extends TransferManager {
     @NotNull
     public McuMgrFsUploadResponse upload(@NotNull String name, @NotNull byte[] data, int offset)
             throws McuMgrException {
-        HashMap<String, Object> payloadMap = buildUploadPayload(name, data, offset);
-        return send(OP_WRITE, ID_FILE, payloadMap, McuMgrFsUploadResponse.class);
+        return upload(name, UploadSource.wrap(data), offset);
+    }
+
+    /**
+     * Send a packet of data read from the given source at the specified offset to the device
+     * (synchronous).
+     * <p>
+     * The chunk size is limited by the current MTU. If the current MTU set by
+     * {@link #setUploadMtu(int)} is too large, the {@link InsufficientMtuException} error will be
+     * thrown. Use {@link InsufficientMtuException#getMtu()} to get the current MTU and
+     * pass it to {@link #setUploadMtu(int)} and try again.
+     * <p>
+     * Use {@link #fileUpload} to upload the whole file asynchronously using one command.
+     *
+     * @param name   the file name.
+     * @param source the file source.
+     * @param offset the offset, from which the chunk will be sent.
+     * @return The upload response.
+     * @see #fileUpload(String, UploadSource, UploadCallback)
+     */
+    @NotNull
+    public McuMgrFsUploadResponse upload(@NotNull String name, @NotNull UploadSource source,
+                                         int offset) throws McuMgrException {
+        byte[] packet = buildUploadPacket(name, source, offset);
+        return send(packet, McuMgrFsUploadResponse.class);
     }
 
     /*
-     * Build the upload payload map.
+     * Build the upload packet. The chunk is read directly from the file source.
      */
     @NotNull
-    private HashMap<String, Object> buildUploadPayload(@NotNull String name, @NotNull byte[] data, int offset) {
+    private byte[] buildUploadPacket(@NotNull String name, @NotNull UploadSource source,
+                                     int offset) throws McuMgrException {
         // Get the length of data (in bytes) to put into the upload packet. This calculated as:
         // min(MTU - packetOverhead, imageLength - uploadOffset)
-        int dataLength = Math.min(mMtu - calculatePacketOverhead(name, data, offset),
-                data.length - offset);
-
-        // Copy the data from the image into a buffer.
-        byte[] sendBuffer = new byte[dataLength];
-        System.arraycopy(data, offset, sendBuffer, 0, dataLength);
+        int dataLength = Math.min(getMtu() - calculatePacketOverhead(name, source.size(), offset),
+                source.size() - offset);
 
-        // Create the map of key-values for the McuManager payload
-        HashMap<String, Object> payloadMap = new HashMap<>();
         // Put the name, data and offset
-        payloadMap.put("name", name);
-        payloadMap.put("data", sendBuffer);
-        payloadMap.put("off", offset);
+        McuMgrPacketBuilder packet = newPacket(OP_WRITE, ID_FILE)
+                .put("name", name)
+                .put("data", source, offset, dataLength)
+                .put("off", offset);
         if (offset == 0) {
             // Only send the length of the image in the first packet of the upload
-            payloadMap.put("len", data.length);
+            packet.put("len", source.size());
         }
-        return payloadMap;
+        return packet.build();
     }
 
     //******************************************************************
@@ -181,6 +255,66 @@ public class FsManager extends TransferManager {
         return startUpload(new FileUpload(name, data, callback));
     }
 
+    /**
+     * Start file upload, reading the file from the given source.
+     * <p>
+     * Multiple calls will queue multiple uploads, executed sequentially. This includes file
+     * downloads executed from {@link #fileDownload}.
+     * <p>
+     * The upload may be controlled using the {@link TransferController} returned by this method.
+     *
+     * @param name     The file name.
+     * @param source   The source of the file data to upload.
+     * @param callback Receives callbacks from the upload.
+     * @return The object used to control this upload.
+     * @see TransferController
+     */
+    @NotNull
+    public TransferController fileUpload(@NotNull String name, @NotNull UploadSource source,
+                                         @NotNull UploadCallback callback) {
+        return startUpload(new FileUpload(name, source, callback));
+    }
+
+    /**
+     * Start a windowed file upload.
+     * <p>
+     * Unlike {@link #fileUpload}, up to {@code windowCapacity} chunks are sent without waiting
+     * for the responses to the previous ones. The upload is not queued with other transfers and
+     * starts immediately.
+     * <p>
+     * The upload may be controlled using the {@link TransferController} returned by this method.
+     *
+     * @param name           the file name.
+     * @param data           the file data to upload.
+     * @param windowCapacity the maximum number of chunks sent without receiving a response.
+     * @param callback       receives callbacks from the upload.
+     * @return The object used to control this upload.
+     * @see TransferController
+     */
+    @NotNull
+    public TransferController windowUpload(@NotNull String name, @NotNull byte[] data,
+                                           int windowCapacity,
+                                           @NotNull UploadCallback callback) {
+        return windowUpload(name, UploadSource.wrap(data), windowCapacity, callback);
+    }
+
+    /**
+     * Start a windowed file upload, reading the file from the given source.
+     *
+     * @param name           the file name.
+     * @param source         the source of the file data to upload.
+     * @param windowCapacity the maximum number of chunks sent without receiving a response.
+     * @param callback       receives callbacks from the upload.
+     * @return The object used to control this upload.
+     * @see #windowUpload(String, byte[], int, UploadCallback)
+     */
+    @NotNull
+    public TransferController windowUpload(@NotNull String name, @NotNull UploadSource source,
+                                           int windowCapacity,
+                                           @NotNull UploadCallback callback) {
+        return UploaderKt.windowUpload(new FileUploader(name, source, this, windowCapacity), callback);
+    }
+
     /**
      * File Upload Implementation.
      */
@@ -194,10 +328,20 @@ public class FsManager extends TransferManager {
             mName = name;
         }
 
+        protected FileUpload(@NotNull String name, @NotNull UploadSource source, @NotNull UploadCallback callback) {
+            super(source, callback);
+            mName = name;
+        }
+
         @Override
         protected UploadResponse write(@NotNull byte[] data, int offset) throws McuMgrException {
             return upload(mName, data, offset);
         }
+
+        @Override
+        protected UploadResponse write(@NotNull UploadSource source, int offset) throws McuMgrException {
+            return upload(mName, source, offset);
+        }
     }
 
     //******************************************************************
@@ -221,6 +365,76 @@ public class FsManager extends TransferManager {
         return startDownload(new FileDownload(name, callback));
     }
 
+    /**
+     * Start a windowed file download.
+     * <p>
+     * Unlike {@link #fileDownload}, up to {@code windowCapacity} read requests are sent without
+     * waiting for the responses to the previous ones. The download is not queued with other
+     * transfers and starts immediately.
+     * <p>
+     * The download may be controlled using the {@link TransferController} returned by this method.
+     *
+     * @param name           the file name.
+     * @param windowCapacity the maximum number of read requests sent without receiving a response.
+     * @param callback       receives callbacks from the download.
+     * @return The object used to control this download.
+     * @see TransferController
+     */
+    @NotNull
+    public TransferController windowDownload(@NotNull String name, int windowCapacity,
+                                             @NotNull DownloadCallback callback) {
+        return DownloaderKt.windowDownload(new FileDownloader(name, this, windowCapacity), callback);
+    }
+
+    /**
+     * Start file download into the given sink.
+     * <p>
+     * Each received chunk is written to the sink, so the file is never held in memory as a
+     * whole. The download starts from the current offset of the sink, which allows resuming an
+     * interrupted download from {@link DownloadSink#getCommittedOffset()}, e.g. using
+     * {@link DownloadSink#append(java.io.File)}.
+     * <p>
+     * Multiple calls will queue multiple downloads, executed sequentially. This includes file
+     * uploads executed from {@link #fileUpload}.
+     * <p>
+     * The download may be controlled using the {@link TransferController} returned by this method.
+     *
+     * @param name     the file name.
+     * @param sink     the sink receiving the file data. The sink is not closed by the download.
+     * @param callback receives callbacks from the download.
+     * @return The object used to control this download.
+     * @see TransferController
+     */
+    @NotNull
+    public TransferController fileDownload(@NotNull String name, @NotNull DownloadSink sink,
+                                           @NotNull SinkDownloadCallback callback) {
+        return startDownload(new FileDownload(name, sink, callback));
+    }
+
+    /**
+     * Start a windowed file download into the given sink.
+     * <p>
+     * Responses received out of order are held until the data preceding them has been received,
+     * so at most about {@code windowCapacity} chunks are kept in memory. The download starts from
+     * the current offset of the sink.
+     * <p>
+     * The download may be controlled using the {@link TransferController} returned by this method.
+     *
+     * @param name           the file name.
+     * @param sink           the sink receiving the file data. The sink is not closed by the
+     *                       download.
+     * @param windowCapacity the maximum number of read requests sent without receiving a response.
+     * @param callback       receives callbacks from the download.
+     * @return The object used to control this download.
+     * @see #fileDownload(String, DownloadSink, SinkDownloadCallback)
+     */
+    @NotNull
+    public TransferController windowDownload(@NotNull String name, @NotNull DownloadSink sink,
+                                             int windowCapacity,
+                                             @NotNull SinkDownloadCallback callback) {
+        return DownloaderKt.windowDownload(new FileDownloader(name, this, windowCapacity), sink, callback);
+    }
+
     /**
      * Start image upload.
      * <p>
@@ -253,6 +467,12 @@ public class FsManager extends TransferManager {
             mName = name;
         }
 
+        protected FileDownload(@NotNull String name, @NotNull DownloadSink sink,
+                               @NotNull SinkDownloadCallback callback) {
+            super(sink, callback);
+            mName = name;
+        }
+
         @Override
         protected DownloadResponse read(int offset) throws McuMgrException {
             return download(mName, offset);
@@ -408,15 +628,6 @@ public class FsManager extends TransferManager {
         mDownloadCallback = null;
     }
 
-    private synchronized void restartTransfer() {
-        mTransferState = STATE_NONE;
-        if (mUploadCallback != null) {
-            upload(mFileName, mFileData, mUploadCallback);
-        } else if (mDownloadCallback != null) {
-            download(mFileName, mDownloadCallback);
-        }
-    }
-
     private synchronized void resetTransfer() {
         mTransferState = STATE_NONE;
         mFileName = null;
@@ -513,8 +724,9 @@ public class FsManager extends TransferManager {
                         boolean isMtuSet = setUploadMtu(mtu);
 
                         if (isMtuSet) {
-                            // If the MTU has been set successfully, restart the upload.
-                            restartTransfer();
+                            // If the MTU has been set successfully, resend the packet from
+                            // the current offset with the new size.
+                            sendNext(mOffset);
                             return;
                         }
                     }
@@ -593,8 +805,9 @@ public class FsManager extends TransferManager {
                         boolean isMtuSet = setUploadMtu(mtu);
 
                         if (isMtuSet) {
-                            // If the MTU has been set successfully, restart the upload.
-                            restartTransfer();
+                            // If the MTU has been set successfully, request the packet from
+                            // the current offset again.
+                            requestNext(mOffset);
                             return;
                         }
                     }
@@ -604,27 +817,23 @@ public class FsManager extends TransferManager {
             };
 
     // TODO more precise overhead calculations
-    private int calculatePacketOverhead(@NotNull String name, @NotNull byte[] data, int offset) {
-        HashMap<String, Object> overheadTestMap = new HashMap<>();
-        overheadTestMap.put("name", name);
-        overheadTestMap.put("data", new byte[0]);
-        overheadTestMap.put("off", offset);
-        if (offset == 0) {
-            overheadTestMap.put("len", data.length);
-        }
+    private int calculatePacketOverhead(@NotNull String name, int length, int offset) {
         try {
+            McuMgrPacketBuilder packet = newPacket(OP_WRITE, ID_FILE)
+                    .put("name", name)
+                    .put("data", EMPTY)
+                    .put("off", offset);
+            if (offset == 0) {
+                packet.put("len", length);
+            }
             if (getScheme().isCoap()) {
-                byte[] header = {0, 0, 0, 0, 0, 0, 0, 0};
-                overheadTestMap.put("_h", header);
-                byte[] cborData = CBOR.toBytes(overheadTestMap);
                 // 20 byte estimate of CoAP Header; 5 bytes for good measure
-                return cborData.length + 20 + 5;
+                return packet.finish() + 20 + 5;
             } else {
-                byte[] cborData = CBOR.toBytes(overheadTestMap);
-                // 8 bytes for McuMgr header; 2 bytes for data length
-                return cborData.length + 8 + 2;
+                // 2 bytes for data length
+                return packet.finish() + 2;
             }
-        } catch (IOException e) {
+        } catch (McuMgrException e) {
             LOG.error("Error while calculating packet overhead", e);
         }
         return -1;
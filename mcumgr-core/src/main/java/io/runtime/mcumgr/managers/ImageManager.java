@@ -12,33 +12,36 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.HashMap;
 
 import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrFuture;
 import io.runtime.mcumgr.McuMgrErrorCode;
+import io.runtime.mcumgr.McuMgrPacketBuilder;
 import io.runtime.mcumgr.McuMgrTransport;
 import io.runtime.mcumgr.crash.CoreDump;
 import io.runtime.mcumgr.dfu.FirmwareUpgradeManager;
 import io.runtime.mcumgr.exception.InsufficientMtuException;
 import io.runtime.mcumgr.exception.McuMgrErrorException;
 import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.image.McuMgrImage;
 import io.runtime.mcumgr.response.DownloadResponse;
 import io.runtime.mcumgr.response.McuMgrResponse;
 import io.runtime.mcumgr.response.UploadResponse;
 import io.runtime.mcumgr.response.img.McuMgrCoreLoadResponse;
 import io.runtime.mcumgr.response.img.McuMgrImageStateResponse;
 import io.runtime.mcumgr.response.img.McuMgrImageUploadResponse;
+import io.runtime.mcumgr.transfer.CoreDownloader;
 import io.runtime.mcumgr.transfer.Download;
 import io.runtime.mcumgr.transfer.DownloadCallback;
+import io.runtime.mcumgr.transfer.DownloadSink;
+import io.runtime.mcumgr.transfer.DownloaderKt;
+import io.runtime.mcumgr.transfer.SinkDownloadCallback;
 import io.runtime.mcumgr.transfer.TransferController;
 import io.runtime.mcumgr.transfer.TransferManager;
 import io.runtime.mcumgr.transfer.Upload;
 import io.runtime.mcumgr.transfer.UploadCallback;
-import io.runtime.mcumgr.util.CBOR;
+import io.runtime.mcumgr.transfer.UploadSource;
 
 /**
  * Image command-group manager. This manager can read the image state of a device, test or
@@ -58,6 +61,7 @@ public class ImageManager extends TransferManager {
 
     private final static int IMG_HASH_LEN = 32;
     private final static int TRUNCATED_HASH_LEN = 3;
+    private final static byte[] EMPTY = new byte[0];
 
     // Image manager command IDs
     private final static int ID_STATE = 0;
@@ -88,6 +92,20 @@ public class ImageManager extends TransferManager {
         send(OP_READ, ID_STATE, null, McuMgrImageStateResponse.class, callback);
     }
 
+    /**
+     * List the images on a device.
+     * <p>
+     * The response payload can be mapped to a {@link McuMgrImageStateResponse}.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrImageStateResponse> listAsync() {
+        McuMgrFuture<McuMgrImageStateResponse> future = new McuMgrFuture<>();
+        list(future);
+        return future;
+    }
+
     /**
      * List the images on a device (synchronous).
      * <p>
@@ -120,8 +138,86 @@ public class ImageManager extends TransferManager {
      */
     public void upload(@NotNull byte[] data, int offset,
                        @NotNull McuMgrCallback<McuMgrImageUploadResponse> callback) {
-        HashMap<String, Object> payloadMap = buildUploadPayload(data, offset);
-        send(OP_WRITE, ID_UPLOAD, payloadMap, McuMgrImageUploadResponse.class, callback);
+        upload(UploadSource.wrap(data), offset, callback);
+    }
+
+    /**
+     * Send a packet of given data from the specified offset to the device.
+     * <p>
+     * The chunk size is limited by the current MTU. If the current MTU set by
+     * {@link #setUploadMtu(int)} is too large, the {@link McuMgrCallback#onError(McuMgrException)}
+     * with {@link InsufficientMtuException} error will be returned.
+     * Use {@link InsufficientMtuException#getMtu()} to get the current MTU and
+     * pass it to {@link #setUploadMtu(int)} and try again.
+     * <p>
+     * Use {@link #imageUpload(byte[], UploadCallback)} to send the whole file asynchronously
+     * using one command.
+     *
+     * @param data     image data.
+     * @param offset   the offset, from which the chunk will be sent.
+     * @return The future response.
+     * @see #imageUpload(byte[], UploadCallback)
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrImageUploadResponse> uploadAsync(@NotNull byte[] data, int offset) {
+        McuMgrFuture<McuMgrImageUploadResponse> future = new McuMgrFuture<>();
+        upload(data, offset, future);
+        return future;
+    }
+
+    /**
+     * Send a packet of data read from the given source at the specified offset to the device
+     * (asynchronous).
+     * <p>
+     * The chunk size is limited by the current MTU. If the current MTU set by
+     * {@link #setUploadMtu(int)} is too large, the {@link McuMgrCallback#onError(McuMgrException)}
+     * with {@link InsufficientMtuException} error will be returned.
+     * Use {@link InsufficientMtuException#getMtu()} to get the current MTU and
+     * pass it to {@link #setUploadMtu(int)} and try again.
+     * <p>
+     * Use {@link #imageUpload(UploadSource, UploadCallback)} to send the whole file
+     * asynchronously using one command.
+     *
+     * @param source   image source.
+     * @param offset   the offset, from which the chunk will be sent.
+     * @param callback the asynchronous callback.
+     * @see #imageUpload(UploadSource, UploadCallback)
+     */
+    public void upload(@NotNull UploadSource source, int offset,
+                       @NotNull McuMgrCallback<McuMgrImageUploadResponse> callback) {
+        byte[] packet;
+        try {
+            packet = buildUploadPacket(source, offset, null);
+        } catch (McuMgrException e) {
+            callback.onError(e);
+            return;
+        }
+        send(packet, McuMgrImageUploadResponse.class, callback);
+    }
+
+    /**
+     * Send a packet of data read from the given source at the specified offset to the device.
+     * <p>
+     * The chunk size is limited by the current MTU. If the current MTU set by
+     * {@link #setUploadMtu(int)} is too large, the {@link McuMgrCallback#onError(McuMgrException)}
+     * with {@link InsufficientMtuException} error will be returned.
+     * Use {@link InsufficientMtuException#getMtu()} to get the current MTU and
+     * pass it to {@link #setUploadMtu(int)} and try again.
+     * <p>
+     * Use {@link #imageUpload(UploadSource, UploadCallback)} to send the whole file
+     * asynchronously using one command.
+     *
+     * @param source   image source.
+     * @param offset   the offset, from which the chunk will be sent.
+     * @return The future response.
+     * @see #imageUpload(UploadSource, UploadCallback)
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrImageUploadResponse> uploadAsync(@NotNull UploadSource source,
+                                                               int offset) {
+        McuMgrFuture<McuMgrImageUploadResponse> future = new McuMgrFuture<>();
+        upload(source, offset, future);
+        return future;
     }
 
     /**
@@ -142,27 +238,50 @@ public class ImageManager extends TransferManager {
      */
     @NotNull
     public McuMgrImageUploadResponse upload(@NotNull byte[] data, int offset) throws McuMgrException {
-        HashMap<String, Object> payloadMap = buildUploadPayload(data, offset);
-        return send(OP_WRITE, ID_UPLOAD, payloadMap, McuMgrImageUploadResponse.class);
+        return upload(UploadSource.wrap(data), offset);
     }
 
-    /*
-     * Build the upload payload.
+    /**
+     * Send a packet of data read from the given source at the specified offset to the device
+     * (synchronous).
+     * <p>
+     * The chunk size is limited by the current MTU. If the current MTU set by
+     * {@link #setUploadMtu(int)} is too large, the {@link InsufficientMtuException} error will be
+     * thrown. Use {@link InsufficientMtuException#getMtu()} to get the current MTU and
+     * pass it to {@link #setUploadMtu(int)} and try again.
+     * <p>
+     * Use {@link #imageUpload(UploadSource, UploadCallback)} to send the whole file
+     * asynchronously using one command.
+     *
+     * @param source image source.
+     * @param offset the offset, from which the chunk will be sent.
+     * @return The upload response.
+     * @see #imageUpload(UploadSource, UploadCallback)
      */
     @NotNull
-    private HashMap<String, Object> buildUploadPayload(@NotNull byte[] data, int offset) {
-        // Get chunk of image data to send
-        int dataLength = Math.min(mMtu - calculatePacketOverhead(data, offset), data.length - offset);
-        byte[] sendBuffer = new byte[dataLength];
-        System.arraycopy(data, offset, sendBuffer, 0, dataLength);
+    public McuMgrImageUploadResponse upload(@NotNull UploadSource source, int offset)
+            throws McuMgrException {
+        byte[] packet = buildUploadPacket(source, offset, null);
+        return send(packet, McuMgrImageUploadResponse.class);
+    }
 
-        // Create the map of key-values for the McuManager payload
-        HashMap<String, Object> payloadMap = new HashMap<>();
-        payloadMap.put("data", sendBuffer);
-        payloadMap.put("off", offset);
+    /*
+     * Build the upload packet. The chunk is read directly from the image source. The hash sent
+     * with the first chunk is calculated from the source, unless given.
+     */
+    @NotNull
+    private byte[] buildUploadPacket(@NotNull UploadSource source, int offset,
+                                     @Nullable byte[] hash) throws McuMgrException {
+        // Get the length of the chunk of image data to send
+        int dataLength = Math.min(getMtu() - calculatePacketOverhead(source.size(), offset),
+                source.size() - offset);
+
+        McuMgrPacketBuilder packet = newPacket(OP_WRITE, ID_UPLOAD)
+                .put("data", source, offset, dataLength)
+                .put("off", offset);
         if (offset == 0) {
             // Only send the length of the image in the first packet of the upload
-            payloadMap.put("len", data.length);
+            packet.put("len", source.size());
 
             /*
              * Feature in Apache Mynewt: Device keeps track of unfinished uploads based on the
@@ -170,17 +289,13 @@ public class ImageManager extends TransferManager {
              * the same hash of a partially finished upload, the device will send the offset to
              * continue from. The hash is truncated to save packet
              */
-            try {
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] hash = digest.digest(data);
-                // Truncate the hash to save space.
-                byte[] truncatedHash = Arrays.copyOf(hash, TRUNCATED_HASH_LEN);
-                payloadMap.put("sha", truncatedHash);
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
+            if (hash == null) {
+                hash = McuMgrImage.getSha256(source);
             }
+            // Truncate the hash to save space.
+            packet.put("sha", hash, 0, TRUNCATED_HASH_LEN);
         }
-        return payloadMap;
+        return packet.build();
     }
 
     /**
@@ -199,6 +314,22 @@ public class ImageManager extends TransferManager {
         send(OP_WRITE, ID_STATE, payloadMap, McuMgrImageStateResponse.class, callback);
     }
 
+    /**
+     * Test an image on the device.
+     * <p>
+     * Testing an image will verify the image and put it in a pending state. That is, when the
+     * device resets, the pending image will be booted into.
+     *
+     * @param hash     the hash of the image to test.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrImageStateResponse> testAsync(@NotNull byte[] hash) {
+        McuMgrFuture<McuMgrImageStateResponse> future = new McuMgrFuture<>();
+        test(hash, future);
+        return future;
+    }
+
     /**
      * Test an image on the device (synchronous).
      * <p>
@@ -236,6 +367,23 @@ public class ImageManager extends TransferManager {
         send(OP_WRITE, ID_STATE, payloadMap, McuMgrImageStateResponse.class, callback);
     }
 
+    /**
+     * Confirm an image on the device.
+     * <p>
+     * Confirming an image will make it the default to boot into.
+     *
+     * @param hash     the hash of the image to confirm.
+     *                 If not provided, the current image running on the device will be made
+     *                 permanent.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrImageStateResponse> confirmAsync(@Nullable byte[] hash) {
+        McuMgrFuture<McuMgrImageStateResponse> future = new McuMgrFuture<>();
+        confirm(hash, future);
+        return future;
+    }
+
     /**
      * Confirm an image on the device (synchronous).
      * <p>
@@ -266,6 +414,18 @@ public class ImageManager extends TransferManager {
         send(OP_WRITE, ID_ERASE, null, McuMgrResponse.class, callback);
     }
 
+    /**
+     * Erase the image in slot 1.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> eraseAsync() {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        erase(future);
+        return future;
+    }
+
     /**
      * Erase the image in slot 1 (synchronous).
      *
@@ -286,6 +446,18 @@ public class ImageManager extends TransferManager {
         send(OP_WRITE, ID_ERASE_STATE, null, McuMgrResponse.class, callback);
     }
 
+    /**
+     * Erase the state of image in slot 1.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> eraseStateAsync() {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        eraseState(future);
+        return future;
+    }
+
     /**
      * Erase the state of image in slot 1 (synchronous).
      *
@@ -310,6 +482,22 @@ public class ImageManager extends TransferManager {
         send(OP_READ, ID_CORELIST, null, McuMgrResponse.class, callback);
     }
 
+    /**
+     * Core list.
+     * <p>
+     * A core dump is available for download if the {@link McuMgrErrorCode} is
+     * {@link McuMgrErrorCode#OK}. If no core is available for download, the response will contain
+     * a return code of {@link McuMgrErrorCode#NO_ENTRY}.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> coreListAsync() {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        coreList(future);
+        return future;
+    }
+
     /**
      * Core list (synchronous).
      * <p>
@@ -337,6 +525,19 @@ public class ImageManager extends TransferManager {
         send(OP_READ, ID_CORELOAD, payloadMap, McuMgrCoreLoadResponse.class, callback);
     }
 
+    /**
+     * Core load.
+     *
+     * @param offset   offset.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrCoreLoadResponse> coreLoadAsync(int offset) {
+        McuMgrFuture<McuMgrCoreLoadResponse> future = new McuMgrFuture<>();
+        coreLoad(offset, future);
+        return future;
+    }
+
     /**
      * Core load (synchronous).
      *
@@ -360,6 +561,18 @@ public class ImageManager extends TransferManager {
         send(OP_WRITE, ID_CORELOAD, null, McuMgrResponse.class, callback);
     }
 
+    /**
+     * Erase a core dump from the device.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> coreEraseAsync() {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        coreErase(future);
+        return future;
+    }
+
     /**
      * Erase a core dump from the device (synchronous).
      *
@@ -393,6 +606,66 @@ public class ImageManager extends TransferManager {
         return startDownload(new CoreDownload(callback));
     }
 
+    /**
+     * Start a windowed core download.
+     * <p>
+     * Unlike {@link #coreDownload}, up to {@code windowCapacity} read requests are sent without
+     * waiting for the responses to the previous ones. The download is not queued with other
+     * transfers and starts immediately.
+     * <p>
+     * The download may be controlled using the {@link TransferController} returned by this method.
+     *
+     * @param windowCapacity the maximum number of read requests sent without receiving a response.
+     * @param callback       receives callbacks from the download.
+     * @return The object used to control this download.
+     * @see TransferController
+     * @see CoreDump
+     */
+    @NotNull
+    public TransferController windowCoreDownload(int windowCapacity,
+                                                 @NotNull DownloadCallback callback) {
+        return DownloaderKt.windowDownload(new CoreDownloader(this, windowCapacity), callback);
+    }
+
+    /**
+     * Start core download into the given sink.
+     * <p>
+     * Each received chunk is written to the sink, so the core dump is never held in memory as a
+     * whole. The download starts from the current offset of the sink, which allows resuming an
+     * interrupted download from {@link DownloadSink#getCommittedOffset()}.
+     * <p>
+     * Multiple calls will queue multiple downloads, executed sequentially. This includes image
+     * uploads executed from {@link #imageUpload}.
+     *
+     * @param sink     the sink receiving the core dump. The sink is not closed by the download.
+     * @param callback receives callbacks from the download.
+     * @return The object used to control this download.
+     * @see TransferController
+     * @see CoreDump
+     */
+    @NotNull
+    public TransferController coreDownload(@NotNull DownloadSink sink,
+                                           @NotNull SinkDownloadCallback callback) {
+        return startDownload(new CoreDownload(sink, callback));
+    }
+
+    /**
+     * Start a windowed core download into the given sink.
+     *
+     * @param sink           the sink receiving the core dump. The sink is not closed by the
+     *                       download.
+     * @param windowCapacity the maximum number of read requests sent without receiving a response.
+     * @param callback       receives callbacks from the download.
+     * @return The object used to control this download.
+     * @see #windowCoreDownload(int, DownloadCallback)
+     * @see #coreDownload(DownloadSink, SinkDownloadCallback)
+     */
+    @NotNull
+    public TransferController windowCoreDownload(@NotNull DownloadSink sink, int windowCapacity,
+                                                 @NotNull SinkDownloadCallback callback) {
+        return DownloaderKt.windowDownload(new CoreDownloader(this, windowCapacity), sink, callback);
+    }
+
     /**
      * Core Download Implementation
      */
@@ -401,6 +674,10 @@ public class ImageManager extends TransferManager {
             super(callback);
         }
 
+        protected CoreDownload(@NotNull DownloadSink sink, @NotNull SinkDownloadCallback callback) {
+            super(sink, callback);
+        }
+
         @Override
         public DownloadResponse read(int offset) throws McuMgrException {
             return coreLoad(offset);
@@ -429,18 +706,53 @@ public class ImageManager extends TransferManager {
         return startUpload(new ImageUpload(imageData, callback));
     }
 
+    /**
+     * Start image upload, reading the image from the given source.
+     * <p>
+     * Multiple calls will queue multiple uploads, executed sequentially. This includes core
+     * downloads executed from {@link #coreDownload}.
+     * <p>
+     * The upload may be controlled using the {@link TransferController} returned by this method.
+     *
+     * @param source   The source of the image data to upload.
+     * @param callback Receives callbacks from the upload.
+     * @return The object used to control this upload.
+     * @see TransferController
+     */
+    @NotNull
+    public TransferController imageUpload(@NotNull UploadSource source, @NotNull UploadCallback callback) {
+        return startUpload(new ImageUpload(source, callback));
+    }
+
     /**
      * Image Upload Implementation
      */
     public class ImageUpload extends Upload {
+        // The hash of the image, calculated once for all uploads of the first chunk
+        @Nullable
+        private byte[] mHash;
+
         protected ImageUpload(@NotNull byte[] imageData, @NotNull UploadCallback callback) {
             super(imageData, callback);
         }
 
+        protected ImageUpload(@NotNull UploadSource source, @NotNull UploadCallback callback) {
+            super(source, callback);
+        }
+
         @Override
         protected UploadResponse write(@NotNull byte[] data, int offset) throws McuMgrException {
             return upload(data, offset);
         }
+
+        @Override
+        protected UploadResponse write(@NotNull UploadSource source, int offset) throws McuMgrException {
+            if (offset == 0 && mHash == null) {
+                mHash = McuMgrImage.getSha256(source);
+            }
+            byte[] packet = buildUploadPacket(source, offset, mHash);
+            return ImageManager.this.send(packet, McuMgrImageUploadResponse.class);
+        }
     }
 
     //******************************************************************
@@ -550,17 +862,6 @@ public class ImageManager extends TransferManager {
         cancelUpload();
     }
 
-    private synchronized void restartUpload() {
-        if (mImageData == null || mUploadCallback == null) {
-            LOG.error("Could not restart upload: image data or callback is null!");
-            return;
-        }
-        byte[] tempData = mImageData;
-        ImageUploadCallback tempCallback = mUploadCallback;
-        resetUpload();
-        upload(tempData, tempCallback);
-    }
-
     private synchronized void resetUpload() {
         mUploadState = STATE_NONE;
         mUploadOffset = 0;
@@ -642,8 +943,9 @@ public class ImageManager extends TransferManager {
                         boolean isMtuSet = setUploadMtu(mtu);
 
                         if (isMtuSet) {
-                            // If the MTU has been set successfully, restart the upload.
-                            restartUpload();
+                            // If the MTU has been set successfully, resend the packet from
+                            // the current offset with the new size.
+                            sendNext(mUploadOffset);
                             return;
                         }
                     }
@@ -653,27 +955,23 @@ public class ImageManager extends TransferManager {
             };
 
     // TODO more precise overhead calculations
-    private int calculatePacketOverhead(@NotNull byte[] data, int offset) {
-        HashMap<String, Object> overheadTestMap = new HashMap<>();
-        overheadTestMap.put("data", new byte[0]);
-        overheadTestMap.put("off", offset);
-        if (offset == 0) {
-            overheadTestMap.put("len", data.length);
-            overheadTestMap.put("sha", new byte[TRUNCATED_HASH_LEN]);
-        }
+    private int calculatePacketOverhead(int length, int offset) {
         try {
+            McuMgrPacketBuilder packet = newPacket(OP_WRITE, ID_UPLOAD)
+                    .put("data", EMPTY)
+                    .put("off", offset);
+            if (offset == 0) {
+                packet.put("len", length);
+                packet.put("sha", new byte[TRUNCATED_HASH_LEN]);
+            }
             if (getScheme().isCoap()) {
-                byte[] header = {0, 0, 0, 0, 0, 0, 0, 0};
-                overheadTestMap.put("_h", header);
-                byte[] cborData = CBOR.toBytes(overheadTestMap);
                 // 20 byte estimate of CoAP Header; 5 bytes for good measure
-                return cborData.length + 20 + 5;
+                return packet.finish() + 20 + 5;
             } else {
-                byte[] cborData = CBOR.toBytes(overheadTestMap);
-                // 8 bytes for McuMgr header; 2 bytes for data length
-                return cborData.length + 8 + 2;
+                // 2 bytes for data length
+                return packet.finish() + 2;
             }
-        } catch (IOException e) {
+        } catch (McuMgrException e) {
             LOG.error("Error while calculating packet overhead", e);
         }
         return -1;
@@ -22,6 +22,7 @@ import java.util.Map;
 
 import io.runtime.mcumgr.McuManager;
 import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrFuture;
 import io.runtime.mcumgr.McuMgrTransport;
 import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.response.log.McuMgrLevelListResponse;
@@ -91,6 +92,33 @@ public class LogManager extends McuManager {
         send(OP_READ, ID_READ, payloadMap, McuMgrLogResponse.class, callback);
     }
 
+    /**
+     * Show logs from a device.
+     * <p>
+     * Logs will be shown from the log of the name provided, or all if none. Additionally, logs will
+     * only be shown from after the minIndex and minTimestamp if provided (Note: the minimum
+     * timestamp will only be used if the minimum index is also provided).
+     * <p>
+     * This method will only provide a portion of the logs, and return the next index to pull logs
+     * from. Therefore, in order to pull all the logs from a device, you may have to call this
+     * method multiple times.
+     *
+     * @param logName      the name of the log to read. If null, the device will report from all logs.
+     * @param minIndex     the minimum index to pull logs from. If null, the device will read from the
+     *                     oldest log.
+     * @param minTimestamp the minimum timestamp to pull logs from. This parameter is only used if
+     *                     it and minIndex are not null.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrLogResponse> showAsync(@Nullable String logName,
+                                                     @Nullable Long minIndex,
+                                                     @Nullable Date minTimestamp) {
+        McuMgrFuture<McuMgrLogResponse> future = new McuMgrFuture<>();
+        show(logName, minIndex, minTimestamp, future);
+        return future;
+    }
+
     /**
      * Show logs from a device (synchronous).
      * <p>
@@ -136,6 +164,18 @@ public class LogManager extends McuManager {
         send(OP_WRITE, ID_CLEAR, null, McuMgrResponse.class, callback);
     }
 
+    /**
+     * Clear the logs on a device.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrResponse> clearAsync() {
+        McuMgrFuture<McuMgrResponse> future = new McuMgrFuture<>();
+        clear(future);
+        return future;
+    }
+
     /**
      * Clear the logs on a device (synchronous).
      *
@@ -158,6 +198,20 @@ public class LogManager extends McuManager {
         send(OP_READ, ID_MODULE_LIST, null, McuMgrModuleListResponse.class, callback);
     }
 
+    /**
+     * List the log modules on a device.
+     * <p>
+     * Note: This is NOT the log name to use to pass into show.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrModuleListResponse> moduleListAsync() {
+        McuMgrFuture<McuMgrModuleListResponse> future = new McuMgrFuture<>();
+        moduleList(future);
+        return future;
+    }
+
     /**
      * List the log modules on a device (synchronous).
      * <p>
@@ -180,6 +234,18 @@ public class LogManager extends McuManager {
         send(OP_READ, ID_LEVEL_LIST, null, McuMgrLevelListResponse.class, callback);
     }
 
+    /**
+     * List the log levels on a device.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrLevelListResponse> levelListAsync() {
+        McuMgrFuture<McuMgrLevelListResponse> future = new McuMgrFuture<>();
+        levelList(future);
+        return future;
+    }
+
     /**
      * List the log levels on a device (synchronous).
      *
@@ -202,6 +268,20 @@ public class LogManager extends McuManager {
         send(OP_READ, ID_LOGS_LIST, null, McuMgrLogListResponse.class, callback);
     }
 
+    /**
+     * List the log names on a device.
+     * <p>
+     * Note: this is the "log name" to pass into show to read logs.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrLogListResponse> logsListAsync() {
+        McuMgrFuture<McuMgrLogListResponse> future = new McuMgrFuture<>();
+        logsList(future);
+        return future;
+    }
+
     /**
      * List the log names on a device (synchronous).
      * <p>
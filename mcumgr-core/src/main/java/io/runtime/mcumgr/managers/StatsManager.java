@@ -13,6 +13,7 @@ import java.util.HashMap;
 
 import io.runtime.mcumgr.McuManager;
 import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrFuture;
 import io.runtime.mcumgr.McuMgrTransport;
 import io.runtime.mcumgr.exception.McuMgrException;
 import io.runtime.mcumgr.response.stat.McuMgrStatListResponse;
@@ -49,6 +50,19 @@ public class StatsManager extends McuManager {
         send(OP_READ, ID_READ, payloadMap, McuMgrStatResponse.class, callback);
     }
 
+    /**
+     * Read a statistic module.
+     *
+     * @param module   the name of the module to read.
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrStatResponse> readAsync(@Nullable String module) {
+        McuMgrFuture<McuMgrStatResponse> future = new McuMgrFuture<>();
+        read(module, future);
+        return future;
+    }
+
     /**
      * Read a statistic module (synchronous).
      *
@@ -72,6 +86,18 @@ public class StatsManager extends McuManager {
         send(OP_READ, ID_LIST, null, McuMgrStatListResponse.class, callback);
     }
 
+    /**
+     * List the statistic modules.
+     *
+     * @return The future response.
+     */
+    @NotNull
+    public McuMgrFuture<McuMgrStatListResponse> listAsync() {
+        McuMgrFuture<McuMgrStatListResponse> future = new McuMgrFuture<>();
+        list(future);
+        return future;
+    }
+
     /**
      * List the statistic modules (synchronous).
      *
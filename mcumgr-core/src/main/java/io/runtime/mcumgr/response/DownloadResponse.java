@@ -3,6 +3,14 @@ package io.runtime.mcumgr.response;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.runtime.mcumgr.util.CBOR;
+
 public class DownloadResponse extends McuMgrResponse {
     /** The offset of the {@link #data}. */
     @JsonProperty("off")
@@ -16,4 +24,38 @@ public class DownloadResponse extends McuMgrResponse {
 
     @JsonCreator
     public DownloadResponse() {}
+
+    /**
+     * Download responses do not retain their packet, which consists mostly of {@link #data},
+     * already kept decoded.
+     *
+     * @return False.
+     */
+    @Override
+    protected boolean retainsBytes() {
+        return false;
+    }
+
+    @NotNull
+    @Override
+    protected byte[] encodePayload() throws IOException {
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("rc", rc);
+        payload.put("off", off);
+        if (data != null) {
+            payload.put("data", data);
+        }
+        // The length is only sent in the initial packet
+        if (off == 0) {
+            payload.put("len", len);
+        }
+        return CBOR.toBytes(payload);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "{\"rc\":" + rc + ",\"off\":" + off + ",\"len\":" + len +
+                ",\"data\":(" + (data != null ? data.length : 0) + " bytes)}";
+    }
 }
@@ -43,9 +43,27 @@ public class McuMgrResponse {
     private McuMgrScheme mScheme;
 
     /**
-     * The bytes of the response packet. This includes the McuMgrHeader for standard schemes and
-     * includes the CoAP header for CoAP schemes.
+     * The array containing the response packet, or null if the packet was given as a whole or
+     * is not retained, see {@link #retainsBytes()}. This includes the McuMgrHeader for standard schemes and includes the CoAP header for CoAP
+     * schemes.
      */
+    @Nullable
+    private byte[] mData;
+
+    /**
+     * The offset and length of the response packet in {@link #mData}.
+     */
+    private int mOffset, mLength;
+
+    /**
+     * The offset of the payload in {@link #mData}.
+     */
+    private int mPayloadOffset;
+
+    /**
+     * The bytes of the response packet, copied from {@link #mData} when first requested.
+     */
+    @Nullable
     private byte[] mBytes;
 
     /**
@@ -76,8 +94,12 @@ public class McuMgrResponse {
     @NotNull
     @Override
     public String toString() {
+        byte[] payload = getPayload();
+        if (payload == null) {
+            return getClass().getSimpleName() + " (rc: " + rc + ")";
+        }
         try {
-            return CBOR.toString(mPayload);
+            return CBOR.toString(payload);
         } catch (IOException e) {
             LOG.error("Failed to parse response", e);
             return "Failed to parse response";
@@ -127,10 +149,29 @@ public class McuMgrResponse {
      * <p>
      * If using a CoAP scheme this method and {@link McuMgrResponse#getPayload()} will return the
      * same value.
+     * <p>
+     * Responses which do not retain their packet, see {@link #retainsBytes()}, encode it again
+     * from the decoded fields on each call.
      *
      * @return The response bytes.
      */
     public byte[] getBytes() {
+        if (mBytes == null && mData != null) {
+            mBytes = mOffset == 0 && mLength == mData.length ? mData :
+                    Arrays.copyOfRange(mData, mOffset, mOffset + mLength);
+        }
+        if (mBytes == null && !retainsBytes() && mHeader != null) {
+            byte[] payload = rebuildPayload();
+            if (mScheme.isCoap()) {
+                return payload;
+            }
+            byte[] bytes = new byte[McuMgrHeader.HEADER_LENGTH + payload.length];
+            System.arraycopy(McuMgrHeader.build(mHeader.getOp(), mHeader.getFlags(),
+                    payload.length, mHeader.getGroupId(), mHeader.getSequenceNum(),
+                    mHeader.getCommandId()), 0, bytes, 0, McuMgrHeader.HEADER_LENGTH);
+            System.arraycopy(payload, 0, bytes, McuMgrHeader.HEADER_LENGTH, payload.length);
+            return bytes;
+        }
         return mBytes;
     }
 
@@ -139,11 +180,20 @@ public class McuMgrResponse {
      * <p>
      * If using a CoAP scheme this method and {@link McuMgrResponse#getBytes()} will return the
      * same value.
+     * <p>
+     * Responses which do not retain their packet, see {@link #retainsBytes()}, encode the
+     * payload again from the decoded fields on each call.
      *
      * @return The payload bytes.
      */
     @Nullable
     public byte[] getPayload() {
+        if (mPayload == null && mData != null) {
+            mPayload = Arrays.copyOfRange(mData, mPayloadOffset, mOffset + mLength);
+        }
+        if (mPayload == null && !retainsBytes() && mHeader != null) {
+            return rebuildPayload();
+        }
         return mPayload;
     }
 
@@ -177,6 +227,42 @@ public class McuMgrResponse {
         return mCoapCode;
     }
 
+    /**
+     * Whether responses of this type keep a reference to the packet they were decoded from.
+     * Responses carrying bulk data, which is already available in a decoded field, return false
+     * so that the packet is not kept in memory alongside it. {@link #getBytes()} and
+     * {@link #getPayload()} then encode the packet again using {@link #encodePayload()}, so the
+     * result has the same content, but not necessarily the same encoding, as the packet received.
+     *
+     * @return True if the packet is retained, false otherwise. Default is true.
+     */
+    protected boolean retainsBytes() {
+        return true;
+    }
+
+    /**
+     * Encodes the payload of a response which does not retain its packet from the decoded
+     * fields. Must be overridden by responses returning false from {@link #retainsBytes()}.
+     *
+     * @return The CBOR payload.
+     * @throws IOException if the payload could not be encoded.
+     */
+    @NotNull
+    protected byte[] encodePayload() throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName()
+                + " does not encode its payload");
+    }
+
+    @NotNull
+    private byte[] rebuildPayload() {
+        try {
+            return encodePayload();
+        } catch (IOException e) {
+            // Encoding a map of decoded values does not fail
+            throw new IllegalStateException("Failed to encode " + getClass().getSimpleName(), e);
+        }
+    }
+
     /**
      * Initialize the fields for this response.
      *
@@ -188,9 +274,34 @@ public class McuMgrResponse {
     void initFields(@NotNull McuMgrScheme scheme, @NotNull byte[] bytes,
                     @NotNull McuMgrHeader header, @NotNull byte[] payload) {
         mScheme = scheme;
-        mBytes = bytes;
         mHeader = header;
-        mPayload = payload;
+        if (retainsBytes()) {
+            mBytes = bytes;
+            mPayload = payload;
+        }
+    }
+
+    /**
+     * Initialize the fields for this response, referencing the packet in the given array.
+     * The packet is copied only when {@link #getBytes()} or {@link #getPayload()} is called.
+     *
+     * @param scheme        the scheme.
+     * @param data          the array containing the packet.
+     * @param offset        the offset of the packet in the array.
+     * @param length        the length of the packet.
+     * @param header        McuMgrHeader.
+     * @param payloadOffset the offset of the McuMgr CBOR payload in the array.
+     */
+    void initFields(@NotNull McuMgrScheme scheme, @NotNull byte[] data, int offset, int length,
+                    @NotNull McuMgrHeader header, int payloadOffset) {
+        mScheme = scheme;
+        mHeader = header;
+        if (retainsBytes()) {
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+            mPayloadOffset = payloadOffset;
+        }
     }
 
     /**
@@ -209,16 +320,45 @@ public class McuMgrResponse {
                                                              @NotNull byte[] bytes,
                                                              @NotNull Class<T> type)
             throws IOException {
+        return buildResponse(scheme, bytes, 0, bytes.length, type);
+    }
+
+    /**
+     * Build a McuMgrResponse from a packet located in a range of the given array.
+     * <p>
+     * The header is parsed and the payload is deserialized directly from the array, without
+     * copying. Unless the response type opts out using {@link #retainsBytes()}, the response
+     * keeps a reference to the array, so it must not be modified afterwards.
+     *
+     * @param scheme the transport scheme used.
+     * @param data   the array containing the response packet.
+     * @param offset the offset of the packet in the array.
+     * @param length the length of the packet.
+     * @param type   the type of response to build.
+     * @param <T>    the response type to build.
+     * @return The response.
+     * @throws IOException              Error parsing response.
+     * @throws IllegalArgumentException If the scheme is CoAP.
+     */
+    @NotNull
+    public static <T extends McuMgrResponse> T buildResponse(@NotNull McuMgrScheme scheme,
+                                                             @NotNull byte[] data,
+                                                             int offset, int length,
+                                                             @NotNull Class<T> type)
+            throws IOException {
         if (scheme.isCoap()) {
             throw new IllegalArgumentException("Cannot use this method with a CoAP scheme");
         }
+        if (length < McuMgrHeader.HEADER_LENGTH) {
+            throw new IOException("Invalid McuMgrHeader");
+        }
 
-        byte[] payload = Arrays.copyOfRange(bytes, McuMgrHeader.HEADER_LENGTH, bytes.length);
-        McuMgrHeader header = McuMgrHeader.fromBytes(Arrays.copyOf(bytes, McuMgrHeader.HEADER_LENGTH));
+        McuMgrHeader header = McuMgrHeader.fromBytes(data, offset);
+        int payloadOffset = offset + McuMgrHeader.HEADER_LENGTH;
 
         // Initialize response and set fields
-        T response = CBOR.toObject(payload, type);
-        response.initFields(scheme, bytes, header, payload);
+        T response = CBOR.toObject(data, payloadOffset, offset + length - payloadOffset, type);
+        response.initFields(scheme, data, offset, length, header, payloadOffset);
 
         return response;
     }
@@ -280,9 +420,7 @@ public class McuMgrResponse {
             if (bytes.length < McuMgrHeader.HEADER_LENGTH) {
                 throw new IOException("Invalid McuMgrHeader");
             }
-            byte[] headerBytes = Arrays.copyOf(bytes, McuMgrHeader.HEADER_LENGTH);
-            McuMgrHeader header = McuMgrHeader.fromBytes(headerBytes);
-            return header.getLen() + McuMgrHeader.HEADER_LENGTH;
+            return McuMgrHeader.readLen(bytes, 0) + McuMgrHeader.HEADER_LENGTH;
         }
     }
 }
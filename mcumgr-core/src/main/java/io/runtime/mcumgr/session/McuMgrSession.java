@@ -0,0 +1,349 @@
+package io.runtime.mcumgr.session;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.dfu.FirmwareUpgradeCallback;
+import io.runtime.mcumgr.dfu.FirmwareUpgradeController;
+import io.runtime.mcumgr.dfu.FirmwareUpgradeManager;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.managers.ConfigManager;
+import io.runtime.mcumgr.managers.CrashManager;
+import io.runtime.mcumgr.managers.DefaultManager;
+import io.runtime.mcumgr.managers.FsManager;
+import io.runtime.mcumgr.managers.ImageManager;
+import io.runtime.mcumgr.managers.LogManager;
+import io.runtime.mcumgr.managers.StatsManager;
+import io.runtime.mcumgr.transfer.DownloadCallback;
+import io.runtime.mcumgr.transfer.UploadCallback;
+
+/**
+ * The managers of a single device, created on first use and reused for all operations on the
+ * device's transport. Sessions are obtained from a {@link McuMgrSessionRegistry}; transfers of
+ * the {@link ImageManager} and {@link FsManager} run on the registry's shared executor.
+ * <p>
+ * The throughput of a session counts the transfers whose callbacks have been wrapped using
+ * {@link #track(UploadCallback)} or {@link #track(DownloadCallback)}, and the image uploads of
+ * the firmware upgrade managers created using {@link #newFirmwareUpgradeManager}.
+ */
+@SuppressWarnings("unused")
+public class McuMgrSession {
+
+    private final McuMgrTransport mTransport;
+    private final McuMgrSessionRegistry mRegistry;
+    private final TransferMeter mMeter;
+
+    // Guarded by this
+    @Nullable
+    private DefaultManager mDefaultManager;
+    @Nullable
+    private ImageManager mImageManager;
+    @Nullable
+    private FsManager mFsManager;
+    @Nullable
+    private LogManager mLogManager;
+    @Nullable
+    private StatsManager mStatsManager;
+    @Nullable
+    private ConfigManager mConfigManager;
+    @Nullable
+    private CrashManager mCrashManager;
+
+    McuMgrSession(@NotNull McuMgrTransport transport, @NotNull McuMgrSessionRegistry registry,
+                  @NotNull TransferMeter registryMeter) {
+        mTransport = transport;
+        mRegistry = registry;
+        mMeter = new TransferMeter(registryMeter);
+    }
+
+    @NotNull
+    public McuMgrTransport getTransport() {
+        return mTransport;
+    }
+
+    @NotNull
+    public synchronized DefaultManager getDefaultManager() {
+        if (mDefaultManager == null) {
+            mDefaultManager = new DefaultManager(mTransport);
+        }
+        return mDefaultManager;
+    }
+
+    @NotNull
+    public synchronized ImageManager getImageManager() {
+        if (mImageManager == null) {
+            mImageManager = new ImageManager(mTransport);
+            mImageManager.setTransferExecutor(mRegistry.getTransferExecutor());
+        }
+        return mImageManager;
+    }
+
+    @NotNull
+    public synchronized FsManager getFsManager() {
+        if (mFsManager == null) {
+            mFsManager = new FsManager(mTransport);
+            mFsManager.setTransferExecutor(mRegistry.getTransferExecutor());
+        }
+        return mFsManager;
+    }
+
+    @NotNull
+    public synchronized LogManager getLogManager() {
+        if (mLogManager == null) {
+            mLogManager = new LogManager(mTransport);
+        }
+        return mLogManager;
+    }
+
+    @NotNull
+    public synchronized StatsManager getStatsManager() {
+        if (mStatsManager == null) {
+            mStatsManager = new StatsManager(mTransport);
+        }
+        return mStatsManager;
+    }
+
+    @NotNull
+    public synchronized ConfigManager getConfigManager() {
+        if (mConfigManager == null) {
+            mConfigManager = new ConfigManager(mTransport);
+        }
+        return mConfigManager;
+    }
+
+    @NotNull
+    public synchronized CrashManager getCrashManager() {
+        if (mCrashManager == null) {
+            mCrashManager = new CrashManager(mTransport);
+        }
+        return mCrashManager;
+    }
+
+    /**
+     * Creates a firmware upgrade manager using the managers of this session. The image upload is
+     * counted in the throughput of the session.
+     *
+     * @param callback the callback.
+     * @return The firmware upgrade manager.
+     */
+    @NotNull
+    public FirmwareUpgradeManager newFirmwareUpgradeManager(@NotNull FirmwareUpgradeCallback callback) {
+        return new FirmwareUpgradeManager(getImageManager(), getDefaultManager(),
+                new TrackedFirmwareUpgradeCallback(callback));
+    }
+
+    /**
+     * Returns a callback counting the upload in the throughput of this session, and passing
+     * all events to the given callback. The upload is assumed to start now and must be started
+     * with the returned callback.
+     *
+     * @param callback the callback of the upload.
+     * @return The callback to start the upload with.
+     */
+    @NotNull
+    public UploadCallback track(@NotNull final UploadCallback callback) {
+        final Progress progress = new Progress();
+        return new UploadCallback() {
+            @Override
+            public void onUploadProgressChanged(int current, int total, long timestamp) {
+                progress.update(current);
+                callback.onUploadProgressChanged(current, total, timestamp);
+            }
+
+            @Override
+            public void onUploadFailed(@NotNull McuMgrException error) {
+                progress.finish();
+                callback.onUploadFailed(error);
+            }
+
+            @Override
+            public void onUploadCanceled() {
+                progress.finish();
+                callback.onUploadCanceled();
+            }
+
+            @Override
+            public void onUploadCompleted() {
+                progress.finish();
+                callback.onUploadCompleted();
+            }
+        };
+    }
+
+    /**
+     * Returns a callback counting the download in the throughput of this session, and passing
+     * all events to the given callback. The download is assumed to start now and must be
+     * started with the returned callback.
+     *
+     * @param callback the callback of the download.
+     * @return The callback to start the download with.
+     */
+    @NotNull
+    public DownloadCallback track(@NotNull final DownloadCallback callback) {
+        final Progress progress = new Progress();
+        return new DownloadCallback() {
+            @Override
+            public void onDownloadProgressChanged(int current, int total, long timestamp) {
+                progress.update(current);
+                callback.onDownloadProgressChanged(current, total, timestamp);
+            }
+
+            @Override
+            public void onDownloadFailed(@NotNull McuMgrException error) {
+                progress.finish();
+                callback.onDownloadFailed(error);
+            }
+
+            @Override
+            public void onDownloadCanceled() {
+                progress.finish();
+                callback.onDownloadCanceled();
+            }
+
+            @Override
+            public void onDownloadCompleted(@NotNull byte[] data) {
+                progress.finish();
+                callback.onDownloadCompleted(data);
+            }
+        };
+    }
+
+    /**
+     * Returns the number of bytes transferred by the tracked transfers.
+     *
+     * @return The number of bytes transferred.
+     */
+    public long getBytesTransferred() {
+        return mMeter.getBytes();
+    }
+
+    /**
+     * Returns the time during which at least one tracked transfer was running.
+     *
+     * @return The transfer time in milliseconds.
+     */
+    public long getTransferTime() {
+        return mMeter.getTime();
+    }
+
+    /**
+     * Returns the throughput of the tracked transfers: the bytes transferred over the time during
+     * which at least one of them was running.
+     *
+     * @return The throughput in bytes per second.
+     */
+    public float getThroughput() {
+        return mMeter.getThroughput();
+    }
+
+    /**
+     * Returns the number of tracked transfers running.
+     *
+     * @return The number of transfers running.
+     */
+    public int getActiveTransferCount() {
+        return mMeter.getActiveTransferCount();
+    }
+
+    /**
+     * The progress of a tracked transfer, counting the bytes acknowledged since the last update.
+     */
+    private class Progress {
+        // Guarded by this
+        private int mOffset;
+        private boolean mFinished;
+
+        Progress() {
+            mMeter.onTransferStarted();
+        }
+
+        void update(int offset) {
+            int bytes;
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                // The offset goes back if the transfer is restarted
+                bytes = Math.max(offset - mOffset, 0);
+                mOffset = offset;
+            }
+            mMeter.onBytesTransferred(bytes);
+        }
+
+        void finish() {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+            }
+            mMeter.onTransferFinished();
+        }
+    }
+
+    /**
+     * Counts the image upload of a firmware upgrade, from entering the upload state until
+     * leaving it.
+     */
+    private class TrackedFirmwareUpgradeCallback implements FirmwareUpgradeCallback {
+        private final FirmwareUpgradeCallback mCallback;
+        @Nullable
+        private volatile Progress mProgress;
+
+        TrackedFirmwareUpgradeCallback(@NotNull FirmwareUpgradeCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onUpgradeStarted(FirmwareUpgradeController controller) {
+            mCallback.onUpgradeStarted(controller);
+        }
+
+        @Override
+        public void onStateChanged(FirmwareUpgradeManager.State prevState,
+                                   FirmwareUpgradeManager.State newState) {
+            if (newState == FirmwareUpgradeManager.State.UPLOAD) {
+                mProgress = new Progress();
+            } else if (prevState == FirmwareUpgradeManager.State.UPLOAD) {
+                finishUpload();
+            }
+            mCallback.onStateChanged(prevState, newState);
+        }
+
+        @Override
+        public void onUpgradeCompleted() {
+            finishUpload();
+            mCallback.onUpgradeCompleted();
+        }
+
+        @Override
+        public void onUpgradeFailed(FirmwareUpgradeManager.State state, McuMgrException error) {
+            finishUpload();
+            mCallback.onUpgradeFailed(state, error);
+        }
+
+        @Override
+        public void onUpgradeCanceled(FirmwareUpgradeManager.State state) {
+            finishUpload();
+            mCallback.onUpgradeCanceled(state);
+        }
+
+        @Override
+        public void onUploadProgressChanged(int bytesSent, int imageSize, long timestamp) {
+            Progress progress = mProgress;
+            if (progress != null) {
+                progress.update(bytesSent);
+            }
+            mCallback.onUploadProgressChanged(bytesSent, imageSize, timestamp);
+        }
+
+        private void finishUpload() {
+            Progress progress = mProgress;
+            if (progress != null) {
+                progress.finish();
+                mProgress = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package io.runtime.mcumgr.session;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.runtime.mcumgr.McuMgrTransport;
+
+/**
+ * A registry of {@link McuMgrSession}s, one per transport, for managing many devices at once.
+ * <p>
+ * Transfers of all sessions run on one bounded thread pool owned by the registry, instead of a
+ * thread per manager; transfers of a single manager still run one at a time. The threads stop
+ * when idle. Window uploads and downloads do not hold a thread while running, so many more of
+ * them may run at once than the pool has threads.
+ * <p>
+ * The registry reports the throughput of each session and the aggregate throughput of all
+ * sessions. After {@link #shutdown()} no sessions can be added and no transfers started;
+ * transfers already started complete.
+ */
+@SuppressWarnings("unused")
+public class McuMgrSessionRegistry {
+
+    /**
+     * The default maximum number of transfer threads.
+     */
+    public final static int DEFAULT_MAX_TRANSFER_THREADS = 4;
+
+    /**
+     * The time after which an idle transfer thread stops, in seconds.
+     */
+    private final static long IDLE_TIMEOUT = 30;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final TransferMeter mMeter = new TransferMeter(null);
+
+    // Guarded by this
+    private final Map<McuMgrTransport, McuMgrSession> mSessions = new IdentityHashMap<>();
+
+    /**
+     * Creates a registry running transfers on up to
+     * {@link #DEFAULT_MAX_TRANSFER_THREADS} threads.
+     */
+    public McuMgrSessionRegistry() {
+        this(DEFAULT_MAX_TRANSFER_THREADS);
+    }
+
+    /**
+     * Creates a registry running transfers on up to the given number of threads.
+     *
+     * @param maxTransferThreads the maximum number of transfers running at once, not counting
+     *                           window transfers.
+     */
+    public McuMgrSessionRegistry(int maxTransferThreads) {
+        if (maxTransferThreads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        mExecutor = new ThreadPoolExecutor(maxTransferThreads, maxTransferThreads,
+                IDLE_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NotNull Runnable r) {
+                        Thread thread = new Thread(r, "McuMgrTransfer-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the session of the given transport, creating it if needed.
+     *
+     * @param transport the transport of the device.
+     * @return The session.
+     * @throws IllegalStateException if the registry has been shut down.
+     */
+    @NotNull
+    public synchronized McuMgrSession get(@NotNull McuMgrTransport transport) {
+        if (mExecutor.isShutdown()) {
+            throw new IllegalStateException("Registry has been shut down");
+        }
+        McuMgrSession session = mSessions.get(transport);
+        if (session == null) {
+            session = new McuMgrSession(transport, this, mMeter);
+            mSessions.put(transport, session);
+        }
+        return session;
+    }
+
+    /**
+     * Removes the session of the given transport, e.g. when the device is gone. Transfers of the
+     * session continue.
+     *
+     * @param transport the transport of the device.
+     * @return The removed session, or null if none.
+     */
+    @Nullable
+    public synchronized McuMgrSession remove(@NotNull McuMgrTransport transport) {
+        return mSessions.remove(transport);
+    }
+
+    /**
+     * Returns the sessions in the registry.
+     *
+     * @return A copy of the sessions.
+     */
+    @NotNull
+    public synchronized List<McuMgrSession> getSessions() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    /**
+     * Returns the executor running the transfers of all sessions.
+     *
+     * @return The shared transfer executor.
+     */
+    @NotNull
+    public Executor getTransferExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Returns the number of bytes transferred by the tracked transfers of all sessions.
+     *
+     * @return The number of bytes transferred.
+     */
+    public long getBytesTransferred() {
+        return mMeter.getBytes();
+    }
+
+    /**
+     * Returns the time during which at least one tracked transfer of any session was running.
+     *
+     * @return The transfer time in milliseconds.
+     */
+    public long getTransferTime() {
+        return mMeter.getTime();
+    }
+
+    /**
+     * Returns the aggregate throughput of all sessions: the bytes transferred over the time
+     * during which at least one transfer was running.
+     *
+     * @return The throughput in bytes per second.
+     */
+    public float getThroughput() {
+        return mMeter.getThroughput();
+    }
+
+    /**
+     * Returns the number of tracked transfers running in all sessions.
+     *
+     * @return The number of transfers running.
+     */
+    public int getActiveTransferCount() {
+        return mMeter.getActiveTransferCount();
+    }
+
+    /**
+     * Stops accepting sessions and transfers. Transfers already started, or queued, complete.
+     * The sessions are removed; their transports are not released.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            mSessions.clear();
+        }
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Shuts down, also interrupting the transfers running and dropping the queued ones. The
+     * dropped transfers fail.
+     */
+    public void shutdownNow() {
+        synchronized (this) {
+            mSessions.clear();
+        }
+        for (Runnable task : mExecutor.shutdownNow()) {
+            // Cancelling the queued work of a manager fails its transfers
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the registry has been shut down.
+     *
+     * @return True if shut down.
+     */
+    public boolean isShutdown() {
+        return mExecutor.isShutdown();
+    }
+
+    /**
+     * Waits until the transfer threads have terminated after a shutdown.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the unit of the timeout.
+     * @return True if terminated, false if the timeout elapsed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout, @NotNull TimeUnit unit)
+            throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+}
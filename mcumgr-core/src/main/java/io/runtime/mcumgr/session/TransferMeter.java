@@ -0,0 +1,82 @@
+package io.runtime.mcumgr.session;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Measures the throughput of transfers: the bytes transferred over the time during which at
+ * least one transfer was running. Bytes are also counted by the parent meter, if any, so the
+ * meter of a registry measures the aggregate throughput of all its sessions.
+ */
+final class TransferMeter {
+
+    @Nullable
+    private final TransferMeter mParent;
+
+    // Guarded by this
+    private long mBytes;
+    private int mActive;
+    private long mActiveSince;
+    private long mTime;
+
+    TransferMeter(@Nullable TransferMeter parent) {
+        mParent = parent;
+    }
+
+    void onTransferStarted() {
+        synchronized (this) {
+            if (mActive++ == 0) {
+                mActiveSince = System.nanoTime();
+            }
+        }
+        if (mParent != null) {
+            mParent.onTransferStarted();
+        }
+    }
+
+    void onTransferFinished() {
+        synchronized (this) {
+            if (--mActive == 0) {
+                mTime += System.nanoTime() - mActiveSince;
+            }
+        }
+        if (mParent != null) {
+            mParent.onTransferFinished();
+        }
+    }
+
+    void onBytesTransferred(long bytes) {
+        synchronized (this) {
+            mBytes += bytes;
+        }
+        if (mParent != null) {
+            mParent.onBytesTransferred(bytes);
+        }
+    }
+
+    synchronized int getActiveTransferCount() {
+        return mActive;
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * Returns the time during which at least one transfer was running, in milliseconds.
+     */
+    synchronized long getTime() {
+        long time = mTime;
+        if (mActive > 0) {
+            time += System.nanoTime() - mActiveSince;
+        }
+        return time / 1_000_000L;
+    }
+
+    /**
+     * Returns the throughput in bytes per second, or 0 if nothing has been transferred.
+     */
+    synchronized float getThroughput() {
+        long time = getTime();
+        return time > 0 ? mBytes * 1000f / time : 0f;
+    }
+}
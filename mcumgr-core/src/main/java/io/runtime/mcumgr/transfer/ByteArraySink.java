@@ -0,0 +1,37 @@
+package io.runtime.mcumgr.transfer;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A sink collecting the downloaded data in memory, for downloads returning the data as an array.
+ * The array is allocated once the length of the data is known.
+ */
+class ByteArraySink extends DownloadSink {
+
+    @NotNull
+    private byte[] mData = new byte[0];
+
+    ByteArraySink() {
+        super(0);
+    }
+
+    @Override
+    protected void onStart(int length) {
+        mData = new byte[length];
+    }
+
+    @Override
+    protected void onWrite(@NotNull byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, mData, getOffset(), length);
+    }
+
+    /**
+     * Returns the downloaded data. The array is complete once the download has completed.
+     *
+     * @return The data.
+     */
+    @NotNull
+    byte[] getData() {
+        return mData;
+    }
+}
@@ -0,0 +1,170 @@
+package io.runtime.mcumgr.transfer
+
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import java.util.concurrent.TimeUnit
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Congestion window bounding the number of requests in flight.
+ *
+ * The window follows additive-increase/multiplicative-decrease: it starts at one request and
+ * grows by one per acknowledged request until the slow start threshold, then by one per window
+ * of acknowledged requests. A lost request, i.e. one answered with an unexpected offset or an
+ * error, halves the window; a timed out one shrinks it back to one request. Losses of requests
+ * sent before the last decrease belong to the same congestion event and are ignored.
+ *
+ * Round-trip times are smoothed as in RFC 6298. The difference between the smoothed and the
+ * minimum observed RTT estimates the number of requests queuing on the link or in the device,
+ * as in TCP Vegas. Once more than [MAX_QUEUED] requests are queuing, a larger window would only
+ * add latency, so the window shrinks by one request per window of acknowledged requests.
+ */
+internal class CongestionWindow(
+    private val maxSize: Int,
+    private val clock: () -> Long = System::nanoTime
+) {
+
+    /**
+     * A request sent within the window.
+     */
+    class Send internal constructor(internal val id: Long, internal val time: Long)
+
+    private var cwnd = 1.0
+    private var ssthresh = maxSize.toDouble()
+    private var inFlight = 0
+    private var sendCount = 0L
+    private var recoveryPoint = 0L
+    private var srtt = 0L
+    private var rttvar = 0L
+    private var minRtt = Long.MAX_VALUE
+
+    // Incremented on every change, wakes up the coroutines waiting in acquire.
+    private val changes = MutableStateFlow(0L)
+
+    init {
+        require(maxSize > 0) { "Window capacity must be positive: $maxSize" }
+    }
+
+    /**
+     * The current size of the window, in requests.
+     */
+    val size: Int
+        @Synchronized get() = min(max(cwnd.toInt(), 1), maxSize)
+
+    /**
+     * The smoothed round-trip time in milliseconds, or 0 if not measured yet.
+     */
+    val rtt: Long
+        @Synchronized get() = TimeUnit.NANOSECONDS.toMillis(srtt)
+
+    /**
+     * The round-trip time variation in milliseconds.
+     */
+    val rttVariance: Long
+        @Synchronized get() = TimeUnit.NANOSECONDS.toMillis(rttvar)
+
+    /**
+     * Suspends until there is room in the window and takes a slot.
+     */
+    suspend fun acquire() {
+        while (true) {
+            val version = changes.value
+            if (tryAcquire()) {
+                return
+            }
+            changes.first { it != version }
+        }
+    }
+
+    /**
+     * Records sending a request in an acquired slot.
+     */
+    @Synchronized
+    fun onSend(): Send = Send(sendCount++, clock())
+
+    /**
+     * Releases a slot without a congestion signal, e.g. if the request was not sent.
+     */
+    @Synchronized
+    fun release() {
+        inFlight--
+        changed()
+    }
+
+    /**
+     * Records the acknowledgement of the request and releases its slot.
+     */
+    @Synchronized
+    fun onAck(send: Send) {
+        val sample = clock() - send.time
+        if (srtt == 0L) {
+            srtt = sample
+            rttvar = sample / 2
+        } else {
+            rttvar = (3 * rttvar + abs(srtt - sample)) / 4
+            srtt = (7 * srtt + sample) / 8
+        }
+        minRtt = min(minRtt, sample)
+
+        // Delays shorter than the timer and scheduling noise do not indicate queuing.
+        val delay = srtt - minRtt
+        val queued = if (delay > MIN_QUEUING_DELAY) cwnd * delay / srtt else 0.0
+        if (queued > MAX_QUEUED) {
+            // Requests are queuing, leave slow start and shrink the window.
+            ssthresh = min(ssthresh, cwnd)
+            cwnd = max(cwnd - 1.0 / cwnd, 1.0)
+        } else if (cwnd < ssthresh) {
+            cwnd += 1.0
+        } else {
+            cwnd += 1.0 / cwnd
+        }
+        cwnd = min(cwnd, maxSize.toDouble())
+        release()
+    }
+
+    /**
+     * Records the loss of the request and releases its slot.
+     */
+    @Synchronized
+    fun onLoss(send: Send) {
+        if (send.id >= recoveryPoint) {
+            ssthresh = max(cwnd / 2, 1.0)
+            cwnd = ssthresh
+            recoveryPoint = sendCount
+        }
+        release()
+    }
+
+    /**
+     * Records the timeout of the request and releases its slot.
+     */
+    @Synchronized
+    fun onTimeout(send: Send) {
+        if (send.id >= recoveryPoint) {
+            ssthresh = max(cwnd / 2, 1.0)
+            cwnd = 1.0
+            recoveryPoint = sendCount
+        }
+        release()
+    }
+
+    @Synchronized
+    private fun tryAcquire(): Boolean {
+        if (inFlight < size) {
+            inFlight++
+            return true
+        }
+        return false
+    }
+
+    private fun changed() {
+        changes.value = changes.value + 1
+    }
+
+    private companion object {
+        const val MAX_QUEUED = 2.0
+        val MIN_QUEUING_DELAY = TimeUnit.MILLISECONDS.toNanos(1)
+    }
+}
@@ -0,0 +1,16 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.McuMgrTransport
+import io.runtime.mcumgr.managers.ImageManager
+
+internal class CoreDownloader(
+    private val imageManager: ImageManager,
+    windowCapacity: Int = 1
+) : Downloader(windowCapacity) {
+
+    override val transport: McuMgrTransport
+        get() = imageManager.transporter
+
+    override fun read(offset: Int, callback: (DownloadResult) -> Unit) =
+        imageManager.coreLoad(offset, callback.asMcuMgrCallback())
+}
@@ -4,6 +4,8 @@ package io.runtime.mcumgr.transfer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+
 import io.runtime.mcumgr.McuMgrErrorCode;
 import io.runtime.mcumgr.exception.McuMgrErrorException;
 import io.runtime.mcumgr.exception.McuMgrException;
@@ -15,13 +17,33 @@ public abstract class Download extends Transfer {
 
     @Nullable
     private DownloadCallback mCallback;
+    @Nullable
+    private SinkDownloadCallback mSinkCallback;
+    /** The sink, or a {@link ByteArraySink} if the data is returned as an array. */
+    @NotNull
+    private DownloadSink mSink;
+    private int mLength = -1;
 
     protected Download() {
-        this(null);
+        this((DownloadCallback) null);
     }
 
     protected Download(@Nullable DownloadCallback callback) {
         mCallback = callback;
+        mSink = new ByteArraySink();
+    }
+
+    /**
+     * Creates a download writing each received chunk to the given sink. The download starts
+     * from the current offset of the sink.
+     *
+     * @param sink     the sink.
+     * @param callback the callback.
+     */
+    protected Download(@NotNull DownloadSink sink, @Nullable SinkDownloadCallback callback) {
+        super(sink.getOffset());
+        mSink = sink;
+        mSinkCallback = callback;
     }
 
     /**
@@ -35,36 +57,80 @@ public abstract class Download extends Transfer {
 
     @Override
     public McuMgrResponse send(int offset) throws McuMgrException {
-        DownloadResponse response = read(offset);
+        DownloadSink sink = mSink;
+        // The length is only sent in the response to the read from offset 0. When resuming,
+        // the first chunk is requested again for the length and the data already in the sink
+        // is skipped.
+        boolean first = mLength < 0;
+        DownloadResponse response = read(first ? 0 : offset);
         // Check for a McuManager error.
         if (response.rc != 0) {
             throw new McuMgrErrorException(McuMgrErrorCode.valueOf(response.rc));
         }
 
-        // The first packet contains the file length.
-        if (response.off == 0) {
-            mData = new byte[response.len];
-        }
-
         // Validate response body
         if (response.data == null) {
             throw new McuMgrException("Download response data is null.");
         }
-        if (mData == null) {
-            throw new McuMgrException("Download data is null.");
+        int length = first ? response.len : mLength;
+        int skip = sink.getOffset() - response.off;
+        if (skip < 0 || response.off + response.data.length > length) {
+            throw new McuMgrException("Download response out of bounds.");
         }
 
-        // Copy received mData to the buffer.
-        System.arraycopy(response.data, 0, mData, response.off, response.data.length);
-        mOffset = response.off + response.data.length;
-
+        try {
+            if (first) {
+                sink.start(length);
+                mLength = length;
+            }
+            if (skip < response.data.length) {
+                sink.write(response.data, skip, response.data.length - skip);
+            }
+            mOffset = sink.getOffset();
+            if (mOffset == mLength) {
+                sink.commit();
+            }
+        } catch (IOException e) {
+            throw new McuMgrException("Failed to write download data.", e);
+        }
+        if (response.data.length == 0 && mOffset < mLength) {
+            throw new McuMgrException("Download response data is empty.");
+        }
         return response;
     }
 
     @Override
     public void reset() {
-        mOffset = 0;
-        mData = null;
+        mLength = -1;
+        if (mSink instanceof ByteArraySink) {
+            // A download into memory starts over.
+            mSink = new ByteArraySink();
+            mOffset = 0;
+            mData = null;
+            return;
+        }
+        // Data written to the sink is kept, the download continues from where it stopped.
+        mOffset = mSink.getOffset();
+    }
+
+    @Override
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Commits the data written to the sink, if any.
+     *
+     * @return The error, or null if the data has been committed.
+     */
+    @Nullable
+    private McuMgrException commit() {
+        try {
+            mSink.commit();
+        } catch (IOException e) {
+            return new McuMgrException("Failed to commit download data.", e);
+        }
+        return null;
     }
 
     @Override
@@ -72,29 +138,51 @@ public abstract class Download extends Transfer {
         if (mCallback != null) {
             mCallback.onDownloadProgressChanged(current, total, timestamp);
         }
+        if (mSinkCallback != null) {
+            mSinkCallback.onDownloadProgressChanged(current, total, timestamp);
+        }
     }
 
     @Override
     public void onFailed(@NotNull McuMgrException e) {
+        commit();
         if (mCallback != null) {
             mCallback.onDownloadFailed(e);
         }
+        if (mSinkCallback != null) {
+            mSinkCallback.onDownloadFailed(e);
+        }
     }
 
     @Override
     public void onCompleted() {
+        if (mSink instanceof ByteArraySink) {
+            mData = ((ByteArraySink) mSink).getData();
+        }
         if (mCallback != null) {
             if (mData == null) {
                 throw new NullPointerException("Transfer data cannot be null.");
             }
             mCallback.onDownloadCompleted(mData);
         }
+        McuMgrException error = commit();
+        if (mSinkCallback != null) {
+            if (error != null) {
+                mSinkCallback.onDownloadFailed(error);
+            } else {
+                mSinkCallback.onDownloadCompleted();
+            }
+        }
     }
 
     @Override
     public void onCanceled() {
+        commit();
         if (mCallback != null) {
             mCallback.onDownloadCanceled();
         }
+        if (mSinkCallback != null) {
+            mSinkCallback.onDownloadCanceled();
+        }
     }
 }
@@ -0,0 +1,32 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.McuMgrCallback
+import io.runtime.mcumgr.McuMgrErrorCode
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.response.DownloadResponse
+
+internal sealed class DownloadResult {
+
+    data class Response(
+        val body: DownloadResponse,
+        val code: McuMgrErrorCode
+    ) : DownloadResult()
+
+    data class Failure(
+        val throwable: Throwable
+    ) : DownloadResult()
+}
+
+/**
+ * Adapts the result callback to a [McuMgrCallback] for a download response type.
+ */
+internal fun <T : DownloadResponse> ((DownloadResult) -> Unit).asMcuMgrCallback(): McuMgrCallback<T> =
+    object : McuMgrCallback<T> {
+        override fun onResponse(response: T) {
+            this@asMcuMgrCallback(DownloadResult.Response(response, response.returnCode))
+        }
+
+        override fun onError(error: McuMgrException) {
+            this@asMcuMgrCallback(DownloadResult.Failure(error))
+        }
+    }
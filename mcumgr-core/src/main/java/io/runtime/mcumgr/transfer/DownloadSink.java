@@ -0,0 +1,296 @@
+package io.runtime.mcumgr.transfer;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The destination of a download.
+ * <p>
+ * Downloads write each chunk to the sink as soon as it can be appended, so the data does not have
+ * to be held in memory as a whole. Written data is committed, i.e. flushed to the underlying
+ * stream or storage, every {@link #getCommitInterval()} bytes and when the download completes,
+ * fails or is canceled. The committed offset is the checkpoint from which an interrupted
+ * download may be resumed: a download started with a sink at a non-zero offset requests only the
+ * remaining part of the data.
+ * <p>
+ * Sinks are not closed by the download.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public abstract class DownloadSink implements Closeable {
+
+    /** The default number of bytes written between commits. */
+    public final static int DEFAULT_COMMIT_INTERVAL = 64 * 1024;
+
+    private int mOffset;
+    private int mCommittedOffset;
+    private int mCommitInterval = DEFAULT_COMMIT_INTERVAL;
+
+    /**
+     * Creates a sink which already contains the given number of bytes of the data.
+     *
+     * @param offset the offset from which the download starts.
+     */
+    protected DownloadSink(int offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative: " + offset);
+        }
+        mOffset = offset;
+        mCommittedOffset = offset;
+    }
+
+    /**
+     * Called when the total length of the data is known, before the first chunk is written.
+     *
+     * @param length the total length of the data.
+     * @throws IOException if the sink cannot receive the data.
+     */
+    protected void onStart(int length) throws IOException {
+        // Nothing to do by default
+    }
+
+    /**
+     * Appends the data to the sink.
+     *
+     * @param data   the data.
+     * @param offset the offset in the data array.
+     * @param length the number of bytes to write.
+     * @throws IOException if the data could not be written.
+     */
+    protected abstract void onWrite(@NotNull byte[] data, int offset, int length)
+            throws IOException;
+
+    /**
+     * Commits the data written so far to the underlying stream or storage.
+     *
+     * @throws IOException if the data could not be committed.
+     */
+    protected void onCommit() throws IOException {
+        // Nothing to do by default
+    }
+
+    /**
+     * Releases resources held by the sink. Closing a sink created by {@link #wrap} does not close
+     * the wrapped stream or channel.
+     *
+     * @throws IOException if the underlying resource could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        // Nothing to close by default
+    }
+
+    /**
+     * Returns the number of bytes of the data written to the sink, including the data present
+     * when the sink was created.
+     *
+     * @return The offset of the next byte.
+     */
+    public synchronized int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Returns the number of bytes of the data committed to the underlying stream or storage.
+     * An interrupted download may be resumed from this offset.
+     *
+     * @return The committed offset.
+     */
+    public synchronized int getCommittedOffset() {
+        return mCommittedOffset;
+    }
+
+    /**
+     * Returns the number of bytes written between commits.
+     *
+     * @return The commit interval.
+     */
+    public synchronized int getCommitInterval() {
+        return mCommitInterval;
+    }
+
+    /**
+     * Sets the number of bytes written between commits. Set to 1 to commit after every chunk.
+     *
+     * @param commitInterval the commit interval, in bytes.
+     */
+    public synchronized void setCommitInterval(int commitInterval) {
+        if (commitInterval < 1) {
+            throw new IllegalArgumentException("Commit interval must be positive: " + commitInterval);
+        }
+        mCommitInterval = commitInterval;
+    }
+
+    synchronized void start(int length) throws IOException {
+        if (length < mOffset) {
+            throw new IOException("Data length " + length + " is less than the sink offset " + mOffset);
+        }
+        onStart(length);
+    }
+
+    synchronized void write(@NotNull byte[] data, int offset, int length) throws IOException {
+        onWrite(data, offset, length);
+        mOffset += length;
+        if (mOffset - mCommittedOffset >= mCommitInterval) {
+            commit();
+        }
+    }
+
+    synchronized void commit() throws IOException {
+        if (mCommittedOffset != mOffset) {
+            onCommit();
+            mCommittedOffset = mOffset;
+        }
+    }
+
+    /**
+     * Creates a sink writing to the given stream. Data is committed by flushing the stream.
+     *
+     * @param out the output stream.
+     * @return The sink.
+     */
+    @NotNull
+    public static DownloadSink wrap(@NotNull OutputStream out) {
+        return wrap(out, 0);
+    }
+
+    /**
+     * Creates a sink writing to the given stream, which already contains the given number of
+     * bytes of the data. Data is committed by flushing the stream.
+     *
+     * @param out    the output stream.
+     * @param offset the offset from which the download resumes.
+     * @return The sink.
+     */
+    @NotNull
+    public static DownloadSink wrap(@NotNull final OutputStream out, int offset) {
+        return new DownloadSink(offset) {
+            @Override
+            protected void onWrite(@NotNull byte[] data, int offset, int length)
+                    throws IOException {
+                out.write(data, offset, length);
+            }
+
+            @Override
+            protected void onCommit() throws IOException {
+                out.flush();
+            }
+        };
+    }
+
+    /**
+     * Creates a sink writing to the given channel.
+     *
+     * @param channel the channel.
+     * @return The sink.
+     * @see #wrap(WritableByteChannel, int)
+     */
+    @NotNull
+    public static DownloadSink wrap(@NotNull WritableByteChannel channel) {
+        return wrap(channel, 0);
+    }
+
+    /**
+     * Creates a sink writing to the given channel, which already contains the given number of
+     * bytes of the data. If the channel is a {@link FileChannel}, data is committed by forcing it
+     * to the storage device.
+     *
+     * @param channel the channel.
+     * @param offset  the offset from which the download resumes.
+     * @return The sink.
+     */
+    @NotNull
+    public static DownloadSink wrap(@NotNull WritableByteChannel channel, int offset) {
+        return new ChannelSink(channel, offset, false);
+    }
+
+    /**
+     * Creates a sink writing to the given file. An existing file is truncated.
+     *
+     * @param file the file.
+     * @return The sink, which must be closed when no longer needed.
+     * @throws IOException if the file could not be opened.
+     */
+    @NotNull
+    public static DownloadSink create(@NotNull File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            channel.truncate(0);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return open(channel);
+    }
+
+    /**
+     * Creates a sink appending to the given file. The content of an existing file is taken as
+     * the beginning of the data, so a download into this sink resumes where a previous download
+     * into the same file has been interrupted.
+     *
+     * @param file the file.
+     * @return The sink, which must be closed when no longer needed.
+     * @throws IOException if the file could not be opened, or if the file is larger than 2 GB.
+     */
+    @NotNull
+    public static DownloadSink append(@NotNull File file) throws IOException {
+        return open(new RandomAccessFile(file, "rw").getChannel());
+    }
+
+    @NotNull
+    private static DownloadSink open(@NotNull final FileChannel channel) throws IOException {
+        long size;
+        try {
+            size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + size);
+            }
+            channel.position(size);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new ChannelSink(channel, (int) size, true);
+    }
+
+    private static class ChannelSink extends DownloadSink {
+        @NotNull
+        private final WritableByteChannel mChannel;
+        private final boolean mOwnsChannel;
+
+        ChannelSink(@NotNull WritableByteChannel channel, int offset, boolean ownsChannel) {
+            super(offset);
+            mChannel = channel;
+            mOwnsChannel = ownsChannel;
+        }
+
+        @Override
+        protected void onWrite(@NotNull byte[] data, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+
+        @Override
+        protected void onCommit() throws IOException {
+            if (mChannel instanceof FileChannel) {
+                ((FileChannel) mChannel).force(false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mOwnsChannel) {
+                mChannel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.McuMgrTransferProfile
+import io.runtime.mcumgr.McuMgrTransport
+import io.runtime.mcumgr.exception.McuMgrErrorException
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.response.DownloadResponse
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineExceptionHandler
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.Channel.Factory.UNLIMITED
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.launchIn
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.selects.select
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.util.TreeMap
+import kotlin.coroutines.resume
+import kotlin.math.max
+import kotlin.math.min
+
+data class DownloadProgress(val offset: Int, val size: Int)
+
+/**
+ * A range of the downloaded data, requested with a single read.
+ */
+private data class Range(val start: Int, val end: Int)
+
+/**
+ * Downloads data using up to [windowCapacity] read requests in flight at a time.
+ *
+ * The first read, at offset 0, returns the total length of the data and the amount of data the
+ * device sends per response. Subsequent reads are issued at offsets predicted from that amount
+ * and the responses, which may arrive in any order, are copied directly into the target buffer.
+ * If the device returns less data than predicted, the stride is reduced for the following reads
+ * and the missing part is requested again.
+ */
+abstract class Downloader(
+    private val windowCapacity: Int
+) {
+
+    private val log = LoggerFactory.getLogger("Downloader")
+
+    private val _progress: MutableStateFlow<DownloadProgress> =
+        MutableStateFlow(DownloadProgress(0, 0))
+
+    val progress: Flow<DownloadProgress> = _progress
+
+    /**
+     * The latest progress, read without collecting [progress].
+     */
+    internal val currentProgress: DownloadProgress
+        get() = _progress.value
+
+    private val paused: MutableStateFlow<Boolean> = MutableStateFlow(false)
+
+    /**
+     * Pauses the download. Requests already in flight are completed, but no new reads are sent
+     * until [resume] is called.
+     */
+    fun pause() {
+        paused.value = true
+    }
+
+    /**
+     * Resumes a paused download.
+     */
+    fun resume() {
+        paused.value = false
+    }
+
+    /**
+     * The transport the reads are sent with. If it has a [McuMgrTransferProfile], it is notified
+     * when the download starts and finishes.
+     */
+    internal open val transport: McuMgrTransport? = null
+
+    @Throws
+    internal abstract fun read(
+        offset: Int,
+        callback: (DownloadResult) -> Unit
+    )
+
+    /**
+     * Downloads the data into memory.
+     */
+    @Throws
+    suspend fun download(): ByteArray {
+        val sink = ByteArraySink()
+        download(sink)
+        return sink.data
+    }
+
+    /**
+     * Downloads the data into the given sink, starting from the current offset of the sink.
+     *
+     * Chunks are written to the sink as soon as all preceding data has been received. Chunks
+     * received out of order are held until then. The data written to the sink is committed
+     * when the download completes, fails or is cancelled.
+     */
+    @Throws
+    suspend fun download(sink: DownloadSink) {
+        val profile = transport as? McuMgrTransferProfile
+        profile?.onTransferStarted()
+        try {
+            downloadInto(sink)
+            sinkOperation { sink.commit() }
+        } catch (t: Throwable) {
+            try {
+                sink.commit()
+            } catch (e: IOException) {
+                log.error("downloader failed to commit", e)
+            }
+            throw t
+        } finally {
+            profile?.onTransferFinished()
+        }
+    }
+
+    private suspend fun downloadInto(sink: DownloadSink) = coroutineScope {
+
+        // The first response determines the length and the initial stride. The length is only
+        // sent in the response to the read from offset 0, so it is requested even when resuming.
+        val first = readWithRetry(0)
+        val length = first.len
+        sinkOperation { sink.start(length) }
+
+        val received = RangeSet()
+        if (sink.offset > 0) {
+            received.add(0, sink.offset)
+        }
+        // Chunks received ahead of the sink offset, by their offset.
+        val pending = TreeMap<Int, ByteArray>()
+        var stride = first.data.size
+        accept(first.data, first.off, length, sink, received, pending)
+
+        if (received.size == length) {
+            log.info("downloader complete!")
+            return@coroutineScope
+        }
+        if (stride == 0) {
+            throw McuMgrException("Download response data is empty.")
+        }
+
+        // Tracks the number of failures experienced for any given range,
+        // identified by the offset.
+        val failureDirectory = mutableMapOf<Int, Int>()
+
+        // Guards the state shared with the result handlers
+        val mutex = Mutex()
+
+        // Bounds number of in-progress requests within window capacity
+        val window = Semaphore(windowCapacity)
+
+        val gaps: Channel<Range> = Channel(UNLIMITED)
+        val done = CompletableDeferred<Unit>()
+        var next = received.size
+
+        while (true) {
+
+            // Suspend while the download is paused.
+            if (paused.value) {
+                log.info("downloader paused")
+                paused.first { !it }
+                log.info("downloader resumed")
+            }
+
+            window.acquire()
+
+            // Select the next range to read, prioritizing gaps.
+            val range = gaps.poll() ?: mutex.withLock {
+                if (next < length) {
+                    Range(next, min(next + stride, length)).also { next = it.end }
+                } else {
+                    null
+                }
+            } ?: select<Range?> {
+                gaps.onReceive { it }
+                done.onAwait { null }
+            }
+            if (range == null) {
+                window.release()
+                break
+            }
+
+            log.info("downloader read: range=$range")
+
+            launch {
+                val result = readSuspend(range.start)
+                log.info("downloader result: range=$range, result=$result")
+
+                mutex.withLock {
+                    val failure = when (result) {
+                        is DownloadResult.Response -> {
+                            val response = result.body
+                            when {
+                                response.rc != 0 -> throw McuMgrErrorException(result.code)
+                                response.data == null || response.data.isEmpty() ->
+                                    McuMgrException("Download response data is empty.")
+                                response.off < 0 ||
+                                        response.off + response.data.size > length ->
+                                    McuMgrException("Download response out of bounds.")
+                                else -> {
+                                    accept(response.data, response.off, length, sink, received, pending)
+                                    val size = response.data.size
+                                    if (response.off + size < length && size != stride) {
+                                        // Adapt the stride for the reads not yet sent.
+                                        log.info("downloader stride: $stride -> $size")
+                                        stride = size
+                                    }
+                                    null
+                                }
+                            }
+                        }
+                        is DownloadResult.Failure -> result.throwable
+                    }
+
+                    if (failure != null) {
+                        val fails = (failureDirectory[range.start] ?: 0) + 1
+                        failureDirectory[range.start] = fails
+                        if (fails >= MAX_CHUNK_FAILURES) {
+                            throw failure
+                        }
+                        gaps.send(range)
+                    } else {
+                        // Request the part of the range which has not been received.
+                        val missing = received.firstMissing(range.start, range.end)
+                        if (missing != null) {
+                            gaps.send(Range(missing, range.end))
+                        }
+                    }
+
+                    if (received.size == length) {
+                        log.info("downloader complete!")
+                        done.complete(Unit)
+                    }
+                }
+
+                // Release the semaphore
+                window.release()
+            }
+        }
+    }
+
+    private suspend fun readWithRetry(offset: Int): DownloadResponse {
+        var fails = 0
+        while (true) {
+            val failure = when (val result = readSuspend(offset)) {
+                is DownloadResult.Response -> {
+                    val response = result.body
+                    when {
+                        response.rc != 0 -> throw McuMgrErrorException(result.code)
+                        response.data == null ->
+                            McuMgrException("Download response data is null.")
+                        response.len < response.data.size ->
+                            McuMgrException("Download response length is invalid.")
+                        else -> return response
+                    }
+                }
+                is DownloadResult.Failure -> result.throwable
+            }
+            if (++fails >= MAX_CHUNK_FAILURES) {
+                throw failure
+            }
+        }
+    }
+
+    private suspend fun readSuspend(offset: Int): DownloadResult =
+        suspendCancellableCoroutine { continuation ->
+            read(offset) { result ->
+                if (continuation.isActive) {
+                    continuation.resume(result)
+                }
+            }
+        }
+
+    /**
+     * Records the received chunk and writes all data which has become contiguous to the sink.
+     */
+    private fun accept(
+        chunk: ByteArray,
+        offset: Int,
+        length: Int,
+        sink: DownloadSink,
+        received: RangeSet,
+        pending: TreeMap<Int, ByteArray>
+    ) {
+        received.add(offset, offset + chunk.size)
+        if (offset + chunk.size > sink.offset) {
+            val previous = pending[offset]
+            if (previous == null || previous.size < chunk.size) {
+                pending[offset] = chunk
+            }
+        }
+        while (true) {
+            val entry = pending.firstEntry()?.takeIf { it.key <= sink.offset } ?: break
+            pending.remove(entry.key)
+            val skip = sink.offset - entry.key
+            val data = entry.value
+            if (skip < data.size) {
+                sinkOperation { sink.write(data, skip, data.size - skip) }
+            }
+        }
+        _progress.value = DownloadProgress(received.size, length)
+    }
+
+    private inline fun <T> sinkOperation(operation: () -> T): T = try {
+        operation()
+    } catch (e: IOException) {
+        throw McuMgrException("Failed to write download data.", e)
+    }
+}
+
+/**
+ * Starts the download in the background, reporting to the given callback. The returned
+ * controller pauses, resumes and cancels the download.
+ */
+internal fun Downloader.windowDownload(callback: DownloadCallback): TransferController =
+    launchDownload(
+        onProgress = callback::onDownloadProgressChanged,
+        onFailed = callback::onDownloadFailed,
+        onCanceled = callback::onDownloadCanceled,
+        onCompleted = callback::onDownloadCompleted,
+        download = { download() }
+    )
+
+/**
+ * Starts the download into the given sink in the background, reporting to the given callback.
+ * The returned controller pauses, resumes and cancels the download.
+ */
+internal fun Downloader.windowDownload(
+    sink: DownloadSink,
+    callback: SinkDownloadCallback
+): TransferController =
+    launchDownload(
+        onProgress = callback::onDownloadProgressChanged,
+        onFailed = callback::onDownloadFailed,
+        onCanceled = callback::onDownloadCanceled,
+        onCompleted = { callback.onDownloadCompleted() },
+        download = { download(sink) }
+    )
+
+private fun <T> Downloader.launchDownload(
+    onProgress: (Int, Int, Long) -> Unit,
+    onFailed: (McuMgrException) -> Unit,
+    onCanceled: () -> Unit,
+    onCompleted: (T) -> Unit,
+    download: suspend () -> T
+): TransferController {
+    val log = LoggerFactory.getLogger("Downloader")
+    val downloader = this
+
+    val job = GlobalScope.launch(CoroutineExceptionHandler { _, t ->
+        log.error("window download failed", t)
+    }) {
+        val progress = downloader.progress.onEach { progress ->
+            if (progress.size > 0) {
+                onProgress(progress.offset, progress.size, System.currentTimeMillis())
+            }
+        }.launchIn(this)
+
+        val result = download()
+        progress.cancel()
+        onCompleted(result)
+    }
+
+    job.invokeOnCompletion { throwable ->
+        when (throwable) {
+            null -> Unit
+            is CancellationException -> onCanceled()
+            is McuMgrException -> onFailed(throwable)
+            else -> onFailed(McuMgrException(throwable))
+        }
+    }
+
+    return object : TransferController {
+        override fun pause() = downloader.pause()
+        override fun resume() = downloader.resume()
+        override fun cancel() {
+            job.cancel()
+        }
+    }
+}
+
+/**
+ * Set of non-overlapping, half-open ranges of received bytes.
+ */
+private class RangeSet {
+
+    private val ranges = TreeMap<Int, Int>()
+
+    /**
+     * The total number of bytes in all ranges.
+     */
+    var size: Int = 0
+        private set
+
+    fun add(start: Int, end: Int) {
+        var s = start
+        var e = end
+        ranges.floorEntry(s)?.takeIf { it.value >= s }?.let {
+            s = it.key
+            e = max(e, it.value)
+            size -= it.value - it.key
+            ranges.remove(it.key)
+        }
+        while (true) {
+            val next = ranges.ceilingEntry(s)?.takeIf { it.key <= e } ?: break
+            e = max(e, next.value)
+            size -= next.value - next.key
+            ranges.remove(next.key)
+        }
+        ranges[s] = e
+        size += e - s
+    }
+
+    /**
+     * Returns the first offset within the given range which has not been received, or null if
+     * the whole range has been received.
+     */
+    fun firstMissing(start: Int, end: Int): Int? {
+        val floor = ranges.floorEntry(start)
+        val missing = if (floor != null && floor.value > start) floor.value else start
+        return if (missing < end) missing else null
+    }
+}
@@ -0,0 +1,17 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.McuMgrTransport
+import io.runtime.mcumgr.managers.FsManager
+
+internal class FileDownloader(
+    private val name: String,
+    private val fsManager: FsManager,
+    windowCapacity: Int = 1
+) : Downloader(windowCapacity) {
+
+    override val transport: McuMgrTransport
+        get() = fsManager.transporter
+
+    override fun read(offset: Int, callback: (DownloadResult) -> Unit) =
+        fsManager.download(name, offset, callback.asMcuMgrCallback())
+}
@@ -0,0 +1,71 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.McuMgrCallback
+import io.runtime.mcumgr.McuMgrPacketBuilder
+import io.runtime.mcumgr.McuMgrTransport
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.managers.FsManager
+import io.runtime.mcumgr.response.UploadResponse
+
+private const val OP_WRITE = 2
+private const val ID_FILE = 0
+
+internal class FileUploader(
+    private val name: String,
+    private val fileSource: UploadSource,
+    private val fsManager: FsManager,
+    windowCapacity: Int = 1
+) : Uploader(
+    fileSource,
+    windowCapacity,
+    fsManager.mtu,
+    fsManager.scheme
+) {
+
+    override val transport: McuMgrTransport
+        get() = fsManager.transporter
+
+    // The name is sent in every chunk.
+    override fun getAdditionalSize(offset: Int): Int =
+        cborStringLength("name") + cborStringLength(name)
+
+    override fun write(
+        source: UploadSource,
+        offset: Int,
+        length: Int,
+        callback: (UploadResult) -> Unit
+    ) {
+        val packet = try {
+            McuMgrPacketBuilder.obtain(fsManager.scheme)
+                .begin(OP_WRITE, 0, fsManager.groupId, 0, ID_FILE)
+                .put("name", name)
+                .put("data", source, offset, length)
+                .put("off", offset)
+                .apply {
+                    if (offset == 0) {
+                        put("len", fileSource.size())
+                    }
+                }
+                .build()
+        } catch (e: McuMgrException) {
+            callback(UploadResult.Failure(e))
+            return
+        }
+        fsManager.sendUploadChunk(packet, callback)
+    }
+}
+
+private fun FsManager.sendUploadChunk(
+    packet: ByteArray,
+    callback: (UploadResult) -> Unit
+) = send(packet, UploadResponse::class.java,
+    object : McuMgrCallback<UploadResponse> {
+        override fun onResponse(response: UploadResponse) {
+            callback(UploadResult.Response(response, response.returnCode))
+        }
+
+        override fun onError(error: McuMgrException) {
+            callback(UploadResult.Failure(error))
+        }
+    }
+)
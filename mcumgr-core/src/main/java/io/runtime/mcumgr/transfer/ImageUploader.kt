@@ -1,102 +1,87 @@
 package io.runtime.mcumgr.transfer
 
 import io.runtime.mcumgr.McuMgrCallback
-import io.runtime.mcumgr.exception.InsufficientMtuException
+import io.runtime.mcumgr.McuMgrPacketBuilder
+import io.runtime.mcumgr.McuMgrTransport
 import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.image.McuMgrImage
 import io.runtime.mcumgr.managers.ImageManager
 import io.runtime.mcumgr.response.UploadResponse
-import kotlinx.coroutines.CancellationException
-import kotlinx.coroutines.CoroutineExceptionHandler
-import kotlinx.coroutines.GlobalScope
-import kotlinx.coroutines.flow.launchIn
-import kotlinx.coroutines.flow.onEach
-import kotlinx.coroutines.launch
-import org.slf4j.LoggerFactory
-import java.lang.IllegalStateException
 
 private const val OP_WRITE = 2
 private const val ID_UPLOAD = 1
+private const val TRUNCATED_HASH_LEN = 3
 
 fun ImageManager.windowUpload(
     data: ByteArray,
     windowCapacity: Int,
     callback: UploadCallback
-): TransferController {
+): TransferController = windowUpload(UploadSource.wrap(data), windowCapacity, callback)
 
-    val log = LoggerFactory.getLogger("ImageUploader")
-    val uploader = ImageUploader(data, this, windowCapacity)
-
-    val job = GlobalScope.launch(CoroutineExceptionHandler { _, t ->
-        log.error("window image upload failed", t)
-    }) {
-        val progress = uploader.progress.onEach { progress ->
-            callback.onUploadProgressChanged(
-                progress.offset,
-                progress.size,
-                System.currentTimeMillis()
-            )
-        }.launchIn(this)
-
-        uploader.uploadCatchMtu()
-        progress.cancel()
-    }
-
-    job.invokeOnCompletion { throwable ->
-        throwable?.printStackTrace()
-        when (throwable) {
-            null -> callback.onUploadCompleted()
-            is CancellationException -> callback.onUploadCanceled()
-            is McuMgrException -> callback.onUploadFailed(throwable)
-            else -> callback.onUploadFailed(McuMgrException(throwable))
-        }
-    }
-
-    return object : TransferController {
-        override fun pause() = throw IllegalStateException("cannot pause window upload")
-        override fun resume() = throw IllegalStateException("cannot resume window upload")
-        override fun cancel() {
-            job.cancel()
-        }
-    }
-}
-
-// Catches an mtu exception, sets the new mtu and restarts the upload.
-private suspend fun Uploader.uploadCatchMtu() {
-    try {
-        upload()
-    } catch (e: InsufficientMtuException) {
-        mtu = e.mtu
-        upload()
-    }
-}
+fun ImageManager.windowUpload(
+    source: UploadSource,
+    windowCapacity: Int,
+    callback: UploadCallback
+): TransferController = ImageUploader(source, this, windowCapacity).windowUpload(callback)
 
 internal class ImageUploader(
-    private val imageData: ByteArray,
+    private val imageSource: UploadSource,
     private val imageManager: ImageManager,
     windowCapacity: Int = 1
 ) : Uploader(
-    imageData,
+    imageSource,
     windowCapacity,
     imageManager.mtu,
     imageManager.scheme
 ) {
 
-    override fun write(data: ByteArray, offset: Int, callback: (UploadResult) -> Unit) {
-        val requestMap: MutableMap<String, Any> = mutableMapOf(
-            "data" to data,
-            "off" to offset
-        )
-        if (offset == 0) {
-            requestMap["len"] = imageData.size
+    /**
+     * The SHA-256 of the image, read from the source once when first needed.
+     */
+    private val sha: ByteArray by lazy { McuMgrImage.getSha256(imageSource) }
+
+    // Size of the truncated hash sent with the first chunk
+    override fun getAdditionalSize(offset: Int): Int = if (offset == 0) {
+        cborStringLength("sha") + cborUIntLength(TRUNCATED_HASH_LEN) + TRUNCATED_HASH_LEN
+    } else {
+        0
+    }
+
+    override val transport: McuMgrTransport
+        get() = imageManager.transporter
+
+    override fun write(
+        source: UploadSource,
+        offset: Int,
+        length: Int,
+        callback: (UploadResult) -> Unit
+    ) {
+        val packet = try {
+            McuMgrPacketBuilder.obtain(imageManager.scheme)
+                .begin(OP_WRITE, 0, imageManager.groupId, 0, ID_UPLOAD)
+                .put("data", source, offset, length)
+                .put("off", offset)
+                .apply {
+                    if (offset == 0) {
+                        put("len", imageSource.size())
+                        // The device recognizes an interrupted upload of the same image by the
+                        // hash and responds with the offset to continue from.
+                        put("sha", sha, 0, TRUNCATED_HASH_LEN)
+                    }
+                }
+                .build()
+        } catch (e: McuMgrException) {
+            callback(UploadResult.Failure(e))
+            return
         }
-        imageManager.uploadAsync(requestMap, callback)
+        imageManager.sendUploadChunk(packet, callback)
     }
 }
 
-private fun ImageManager.uploadAsync(
-    requestMap: Map<String, Any>,
+private fun ImageManager.sendUploadChunk(
+    packet: ByteArray,
     callback: (UploadResult) -> Unit
-) = send(OP_WRITE, ID_UPLOAD, requestMap, UploadResponse::class.java,
+) = send(packet, UploadResponse::class.java,
     object : McuMgrCallback<UploadResponse> {
         override fun onResponse(response: UploadResponse) {
             callback(UploadResult.Response(response, response.returnCode))
@@ -0,0 +1,162 @@
+package io.runtime.mcumgr.transfer;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one at a time, in order, on a shared executor. While tasks are queued, they run
+ * one after another on the same thread of the shared executor, so the executor can bound the
+ * number of threads used by many serial executors.
+ * <p>
+ * The queued tasks are submitted to the shared executor as a {@link Future}. If the shared
+ * executor has been shut down, or the future is cancelled before it runs, e.g. after being
+ * returned by {@link java.util.concurrent.ExecutorService#shutdownNow()}, the queued tasks are
+ * dropped and each {@link Task} among them is told so.
+ */
+final class SerialExecutor implements Executor {
+
+    /**
+     * A task which is told when it is dropped without having run.
+     */
+    interface Task extends Runnable {
+
+        /**
+         * Called instead of {@link #run()} when the task is dropped.
+         */
+        void onDropped();
+    }
+
+    private final Executor mExecutor;
+
+    // Guarded by this
+    private final Queue<Runnable> mTasks = new ArrayDeque<>();
+    private boolean mRunning;
+
+    /**
+     * Runs the queued tasks until the queue is empty. A new drain is submitted each time the
+     * queue starts running.
+     */
+    private final class Drain extends FutureTask<Void> {
+
+        Drain() {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, null);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                drop();
+                return;
+            }
+            try {
+                get();
+            } catch (ExecutionException e) {
+                // Report the failed task as the thread would, had it not been wrapped
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    SerialExecutor(@NotNull Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Queues the task.
+     *
+     * @throws RejectedExecutionException if no task was running and the shared executor
+     *                                    rejected the task.
+     */
+    @Override
+    public void execute(@NotNull Runnable task) {
+        synchronized (this) {
+            mTasks.add(task);
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+        }
+        try {
+            mExecutor.execute(new Drain());
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                mTasks.remove(task);
+            }
+            // Tasks queued meanwhile are dropped, the caller is told about its own task
+            drop();
+            throw e;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = mTasks.poll();
+                if (task == null) {
+                    mRunning = false;
+                    return;
+                }
+            }
+            boolean completed = false;
+            try {
+                task.run();
+                completed = true;
+            } finally {
+                if (!completed) {
+                    // Continue with the remaining tasks on another thread
+                    restart();
+                }
+            }
+        }
+    }
+
+    private void restart() {
+        synchronized (this) {
+            if (mTasks.isEmpty()) {
+                mRunning = false;
+                return;
+            }
+        }
+        try {
+            mExecutor.execute(new Drain());
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down
+            drop();
+        }
+    }
+
+    /**
+     * Removes the queued tasks, telling them they have been dropped.
+     */
+    private void drop() {
+        List<Runnable> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(mTasks);
+            mTasks.clear();
+            mRunning = false;
+        }
+        for (Runnable task : dropped) {
+            if (task instanceof Task) {
+                ((Task) task).onDropped();
+            }
+        }
+    }
+}
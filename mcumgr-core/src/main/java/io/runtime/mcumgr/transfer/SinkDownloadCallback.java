@@ -0,0 +1,40 @@
+package io.runtime.mcumgr.transfer;
+
+import org.jetbrains.annotations.NotNull;
+
+import io.runtime.mcumgr.exception.McuMgrException;
+
+/**
+ * Receives callbacks from a download into a {@link DownloadSink}.
+ * <p>
+ * When the download fails or is canceled, the data received so far has been committed to the
+ * sink and the download may be resumed from {@link DownloadSink#getCommittedOffset()}.
+ */
+public interface SinkDownloadCallback {
+    /**
+     * Called when a response has been received successfully.
+     *
+     * @param current   the number of bytes downloaded so far, including the resumed part.
+     * @param total     the total size of the download in bytes.
+     * @param timestamp the timestamp of when the response was received.
+     */
+    void onDownloadProgressChanged(int current, int total, long timestamp);
+
+    /**
+     * Called when the download has failed.
+     *
+     * @param error the error. See the cause for more info.
+     */
+    void onDownloadFailed(@NotNull McuMgrException error);
+
+    /**
+     * Called when the download has been canceled.
+     */
+    void onDownloadCanceled();
+
+    /**
+     * Called when the download has finished successfully and all data has been committed to
+     * the sink.
+     */
+    void onDownloadCompleted();
+}
@@ -68,6 +68,15 @@ public abstract class Transfer implements TransferCallback {
         return mData;
     }
 
+    /**
+     * Returns the total length of the data, or -1 if it is not known yet.
+     *
+     * @return the length of the data.
+     */
+    public int getLength() {
+        return mData != null ? mData.length : -1;
+    }
+
     /**
      * Returns the current offset.
      *
@@ -81,6 +90,7 @@ public abstract class Transfer implements TransferCallback {
      * Returns true if transfer is complete.
      */
     public boolean isFinished() {
-        return mData != null && mOffset == mData.length;
+        int length = getLength();
+        return length >= 0 && mOffset == length;
     }
 }
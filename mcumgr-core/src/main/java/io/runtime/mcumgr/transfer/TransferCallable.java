@@ -97,12 +97,13 @@ public class TransferCallable implements Callable<Transfer>, TransferController
                     return mTransfer;
                 }
 
-                if (mTransfer.getData() == null) {
+                int length = mTransfer.getLength();
+                if (length < 0) {
                     throw new NullPointerException("Transfer data is null!");
                 }
 
                 // Call the progress callback.
-                mTransfer.onProgressChanged(mTransfer.getOffset(), mTransfer.getData().length,
+                mTransfer.onProgressChanged(mTransfer.getOffset(), length,
                         System.currentTimeMillis());
             }
         }
@@ -0,0 +1,228 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.dfu.FirmwareUpgradeManager
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.managers.FsManager
+import io.runtime.mcumgr.managers.ImageManager
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.selects.select
+import java.util.Arrays
+
+/**
+ * The default minimum time between two [TransferEvent.Progress] events, in milliseconds.
+ */
+const val DEFAULT_PROGRESS_INTERVAL: Long = 100
+
+/**
+ * An event of a transfer or a firmware upgrade, emitted by the flows returned by
+ * [ImageManager.uploadEvents], [FsManager.uploadEvents], [FsManager.downloadEvents] and
+ * [FirmwareUpgradeManager.upgradeEvents].
+ *
+ * The flows end after a [Completed], [Failed] or [Canceled] event.
+ */
+sealed class TransferEvent {
+
+    /**
+     * The progress of the transfer. Progress is conflated: a collector slower than the transfer
+     * gets the latest progress only, at most once per progress interval.
+     *
+     * @property offset the number of bytes transferred.
+     * @property size the size of the data.
+     * @property throughput the average throughput since the transfer started, in bytes per
+     * second.
+     * @property window the size of the congestion window, in requests, or 1 if not windowed.
+     * @property rtt the smoothed round-trip time of a request in milliseconds, or 0 if not
+     * measured.
+     * @property rttVariance the round-trip time variation in milliseconds.
+     */
+    data class Progress(
+        val offset: Int,
+        val size: Int,
+        val throughput: Float = 0f,
+        val window: Int = 1,
+        val rtt: Long = 0,
+        val rttVariance: Long = 0
+    ) : TransferEvent()
+
+    /**
+     * The firmware upgrade has moved to a new state.
+     */
+    data class StateChanged(
+        val prevState: FirmwareUpgradeManager.State,
+        val newState: FirmwareUpgradeManager.State
+    ) : TransferEvent()
+
+    /**
+     * The transfer has completed.
+     *
+     * @property data the downloaded data, or null for uploads and upgrades.
+     */
+    data class Completed(val data: ByteArray? = null) : TransferEvent() {
+
+        override fun equals(other: Any?): Boolean =
+            other is Completed && Arrays.equals(data, other.data)
+
+        override fun hashCode(): Int = Arrays.hashCode(data)
+
+        override fun toString(): String = "Completed(size=${data?.size})"
+    }
+
+    /**
+     * The transfer has failed.
+     *
+     * @property state the state the firmware upgrade failed in, or null for transfers.
+     */
+    data class Failed(
+        val error: McuMgrException,
+        val state: FirmwareUpgradeManager.State? = null
+    ) : TransferEvent()
+
+    /**
+     * The firmware upgrade has been canceled using [FirmwareUpgradeManager.cancel]. Transfers
+     * are canceled by cancelling the collection of the flow.
+     */
+    data class Canceled(val state: FirmwareUpgradeManager.State? = null) : TransferEvent()
+
+    internal val isTerminal: Boolean
+        get() = this is Completed || this is Failed || this is Canceled
+}
+
+/**
+ * Uploads the image when collected, emitting its progress and completion. Cancelling the
+ * collection cancels the upload.
+ */
+fun ImageManager.uploadEvents(
+    data: ByteArray,
+    windowCapacity: Int = 1,
+    progressInterval: Long = DEFAULT_PROGRESS_INTERVAL
+): Flow<TransferEvent> = uploadEvents(UploadSource.wrap(data), windowCapacity, progressInterval)
+
+/**
+ * Uploads the image when collected, emitting its progress and completion. Cancelling the
+ * collection cancels the upload.
+ */
+fun ImageManager.uploadEvents(
+    source: UploadSource,
+    windowCapacity: Int = 1,
+    progressInterval: Long = DEFAULT_PROGRESS_INTERVAL
+): Flow<TransferEvent> = ImageUploader(source, this, windowCapacity).events(progressInterval)
+
+/**
+ * Uploads the file when collected, emitting its progress and completion. Cancelling the
+ * collection cancels the upload.
+ */
+fun FsManager.uploadEvents(
+    name: String,
+    source: UploadSource,
+    windowCapacity: Int = 1,
+    progressInterval: Long = DEFAULT_PROGRESS_INTERVAL
+): Flow<TransferEvent> = FileUploader(name, source, this, windowCapacity).events(progressInterval)
+
+/**
+ * Downloads the file when collected, emitting its progress and a [TransferEvent.Completed]
+ * event with the data. Cancelling the collection cancels the download.
+ */
+fun FsManager.downloadEvents(
+    name: String,
+    windowCapacity: Int = 1,
+    progressInterval: Long = DEFAULT_PROGRESS_INTERVAL
+): Flow<TransferEvent> = FileDownloader(name, this, windowCapacity).events(progressInterval)
+
+private fun Uploader.events(progressInterval: Long): Flow<TransferEvent> {
+    val uploader = this
+    return transferEvents(progressInterval, {
+        uploader.currentProgress.run {
+            TransferEvent.Progress(
+                offset, size, window = window, rtt = rtt, rttVariance = rttVariance
+            )
+        }
+    }) { events ->
+        uploader.upload()
+        events.send(TransferEvent.Completed())
+    }
+}
+
+private fun Downloader.events(progressInterval: Long): Flow<TransferEvent> {
+    val downloader = this
+    return transferEvents(progressInterval, {
+        downloader.currentProgress.run {
+            if (size > 0) TransferEvent.Progress(offset, size) else null
+        }
+    }) { events ->
+        events.send(TransferEvent.Completed(downloader.download()))
+    }
+}
+
+/**
+ * Returns a flow running [transfer] when collected, and emitting the events it sends and its
+ * progress.
+ *
+ * The transfer runs on [Dispatchers.Default], so it never waits for the collector: its events
+ * are queued, and its progress is read by [progress] at most once per [progressInterval] while
+ * the collector keeps up. The transfer must send a terminal event when done; if it throws, a
+ * [TransferEvent.Failed] event is emitted. Cancelling the collection cancels the transfer.
+ */
+internal fun transferEvents(
+    progressInterval: Long,
+    progress: () -> TransferEvent.Progress?,
+    transfer: suspend (events: SendChannel<TransferEvent>) -> Unit
+): Flow<TransferEvent> {
+    require(progressInterval > 0) { "Progress interval must be positive" }
+    return flow<TransferEvent> {
+        coroutineScope {
+            val events = Channel<TransferEvent>(Channel.UNLIMITED)
+            launch(Dispatchers.Default) {
+                try {
+                    transfer(events)
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: McuMgrException) {
+                    events.send(TransferEvent.Failed(e))
+                } catch (t: Throwable) {
+                    events.send(TransferEvent.Failed(McuMgrException(t)))
+                }
+            }
+
+            val start = System.nanoTime()
+            val startOffset = progress()?.offset ?: 0
+            val interval = progressInterval * 1_000_000
+            var last: TransferEvent.Progress? = null
+            var lastTime = start - interval
+            while (true) {
+                val event = select<TransferEvent?> {
+                    events.onReceive { it }
+                    onTimeout(progressInterval) { null }
+                }
+
+                // Emit the latest progress, if changed, once per interval and before the last event
+                val current = progress()
+                val now = System.nanoTime()
+                if (current != null && current != last &&
+                    (now - lastTime >= interval || event?.isTerminal == true)) {
+                    val elapsed = (now - start) / 1_000_000_000f
+                    val throughput = if (elapsed > 0) {
+                        maxOf(current.offset - startOffset, 0) / elapsed
+                    } else {
+                        0f
+                    }
+                    last = current
+                    lastTime = now
+                    emit(current.copy(throughput = throughput))
+                }
+                if (event != null) {
+                    emit(event)
+                    if (event.isTerminal) {
+                        break
+                    }
+                }
+            }
+        }
+    }
+}
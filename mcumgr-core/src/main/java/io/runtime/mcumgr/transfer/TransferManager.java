@@ -1,17 +1,31 @@
 package io.runtime.mcumgr.transfer;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import io.runtime.mcumgr.McuManager;
+import io.runtime.mcumgr.McuMgrTransferProfile;
 import io.runtime.mcumgr.McuMgrTransport;
 import io.runtime.mcumgr.exception.InsufficientMtuException;
+import io.runtime.mcumgr.exception.McuMgrException;
 
 public class TransferManager extends McuManager {
 
-    private ExecutorService mExecutor;
+    /**
+     * The time after which the thread of the default executor stops when no transfer is
+     * running, in seconds.
+     */
+    private final static long IDLE_TIMEOUT = 30;
+
+    private final static String EXECUTOR_SHUT_DOWN = "Transfer executor has been shut down";
+
+    private Executor mExecutor;
 
     /**
      * Construct a McuManager instance.
@@ -23,6 +37,20 @@ public class TransferManager extends McuManager {
         super(groupId, transporter);
     }
 
+    /**
+     * Sets the executor running the transfers of this manager, e.g. a thread pool shared by the
+     * managers of many devices. Transfers of this manager still run one at a time, in order.
+     * By default, each manager runs its transfers on its own thread, which stops when idle.
+     * <p>
+     * The executor should be set before the first transfer is started. Transfers already queued
+     * run on the previous executor.
+     *
+     * @param executor the shared executor, or null to use a thread of this manager.
+     */
+    public synchronized void setTransferExecutor(@Nullable Executor executor) {
+        mExecutor = executor != null ? new SerialExecutor(executor) : null;
+    }
+
     /**
      * Start an upload.
      * <p>
@@ -53,51 +81,69 @@ public class TransferManager extends McuManager {
     private synchronized TransferController startTransfer(@NotNull final Transfer transfer) {
 
         final TransferCallable transferCallable = new TransferCallable(transfer);
+        final McuMgrTransport transport = getTransporter();
 
         /*
          * Wrap the callable in the in an runnable which catches InsufficientMtuException and
-         * retries the transfer once.
+         * continues the transfer with a lower MTU. The transfer fails if the task is dropped
+         * from the queue of a shared executor which has been shut down.
          */
-        getTransferExecutor().execute(new Runnable() {
-
-            // Whether to retry with a new MTU due to an MTU exception.
-            private boolean mRetry = true;
-
+        final SerialExecutor.Task task = new SerialExecutor.Task() {
             @Override
             public void run() {
+                if (transport instanceof McuMgrTransferProfile) {
+                    ((McuMgrTransferProfile) transport).onTransferStarted();
+                }
                 try {
-                    // Execute the transfer callable.
-                    transferCallable.call();
-                } catch (InsufficientMtuException e) {
-                    // If we have already retried, fail the transfer.
-                    if (!mRetry) {
-                        transferCallable.getTransfer().onFailed(e);
-                        return;
-                    }
-                    // Set the MTU to the value specified in the error response.
-                    int mtu = e.getMtu();
-                    if (mMtu == mtu) {
-                        mtu -= 1;
+                    transfer();
+                } finally {
+                    if (transport instanceof McuMgrTransferProfile) {
+                        ((McuMgrTransferProfile) transport).onTransferFinished();
                     }
-                    boolean isMtuSet = setUploadMtu(mtu);
-                    if (isMtuSet) {
-                        // If the MTU has been set successfully, restart the upload.
-                        transferCallable.getTransfer().reset();
-                        mRetry = false;
-                        run();
-                    } else {
-                        transferCallable.getTransfer().onFailed(e);
+                }
+            }
+
+            private void transfer() {
+                while (true) {
+                    try {
+                        // Execute the transfer callable.
+                        transferCallable.call();
+                        return;
+                    } catch (InsufficientMtuException e) {
+                        // Lower the MTU to the value specified in the error and continue the
+                        // transfer from the current offset. The packet which was too long has
+                        // not been sent, so no data is lost. The MTU decreases with each
+                        // attempt, so this ends once the packets fit or the MTU is too small.
+                        int mtu = Math.min(e.getMtu(), getMtu() - 1);
+                        if (!setUploadMtu(mtu)) {
+                            transferCallable.getTransfer().onFailed(e);
+                            return;
+                        }
                     }
                 }
             }
-        });
+
+            @Override
+            public void onDropped() {
+                transfer.onFailed(new McuMgrException(EXECUTOR_SHUT_DOWN));
+            }
+        };
+        try {
+            getTransferExecutor().execute(task);
+        } catch (RejectedExecutionException e) {
+            transfer.onFailed(new McuMgrException(EXECUTOR_SHUT_DOWN));
+        }
         return transferCallable;
     }
 
     @NotNull
-    private synchronized ExecutorService getTransferExecutor() {
+    private synchronized Executor getTransferExecutor() {
         if (mExecutor == null) {
-            mExecutor = Executors.newSingleThreadExecutor();
+            // A single thread, so transfers are queued, which stops when idle
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    IDLE_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            mExecutor = executor;
         }
         return mExecutor;
     }
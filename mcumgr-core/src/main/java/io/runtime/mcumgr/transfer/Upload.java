@@ -3,6 +3,8 @@ package io.runtime.mcumgr.transfer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+
 import io.runtime.mcumgr.McuMgrErrorCode;
 import io.runtime.mcumgr.exception.McuMgrErrorException;
 import io.runtime.mcumgr.exception.McuMgrException;
@@ -12,6 +14,8 @@ import io.runtime.mcumgr.response.UploadResponse;
 @SuppressWarnings("unused")
 public abstract class Upload extends Transfer {
 
+    @NotNull
+    private final UploadSource mSource;
     private UploadCallback mCallback;
 
     protected Upload(@NotNull byte[] data) {
@@ -20,17 +24,51 @@ public abstract class Upload extends Transfer {
 
     protected Upload(@NotNull byte[] data, @Nullable UploadCallback callback) {
         super(data);
+        mSource = UploadSource.wrap(data);
+        mCallback = callback;
+    }
+
+    protected Upload(@NotNull UploadSource source, @Nullable UploadCallback callback) {
+        super();
+        mSource = source;
         mCallback = callback;
     }
 
     protected abstract UploadResponse write(@NotNull byte[] data, int offset) throws McuMgrException;
 
+    /**
+     * Sends the chunk of data from the given offset of the source.
+     * <p>
+     * The default implementation reads the whole source into memory and calls
+     * {@link #write(byte[], int)}. Implementations should override this method to read only
+     * the chunk being sent.
+     *
+     * @param source the source of the data.
+     * @param offset the offset, from which the chunk will be sent.
+     * @return received response.
+     * @throws McuMgrException a reason of a failure.
+     */
+    protected UploadResponse write(@NotNull UploadSource source, int offset) throws McuMgrException {
+        try {
+            return write(source.toByteArray(), offset);
+        } catch (IOException e) {
+            throw new McuMgrException("Failed to read upload data", e);
+        }
+    }
+
+    @NotNull
+    public UploadSource getSource() {
+        return mSource;
+    }
+
+    @Override
+    public int getLength() {
+        return mSource.size();
+    }
+
     @Override
     public McuMgrResponse send(int offset) throws McuMgrException {
-        if (mData == null) {
-            throw new NullPointerException("Upload data cannot be null!");
-        }
-        UploadResponse response = write(mData, offset);
+        UploadResponse response = write(mSource, offset);
         // Check for a McuManager error.
         if (response.rc != 0) {
             throw new McuMgrErrorException(McuMgrErrorCode.valueOf(response.rc));
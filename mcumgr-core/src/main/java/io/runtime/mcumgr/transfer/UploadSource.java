@@ -0,0 +1,244 @@
+package io.runtime.mcumgr.transfer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import io.runtime.mcumgr.exception.McuMgrException;
+
+/**
+ * Random access to the data of an upload.
+ * <p>
+ * Uploads read each chunk from the source right before it is sent, so the data does not have to
+ * be held in memory as a whole. Sources may be read from multiple threads and must not change
+ * while an upload is in progress.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public abstract class UploadSource implements Closeable {
+
+    /**
+     * Returns the size of the data in bytes.
+     *
+     * @return The size of the data.
+     */
+    public abstract int size();
+
+    /**
+     * Reads data from the given position of the source.
+     *
+     * @param position the position of the data in the source.
+     * @param dest     the destination array.
+     * @param offset   the offset in the destination array.
+     * @param length   the number of bytes to read.
+     * @throws IOException if the data could not be read, including when the source ends before
+     *                     the requested number of bytes has been read.
+     */
+    public abstract void read(int position, @NotNull byte[] dest, int offset, int length)
+            throws IOException;
+
+    /**
+     * Returns the array backing this source, if the whole data is available as a heap array
+     * starting at index 0. Such sources may be read without copying.
+     *
+     * @return The backing array, or null.
+     */
+    @Nullable
+    public byte[] array() {
+        return null;
+    }
+
+    /**
+     * Returns the SHA-256 digest of the whole data, if the source knows it, so that it is not
+     * calculated again by every upload of the source.
+     *
+     * @return The digest, or null if not known.
+     * @throws McuMgrException if the digest could not be calculated.
+     */
+    @Nullable
+    public byte[] sha256() throws McuMgrException {
+        return null;
+    }
+
+    /**
+     * Releases resources held by the source. Closing a source created by {@link #wrap} does
+     * nothing.
+     *
+     * @throws IOException if the underlying resource could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        // Nothing to close by default
+    }
+
+    /**
+     * Reads the whole source into a new array. Use only for small sources.
+     *
+     * @return The data.
+     * @throws IOException if the data could not be read.
+     */
+    @NotNull
+    public byte[] toByteArray() throws IOException {
+        byte[] array = array();
+        if (array != null) {
+            return array;
+        }
+        byte[] data = new byte[size()];
+        read(0, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * Creates a source backed by the given array.
+     *
+     * @param data the data.
+     * @return The source.
+     */
+    @NotNull
+    public static UploadSource wrap(@NotNull final byte[] data) {
+        return new UploadSource() {
+            @Override
+            public int size() {
+                return data.length;
+            }
+
+            @Override
+            public void read(int position, @NotNull byte[] dest, int offset, int length)
+                    throws IOException {
+                if (position < 0 || position + length > data.length) {
+                    throw new EOFException("Read out of bounds: " + position + "+" + length);
+                }
+                System.arraycopy(data, position, dest, offset, length);
+            }
+
+            @NotNull
+            @Override
+            public byte[] array() {
+                return data;
+            }
+        };
+    }
+
+    /**
+     * Creates a source backed by the remaining content of the given buffer, which may be direct
+     * or memory-mapped. The position and limit of the buffer are not modified.
+     *
+     * @param buffer the buffer.
+     * @return The source.
+     */
+    @NotNull
+    public static UploadSource wrap(@NotNull ByteBuffer buffer) {
+        final ByteBuffer slice = buffer.slice();
+        final byte[] array = slice.hasArray() && slice.arrayOffset() == 0 &&
+                slice.array().length == slice.capacity() ? slice.array() : null;
+        return new UploadSource() {
+            @Override
+            public int size() {
+                return slice.capacity();
+            }
+
+            @Override
+            public void read(int position, @NotNull byte[] dest, int offset, int length)
+                    throws IOException {
+                if (position < 0 || position + length > slice.capacity()) {
+                    throw new EOFException("Read out of bounds: " + position + "+" + length);
+                }
+                // Each read uses its own view, so reads from multiple threads do not interfere.
+                ByteBuffer view = slice.duplicate();
+                view.position(position);
+                view.get(dest, offset, length);
+            }
+
+            @Nullable
+            @Override
+            public byte[] array() {
+                return array;
+            }
+        };
+    }
+
+    /**
+     * Creates a source reading directly from the given file channel, from its current position
+     * to its end. The channel is closed when the source is closed.
+     *
+     * @param channel the file channel.
+     * @return The source.
+     * @throws IOException if the size of the file could not be obtained, or if the file is
+     *                     larger than 2 GB.
+     */
+    @NotNull
+    public static UploadSource open(@NotNull final FileChannel channel) throws IOException {
+        final long start = channel.position();
+        final long size = channel.size() - start;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File too large: " + size);
+        }
+        return new UploadSource() {
+            @Override
+            public int size() {
+                return (int) size;
+            }
+
+            @Override
+            public void read(int position, @NotNull byte[] dest, int offset, int length)
+                    throws IOException {
+                if (position < 0 || position + length > size) {
+                    throw new EOFException("Read out of bounds: " + position + "+" + length);
+                }
+                // Positional reads do not change the channel's position and are thread safe.
+                ByteBuffer buffer = ByteBuffer.wrap(dest, offset, length);
+                long filePosition = start + position;
+                while (buffer.hasRemaining()) {
+                    int read = channel.read(buffer, filePosition);
+                    if (read < 0) {
+                        throw new EOFException("Unexpected end of file");
+                    }
+                    filePosition += read;
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Creates a source reading directly from the given file.
+     *
+     * @param file the file.
+     * @return The source, which must be closed when no longer needed.
+     * @throws IOException if the file could not be opened.
+     */
+    @NotNull
+    public static UploadSource open(@NotNull File file) throws IOException {
+        return open(new RandomAccessFile(file, "r").getChannel());
+    }
+
+    /**
+     * Creates a source backed by the given file, mapped into memory. The mapping does not count
+     * against the heap and pages are loaded on access.
+     *
+     * @param file the file.
+     * @return The source.
+     * @throws IOException if the file could not be mapped.
+     */
+    @NotNull
+    public static UploadSource map(@NotNull File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping remains valid after the channel is closed.
+            return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
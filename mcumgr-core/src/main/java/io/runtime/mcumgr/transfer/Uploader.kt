@@ -1,8 +1,15 @@
 package io.runtime.mcumgr.transfer
 
 import io.runtime.mcumgr.McuMgrScheme
+import io.runtime.mcumgr.McuMgrTransferProfile
+import io.runtime.mcumgr.McuMgrTransport
 import io.runtime.mcumgr.exception.InsufficientMtuException
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.exception.McuMgrTimeoutException
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineExceptionHandler
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.Channel.Factory.CONFLATED
 import java.lang.IllegalArgumentException
@@ -10,98 +17,232 @@ import kotlin.math.min
 import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.launchIn
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.selects.select
 import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.Semaphore
 import kotlinx.coroutines.sync.withLock
 import org.slf4j.LoggerFactory
+import java.util.concurrent.TimeoutException
 
 const val MAX_CHUNK_FAILURES = 5
 
-data class UploadProgress(val offset: Int, val size: Int)
+/**
+ * The progress of an upload.
+ *
+ * @property offset the number of bytes acknowledged by the device.
+ * @property size the size of the upload.
+ * @property window the current size of the congestion window, in requests.
+ * @property rtt the smoothed round-trip time of a request in milliseconds, or 0 if not
+ * measured yet.
+ * @property rttVariance the round-trip time variation in milliseconds.
+ */
+data class UploadProgress(
+    val offset: Int,
+    val size: Int,
+    val window: Int = 1,
+    val rtt: Long = 0,
+    val rttVariance: Long = 0
+)
 
-private data class Chunk(val data: ByteArray, val offset: Int) {
-    override fun toString(): String {
-        return "Chunk(offset=$offset, size=${data.size})"
-    }
+/**
+ * A chunk of the upload data. The data is read from the source when the chunk is written.
+ * The [mtu] is the one the chunk has been sized for.
+ */
+private data class Chunk(val offset: Int, val size: Int, val mtu: Int) {
+    val end: Int get() = offset + size
 }
 
+/**
+ * Uploads data in chunks, keeping up to [windowCapacity] requests in flight.
+ *
+ * Every upload starts with the chunk at offset 0, and continues from the offset returned by the
+ * device. No progress is kept on the phone, so an upload interrupted by a disconnection or by the
+ * death of the process can only be resumed by the device:
+ * - Image uploads resume on firmware whose image management group remembers the "sha" field of
+ *   the first request, as the img_mgmt implementation of the mcumgr library used by Zephyr and
+ *   Mynewt does. Such a device answers with the offset of its partial upload if the hash matches,
+ *   and with the end of the first chunk otherwise.
+ * - Firmware which ignores the "sha" field, and all file uploads, start over from the beginning.
+ */
 abstract class Uploader(
-    private val data: ByteArray,
+    private val source: UploadSource,
     private val windowCapacity: Int,
-    internal var mtu: Int,
+    mtu: Int,
     private val protocol: McuMgrScheme
 ) {
 
+    constructor(
+        data: ByteArray,
+        windowCapacity: Int,
+        mtu: Int,
+        protocol: McuMgrScheme
+    ) : this(UploadSource.wrap(data), windowCapacity, mtu, protocol)
+
     private val log = LoggerFactory.getLogger("Uploader")
 
+    /**
+     * The maximum packet length. Lowered during the upload if a chunk turns out to be too long.
+     */
+    @Volatile
+    internal var mtu: Int = mtu
+        private set
+
     private val _progress: MutableStateFlow<UploadProgress> =
-        MutableStateFlow(UploadProgress(0, data.size))
+        MutableStateFlow(UploadProgress(0, source.size()))
 
     val progress: Flow<UploadProgress> = _progress
 
+    /**
+     * The latest progress, read without collecting [progress].
+     */
+    internal val currentProgress: UploadProgress
+        get() = _progress.value
+
+    private val paused: MutableStateFlow<Boolean> = MutableStateFlow(false)
+
+    /**
+     * Pauses the upload. Requests already in flight are completed, but no new chunks are sent
+     * until [resume] is called.
+     */
+    fun pause() {
+        paused.value = true
+    }
+
+    /**
+     * Resumes a paused upload.
+     */
+    fun resume() {
+        paused.value = false
+    }
+
+    /**
+     * Returns the size of additional fields, other than "data", "off" and "len", written by the
+     * implementation into the request for the chunk at the given offset.
+     */
+    protected open fun getAdditionalSize(offset: Int): Int = 0
+
+    /**
+     * The transport the chunks are written with. If it has a [McuMgrTransferProfile], it is
+     * notified when the upload starts and finishes.
+     */
+    internal open val transport: McuMgrTransport? = null
+
+    /**
+     * Writes the chunk of [length] bytes at the given offset of the source.
+     */
     @Throws
     internal abstract fun write(
-        data: ByteArray,
+        source: UploadSource,
         offset: Int,
+        length: Int,
         callback: (UploadResult) -> Unit
     )
 
     @Throws
-    suspend fun upload() = coroutineScope {
+    suspend fun upload() {
+        val profile = transport as? McuMgrTransferProfile
+        profile?.onTransferStarted()
+        try {
+            uploadChunks()
+        } finally {
+            profile?.onTransferFinished()
+        }
+    }
+
+    private suspend fun uploadChunks() = coroutineScope {
 
         // Tracks the number of failures experienced for any given chunk,
         // identified by the offset.
         val failureDirectory = mutableMapOf<Int, Int>()
         val failureDirectoryMutex = Mutex()
 
-        // Bounds number of in-progress requests within window capacity
-        val window = Semaphore(windowCapacity)
+        // Bounds number of in-progress requests within the congestion window, which adapts
+        // between one request and the window capacity.
+        val window = CongestionWindow(windowCapacity)
 
         val next: Channel<Chunk> = Channel(CONFLATED)
         val failures: Channel<Chunk> = Channel(CONFLATED)
         val close: Channel<Unit> = Channel(CONFLATED)
 
-        next.send(newChunk(0))
+        // The first chunk is sent alone. The device responds with the offset to continue from,
+        // which is not the end of the chunk if it resumes an interrupted upload.
+        val offset = begin()
+        updateProgress(window, offset)
+        if (offset == source.size()) {
+            log.info("uploader complete!")
+            return@coroutineScope
+        }
+        next.send(newChunk(offset))
 
         while (true) {
 
+            // Suspend while the upload is paused.
+            if (paused.value) {
+                log.info("uploader paused")
+                paused.first { !it }
+                log.info("uploader resumed")
+            }
+
             window.acquire()
 
-            // Select the next chunk to send, prioritizing failed chunks.
+            // Select the next chunk to send, prioritizing failed chunks. The chunk is sized
+            // again in case the MTU has been lowered since it was created.
             val (chunk, resend) = select<Pair<Chunk, Boolean>?> {
-                failures.onReceive { it to true }
-                next.onReceive { it to false }
+                failures.onReceive { newChunk(it.offset) to true }
+                next.onReceive { newChunk(it.offset) to false }
                 close.onReceive { null }
             } ?: break
 
-            log.info("uploader write: chunk=$chunk, resend=$resend")
+            log.info("uploader write: chunk=$chunk, resend=$resend, window=${window.size}")
 
+            val send = window.onSend()
             val nextChunk = writeInternal(chunk, resend, this) { result ->
 
                 log.info("uploader result: chunk=$chunk, result=$result")
 
                 result.onSuccess { response ->
-                    if (!resend && response.off != chunk.offset + chunk.data.size) {
+                    if (!resend && response.off != chunk.end) {
                         // An unexpected offset means that the message was
                         // somehow lost or the device could not accept the
                         // chunk. We need to resend the chunk at the offset
                         // requested by the device.
                         log.info("uploader write error: offset=${chunk.offset}, requested=${response.off}")
+                        window.onLoss(send)
+                        updateProgress(window)
                         failures.send(newChunk(response.off))
                     } else {
                         // Success, update the progress
-                        val current = chunk.offset + chunk.data.size
-                        _progress.value = UploadProgress(current, data.size)
-                        if (current == data.size) {
+                        window.onAck(send)
+                        val current = chunk.end
+                        updateProgress(window, current)
+                        if (current == source.size()) {
                             log.info("uploader complete!")
                             close.send(Unit)
                         }
                     }
                 }.onErrorOrFailure { failure ->
+                    if (failure is InsufficientMtuException) {
+                        // The chunk was too long to be sent. Lower the MTU and resend the
+                        // chunk, resized, instead of restarting the upload.
+                        if (!lowerMtu(chunk, failure.mtu)) {
+                            throw failure
+                        }
+                        log.info("uploader mtu lowered: offset=${chunk.offset}, mtu=$mtu")
+                        window.release()
+                        failures.send(newChunk(chunk.offset))
+                        return@writeInternal
+                    }
                     // Request failure, resend failed chunk
                     log.info("uploader write failure: offset=${chunk.offset}, failure=$failure")
+                    if (failure.isTimeout()) {
+                        window.onTimeout(send)
+                    } else {
+                        window.onLoss(send)
+                    }
+                    updateProgress(window)
                     // Track the number of times a chunk has failed. If the
                     // chunk has failed more times than the threshold,
                     // throw the exception to fail the upload entirely
@@ -110,23 +251,64 @@ abstract class Uploader(
                         failureDirectory[chunk.offset] = fails
                         fails
                     }
-                    if (fails >= MAX_CHUNK_FAILURES || failure is InsufficientMtuException) {
+                    if (fails >= MAX_CHUNK_FAILURES) {
                         throw failure
                     }
                     failures.send(newChunk(chunk.offset))
                 }
-
-                // Release the semaphore
-                window.release()
             }
 
             // Only send the next chunk if the we still have more data to upload
-            if (nextChunk.offset != data.size) {
+            if (nextChunk.offset != source.size()) {
                 next.send(nextChunk)
             }
         }
     }
 
+    /**
+     * Sends the chunk at offset 0 and returns the offset at which the device expects the upload
+     * to continue.
+     *
+     * The first chunk carries the length and, depending on the implementation, the hash of the
+     * data. The device continues an interrupted upload only if the hash matches the one it was
+     * started with, and otherwise starts over, so the returned offset never continues the upload
+     * of different data.
+     */
+    private suspend fun begin(): Int {
+        var fails = 0
+        while (true) {
+            val chunk = newChunk(0)
+            log.info("uploader begin: chunk=$chunk")
+            when (val result = writeSuspend(chunk)) {
+                is UploadResult.Response -> when {
+                    result.code.isSuccess && result.body.off in 0..source.size() ->
+                        return result.body.off
+                    result.code.isError -> throw ErrorResponseException(result.code)
+                    else -> throw McuMgrException("Invalid offset returned: ${result.body.off}")
+                }
+                is UploadResult.Failure -> {
+                    val failure = result.throwable
+                    if (failure is InsufficientMtuException) {
+                        if (!lowerMtu(chunk, failure.mtu)) {
+                            throw failure
+                        }
+                        log.info("uploader mtu lowered: offset=${chunk.offset}, mtu=$mtu")
+                    } else if (++fails >= MAX_CHUNK_FAILURES) {
+                        throw failure
+                    }
+                }
+            }
+        }
+    }
+
+    private suspend fun writeSuspend(chunk: Chunk): UploadResult {
+        val resultChannel: Channel<UploadResult> = Channel(1)
+        write(source, chunk.offset, chunk.size) {
+            resultChannel.offer(it)
+        }
+        return resultChannel.receive()
+    }
+
     private suspend fun writeInternal(
         chunk: Chunk,
         resend: Boolean,
@@ -135,7 +317,7 @@ abstract class Uploader(
     ): Chunk {
 
         val resultChannel: Channel<UploadResult> = Channel(1)
-        write(chunk.data, chunk.offset) {
+        write(source, chunk.offset, chunk.size) {
             resultChannel.offer(it)
         }
 
@@ -168,27 +350,55 @@ abstract class Uploader(
         }
     }
 
+    @Synchronized
+    private fun updateProgress(window: CongestionWindow, offset: Int? = null) {
+        _progress.value = UploadProgress(
+            offset ?: _progress.value.offset,
+            source.size(),
+            window.size,
+            window.rtt,
+            window.rttVariance
+        )
+    }
+
     private fun newChunk(offset: Int): Chunk {
-        val chunkSize = getChunkSize(data, offset)
-        val chunkData = data.copyOfRange(offset, offset + chunkSize)
-        return Chunk(chunkData, offset)
+        val mtu = mtu
+        return Chunk(offset, getChunkSize(source.size(), offset, mtu), mtu)
+    }
+
+    /**
+     * Lowers the MTU after the given chunk has been rejected as too long by the transport,
+     * which reported the given maximum packet length. Returns false if the MTU cannot be lowered
+     * any further.
+     */
+    @Synchronized
+    private fun lowerMtu(chunk: Chunk, maxPacketLength: Int): Boolean {
+        // Another chunk sized for the same MTU may have lowered it already.
+        if (mtu < chunk.mtu) {
+            return true
+        }
+        val lowered = min(maxPacketLength, chunk.mtu - 1)
+        if (getChunkSize(source.size(), chunk.offset, lowered) <= 0) {
+            return false
+        }
+        mtu = lowered
+        return true
     }
 
     private fun nextChunk(chunk: Chunk): Chunk {
-        return newChunk(chunk.offset + chunk.data.size)
+        return newChunk(chunk.end)
     }
 
-    // TODO interface this function for alternative implementations (e.g. sha for mynewt devices)
     /**
      * Returns the maximum amount of upload data which can fit into an upload request with the given
      * data and offset.
      *
      * This calculation is optimal, and takes into account the transport scheme and size of data and
      * offset since CBOR will make the integers as efficient as possible. In order to avoid an index
-     * out of bounds on the last chunk, if the calculated chunk size is greater than data.size -
+     * out of bounds on the last chunk, if the calculated chunk size is greater than size -
      * offset, then the latter value is returned.
      */
-    private fun getChunkSize(data: ByteArray, offset: Int): Int {
+    private fun getChunkSize(size: Int, offset: Int, mtu: Int): Int {
 
         // The size of the header is based on the scheme. CoAP scheme is larger because there are
         // 4 additional bytes of CBOR.
@@ -205,7 +415,7 @@ abstract class Uploader(
 
         val lengthSize = if (offset == 0) {
             // Size of the string "len" plus the length of the data size integer
-            cborStringLength("len") + cborUIntLength(data.size)
+            cborStringLength("len") + cborUIntLength(size)
         } else {
             0
         }
@@ -213,7 +423,8 @@ abstract class Uploader(
         // Size of the field name "data" utf8 string
         val dataStringSize = cborStringLength("data")
 
-        val combinedSize = headerSize + mapSize + offsetSize + lengthSize + dataStringSize
+        val combinedSize = headerSize + mapSize + offsetSize + lengthSize + dataStringSize +
+            getAdditionalSize(offset)
 
         // Now we calculate the max amount of data that we can fit given the MTU.
         val maxDataLength = mtu - combinedSize
@@ -224,16 +435,72 @@ abstract class Uploader(
 
         // Final data chunk size
         val maxChunkSize = mtu - combinedSize - maxDataUIntTokenSize
-        return min(maxChunkSize, data.size - offset)
+        return min(maxChunkSize, size - offset)
+    }
+}
+
+/**
+ * Starts the upload in the background, reporting to the given callback. The returned controller
+ * pauses, resumes and cancels the upload.
+ */
+internal fun Uploader.windowUpload(callback: UploadCallback): TransferController {
+    val log = LoggerFactory.getLogger("Uploader")
+    val uploader = this
+
+    val job = GlobalScope.launch(CoroutineExceptionHandler { _, t ->
+        log.error("window upload failed", t)
+    }) {
+        val progress = uploader.progress.onEach { progress ->
+            callback.onUploadProgressChanged(
+                progress.offset,
+                progress.size,
+                System.currentTimeMillis()
+            )
+        }.launchIn(this)
+
+        uploader.upload()
+        progress.cancel()
+    }
+
+    job.invokeOnCompletion { throwable ->
+        when (throwable) {
+            null -> callback.onUploadCompleted()
+            is CancellationException -> callback.onUploadCanceled()
+            is McuMgrException -> callback.onUploadFailed(throwable)
+            else -> callback.onUploadFailed(McuMgrException(throwable))
+        }
+    }
+
+    return object : TransferController {
+        override fun pause() = uploader.pause()
+        override fun resume() = uploader.resume()
+        override fun cancel() {
+            job.cancel()
+        }
+    }
+}
+
+/**
+ * Returns true if the failure, or any of its causes, is a timeout.
+ */
+private fun Throwable.isTimeout(): Boolean {
+    var t: Throwable? = this
+    while (t != null) {
+        if (t is McuMgrTimeoutException || t is TimeoutException) {
+            return true
+        }
+        t = t.cause
     }
+    return false
 }
 
 /**
  * Calculates the size in bytes of a CBOR encoded string.
  */
 internal fun cborStringLength(s: String): Int {
-    val headerLength = cborUIntLength(s.length)
-    return headerLength + s.length
+    val length = s.toByteArray(Charsets.UTF_8).size
+    val headerLength = cborUIntLength(length)
+    return headerLength + length
 }
 
 /**
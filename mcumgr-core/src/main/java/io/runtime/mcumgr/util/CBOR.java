@@ -8,71 +8,127 @@ package io.runtime.mcumgr.util;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * CBOR serialization helpers.
+ * <p>
+ * All methods share a single {@link ObjectMapper}, which is thread safe once configured, so that
+ * Jackson's serializer and deserializer caches survive between calls. The readers and writers
+ * bound to a type are cached as well, making repeated (de)serialization of the same response
+ * type a lookup rather than an introspection.
+ */
 @SuppressWarnings("unused")
 public class CBOR {
     private final static CBORFactory sFactory = new CBORFactory();
+    private final static ObjectMapper sMapper = new ObjectMapper(sFactory);
+
+    private final static ConcurrentMap<Class<?>, ObjectReader> sReaders =
+            new ConcurrentHashMap<>();
+    private final static ConcurrentMap<Class<?>, ObjectWriter> sWriters =
+            new ConcurrentHashMap<>();
+
+    private final static ObjectReader sStringMapReader =
+            sMapper.readerFor(new TypeReference<HashMap<String, String>>() {});
+    private final static ObjectReader sObjectMapReader =
+            sMapper.readerFor(new TypeReference<HashMap<String, Object>>() {});
 
     public static byte[] toBytes(Object obj) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(sFactory);
-        return mapper.writeValueAsBytes(obj);
+        if (obj == null) {
+            return sMapper.writeValueAsBytes(null);
+        }
+        return writerFor(obj.getClass()).writeValueAsBytes(obj);
     }
 
     public static <T> T toObject(byte[] data, Class<T> type) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(sFactory);
-        return mapper.readValue(data, type);
+        return readerFor(type).readValue(data);
+    }
+
+    public static <T> T toObject(byte[] data, int offset, int length, Class<T> type)
+            throws IOException {
+        return readerFor(type).readValue(data, offset, length);
     }
 
     public static String toString(byte[] data) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(sFactory);
-        return mapper.readTree(data).toString();
+        return sMapper.readTree(data).toString();
     }
 
     public static String toString(byte[] data, int offset) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(sFactory);
-        return mapper.readTree(data, offset, data.length - offset).toString();
+        return sMapper.readTree(data, offset, data.length - offset).toString();
     }
 
     @SuppressWarnings("RedundantThrows")
     public static <T> String toString(T obj) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(sFactory);
-        return mapper.valueToTree(obj).toString();
+        return sMapper.valueToTree(obj).toString();
     }
 
     public static Map<String, String> toStringMap(byte[] data) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(sFactory);
-        TypeReference<HashMap<String, String>> typeRef =
-                new TypeReference<HashMap<String, String>>() {};
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
-        return mapper.readValue(inputStream, typeRef);
+        return sStringMapReader.readValue(data);
     }
 
     public static Map<String, Object> toObjectMap(byte[] data) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(sFactory);
-        TypeReference<HashMap<String, Object>> typeRef =
-                new TypeReference<HashMap<String, Object>>() {
-                };
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
-        return mapper.readValue(inputStream, typeRef);
+        return sObjectMapReader.readValue(data);
     }
 
     public static <T> T getObject(@NotNull byte[] data, @NotNull String key, @NotNull Class<T> type) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(sFactory);
-        return mapper.convertValue(mapper.readTree(data).get(key), type);
+        return sMapper.convertValue(sMapper.readTree(data).get(key), type);
     }
 
     @NotNull
     public static String getString(@NotNull byte[] data, @NotNull String key) throws IOException {
-        ObjectMapper mapper = new ObjectMapper(sFactory);
-        return mapper.readTree(data).get(key).asText();
+        return sMapper.readTree(data).get(key).asText();
     }
 
+    /**
+     * Creates a CBOR generator writing to the given stream. Objects written using
+     * {@link CBORGenerator#writeObject(Object)} are serialized with the shared mapper.
+     *
+     * @param out the output stream.
+     * @return The generator.
+     * @throws IOException if the generator could not be created.
+     */
+    @NotNull
+    public static CBORGenerator createGenerator(@NotNull OutputStream out) throws IOException {
+        CBORGenerator generator = sFactory.createGenerator(out);
+        generator.setCodec(sMapper);
+        return generator;
+    }
+
+    @NotNull
+    private static ObjectReader readerFor(@NotNull Class<?> type) {
+        ObjectReader reader = sReaders.get(type);
+        if (reader == null) {
+            reader = sMapper.readerFor(type);
+            ObjectReader existing = sReaders.putIfAbsent(type, reader);
+            if (existing != null) {
+                reader = existing;
+            }
+        }
+        return reader;
+    }
+
+    @NotNull
+    private static ObjectWriter writerFor(@NotNull Class<?> type) {
+        ObjectWriter writer = sWriters.get(type);
+        if (writer == null) {
+            writer = sMapper.writerFor(type);
+            ObjectWriter existing = sWriters.putIfAbsent(type, writer);
+            if (existing != null) {
+                writer = existing;
+            }
+        }
+        return writer;
+    }
 }
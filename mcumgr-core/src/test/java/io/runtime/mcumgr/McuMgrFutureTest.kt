@@ -0,0 +1,83 @@
+package io.runtime.mcumgr
+
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.managers.DefaultManager
+import io.runtime.mcumgr.managers.ImageManager
+import io.runtime.mcumgr.mock.device.SimulatedLink
+import io.runtime.mcumgr.mock.device.SimulatedTransport
+import io.runtime.mcumgr.response.img.McuMgrImageStateResponse
+import kotlinx.coroutines.TimeoutCancellationException
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Test
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class McuMgrFutureTest {
+
+    private val transports = List(10) {
+        SimulatedTransport(link = SimulatedLink(latencyMicros = 1_000))
+    }
+
+    @After
+    fun tearDown() {
+        transports.forEach { it.shutdown() }
+    }
+
+    @Test
+    fun `many concurrent requests do not use a thread each`() = runBlocking<Unit> {
+        val managers = transports.map { DefaultManager(it) }
+        // Start the threads of the simulated devices
+        managers.forEach { it.echoAsync("").await() }
+        val threads = Thread.activeCount()
+
+        // Everything runs on the single thread of runBlocking
+        val responses = (0 until 1_000).map { i ->
+            async { managers[i % managers.size].echoAsync("$i").await() }
+        }.awaitAll()
+
+        responses.forEachIndexed { i, response -> assertEquals("$i", response.r) }
+        assertTrue(Thread.activeCount() - threads < 5)
+    }
+
+    @Test
+    fun `future completes callbacks and get`() {
+        val future = ImageManager(transports[0]).listAsync()
+        assertEquals(1, future.get(1, TimeUnit.SECONDS).images.size)
+        assertTrue(future.isDone)
+
+        val called = CountDownLatch(1)
+        future.whenComplete(object : McuMgrCallback<McuMgrImageStateResponse> {
+            override fun onResponse(response: McuMgrImageStateResponse) = called.countDown()
+
+            override fun onError(error: McuMgrException) = Unit
+        })
+        assertEquals(0, called.count)
+    }
+
+    @Test
+    fun `cancelling the coroutine cancels the future`() = runBlocking<Unit> {
+        val transport = transports[0]
+        transport.link = SimulatedLink(loss = 1.0, timeoutMillis = 10_000)
+        val future = DefaultManager(transport).echoAsync("lost")
+        assertFailsWith<TimeoutCancellationException> {
+            withTimeout(100) { future.await() }
+        }
+        assertTrue(future.isCancelled)
+        assertFailsWith<CancellationException> { future.get() }
+    }
+
+    @Test
+    fun `transport errors are thrown`() = runBlocking<Unit> {
+        val transport = transports[0]
+        transport.link = SimulatedLink(loss = 1.0, timeoutMillis = 50)
+        assertFailsWith<McuMgrException> { DefaultManager(transport).echoAsync("lost").await() }
+    }
+}
@@ -1,9 +1,14 @@
 package io.runtime.mcumgr
 
 import io.runtime.mcumgr.image.McuMgrImage
+import io.runtime.mcumgr.transfer.UploadSource
+import org.junit.Assert.assertArrayEquals
 import org.junit.Test
 import java.io.ByteArrayOutputStream
+import java.io.File
 import java.io.InputStream
+import java.nio.ByteBuffer
+import java.security.MessageDigest
 
 class McuMgrImageTest {
 
@@ -23,6 +28,28 @@ class McuMgrImageTest {
         McuMgrImage.fromBytes(imageData)
     }
 
+    @Test
+    fun `get hash from source, matches parsed image`() {
+        for (name in listOf("slinky-no-prot-tlv.img", "slinky-prot-tlv.img")) {
+            val inputStream = this::class.java.classLoader?.getResourceAsStream(name)
+                ?: throw IllegalStateException("input stream is null")
+            val imageData = toByteArray(inputStream)
+            val file = File.createTempFile("image", ".img").apply {
+                deleteOnExit()
+                writeBytes(imageData)
+            }
+            val expected = McuMgrImage.fromBytes(imageData).hash
+            UploadSource.open(file).use { source ->
+                assertArrayEquals(expected, McuMgrImage.getHash(source))
+            }
+            assertArrayEquals(expected, McuMgrImage.getHash(UploadSource.map(file)))
+            assertArrayEquals(
+                MessageDigest.getInstance("SHA-256").digest(imageData),
+                McuMgrImage.getSha256(UploadSource.wrap(ByteBuffer.allocateDirect(imageData.size).put(imageData).apply { flip() }))
+            )
+        }
+    }
+
     private fun toByteArray(inputStream: InputStream): ByteArray {
         val os = ByteArrayOutputStream()
         val buffer = ByteArray(1024)
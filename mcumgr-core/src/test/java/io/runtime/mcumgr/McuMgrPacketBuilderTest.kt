@@ -0,0 +1,70 @@
+package io.runtime.mcumgr
+
+import io.runtime.mcumgr.util.CBOR
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class McuMgrPacketBuilderTest {
+
+    private val data = ByteArray(64) { it.toByte() }
+
+    @Test
+    fun `build ble packet, length back-patched`() {
+        val packet = McuMgrPacketBuilder(McuMgrScheme.BLE)
+            .begin(2, 0, 1, 7, 1)
+            .put("data", data, 16, 32)
+            .put("off", 16)
+            .build()
+
+        val header = McuMgrHeader.fromBytes(packet)
+        assertEquals(packet.size - McuMgrHeader.HEADER_LENGTH, header.len)
+        assertEquals(2, header.op)
+        assertEquals(1, header.groupId)
+        assertEquals(7, header.sequenceNum)
+        assertEquals(1, header.commandId)
+
+        val payload = packet.copyOfRange(McuMgrHeader.HEADER_LENGTH, packet.size)
+        assertArrayEquals(data.copyOfRange(16, 48), CBOR.getObject(payload, "data", ByteArray::class.java))
+        assertEquals(16, CBOR.getObject(payload, "off", Int::class.java))
+    }
+
+    @Test
+    fun `build coap packet, header contains payload length`() {
+        val packet = McuMgrPacketBuilder(McuMgrScheme.COAP_BLE)
+            .begin(2, 0, 8, 0, 0)
+            .put("name", "/lfs/file.txt")
+            .put("data", data, 0, data.size)
+            .put("off", 0)
+            .put("len", data.size)
+            .build()
+
+        val header = McuMgrHeader.fromBytes(CBOR.getObject(packet, "_h", ByteArray::class.java))
+        val withoutHeader = CBOR.toObjectMap(packet).apply { remove("_h") }
+        assertEquals(CBOR.toBytes(withoutHeader).size, header.len)
+        assertEquals(8, header.groupId)
+        assertEquals("/lfs/file.txt", withoutHeader["name"])
+    }
+
+    @Test
+    fun `build packet, matches map serialization`() {
+        val map = mapOf("d" to "Hello!", "n" to null, "confirm" to true)
+        val packet = McuManager.buildPacket(McuMgrScheme.BLE, 0, 0, 0, 0, 0, map)
+        val payload = packet.copyOfRange(McuMgrHeader.HEADER_LENGTH, packet.size)
+        assertEquals(map, CBOR.toObjectMap(payload))
+        assertEquals(payload.size, McuMgrHeader.fromBytes(packet).len)
+    }
+
+    @Test
+    fun `reuse builder, no state carried over`() {
+        val builder = McuMgrPacketBuilder(McuMgrScheme.BLE, 16)
+        val first = builder.begin(2, 0, 1, 0, 1).put("data", data, 0, data.size).build()
+        val second = builder.begin(0, 0, 0, 0, 0).put("d", "a").build()
+        assertEquals(first.size - 8, McuMgrHeader.fromBytes(first).len)
+        assertEquals(second.size - 8, McuMgrHeader.fromBytes(second).len)
+        val out = ByteArray(second.size + 4)
+        val length = builder.build(out, 4)
+        assertEquals(second.size, length)
+        assertArrayEquals(second, out.copyOfRange(4, out.size))
+    }
+}
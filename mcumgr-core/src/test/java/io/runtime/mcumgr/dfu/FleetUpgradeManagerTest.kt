@@ -0,0 +1,117 @@
+package io.runtime.mcumgr.dfu
+
+import io.runtime.mcumgr.McuMgrTransport
+import io.runtime.mcumgr.image.McuMgrImage
+import io.runtime.mcumgr.mock.device.SimulatedDevice
+import io.runtime.mcumgr.mock.device.SimulatedLink
+import io.runtime.mcumgr.mock.device.SimulatedTransport
+import org.junit.After
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
+import kotlin.test.assertTrue
+
+class FleetUpgradeManagerTest {
+
+    private val imageData = this::class.java.classLoader!!
+        .getResourceAsStream("slinky-no-prot-tlv.img")!!.use { it.readBytes() }
+    private val image = McuMgrImage.fromBytes(imageData)
+
+    private val transports = mutableListOf<SimulatedTransport>()
+
+    @After
+    fun tearDown() {
+        transports.forEach { it.shutdown() }
+    }
+
+    private fun transport(device: SimulatedDevice = SimulatedDevice()) =
+        SimulatedTransport(device, SimulatedLink(latencyMicros = 200)).also { transports.add(it) }
+
+    private class Callback : FleetUpgradeCallback {
+        val finished: MutableList<FleetUpgradeReport.DeviceResult> =
+            Collections.synchronizedList(mutableListOf())
+        var canarySuccess: Boolean? = null
+        var report: FleetUpgradeReport? = null
+        val done = CountDownLatch(1)
+
+        override fun onDeviceFinished(result: FleetUpgradeReport.DeviceResult) {
+            finished.add(result)
+        }
+
+        override fun onCanaryFinished(success: Boolean) {
+            canarySuccess = success
+        }
+
+        override fun onBatchFinished(report: FleetUpgradeReport) {
+            this.report = report
+            done.countDown()
+        }
+    }
+
+    @Test
+    fun `all devices are upgraded within the concurrency limit`() {
+        val fleet = List(6) { transport() }
+        val manager = FleetUpgradeManager(fleet.toList<McuMgrTransport>(), image).useTestClock()
+        manager.setConcurrency(2)
+        manager.setWindowUploadCapacity(3)
+
+        // A device is busy from its first request until it has been reset into the new image
+        var maxBusy = 0
+        val callback = Callback()
+        manager.start(callback)
+        while (!callback.done.await(1, TimeUnit.MILLISECONDS)) {
+            val busy = fleet.count { it.packetsSent.get() > 0 && it.device.boots < 2 }
+            maxBusy = maxOf(maxBusy, busy)
+        }
+        assertTrue(maxBusy in 1..2, "$maxBusy devices upgraded at once")
+
+        val report = assertNotNull(callback.report)
+        assertTrue(report.isSuccess, "$report")
+        assertEquals(6, callback.finished.size)
+        assertFalse(manager.isInProgress)
+        fleet.forEach { transport ->
+            assertTrue(imageData.contentEquals(transport.device.image(0)!!))
+        }
+
+        val times = report.totalStateTimes
+        for (state in listOf(
+            FirmwareUpgradeManager.State.VALIDATE, FirmwareUpgradeManager.State.UPLOAD,
+            FirmwareUpgradeManager.State.TEST, FirmwareUpgradeManager.State.RESET,
+            FirmwareUpgradeManager.State.CONFIRM
+        )) {
+            assertTrue(report.results.all { it.stateTimes.containsKey(state) }, "$state")
+        }
+        assertTrue(times.getValue(FirmwareUpgradeManager.State.UPLOAD) > 0)
+        report.results.forEach { result ->
+            assertTrue(result.stateTimes.values.sum() <= result.duration)
+        }
+    }
+
+    @Test
+    fun `failed canary skips the remaining devices`() {
+        // The slot of the canary is too small for the image
+        val canary = transport(SimulatedDevice(slotSize = 32 * 1024))
+        val fleet = listOf(canary, transport(), transport(), transport())
+        val manager = FleetUpgradeManager(fleet.toList<McuMgrTransport>(), image).useTestClock()
+        manager.setCanaryCount(1)
+
+        val callback = Callback()
+        manager.start(callback)
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS))
+
+        assertEquals(false, callback.canarySuccess)
+        val report = assertNotNull(callback.report)
+        val result = report.results[0]
+        assertTrue(result.isCanary)
+        assertEquals(FleetUpgradeReport.Outcome.FAILED, result.outcome)
+        assertEquals(FirmwareUpgradeManager.State.UPLOAD, result.failedState)
+        assertNotNull(result.error)
+        assertEquals(3, report.getCount(FleetUpgradeReport.Outcome.SKIPPED))
+        assertEquals(4, callback.finished.size)
+        fleet.drop(1).forEach { assertEquals(0, it.packetsSent.get()) }
+    }
+}
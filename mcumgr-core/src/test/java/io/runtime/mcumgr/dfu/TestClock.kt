@@ -0,0 +1,20 @@
+package io.runtime.mcumgr.dfu
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * A clock available in unit tests, which run without the Android SystemClock.
+ */
+private val testClock = FirmwareUpgradeManager.Clock {
+    TimeUnit.NANOSECONDS.toMillis(System.nanoTime())
+}
+
+/**
+ * Replaces the clock of the manager with one available in unit tests.
+ */
+fun FirmwareUpgradeManager.useTestClock() = apply { setClock(testClock) }
+
+/**
+ * Replaces the clock of the managers of the devices with one available in unit tests.
+ */
+fun FleetUpgradeManager.useTestClock() = apply { setClock(testClock) }
@@ -3,27 +3,69 @@ package io.runtime.mcumgr.mock
 import io.runtime.mcumgr.McuMgrCallback
 import io.runtime.mcumgr.McuMgrErrorCode
 import io.runtime.mcumgr.McuMgrHeader
+import io.runtime.mcumgr.McuMgrMtuProvider
 import io.runtime.mcumgr.McuMgrScheme
+import io.runtime.mcumgr.McuMgrTransferProfile
 import io.runtime.mcumgr.McuMgrTransport
+import io.runtime.mcumgr.exception.InsufficientMtuException
 import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.mock.handlers.MockFsHandler
+import io.runtime.mcumgr.mock.handlers.MockImageHandler
 import io.runtime.mcumgr.mock.handlers.MockStatsHandler
 import io.runtime.mcumgr.response.McuMgrResponse
 import io.runtime.mcumgr.util.CBOR
 import java.util.concurrent.Executor
 import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
 
 class MockMcuMgrTransport(
     private val statsHandler: MockStatsHandler? = null,
-    private val handlerOverrides: List<OverrideHandler> = listOf()
-): McuMgrTransport {
+    private val fsHandler: MockFsHandler? = null,
+    private val imageHandler: MockImageHandler? = null,
+    private val handlerOverrides: List<OverrideHandler> = listOf(),
+    private val maxPacketLength: Int = 0,
+    private val reportMaxPacketLength: Boolean = true,
+    private val gate: Semaphore? = null
+): McuMgrTransport, McuMgrMtuProvider, McuMgrTransferProfile {
+
+    /**
+     * The number of packets rejected as longer than [maxPacketLength].
+     */
+    @Volatile
+    var rejectedPackets = 0
+        private set
+
+    /**
+     * The number of transfers started and finished.
+     */
+    val transfersStarted = AtomicInteger()
+    val transfersFinished = AtomicInteger()
 
     private val executor: Executor = Executors.newSingleThreadExecutor()
 
+    override fun onTransferStarted() {
+        transfersStarted.incrementAndGet()
+    }
+
+    override fun onTransferFinished() {
+        transfersFinished.incrementAndGet()
+    }
+
     override fun getScheme(): McuMgrScheme {
         return McuMgrScheme.COAP_BLE
     }
 
+    override fun getMaxPacketLength(): Int =
+        if (reportMaxPacketLength) maxPacketLength else 0
+
     override fun <T : McuMgrResponse?> send(payload: ByteArray, responseType: Class<T>): T {
+        // Each request takes a permit, so a test can stop the device from answering
+        gate?.acquire()
+        if (maxPacketLength > 0 && payload.size > maxPacketLength) {
+            rejectedPackets++
+            throw InsufficientMtuException(payload.size, maxPacketLength)
+        }
         val rawHeader = CBOR.getObject(payload, "_h", ByteArray::class.java)
         val header = McuMgrHeader.fromBytes(rawHeader)
 
@@ -38,6 +80,10 @@ class MockMcuMgrTransport(
         return when (header.groupId) {
             McuMgrGroup.STATS.value -> statsHandler?.handle(header, payload, responseType) ?:
                 buildMockErrorResponse(McuMgrErrorCode.NOT_SUPPORTED, header.toResponse(), responseType)
+            McuMgrGroup.IMAGE.value -> imageHandler?.handle(header, payload, responseType) ?:
+                buildMockErrorResponse(McuMgrErrorCode.NOT_SUPPORTED, header.toResponse(), responseType)
+            McuMgrGroup.FS.value -> fsHandler?.handle(header, payload, responseType) ?:
+                buildMockErrorResponse(McuMgrErrorCode.NOT_SUPPORTED, header.toResponse(), responseType)
             else -> buildMockErrorResponse(McuMgrErrorCode.NOT_SUPPORTED, header.toResponse(), responseType)
         }
     }
@@ -0,0 +1,465 @@
+package io.runtime.mcumgr.mock.device
+
+import io.runtime.mcumgr.McuManager
+import io.runtime.mcumgr.McuMgrErrorCode
+import io.runtime.mcumgr.McuMgrHeader
+import io.runtime.mcumgr.McuMgrScheme
+import io.runtime.mcumgr.image.McuMgrImage
+import io.runtime.mcumgr.mock.McuMgrGroup
+import io.runtime.mcumgr.mock.McuMgrOperation
+import io.runtime.mcumgr.mock.handlers.MockStatsHandler
+import io.runtime.mcumgr.util.CBOR
+import java.io.ByteArrayOutputStream
+import java.security.MessageDigest
+
+/**
+ * An SMP server, as run by an Apache Mynewt or Zephyr device with MCUboot, implementing the
+ * default, image, stats, log, crash and fs groups.
+ *
+ * Images are uploaded into slot 1 of a [SimulatedFlash]. Marking the image for test or
+ * confirmation and resetting swaps the slots, as MCUboot does; a tested image which has not been
+ * confirmed is reverted on the next reset. Files are kept in memory.
+ *
+ * Packets are processed one at a time, as by the single SMP thread of a device. The device itself
+ * does not keep time: [process] returns the response with the time spent writing to flash, which
+ * the [SimulatedTransport] adds to its processing time.
+ */
+class SimulatedDevice(
+    initialImage: ByteArray = "initial image".toByteArray(),
+    val slotSize: Int = 256 * 1024,
+    /** The largest packet the device can receive, and its buffer for responses. */
+    val bufferSize: Int = 1024,
+    val flash: SimulatedFlash = SimulatedFlash(2 * slotSize),
+    val files: MutableMap<String, ByteArray> = mutableMapOf(),
+    private val stats: Map<String, Map<String, Long>> =
+        MockStatsHandler.group1Stats + MockStatsHandler.group2Stats + MockStatsHandler.group3Stats
+) {
+
+    /**
+     * The result of processing a request.
+     */
+    class Result(
+        /** The response, or null if the device has crashed. */
+        val response: ByteArray?,
+        /** The time spent erasing and writing flash, in microseconds. */
+        val flashTime: Long,
+        /** True if the device resets after sending the response. */
+        val reset: Boolean
+    )
+
+    private class Slot(
+        var length: Int = 0,
+        var hash: ByteArray = ByteArray(0),
+        var version: String = "0.0.0",
+        var confirmed: Boolean = false,
+        var pending: Boolean = false,
+        var permanent: Boolean = false
+    )
+
+    private class LogEntry(val index: Long, val timestamp: Long, val level: Int, val message: String)
+
+    private val slots = arrayOf(Slot(), Slot())
+    private var upload: Upload? = null
+    private val fileUploads = mutableMapOf<String, ByteArrayOutputStream>()
+    private val log = mutableListOf<LogEntry>()
+    private var nextLogIndex = 0L
+    private var datetime = "1970-01-01T00:00:00.000000"
+
+    /** The number of times the device has booted. */
+    var boots = 0
+        private set
+
+    /** The number of crashes caused by the crash group. */
+    var crashes = 0
+        private set
+
+    private class Upload(val length: Int, val sha: ByteArray?) {
+        var offset = 0
+    }
+
+    init {
+        require(initialImage.size <= slotSize) { "Initial image larger than a slot" }
+        flash.erase(0, slotSize)
+        flash.write(0, initialImage)
+        flash.takePendingTime()
+        slots[0].apply {
+            length = initialImage.size
+            confirmed = true
+            describe(initialImage)
+        }
+        boot()
+    }
+
+    /**
+     * The image in the given slot, or null if the slot is empty.
+     */
+    @Synchronized
+    fun image(slot: Int): ByteArray? =
+        slots[slot].length.takeIf { it > 0 }?.let { flash.read(slot * slotSize, it) }
+
+    /**
+     * Processes a plain SMP request.
+     */
+    @Synchronized
+    fun process(request: ByteArray): Result {
+        val header = McuMgrHeader.fromBytes(request)
+        val payload = request.copyOfRange(McuMgrHeader.HEADER_LENGTH, request.size)
+        val map = if (payload.isEmpty()) emptyMap() else CBOR.toObjectMap(payload)
+        var reset = false
+        val response: Map<String, Any?>? = when (header.groupId) {
+            McuMgrGroup.DEFAULT.value -> handleDefault(header, map).also {
+                reset = header.commandId == ID_RESET
+            }
+            McuMgrGroup.IMAGE.value -> handleImage(header, map)
+            McuMgrGroup.STATS.value -> handleStats(header, map)
+            McuMgrGroup.LOGS.value -> handleLogs(header, map)
+            McuMgrGroup.CRASH.value -> handleCrash(map)
+            McuMgrGroup.FS.value -> handleFs(header, map)
+            else -> error(McuMgrErrorCode.NOT_SUPPORTED)
+        }
+        val packet = response?.let {
+            McuManager.buildPacket(
+                McuMgrScheme.BLE,
+                header.op + 1, header.flags, header.groupId, header.sequenceNum,
+                header.commandId, it
+            )
+        }
+        return Result(packet, flash.takePendingTime(), reset)
+    }
+
+    /**
+     * Reboots the device: MCUboot swaps the images if requested, or reverts an image which has
+     * been tested but not confirmed.
+     *
+     * @return The time spent swapping images, in microseconds.
+     */
+    @Synchronized
+    fun boot(): Long {
+        val slot0 = slots[0]
+        val slot1 = slots[1]
+        if (slot1.pending) {
+            swap()
+            slots[0].confirmed = slots[0].permanent
+            slots[0].pending = false
+            slots[0].permanent = false
+        } else if (!slot0.confirmed && slot1.length > 0) {
+            // Revert the image which has not been confirmed
+            swap()
+            slots[0].confirmed = true
+        }
+        slots[1].pending = false
+        slots[1].permanent = false
+        slots[1].confirmed = false
+        upload = null
+        boots++
+        appendLog(LOG_LEVEL_INFO, "Booted image ${slots[0].version}")
+        return flash.takePendingTime()
+    }
+
+    //******************************************************************
+    // Default group
+    //******************************************************************
+
+    private fun handleDefault(header: McuMgrHeader, request: Map<String, Any?>): Map<String, Any?> {
+        return when (header.commandId) {
+            ID_ECHO -> mapOf("r" to request["d"])
+            ID_CONS_ECHO_CTRL, ID_RESET -> ok()
+            ID_TASKSTATS -> mapOf("rc" to 0, "tasks" to mapOf(
+                "idle" to task(0, 255, 64), "main" to task(1, 127, 512)
+            ))
+            ID_MPSTATS -> mapOf("rc" to 0, "mpools" to mapOf(
+                "msys_1" to mapOf("blksiz" to 292, "nblks" to 12, "nfree" to 12, "min" to 10)
+            ))
+            ID_DATETIME_STR -> if (header.op == McuMgrOperation.READ.value) {
+                mapOf("rc" to 0, "datetime" to datetime)
+            } else {
+                datetime = request["datetime"] as? String ?: return error(McuMgrErrorCode.IN_VALUE)
+                ok()
+            }
+            else -> error(McuMgrErrorCode.NOT_SUPPORTED)
+        }
+    }
+
+    private fun task(id: Int, priority: Int, stackSize: Int) = mapOf(
+        "prio" to priority, "tid" to id, "state" to 1, "stkuse" to stackSize / 4,
+        "stksiz" to stackSize, "cswcnt" to 0, "runtime" to 0, "last_checkin" to 0,
+        "next_checkin" to 0
+    )
+
+    //******************************************************************
+    // Image group
+    //******************************************************************
+
+    private fun handleImage(header: McuMgrHeader, request: Map<String, Any?>): Map<String, Any?> =
+        when (header.commandId) {
+            ID_IMAGE_STATE -> if (header.op == McuMgrOperation.READ.value) {
+                imageState()
+            } else {
+                setImageState(request)
+            }
+            ID_IMAGE_UPLOAD -> upload(request)
+            ID_IMAGE_ERASE -> if (slots[1].pending) {
+                error(McuMgrErrorCode.BAD_STATE)
+            } else {
+                flash.erase(slotSize, slotSize)
+                slots[1] = Slot()
+                upload = null
+                ok()
+            }
+            else -> error(McuMgrErrorCode.NOT_SUPPORTED)
+        }
+
+    private fun imageState(): Map<String, Any?> = mapOf(
+        "rc" to 0,
+        "splitStatus" to 0,
+        "images" to slots.withIndex().filter { it.value.length > 0 }.map { (index, slot) ->
+            mapOf(
+                "slot" to index,
+                "version" to slot.version,
+                "hash" to slot.hash,
+                "bootable" to true,
+                "pending" to slot.pending,
+                "confirmed" to slot.confirmed,
+                "active" to (index == 0),
+                "permanent" to slot.permanent
+            )
+        }
+    )
+
+    private fun setImageState(request: Map<String, Any?>): Map<String, Any?> {
+        val hash = request["hash"] as? ByteArray
+        val confirm = request["confirm"] as? Boolean ?: false
+        when {
+            hash == null || hash.contentEquals(slots[0].hash) -> {
+                if (!confirm) return error(McuMgrErrorCode.IN_VALUE)
+                slots[0].confirmed = true
+            }
+            slots[1].length > 0 && upload == null && hash.contentEquals(slots[1].hash) -> {
+                slots[1].pending = true
+                slots[1].permanent = confirm
+            }
+            else -> return error(McuMgrErrorCode.IN_VALUE)
+        }
+        return imageState()
+    }
+
+    /**
+     * Writes the chunk into slot 1. An upload starting from offset 0 with the hash of an
+     * interrupted upload continues from the offset of that upload, and chunks which do not
+     * continue the image are answered with the offset expected next.
+     */
+    private fun upload(request: Map<String, Any?>): Map<String, Any?> {
+        val offset = (request["off"] as? Number)?.toInt() ?: return error(McuMgrErrorCode.IN_VALUE)
+        val data = request["data"] as? ByteArray ?: return error(McuMgrErrorCode.IN_VALUE)
+        if (slots[1].pending) {
+            return error(McuMgrErrorCode.BAD_STATE)
+        }
+        if (offset == 0) {
+            val sha = request["sha"] as? ByteArray
+            val length = (request["len"] as? Number)?.toInt() ?: return error(McuMgrErrorCode.IN_VALUE)
+            if (length > slotSize) {
+                return error(McuMgrErrorCode.NO_MEMORY)
+            }
+            val current = upload
+            if (current != null && sha != null && current.sha?.contentEquals(sha) == true &&
+                current.length == length && current.offset > 0) {
+                // Resume the interrupted upload
+                return mapOf("rc" to 0, "off" to current.offset)
+            }
+            flash.erase(slotSize, length)
+            slots[1] = Slot()
+            upload = Upload(length, sha)
+        }
+        val current = upload ?: return error(McuMgrErrorCode.BAD_STATE)
+        if (offset == current.offset && offset + data.size <= current.length) {
+            flash.write(slotSize + offset, data)
+            current.offset += data.size
+            if (current.offset == current.length) {
+                upload = null
+                slots[1].length = current.length
+                slots[1].describe(flash.read(slotSize, current.length))
+            }
+        }
+        return mapOf("rc" to 0, "off" to current.offset)
+    }
+
+    private fun swap() {
+        val image0 = flash.read(0, slots[0].length)
+        val image1 = flash.read(slotSize, slots[1].length)
+        flash.erase(0, 2 * slotSize)
+        flash.write(0, image1)
+        flash.write(slotSize, image0)
+        val slot0 = slots[0]
+        slots[0] = slots[1]
+        slots[1] = slot0
+    }
+
+    /**
+     * Reads the hash and version of the image, as MCUboot does. Data which is not an MCUboot
+     * image gets the SHA-256 of its contents as hash.
+     */
+    private fun Slot.describe(image: ByteArray) {
+        try {
+            val parsed = McuMgrImage.fromBytes(image)
+            hash = parsed.hash
+            val v = parsed.header.version
+            version = "${v.major}.${v.minor}.${v.revision}"
+        } catch (e: Exception) {
+            hash = MessageDigest.getInstance("SHA-256").digest(image)
+            version = "0.0.0"
+        }
+    }
+
+    //******************************************************************
+    // Stats group
+    //******************************************************************
+
+    private fun handleStats(header: McuMgrHeader, request: Map<String, Any?>): Map<String, Any?> {
+        return when (header.commandId) {
+            ID_STATS_READ -> {
+                val name = request["name"] as? String
+                val fields = stats[name] ?: return error(McuMgrErrorCode.NO_ENTRY)
+                mapOf("rc" to 0, "name" to name, "fields" to fields)
+            }
+            ID_STATS_LIST -> mapOf("rc" to 0, "stat_list" to stats.keys.toList())
+            else -> error(McuMgrErrorCode.NOT_SUPPORTED)
+        }
+    }
+
+    //******************************************************************
+    // Log group
+    //******************************************************************
+
+    private fun handleLogs(header: McuMgrHeader, request: Map<String, Any?>): Map<String, Any?> {
+        return when (header.commandId) {
+            ID_LOG_READ -> {
+                val name = request["log_name"] as? String
+                if (name != null && name != LOG_NAME) {
+                    return error(McuMgrErrorCode.NO_ENTRY)
+                }
+                val index = (request["index"] as? Number)?.toLong() ?: 0
+                // Fill the response buffer, leaving room for the header and the map
+                var size = 64
+                val entries = log.asSequence().filter { it.index >= index }.takeWhile {
+                    size += it.message.length + 48
+                    size <= bufferSize
+                }.toList()
+                mapOf(
+                    "rc" to 0,
+                    "next_index" to (entries.lastOrNull()?.index?.plus(1) ?: nextLogIndex),
+                    "logs" to listOf(mapOf(
+                        "name" to LOG_NAME,
+                        "type" to 0,
+                        "entries" to entries.map {
+                            mapOf(
+                                "msg" to it.message.toByteArray(), "ts" to it.timestamp,
+                                "level" to it.level, "index" to it.index, "module" to 0,
+                                "type" to "str"
+                            )
+                        }
+                    ))
+                )
+            }
+            ID_LOG_CLEAR -> {
+                log.clear()
+                ok()
+            }
+            ID_LOG_MODULE_LIST -> mapOf("rc" to 0, "module_map" to mapOf("DEFAULT" to 0))
+            ID_LOG_LEVEL_LIST -> mapOf("rc" to 0, "level_map" to mapOf(
+                "DEBUG" to 0, "INFO" to 1, "WARN" to 2, "ERROR" to 3, "CRITICAL" to 4
+            ))
+            ID_LOG_LIST -> mapOf("rc" to 0, "log_list" to listOf(LOG_NAME))
+            else -> error(McuMgrErrorCode.NOT_SUPPORTED)
+        }
+    }
+
+    private fun appendLog(level: Int, message: String) {
+        log.add(LogEntry(nextLogIndex++, System.currentTimeMillis() * 1000, level, message))
+    }
+
+    //******************************************************************
+    // Crash group
+    //******************************************************************
+
+    /**
+     * Crashes the device on a valid crash test: there is no response and the device reboots.
+     */
+    private fun handleCrash(request: Map<String, Any?>): Map<String, Any?>? {
+        val test = request["t"] as? String
+        if (test !in CRASH_TESTS) {
+            return error(McuMgrErrorCode.IN_VALUE)
+        }
+        crashes++
+        appendLog(LOG_LEVEL_CRITICAL, "Crash test: $test")
+        return null
+    }
+
+    //******************************************************************
+    // File system group
+    //******************************************************************
+
+    private fun handleFs(header: McuMgrHeader, request: Map<String, Any?>): Map<String, Any?> {
+        if (header.commandId != ID_FS_FILE) {
+            return error(McuMgrErrorCode.NOT_SUPPORTED)
+        }
+        val name = request["name"] as? String ?: return error(McuMgrErrorCode.IN_VALUE)
+        val offset = (request["off"] as? Number)?.toInt() ?: return error(McuMgrErrorCode.IN_VALUE)
+        if (header.op == McuMgrOperation.READ.value) {
+            val file = files[name] ?: return error(McuMgrErrorCode.NO_ENTRY)
+            if (offset > file.size) {
+                return error(McuMgrErrorCode.IN_VALUE)
+            }
+            val end = minOf(offset + bufferSize - FS_RESPONSE_OVERHEAD, file.size)
+            return mutableMapOf<String, Any?>(
+                "rc" to 0, "off" to offset, "data" to file.copyOfRange(offset, end)
+            ).apply {
+                if (offset == 0) put("len", file.size)
+            }
+        }
+        val data = request["data"] as? ByteArray ?: return error(McuMgrErrorCode.IN_VALUE)
+        if (offset == 0) {
+            val length = (request["len"] as? Number)?.toInt() ?: return error(McuMgrErrorCode.IN_VALUE)
+            fileUploads[name] = ByteArrayOutputStream(length)
+        }
+        val upload = fileUploads[name] ?: return error(McuMgrErrorCode.IN_VALUE)
+        if (offset == upload.size()) {
+            upload.write(data)
+            files[name] = upload.toByteArray()
+        }
+        return mapOf("rc" to 0, "off" to upload.size())
+    }
+
+    private fun ok(): Map<String, Any?> = mapOf("rc" to 0)
+
+    private fun error(code: McuMgrErrorCode): Map<String, Any?> = mapOf("rc" to code.value())
+
+    private companion object {
+        const val ID_ECHO = 0
+        const val ID_CONS_ECHO_CTRL = 1
+        const val ID_TASKSTATS = 2
+        const val ID_MPSTATS = 3
+        const val ID_DATETIME_STR = 4
+        const val ID_RESET = 5
+
+        const val ID_IMAGE_STATE = 0
+        const val ID_IMAGE_UPLOAD = 1
+        const val ID_IMAGE_ERASE = 5
+
+        const val ID_STATS_READ = 0
+        const val ID_STATS_LIST = 1
+
+        const val ID_LOG_READ = 0
+        const val ID_LOG_CLEAR = 1
+        const val ID_LOG_MODULE_LIST = 3
+        const val ID_LOG_LEVEL_LIST = 4
+        const val ID_LOG_LIST = 5
+        const val LOG_NAME = "log"
+        const val LOG_LEVEL_INFO = 1
+        const val LOG_LEVEL_CRITICAL = 4
+
+        const val ID_FS_FILE = 0
+        const val FS_RESPONSE_OVERHEAD = 64
+
+        val CRASH_TESTS = setOf("div0", "jump0", "ref0", "assert", "wdog")
+    }
+}
@@ -0,0 +1,187 @@
+package io.runtime.mcumgr.mock.device
+
+import io.runtime.mcumgr.McuMgrTransport
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.managers.CrashManager
+import io.runtime.mcumgr.managers.DefaultManager
+import io.runtime.mcumgr.managers.FsManager
+import io.runtime.mcumgr.managers.ImageManager
+import io.runtime.mcumgr.managers.LogManager
+import io.runtime.mcumgr.managers.StatsManager
+import io.runtime.mcumgr.mock.handlers.MockStatsHandler
+import io.runtime.mcumgr.transfer.TransferEvent
+import io.runtime.mcumgr.transfer.UploadCallback
+import io.runtime.mcumgr.transfer.UploadSource
+import io.runtime.mcumgr.transfer.downloadEvents
+import io.runtime.mcumgr.transfer.uploadEvents
+import io.runtime.mcumgr.transfer.windowUpload
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.last
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.security.MessageDigest
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class SimulatedDeviceTest {
+
+    private val image = Random(0).nextBytes(40_000)
+    private val hash = MessageDigest.getInstance("SHA-256").digest(image)
+
+    private var transport = SimulatedTransport()
+
+    @After
+    fun tearDown() {
+        transport.shutdown()
+    }
+
+    @Test
+    fun `groups respond like a device`() {
+        val defaultManager = DefaultManager(transport)
+        assertEquals("Hello", defaultManager.echo("Hello").r)
+        assertTrue(defaultManager.taskstats().tasks.containsKey("main"))
+        assertEquals(12, defaultManager.mpstat().mpools["msys_1"]!!.nblks)
+
+        val statsManager = StatsManager(transport)
+        assertEquals(3, statsManager.list().stat_list.size)
+        assertEquals(
+            MockStatsHandler.stat1Value,
+            statsManager.read(MockStatsHandler.GROUP1_NAME).fields[MockStatsHandler.stat1Name]
+        )
+
+        val logManager = LogManager(transport)
+        assertEquals(listOf("log"), logManager.logsList().log_list.toList())
+        assertEquals(1, logManager.show(null, null, null).logs[0].entries.size)
+
+        assertEquals(1, ImageManager(transport).list().images.size)
+    }
+
+    @Test
+    fun `crash disconnects and reboots the device`() {
+        val disconnected = CountDownLatch(1)
+        transport.addObserver(object : McuMgrTransport.ConnectionObserver {
+            override fun onConnected() = Unit
+            override fun onDisconnected() = disconnected.countDown()
+        })
+        val result = runCatching { CrashManager(transport).test(CrashManager.Test.DIV_0) }
+        assertTrue(result.exceptionOrNull() is McuMgrException)
+        assertTrue(disconnected.await(1, TimeUnit.SECONDS))
+        assertEquals(1, transport.device.crashes)
+        assertEquals(2, transport.device.boots)
+    }
+
+    @Test
+    fun `image is uploaded over a lossy link, tested and reverted`() = runBlocking {
+        transport = SimulatedTransport(
+            link = SimulatedLink(
+                latencyMicros = 500, jitterMicros = 200, loss = 0.02,
+                processingMicros = 100, timeoutMillis = 100
+            )
+        )
+        val imageManager = ImageManager(transport)
+        upload(imageManager)
+        assertArrayEquals(image, transport.device.image(1))
+        assertTrue(transport.packetsLost.get() > 0)
+
+        // Test the image and reset, MCUboot swaps it into slot 0
+        transport.link = SimulatedLink()
+        imageManager.test(hash)
+        reset()
+        val tested = imageManager.list().images
+        assertArrayEquals(hash, tested[0].hash)
+        assertFalse(tested[0].confirmed)
+
+        // Without confirmation the previous image is restored
+        reset()
+        val reverted = imageManager.list().images
+        assertFalse(hash.contentEquals(reverted[0].hash))
+        assertTrue(reverted[0].confirmed)
+    }
+
+    @Test
+    fun `flash is erased before writing`() {
+        val flash = SimulatedFlash(8192, sectorSize = 4096, sectorEraseMicros = 100)
+        flash.erase(4000, 200)
+        assertEquals(2, flash.sectorsErased)
+        assertEquals(200, flash.takePendingTime())
+        flash.write(0, byteArrayOf(0x0F))
+        assertTrue(runCatching { flash.write(0, byteArrayOf(0xF0.toByte())) }.isFailure)
+    }
+
+    /**
+     * With a single request in flight every chunk of the image takes a round trip of the link.
+     * A window of 4 sends the next chunks while waiting, so they share the round trips. The
+     * overlap is measured with the round trips counted by the transport, not the time taken, so
+     * the result does not depend on the load of the machine running the tests.
+     */
+    @Test
+    fun `window upload shares round trips`() = runBlocking {
+        val packetsPerRoundTrip = listOf(1, 4).map { window ->
+            transport.shutdown()
+            transport = SimulatedTransport(
+                link = SimulatedLink(
+                    latencyMicros = 7_500, jitterMicros = 2_000, mtu = 498,
+                    bandwidth = 100_000, processingMicros = 500
+                )
+            )
+            upload(ImageManager(transport), window)
+            assertArrayEquals(image, transport.device.image(1))
+            transport.packetsSent.get().toDouble() / transport.roundTrips.get()
+        }
+        assertEquals(1.0, packetsPerRoundTrip[0], 0.0)
+        assertTrue(
+            "Packets per round trip with a window of 4: ${packetsPerRoundTrip[1]}",
+            packetsPerRoundTrip[1] >= 2.0
+        )
+    }
+
+    @Test
+    fun `file is uploaded and downloaded`() = runBlocking {
+        val fsManager = FsManager(transport)
+        val file = Random(1).nextBytes(5_000)
+        val uploaded = fsManager
+            .uploadEvents("/lfs/file", UploadSource.wrap(file), windowCapacity = 3)
+            .last()
+        assertEquals(TransferEvent.Completed(), uploaded)
+        assertArrayEquals(file, transport.device.files["/lfs/file"])
+
+        val downloaded = fsManager.downloadEvents("/lfs/file", windowCapacity = 3).last()
+        assertEquals(TransferEvent.Completed(file), downloaded)
+    }
+
+    private suspend fun upload(imageManager: ImageManager, window: Int = 3) {
+        val result = Channel<Any>(Channel.CONFLATED)
+        imageManager.windowUpload(image, window, object : UploadCallback {
+            override fun onUploadProgressChanged(current: Int, total: Int, timestamp: Long) = Unit
+            override fun onUploadFailed(error: McuMgrException) {
+                result.offer(error)
+            }
+            override fun onUploadCanceled() {
+                result.offer("canceled")
+            }
+            override fun onUploadCompleted() {
+                result.offer(Unit)
+            }
+        })
+        assertEquals(Unit, withTimeout(20_000) { result.receive() })
+    }
+
+    private fun reset() {
+        val disconnected = CountDownLatch(1)
+        val observer = object : McuMgrTransport.ConnectionObserver {
+            override fun onConnected() = Unit
+            override fun onDisconnected() = disconnected.countDown()
+        }
+        transport.addObserver(observer)
+        DefaultManager(transport).reset()
+        assertTrue(disconnected.await(1, TimeUnit.SECONDS))
+        transport.removeObserver(observer)
+    }
+}
@@ -0,0 +1,89 @@
+package io.runtime.mcumgr.mock.device
+
+/**
+ * NOR flash: erased bytes read 0xFF, a write can only clear bits, so a range must be erased,
+ * a whole sector at a time, before it is written again.
+ *
+ * Erasing and writing take time, which is added to [pendingTime] for the simulated device to
+ * spend before responding.
+ */
+class SimulatedFlash(
+    val size: Int,
+    val sectorSize: Int = 4096,
+    /** The time to erase a sector, in microseconds. */
+    private val sectorEraseMicros: Long = 0,
+    /** The time to write a kilobyte, in microseconds. */
+    private val writeMicrosPerKb: Long = 0
+) {
+    private val data = ByteArray(size) { ERASED }
+
+    init {
+        require(size % sectorSize == 0) { "Size must be a multiple of the sector size" }
+    }
+
+    /** The number of sectors erased. */
+    var sectorsErased = 0L
+        private set
+
+    /** The number of bytes written. */
+    var bytesWritten = 0L
+        private set
+
+    /** The time spent erasing and writing since the last call to [takePendingTime], in µs. */
+    var pendingTime = 0L
+        private set
+
+    /**
+     * Erases the sectors overlapping the given range.
+     */
+    @Synchronized
+    fun erase(offset: Int, length: Int) {
+        checkRange(offset, length)
+        if (length == 0) return
+        val first = offset / sectorSize
+        val last = (offset + length - 1) / sectorSize
+        data.fill(ERASED, first * sectorSize, (last + 1) * sectorSize)
+        sectorsErased += last - first + 1
+        pendingTime += (last - first + 1) * sectorEraseMicros
+    }
+
+    /**
+     * Writes the bytes at the given offset.
+     *
+     * @throws IllegalStateException if a bit would be set which has not been erased.
+     */
+    @Synchronized
+    fun write(offset: Int, bytes: ByteArray, from: Int = 0, length: Int = bytes.size - from) {
+        checkRange(offset, length)
+        for (i in 0 until length) {
+            val current = data[offset + i].toInt()
+            val value = bytes[from + i].toInt()
+            check(current and value == value) { "Writing to flash at ${offset + i} before erase" }
+            data[offset + i] = value.toByte()
+        }
+        bytesWritten += length
+        pendingTime += length * writeMicrosPerKb / 1024
+    }
+
+    @Synchronized
+    fun read(offset: Int, length: Int): ByteArray {
+        checkRange(offset, length)
+        return data.copyOfRange(offset, offset + length)
+    }
+
+    /**
+     * Returns and resets the time spent erasing and writing, in microseconds.
+     */
+    @Synchronized
+    fun takePendingTime(): Long = pendingTime.also { pendingTime = 0 }
+
+    private fun checkRange(offset: Int, length: Int) {
+        require(offset >= 0 && length >= 0 && offset + length <= size) {
+            "Range $offset+$length out of flash of $size bytes"
+        }
+    }
+
+    private companion object {
+        const val ERASED = 0xFF.toByte()
+    }
+}
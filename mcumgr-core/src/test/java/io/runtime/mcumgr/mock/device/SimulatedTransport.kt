@@ -0,0 +1,310 @@
+package io.runtime.mcumgr.mock.device
+
+import io.runtime.mcumgr.McuMgrCallback
+import io.runtime.mcumgr.McuMgrMtuProvider
+import io.runtime.mcumgr.McuMgrScheme
+import io.runtime.mcumgr.McuMgrTransferProfile
+import io.runtime.mcumgr.McuMgrTransport
+import io.runtime.mcumgr.exception.InsufficientMtuException
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.exception.McuMgrTimeoutException
+import io.runtime.mcumgr.response.McuMgrResponse
+import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.max
+
+/**
+ * The properties of the link between the phone and a [SimulatedDevice].
+ */
+data class SimulatedLink(
+    /** The one way delay of a packet, in microseconds. */
+    val latencyMicros: Long = 0,
+    /** The maximum random variation of the delay, in microseconds. */
+    val jitterMicros: Long = 0,
+    /** The probability of losing a packet, in either direction, from 0 to 1. */
+    val loss: Double = 0.0,
+    /** The largest packet accepted by the transport, as reported to the managers. */
+    val mtu: Int = 515,
+    /** The bytes transferred per second in each direction, or 0 for no limit. */
+    val bandwidth: Long = 0,
+    /** The time the device spends on each request, in addition to flash access, in µs. */
+    val processingMicros: Long = 0,
+    /** The time the device takes to reboot, in microseconds. */
+    val bootMicros: Long = 0,
+    /** The time to wait for a response before the request fails, in milliseconds. */
+    val timeoutMillis: Long = 5_000,
+    /** The seed of the random delays and losses, so runs can be repeated. */
+    val seed: Long = 0
+)
+
+/**
+ * A transport connected to a [SimulatedDevice] over a [SimulatedLink], so transfers can be tested
+ * and benchmarked without a radio.
+ *
+ * Packets travel through the link with its latency, jitter and bandwidth, and may be lost, in
+ * which case the request times out. The device processes the requests one at a time on its own
+ * thread, taking the processing time of the link and the time spent on flash. Responses are
+ * delivered on a separate link thread, possibly out of order when the link has jitter.
+ *
+ * After a reset command the device disconnects and reboots; a crash disconnects without a response.
+ * The transport connects again on [connect] or with the next request.
+ */
+class SimulatedTransport(
+    val device: SimulatedDevice = SimulatedDevice(),
+    @Volatile var link: SimulatedLink = SimulatedLink()
+) : McuMgrTransport, McuMgrMtuProvider, McuMgrTransferProfile {
+
+    private val random = Random(link.seed)
+    private val deviceThread = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "SimulatedDevice").apply { isDaemon = true }
+    }
+    private val linkThread = Executors.newSingleThreadScheduledExecutor { runnable ->
+        Thread(runnable, "SimulatedLink").apply { isDaemon = true }
+    }
+    private val observers = CopyOnWriteArrayList<McuMgrTransport.ConnectionObserver>()
+    private val pending = ConcurrentHashMap<Long, Pending<*>>()
+    private val nextId = AtomicLong()
+
+    // Guarded by this; times from System.nanoTime(), which may be negative
+    private var connected = false
+    private var uplinkFreeAt = System.nanoTime()
+    private var downlinkFreeAt = uplinkFreeAt
+    // Booting after a reset or crash, the device does not receive requests until then
+    private var bootedAt = uplinkFreeAt
+
+    /** The number of requests and responses sent over the link. */
+    val packetsSent = AtomicLong()
+    val packetsReceived = AtomicLong()
+
+    /** The number of bytes of requests and responses sent over the link. */
+    val bytesSent = AtomicLong()
+    val bytesReceived = AtomicLong()
+
+    /** The number of packets lost, in either direction. */
+    val packetsLost = AtomicLong()
+
+    /**
+     * The number of requests sent while no other request was awaiting a response, each starting
+     * a new round trip of the link. Requests sent within the same round trip share its latency.
+     */
+    val roundTrips = AtomicLong()
+
+    /** The number of transfers started, see [McuMgrTransferProfile]. */
+    val transfersStarted = AtomicLong()
+
+    private inner class Pending<T : McuMgrResponse?>(
+        val responseType: Class<T>,
+        val callback: McuMgrCallback<T>
+    ) {
+        @Volatile var timeout: ScheduledFuture<*>? = null
+
+        fun deliver(data: ByteArray) {
+            val response = try {
+                McuMgrResponse.buildResponse(McuMgrScheme.BLE, data, responseType)
+            } catch (e: Exception) {
+                callback.onError(McuMgrException(e))
+                return
+            }
+            callback.onResponse(response)
+        }
+    }
+
+    override fun getScheme(): McuMgrScheme = McuMgrScheme.BLE
+
+    override fun getMaxPacketLength(): Int = link.mtu
+
+    override fun onTransferStarted() {
+        transfersStarted.incrementAndGet()
+    }
+
+    override fun onTransferFinished() = Unit
+
+    override fun <T : McuMgrResponse?> send(payload: ByteArray, responseType: Class<T>): T {
+        val latch = CountDownLatch(1)
+        var result: T? = null
+        var error: McuMgrException? = null
+        send(payload, responseType, object : McuMgrCallback<T> {
+            override fun onResponse(response: T) {
+                result = response
+                latch.countDown()
+            }
+
+            override fun onError(e: McuMgrException) {
+                error = e
+                latch.countDown()
+            }
+        })
+        latch.await()
+        error?.let { throw it }
+        @Suppress("UNCHECKED_CAST")
+        return result as T
+    }
+
+    override fun <T : McuMgrResponse?> send(
+        payload: ByteArray,
+        responseType: Class<T>,
+        callback: McuMgrCallback<T>
+    ) {
+        val link = link
+        if (payload.size > link.mtu) {
+            callback.onError(InsufficientMtuException(payload.size, link.mtu))
+            return
+        }
+        connect(null)
+        val id = nextId.incrementAndGet()
+        val request = Pending(responseType, callback)
+        if (pending.isEmpty()) {
+            roundTrips.incrementAndGet()
+        }
+        pending[id] = request
+        request.timeout = linkThread.schedule({
+            if (pending.remove(id) != null) {
+                callback.onError(McuMgrTimeoutException())
+            }
+        }, link.timeoutMillis, TimeUnit.MILLISECONDS)
+
+        packetsSent.incrementAndGet()
+        bytesSent.addAndGet(payload.size.toLong())
+        if (lost(link)) {
+            return
+        }
+        val arrival = synchronized(this) {
+            val now = System.nanoTime()
+            uplinkFreeAt = latest(uplinkFreeAt, now) + transmissionTime(link, payload.size)
+            latest(uplinkFreeAt + delay(link), bootedAt)
+        }
+        deviceThread.schedule({ process(id, payload) }, arrival - System.nanoTime(), TimeUnit.NANOSECONDS)
+    }
+
+    private fun process(id: Long, request: ByteArray) {
+        // A request which has timed out is still processed, but is lost on disconnection
+        if (!synchronized(this) { connected }) {
+            return
+        }
+        val link = link
+        val result = device.process(request)
+        spend(link.processingMicros + result.flashTime)
+
+        val response = result.response
+        if (response == null) {
+            // Crashed
+            reboot(link)
+            return
+        }
+        if (lost(link)) {
+            return
+        }
+        val delivery = synchronized(this) {
+            val now = System.nanoTime()
+            downlinkFreeAt = latest(downlinkFreeAt, now) + transmissionTime(link, response.size)
+            downlinkFreeAt + delay(link)
+        }
+        linkThread.schedule({
+            val request = pending.remove(id) ?: return@schedule
+            request.timeout?.cancel(false)
+            packetsReceived.incrementAndGet()
+            bytesReceived.addAndGet(response.size.toLong())
+            request.deliver(response)
+            if (result.reset) {
+                deviceThread.execute { reboot(link) }
+            }
+        }, delivery - System.nanoTime(), TimeUnit.NANOSECONDS)
+    }
+
+    /**
+     * Disconnects and reboots the device, which is not available before it has booted.
+     */
+    private fun reboot(link: SimulatedLink) {
+        val bootTime = link.bootMicros + device.boot()
+        synchronized(this) {
+            bootedAt = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(bootTime)
+        }
+        disconnect(McuMgrException("Device disconnected"))
+    }
+
+    override fun connect(callback: McuMgrTransport.ConnectionCallback?) {
+        val wasConnected = synchronized(this) {
+            connected.also { connected = true }
+        }
+        if (!wasConnected) {
+            observers.forEach { it.onConnected() }
+        }
+        callback?.onConnected()
+    }
+
+    override fun release() {
+        disconnect(McuMgrException("Transport released"))
+    }
+
+    /**
+     * Stops the device and link threads. The transport cannot be used afterwards.
+     */
+    fun shutdown() {
+        release()
+        deviceThread.shutdownNow()
+        linkThread.shutdownNow()
+    }
+
+    private fun disconnect(e: McuMgrException) {
+        val wasConnected = synchronized(this) {
+            connected.also { connected = false }
+        }
+        pending.keys.forEach { id ->
+            pending.remove(id)?.let {
+                it.timeout?.cancel(false)
+                it.callback.onError(e)
+            }
+        }
+        if (wasConnected) {
+            observers.forEach { it.onDisconnected() }
+        }
+    }
+
+    override fun addObserver(observer: McuMgrTransport.ConnectionObserver) {
+        observers.add(observer)
+    }
+
+    override fun removeObserver(observer: McuMgrTransport.ConnectionObserver) {
+        observers.remove(observer)
+    }
+
+    private fun lost(link: SimulatedLink): Boolean {
+        val lost = link.loss > 0 && synchronized(random) { random.nextDouble() } < link.loss
+        if (lost) {
+            packetsLost.incrementAndGet()
+        }
+        return lost
+    }
+
+    /** Returns the latency with a random jitter, in nanoseconds. */
+    private fun delay(link: SimulatedLink): Long {
+        val jitter = if (link.jitterMicros > 0) {
+            synchronized(random) { random.nextLong() % (link.jitterMicros + 1) }
+        } else 0
+        return TimeUnit.MICROSECONDS.toNanos(max(link.latencyMicros + jitter, 0))
+    }
+
+    private fun latest(time1: Long, time2: Long): Long = if (time1 - time2 > 0) time1 else time2
+
+    /** Returns the time to transmit the given number of bytes, in nanoseconds. */
+    private fun transmissionTime(link: SimulatedLink, bytes: Int): Long =
+        if (link.bandwidth > 0) TimeUnit.SECONDS.toNanos(bytes.toLong()) / link.bandwidth else 0
+
+    /** Keeps the device thread busy for the given time, in microseconds. */
+    private fun spend(micros: Long) {
+        if (micros <= 0) return
+        val end = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros)
+        while (true) {
+            val remaining = end - System.nanoTime()
+            if (remaining <= 0) break
+            LockSupport.parkNanos(remaining)
+        }
+    }
+}
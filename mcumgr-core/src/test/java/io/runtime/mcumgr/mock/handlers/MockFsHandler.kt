@@ -0,0 +1,97 @@
+package io.runtime.mcumgr.mock.handlers
+
+import io.runtime.mcumgr.McuMgrErrorCode
+import io.runtime.mcumgr.McuMgrHeader
+import io.runtime.mcumgr.mock.McuMgrErrorResponse
+import io.runtime.mcumgr.mock.McuMgrHandler
+import io.runtime.mcumgr.mock.McuMgrOperation
+import io.runtime.mcumgr.mock.buildMockResponse
+import io.runtime.mcumgr.mock.toResponse
+import io.runtime.mcumgr.response.McuMgrResponse
+import io.runtime.mcumgr.util.CBOR
+import java.io.ByteArrayOutputStream
+
+enum class McuMgrFsCommand(val value: Int) {
+    FILE(0)
+}
+
+/**
+ * Handles file uploads into and downloads from an in-memory file system.
+ */
+class MockFsHandler(
+    val files: MutableMap<String, ByteArray> = mutableMapOf(),
+    private val downloadChunkSize: (offset: Int) -> Int = { 128 }
+) : McuMgrHandler {
+
+    private val uploads = mutableMapOf<String, ByteArrayOutputStream>()
+
+    override fun <T : McuMgrResponse?> handle(
+        header: McuMgrHeader,
+        payload: ByteArray,
+        responseType: Class<T>
+    ): T {
+        if (header.commandId != McuMgrFsCommand.FILE.value) {
+            throw IllegalArgumentException("Unimplemented command with ID ${header.commandId}")
+        }
+        return when (header.op) {
+            McuMgrOperation.WRITE.value -> handleUploadRequest(header, payload, responseType)
+            McuMgrOperation.READ.value -> handleDownloadRequest(header, payload, responseType)
+            else -> throw IllegalArgumentException("Unimplemented operation ${header.op}")
+        }
+    }
+
+    /**
+     * Handle a file upload request. Chunks which do not continue the file are rejected by
+     * responding with the offset expected next.
+     */
+    private fun <T : McuMgrResponse?> handleUploadRequest(
+        header: McuMgrHeader,
+        payload: ByteArray,
+        responseType: Class<T>
+    ): T {
+        val request = CBOR.toObjectMap(payload)
+        val name = request["name"] as String
+        val offset = (request["off"] as Number).toInt()
+        val data = request["data"] as ByteArray
+        if (offset == 0) {
+            uploads[name] = ByteArrayOutputStream((request["len"] as Number).toInt())
+        }
+        val upload = uploads[name]
+        val response = when {
+            upload == null -> McuMgrErrorResponse(McuMgrErrorCode.IN_VALUE)
+            offset != upload.size() -> mapOf("rc" to 0, "off" to upload.size())
+            else -> {
+                upload.write(data)
+                files[name] = upload.toByteArray()
+                mapOf("rc" to 0, "off" to upload.size())
+            }
+        }
+        return buildMockResponse(header.toResponse(), CBOR.toBytes(response), responseType)
+    }
+
+    /**
+     * Handle a file download request.
+     */
+    private fun <T : McuMgrResponse?> handleDownloadRequest(
+        header: McuMgrHeader,
+        payload: ByteArray,
+        responseType: Class<T>
+    ): T {
+        val request = CBOR.toObjectMap(payload)
+        val file = files[request["name"] as String]
+        val offset = (request["off"] as Number).toInt()
+        val response = if (file == null || offset > file.size) {
+            McuMgrErrorResponse(McuMgrErrorCode.IN_VALUE)
+        } else {
+            val end = minOf(offset + downloadChunkSize(offset), file.size)
+            mutableMapOf<String, Any>(
+                "rc" to 0,
+                "off" to offset,
+                "data" to file.copyOfRange(offset, end)
+            ).apply {
+                if (offset == 0) put("len", file.size)
+            }
+        }
+        return buildMockResponse(header.toResponse(), CBOR.toBytes(response), responseType)
+    }
+}
@@ -0,0 +1,87 @@
+package io.runtime.mcumgr.mock.handlers
+
+import io.runtime.mcumgr.McuMgrHeader
+import io.runtime.mcumgr.mock.McuMgrHandler
+import io.runtime.mcumgr.mock.McuMgrOperation
+import io.runtime.mcumgr.mock.buildMockResponse
+import io.runtime.mcumgr.mock.toResponse
+import io.runtime.mcumgr.response.McuMgrResponse
+import io.runtime.mcumgr.util.CBOR
+import java.io.ByteArrayOutputStream
+
+enum class McuMgrImageCommand(val value: Int) {
+    UPLOAD(1)
+}
+
+/**
+ * Handles image uploads like Apache Mynewt and Zephyr devices do: an upload starting from offset
+ * 0 with the hash of an interrupted upload continues from the offset of that upload, and chunks
+ * which do not continue the image are answered with the offset expected next.
+ */
+class MockImageHandler : McuMgrHandler {
+
+    private var upload: ByteArrayOutputStream? = null
+    private var uploadSha: ByteArray? = null
+
+    /**
+     * The image uploaded so far.
+     */
+    val image: ByteArray?
+        @Synchronized get() = upload?.toByteArray()
+
+    /**
+     * The offsets of the received upload requests.
+     */
+    val offsets: MutableList<Int> = mutableListOf()
+
+    /**
+     * Drops the interrupted upload, as a device reset does.
+     */
+    @Synchronized
+    fun reset() {
+        upload = null
+        uploadSha = null
+    }
+
+    @Synchronized
+    override fun <T : McuMgrResponse?> handle(
+        header: McuMgrHeader,
+        payload: ByteArray,
+        responseType: Class<T>
+    ): T {
+        if (header.commandId != McuMgrImageCommand.UPLOAD.value ||
+            header.op != McuMgrOperation.WRITE.value) {
+            throw IllegalArgumentException("Unimplemented command with ID ${header.commandId}")
+        }
+        val request = CBOR.toObjectMap(payload)
+        val offset = (request["off"] as Number).toInt()
+        val data = request["data"] as ByteArray
+        offsets.add(offset)
+        if (offset == 0) {
+            val sha = request["sha"] as ByteArray?
+            val current = upload
+            if (current == null || sha == null || !sha.contentEquals(uploadSha ?: byteArrayOf())) {
+                upload = ByteArrayOutputStream((request["len"] as Number).toInt())
+                uploadSha = sha
+            } else if (current.size() > 0) {
+                // Resume the interrupted upload
+                return response(header, current.size(), responseType)
+            }
+        }
+        val current = upload ?: return response(header, 0, responseType)
+        if (offset == current.size()) {
+            current.write(data)
+        }
+        return response(header, current.size(), responseType)
+    }
+
+    private fun <T : McuMgrResponse?> response(
+        header: McuMgrHeader,
+        offset: Int,
+        responseType: Class<T>
+    ): T = buildMockResponse(
+        header.toResponse(),
+        CBOR.toBytes(mapOf("rc" to 0, "off" to offset)),
+        responseType
+    )
+}
@@ -3,8 +3,13 @@ package io.runtime.mcumgr.response;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.Arrays;
 
+import io.runtime.mcumgr.McuMgrHeader;
+import io.runtime.mcumgr.McuMgrPacketBuilder;
 import io.runtime.mcumgr.McuMgrScheme;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.response.fs.McuMgrFsDownloadResponse;
 import io.runtime.mcumgr.response.img.McuMgrImageStateResponse;
 
 import static org.junit.Assert.*;
@@ -254,6 +259,56 @@ public class McuMgrResponseTest {
         assertEquals(0, response.splitStatus);
     }
 
+    @Test
+    public void buildResponse_offset() throws IOException, McuMgrException {
+        final byte[] packet = McuMgrPacketBuilder.obtain(McuMgrScheme.BLE)
+                .begin(1, 0, 1, 3, 0)
+                .put("splitStatus", 2)
+                .build();
+        final byte[] data = new byte[packet.length + 6];
+        System.arraycopy(packet, 0, data, 4, packet.length);
+
+        McuMgrImageStateResponse response = McuMgrResponse.buildResponse(McuMgrScheme.BLE,
+                data, 4, packet.length, McuMgrImageStateResponse.class);
+        assertEquals(2, response.splitStatus);
+        assertNotNull(response.getHeader());
+        assertEquals(3, response.getHeader().getSequenceNum());
+        assertArrayEquals(packet, response.getBytes());
+        assertArrayEquals(Arrays.copyOfRange(packet, McuMgrHeader.HEADER_LENGTH, packet.length),
+                response.getPayload());
+    }
+
+    @Test
+    public void buildResponse_download_bytes() throws IOException, McuMgrException {
+        final byte[] packet = McuMgrPacketBuilder.obtain(McuMgrScheme.BLE)
+                .begin(1, 0, 8, 0, 0)
+                .put("off", 0)
+                .put("data", new byte[]{1, 2, 3})
+                .put("len", 3)
+                .build();
+
+        McuMgrFsDownloadResponse response = McuMgrResponse.buildResponse(McuMgrScheme.BLE,
+                packet, McuMgrFsDownloadResponse.class);
+        // The packet is not retained, so changing it does not change the response
+        Arrays.fill(packet, (byte) 0);
+        assertArrayEquals(new byte[]{1, 2, 3}, response.data);
+        assertEquals(3, response.len);
+
+        // The bytes are encoded again from the decoded fields
+        byte[] bytes = response.getBytes();
+        assertNotNull(bytes);
+        McuMgrHeader header = McuMgrHeader.fromBytes(bytes);
+        assertEquals(8, header.getGroupId());
+        assertEquals(bytes.length - McuMgrHeader.HEADER_LENGTH, header.getLen());
+        McuMgrFsDownloadResponse decoded = McuMgrResponse.buildResponse(McuMgrScheme.BLE,
+                bytes, McuMgrFsDownloadResponse.class);
+        assertArrayEquals(new byte[]{1, 2, 3}, decoded.data);
+        assertEquals(0, decoded.off);
+        assertEquals(3, decoded.len);
+        assertArrayEquals(Arrays.copyOfRange(bytes, McuMgrHeader.HEADER_LENGTH, bytes.length),
+                response.getPayload());
+    }
+
     @Test
     public void getExpectedLength_full() throws IOException {
         final byte[] data = {(byte) 0x01, (byte) 0x00, (byte) 0x00, (byte) 0x79, (byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x00,
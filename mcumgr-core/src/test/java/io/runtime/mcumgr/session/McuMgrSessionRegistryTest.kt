@@ -0,0 +1,118 @@
+package io.runtime.mcumgr.session
+
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.mock.device.SimulatedLink
+import io.runtime.mcumgr.mock.device.SimulatedTransport
+import io.runtime.mcumgr.transfer.UploadCallback
+import org.junit.After
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class McuMgrSessionRegistryTest {
+
+    private val registry = McuMgrSessionRegistry(2)
+    private val transports = List(6) {
+        SimulatedTransport(link = SimulatedLink(latencyMicros = 200))
+    }
+
+    @After
+    fun tearDown() {
+        registry.shutdownNow()
+        transports.forEach { it.shutdown() }
+    }
+
+    @Test
+    fun `sessions and managers are reused per transport`() {
+        val session = registry.get(transports[0])
+        assertSame(session, registry.get(transports[0]))
+        assertSame(session.imageManager, session.imageManager)
+        assertNotSame(session, registry.get(transports[1]))
+        assertEquals(2, registry.sessions.size)
+
+        registry.remove(transports[0])
+        assertNotSame(session, registry.get(transports[0]))
+    }
+
+    @Test
+    fun `transfers of all devices share the thread pool`() {
+        val images = transports.map { Random(it.hashCode()).nextBytes(5_000) }
+        val threads = Collections.synchronizedSet(mutableSetOf<String>())
+        val failures = AtomicInteger()
+        val done = CountDownLatch(transports.size)
+        transports.forEachIndexed { i, transport ->
+            val session = registry.get(transport)
+            session.imageManager.imageUpload(images[i], session.track(object : UploadCallback {
+                override fun onUploadProgressChanged(current: Int, total: Int, timestamp: Long) {
+                    threads.add(Thread.currentThread().name)
+                }
+
+                override fun onUploadFailed(error: McuMgrException) {
+                    failures.incrementAndGet()
+                    done.countDown()
+                }
+
+                override fun onUploadCanceled() = done.countDown()
+                override fun onUploadCompleted() = done.countDown()
+            }))
+        }
+        assertTrue(done.await(20, TimeUnit.SECONDS))
+        assertEquals(0, failures.get())
+        assertTrue(threads.size <= 2, "$threads")
+        assertTrue(threads.all { it.startsWith("McuMgrTransfer-") }, "$threads")
+
+        transports.forEachIndexed { i, transport ->
+            assertTrue(images[i].contentEquals(transport.device.image(1)!!))
+            assertEquals(5_000, registry.get(transport).bytesTransferred)
+        }
+        assertEquals(30_000, registry.bytesTransferred)
+        assertEquals(0, registry.activeTransferCount)
+        assertTrue(registry.throughput > 0)
+    }
+
+    @Test
+    fun `shut down registry rejects sessions and transfers`() {
+        val session = registry.get(transports[0])
+        registry.shutdown()
+        assertTrue(registry.awaitTermination(1, TimeUnit.SECONDS))
+        assertFailsWith<IllegalStateException> { registry.get(transports[0]) }
+
+        val failed = CountDownLatch(1)
+        session.imageManager.imageUpload(ByteArray(100), object : UploadCallback {
+            override fun onUploadProgressChanged(current: Int, total: Int, timestamp: Long) = Unit
+            override fun onUploadFailed(error: McuMgrException) = failed.countDown()
+            override fun onUploadCanceled() = Unit
+            override fun onUploadCompleted() = Unit
+        })
+        assertTrue(failed.await(1, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun `transfers dropped on shutdown now fail`() {
+        // The uploads of 2 devices run, the others are queued and dropped
+        val dropped = CountDownLatch(transports.size - 2)
+        transports.forEach { transport ->
+            transport.link = SimulatedLink(latencyMicros = 20_000)
+            registry.get(transport).imageManager.imageUpload(ByteArray(50_000), object : UploadCallback {
+                override fun onUploadProgressChanged(current: Int, total: Int, timestamp: Long) = Unit
+                override fun onUploadFailed(error: McuMgrException) {
+                    if (error.message == "Transfer executor has been shut down") {
+                        dropped.countDown()
+                    }
+                }
+                override fun onUploadCanceled() = Unit
+                override fun onUploadCompleted() = Unit
+            })
+        }
+        registry.shutdownNow()
+        assertTrue(dropped.await(1, TimeUnit.SECONDS))
+    }
+}
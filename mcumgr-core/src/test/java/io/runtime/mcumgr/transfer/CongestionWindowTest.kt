@@ -0,0 +1,60 @@
+package io.runtime.mcumgr.transfer
+
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.TimeUnit
+
+class CongestionWindowTest {
+
+    private var now = 0L
+    private val window = CongestionWindow(8) { now }
+
+    @Test
+    fun `slow start grows to capacity`() = runBlocking {
+        assertEquals(1, window.size)
+        repeat(3) { roundTrip(10) }
+        assertEquals(8, window.size)
+        assertEquals(10, window.rtt)
+    }
+
+    @Test
+    fun `loss halves window once per event`() = runBlocking {
+        repeat(3) { roundTrip(10) }
+        val sends = (1..8).map { window.acquire(); window.onSend() }
+
+        // All requests sent before the first loss belong to the same event.
+        sends.forEach { window.onLoss(it) }
+
+        assertEquals(4, window.size)
+    }
+
+    @Test
+    fun `timeout shrinks window to one`() = runBlocking {
+        repeat(3) { roundTrip(10) }
+        window.acquire()
+        window.onTimeout(window.onSend())
+
+        assertEquals(1, window.size)
+    }
+
+    @Test
+    fun `queuing delay stops growth`() = runBlocking {
+        roundTrip(10)
+        // Every additional request in flight adds 10 ms of delay.
+        repeat(10) { roundTrip(10 * window.size.toLong()) }
+
+        // The window settles where about two requests are queuing, well below capacity.
+        assertTrue(window.size in 2..3)
+    }
+
+    /**
+     * Sends a full window of requests, acknowledged after the given number of milliseconds.
+     */
+    private suspend fun roundTrip(rttMillis: Long) {
+        val sends = (1..window.size).map { window.acquire(); window.onSend() }
+        now += TimeUnit.MILLISECONDS.toNanos(rttMillis)
+        sends.forEach { window.onAck(it) }
+    }
+}
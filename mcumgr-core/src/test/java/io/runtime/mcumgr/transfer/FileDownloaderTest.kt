@@ -0,0 +1,135 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.managers.FsManager
+import io.runtime.mcumgr.mock.MockMcuMgrTransport
+import io.runtime.mcumgr.mock.handlers.MockFsHandler
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import kotlin.random.Random
+
+private const val FILE_NAME = "/lfs/log.txt"
+
+class FileDownloaderTest {
+
+    private val data = Random(0).nextBytes(5000)
+
+    @Test
+    fun `window download success`() = runBlocking {
+        val fsHandler = MockFsHandler(mutableMapOf(FILE_NAME to data))
+        val fsManager = FsManager(MockMcuMgrTransport(fsHandler = fsHandler))
+        val result = Channel<Any>(Channel.CONFLATED)
+
+        fsManager.windowDownload(FILE_NAME, 4, result.asCallback())
+
+        assertArrayEquals(data, withTimeout(5000) { result.receive() } as ByteArray)
+    }
+
+    @Test
+    fun `window download short responses, gaps requested`() = runBlocking {
+        // The first response is longer than the following ones, so the predicted offsets
+        // leave gaps which must be requested again.
+        val fsHandler = MockFsHandler(mutableMapOf(FILE_NAME to data)) { offset ->
+            if (offset == 0) 128 else 100
+        }
+        val fsManager = FsManager(MockMcuMgrTransport(fsHandler = fsHandler))
+        val result = Channel<Any>(Channel.CONFLATED)
+
+        fsManager.windowDownload(FILE_NAME, 4, result.asCallback())
+
+        assertArrayEquals(data, withTimeout(5000) { result.receive() } as ByteArray)
+    }
+
+    @Test
+    fun `window download empty file`() = runBlocking {
+        val fsHandler = MockFsHandler(mutableMapOf(FILE_NAME to ByteArray(0)))
+        val fsManager = FsManager(MockMcuMgrTransport(fsHandler = fsHandler))
+        val result = Channel<Any>(Channel.CONFLATED)
+
+        fsManager.windowDownload(FILE_NAME, 4, result.asCallback())
+
+        assertArrayEquals(ByteArray(0), withTimeout(5000) { result.receive() } as ByteArray)
+    }
+
+    @Test
+    fun `window download into sink, resumed from file`() = runBlocking {
+        val fsHandler = MockFsHandler(mutableMapOf(FILE_NAME to data)) { offset ->
+            if (offset == 0) 128 else 100
+        }
+        val fsManager = FsManager(MockMcuMgrTransport(fsHandler = fsHandler))
+        val result = Channel<Any>(Channel.CONFLATED)
+        // A previous download has been interrupted after 1000 bytes.
+        val file = File.createTempFile("download", ".bin").apply {
+            deleteOnExit()
+            writeBytes(data.copyOf(1000))
+        }
+
+        DownloadSink.append(file).use { sink ->
+            assertEquals(1000, sink.committedOffset)
+            fsManager.windowDownload(FILE_NAME, sink, 4, result.asSinkCallback())
+            assertEquals(Unit, withTimeout(5000) { result.receive() })
+            assertEquals(data.size, sink.committedOffset)
+        }
+        assertArrayEquals(data, file.readBytes())
+    }
+
+    @Test
+    fun `file download into stream sink`() = runBlocking {
+        val fsHandler = MockFsHandler(mutableMapOf(FILE_NAME to data))
+        val fsManager = FsManager(MockMcuMgrTransport(fsHandler = fsHandler))
+        val result = Channel<Any>(Channel.CONFLATED)
+        val out = ByteArrayOutputStream()
+        val sink = DownloadSink.wrap(out)
+
+        fsManager.fileDownload(FILE_NAME, sink, result.asSinkCallback())
+
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertEquals(data.size, sink.committedOffset)
+        assertArrayEquals(data, out.toByteArray())
+    }
+
+    @Test
+    fun `file download into stream sink, resumed`() = runBlocking {
+        val fsHandler = MockFsHandler(mutableMapOf(FILE_NAME to data))
+        val fsManager = FsManager(MockMcuMgrTransport(fsHandler = fsHandler))
+        val result = Channel<Any>(Channel.CONFLATED)
+        val out = ByteArrayOutputStream().apply { write(data, 0, 3000) }
+
+        fsManager.fileDownload(FILE_NAME, DownloadSink.wrap(out, out.size()), result.asSinkCallback())
+
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertArrayEquals(data, out.toByteArray())
+    }
+
+    private fun Channel<Any>.asSinkCallback() = object : SinkDownloadCallback {
+        override fun onDownloadProgressChanged(current: Int, total: Int, timestamp: Long) {}
+        override fun onDownloadFailed(error: McuMgrException) {
+            offer(error)
+        }
+        override fun onDownloadCanceled() {
+            offer("canceled")
+        }
+        override fun onDownloadCompleted() {
+            offer(Unit)
+        }
+    }
+
+    private fun Channel<Any>.asCallback() = object : DownloadCallback {
+        override fun onDownloadProgressChanged(current: Int, total: Int, timestamp: Long) {}
+        override fun onDownloadFailed(error: McuMgrException) {
+            offer(error)
+        }
+        override fun onDownloadCanceled() {
+            offer("canceled")
+        }
+        override fun onDownloadCompleted(data: ByteArray) {
+            offer(data)
+        }
+    }
+}
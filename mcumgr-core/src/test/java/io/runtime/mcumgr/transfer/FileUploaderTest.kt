@@ -0,0 +1,171 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.managers.FsManager
+import io.runtime.mcumgr.mock.MockMcuMgrTransport
+import io.runtime.mcumgr.mock.handlers.MockFsHandler
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.concurrent.Semaphore
+import kotlin.random.Random
+
+private const val FILE_NAME = "/lfs/config.bin"
+
+class FileUploaderTest {
+
+    private val data = Random(0).nextBytes(5000)
+
+    @Test
+    fun `window upload success`() = runBlocking {
+        val fsHandler = MockFsHandler()
+        val fsManager = FsManager(MockMcuMgrTransport(fsHandler = fsHandler))
+        val result = Channel<Any>(Channel.CONFLATED)
+
+        fsManager.windowUpload(FILE_NAME, data, 3, result.asCallback())
+
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertArrayEquals(data, fsHandler.files[FILE_NAME])
+    }
+
+    @Test
+    fun `window upload paused and resumed`() = runBlocking {
+        val fsHandler = MockFsHandler()
+        // The device stops answering after 4 chunks, until the upload is paused
+        val gate = Semaphore(4)
+        val fsManager = FsManager(
+            MockMcuMgrTransport(fsHandler = fsHandler, maxPacketLength = 256, gate = gate)
+        )
+        val result = Channel<Any>(Channel.CONFLATED)
+        val progress = Channel<Int>(Channel.UNLIMITED)
+
+        val controller = fsManager.windowUpload(FILE_NAME, data, 3, result.asCallback(progress))
+        withTimeout(5000) {
+            while (progress.receive() == 0) {
+                // Wait for the first chunk
+            }
+        }
+        controller.pause()
+        gate.release(Int.MAX_VALUE / 2)
+        // Let the requests in flight complete, then check that no more chunks are sent
+        delay(200)
+        while (progress.poll() != null) {
+            // Drop the progress of the requests in flight
+        }
+        val uploaded = fsHandler.files[FILE_NAME]!!.size
+        assertTrue(uploaded < data.size)
+        delay(200)
+        assertNull(progress.poll())
+        assertEquals(uploaded, fsHandler.files[FILE_NAME]!!.size)
+        assertNull(result.poll())
+
+        controller.resume()
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertArrayEquals(data, fsHandler.files[FILE_NAME])
+    }
+
+    @Test
+    fun `window upload from file source success`() = runBlocking {
+        val fsHandler = MockFsHandler()
+        val fsManager = FsManager(MockMcuMgrTransport(fsHandler = fsHandler))
+        val result = Channel<Any>(Channel.CONFLATED)
+        val file = File.createTempFile("upload", ".bin").apply {
+            deleteOnExit()
+            writeBytes(data)
+        }
+
+        UploadSource.open(file).use { source ->
+            fsManager.windowUpload(FILE_NAME, source, 3, result.asCallback())
+            assertEquals(Unit, withTimeout(5000) { result.receive() })
+        }
+        assertArrayEquals(data, fsHandler.files[FILE_NAME])
+    }
+
+    @Test
+    fun `file upload from buffer source success`() = runBlocking {
+        val fsHandler = MockFsHandler()
+        val fsManager = FsManager(MockMcuMgrTransport(fsHandler = fsHandler))
+        val result = Channel<Any>(Channel.CONFLATED)
+        val buffer = ByteBuffer.allocateDirect(data.size).put(data).apply { flip() }
+
+        fsManager.fileUpload(FILE_NAME, UploadSource.wrap(buffer), result.asCallback())
+
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertArrayEquals(data, fsHandler.files[FILE_NAME])
+    }
+
+    @Test
+    fun `window upload sized to transport mtu`() = runBlocking {
+        val fsHandler = MockFsHandler()
+        val transport = MockMcuMgrTransport(fsHandler = fsHandler, maxPacketLength = 100)
+        val fsManager = FsManager(transport)
+        val result = Channel<Any>(Channel.CONFLATED)
+
+        assertEquals(100, fsManager.mtu)
+        fsManager.windowUpload(FILE_NAME, data, 3, result.asCallback())
+
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertArrayEquals(data, fsHandler.files[FILE_NAME])
+        assertEquals(0, transport.rejectedPackets)
+    }
+
+    @Test
+    fun `window upload, mtu lowered without restart`() = runBlocking {
+        val fsHandler = MockFsHandler()
+        val transport = MockMcuMgrTransport(
+            fsHandler = fsHandler,
+            maxPacketLength = 100,
+            reportMaxPacketLength = false
+        )
+        val fsManager = FsManager(transport)
+        val result = Channel<Any>(Channel.CONFLATED)
+
+        fsManager.windowUpload(FILE_NAME, data, 3, result.asCallback())
+
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertArrayEquals(data, fsHandler.files[FILE_NAME])
+        // Only the chunks sized for the initial MTU are rejected.
+        assertTrue(transport.rejectedPackets in 1..3)
+    }
+
+    @Test
+    fun `file upload, mtu lowered without restart`() = runBlocking {
+        val fsHandler = MockFsHandler()
+        val transport = MockMcuMgrTransport(
+            fsHandler = fsHandler,
+            maxPacketLength = 100,
+            reportMaxPacketLength = false
+        )
+        val fsManager = FsManager(transport)
+        val result = Channel<Any>(Channel.CONFLATED)
+
+        fsManager.fileUpload(FILE_NAME, data, result.asCallback())
+
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertArrayEquals(data, fsHandler.files[FILE_NAME])
+        assertTrue(fsManager.mtu <= 100)
+    }
+
+    private fun Channel<Any>.asCallback(progress: Channel<Int>? = null) = object : UploadCallback {
+        override fun onUploadProgressChanged(current: Int, total: Int, timestamp: Long) {
+            progress?.offer(current)
+        }
+        override fun onUploadFailed(error: McuMgrException) {
+            offer(error)
+        }
+        override fun onUploadCanceled() {
+            offer("canceled")
+        }
+        override fun onUploadCompleted() {
+            offer(Unit)
+        }
+    }
+}
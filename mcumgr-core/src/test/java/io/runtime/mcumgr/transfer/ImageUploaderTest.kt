@@ -0,0 +1,111 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.managers.ImageManager
+import io.runtime.mcumgr.mock.MockMcuMgrTransport
+import io.runtime.mcumgr.mock.handlers.MockImageHandler
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.Semaphore
+import kotlin.random.Random
+
+class ImageUploaderTest {
+
+    private val data = Random(0).nextBytes(5000)
+
+    @Test
+    fun `window upload resumes from device offset`() = runBlocking {
+        val imageHandler = MockImageHandler()
+        val imageManager = ImageManager(MockMcuMgrTransport(imageHandler = imageHandler))
+
+        interrupt(imageHandler, data)
+        val resumed = imageHandler.image!!.size
+        imageHandler.offsets.clear()
+
+        val result = Channel<Any>(Channel.CONFLATED)
+        imageManager.windowUpload(data, 3, result.asCallback())
+
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertArrayEquals(data, imageHandler.image)
+        // The hash sent with the first chunk identifies the interrupted upload.
+        assertEquals(0, imageHandler.offsets.first())
+        assertTrue(imageHandler.offsets.drop(1).all { it >= resumed })
+    }
+
+    @Test
+    fun `window upload restarts over partial upload of another image`() = runBlocking {
+        val imageHandler = MockImageHandler()
+        val imageManager = ImageManager(MockMcuMgrTransport(imageHandler = imageHandler))
+
+        // The device holds an interrupted upload of a different image
+        val other = Random(1).nextBytes(data.size)
+        interrupt(imageHandler, other)
+        assertTrue(imageHandler.image!!.size > 0)
+        imageHandler.offsets.clear()
+
+        val result = Channel<Any>(Channel.CONFLATED)
+        imageManager.windowUpload(data, 3, result.asCallback())
+
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertArrayEquals(data, imageHandler.image)
+        // The hash does not match, so the device starts over instead of splicing the images.
+        assertEquals(0, imageHandler.offsets.first())
+    }
+
+    @Test
+    fun `window upload notifies transfer profile`() = runBlocking {
+        val transport = MockMcuMgrTransport(imageHandler = MockImageHandler())
+        val imageManager = ImageManager(transport)
+
+        val result = Channel<Any>(Channel.CONFLATED)
+        imageManager.windowUpload(data, 3, result.asCallback())
+        assertEquals(Unit, withTimeout(5000) { result.receive() })
+        assertEquals(1, transport.transfersStarted.get())
+        assertEquals(1, transport.transfersFinished.get())
+    }
+
+    /**
+     * Starts uploading the image and cancels the upload once 2000 bytes have been acknowledged.
+     */
+    private suspend fun interrupt(imageHandler: MockImageHandler, image: ByteArray) {
+        // The device stops answering after 8 chunks, until the upload is canceled
+        val gate = Semaphore(8)
+        val imageManager = ImageManager(
+            MockMcuMgrTransport(imageHandler = imageHandler, maxPacketLength = 512, gate = gate)
+        )
+        val progress = Channel<Int>(Channel.CONFLATED)
+        val result = Channel<Any>(Channel.CONFLATED)
+        val controller = imageManager.windowUpload(image, 3, result.asCallback(progress))
+        withTimeout(5000) {
+            while (progress.receive() < 2000) {
+                // Wait for more progress
+            }
+        }
+        controller.cancel()
+        gate.release(Int.MAX_VALUE / 2)
+        assertEquals("canceled", withTimeout(5000) { result.receive() })
+        // Let the requests in flight reach the device.
+        delay(200)
+    }
+
+    private fun Channel<Any>.asCallback(progress: Channel<Int>? = null) = object : UploadCallback {
+        override fun onUploadProgressChanged(current: Int, total: Int, timestamp: Long) {
+            progress?.offer(current)
+        }
+        override fun onUploadFailed(error: McuMgrException) {
+            offer(error)
+        }
+        override fun onUploadCanceled() {
+            offer("canceled")
+        }
+        override fun onUploadCompleted() {
+            offer(Unit)
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package io.runtime.mcumgr.transfer
+
+import io.runtime.mcumgr.dfu.FirmwareUpgradeCallback
+import io.runtime.mcumgr.dfu.FirmwareUpgradeController
+import io.runtime.mcumgr.dfu.FirmwareUpgradeManager
+import io.runtime.mcumgr.dfu.upgradeEvents
+import io.runtime.mcumgr.dfu.useTestClock
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.image.McuMgrImage
+import io.runtime.mcumgr.managers.FsManager
+import io.runtime.mcumgr.managers.ImageManager
+import io.runtime.mcumgr.mock.device.SimulatedDevice
+import io.runtime.mcumgr.mock.device.SimulatedLink
+import io.runtime.mcumgr.mock.device.SimulatedTransport
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Test
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+class TransferEventsTest {
+
+    private var transport = SimulatedTransport(link = SimulatedLink(latencyMicros = 500))
+
+    @After
+    fun tearDown() {
+        transport.shutdown()
+    }
+
+    @Test
+    fun `slow collector gets conflated progress`() = runBlocking<Unit> {
+        val data = Random(0).nextBytes(100_000)
+        val start = System.nanoTime()
+        val events = withTimeout(20_000) {
+            ImageManager(transport).uploadEvents(data, windowCapacity = 3, progressInterval = 20)
+                .onEach { delay(50) }
+                .toList()
+        }
+        val elapsed = (System.nanoTime() - start) / 1_000_000
+
+        assertTrue(events.last() is TransferEvent.Completed, "$events")
+        val progress = events.filterIsInstance<TransferEvent.Progress>()
+        // At most one progress event per collector delay, not one per chunk
+        assertTrue(progress.size <= elapsed / 50 + 1, "${progress.size} in $elapsed ms")
+        assertEquals(data.size, progress.last().offset)
+        assertTrue(progress.last().throughput > 0)
+        assertTrue(progress.last().rtt > 0)
+        assertArrayEquals(data, transport.device.image(1))
+    }
+
+    @Test
+    fun `download completes with the data`() = runBlocking<Unit> {
+        val data = Random(1).nextBytes(20_000)
+        transport = SimulatedTransport(
+            SimulatedDevice(files = mutableMapOf("/lfs/file" to data)),
+            SimulatedLink(latencyMicros = 500)
+        )
+        val events = withTimeout(20_000) {
+            FsManager(transport).downloadEvents("/lfs/file", windowCapacity = 3).toList()
+        }
+        val completed = events.last() as TransferEvent.Completed
+        assertArrayEquals(data, completed.data)
+    }
+
+    @Test
+    fun `firmware upgrade emits states and completion`() = runBlocking<Unit> {
+        val image = McuMgrImage.fromBytes(
+            this::class.java.classLoader!!.getResourceAsStream("slinky-no-prot-tlv.img")!!
+                .use { it.readBytes() }
+        )
+        val events = withTimeout(20_000) {
+            FirmwareUpgradeManager(transport).useTestClock().upgradeEvents(image).toList()
+        }
+
+        val states = events.filterIsInstance<TransferEvent.StateChanged>().map { it.newState }
+        assertEquals(
+            listOf(
+                FirmwareUpgradeManager.State.VALIDATE, FirmwareUpgradeManager.State.UPLOAD,
+                FirmwareUpgradeManager.State.TEST, FirmwareUpgradeManager.State.RESET,
+                FirmwareUpgradeManager.State.CONFIRM
+            ),
+            states
+        )
+        assertTrue(events.last() is TransferEvent.Completed, "$events")
+        assertTrue(events.any { it is TransferEvent.Progress })
+    }
+
+    @Test
+    fun `firmware upgrade restores the callback of the manager`() = runBlocking<Unit> {
+        val image = McuMgrImage.fromBytes(
+            this::class.java.classLoader!!.getResourceAsStream("slinky-no-prot-tlv.img")!!
+                .use { it.readBytes() }
+        )
+        val callback = object : FirmwareUpgradeCallback {
+            override fun onUpgradeStarted(controller: FirmwareUpgradeController) = Unit
+            override fun onStateChanged(
+                prevState: FirmwareUpgradeManager.State,
+                newState: FirmwareUpgradeManager.State
+            ) = Unit
+            override fun onUpgradeCompleted() = Unit
+            override fun onUpgradeFailed(
+                state: FirmwareUpgradeManager.State,
+                error: McuMgrException
+            ) = Unit
+            override fun onUpgradeCanceled(state: FirmwareUpgradeManager.State) = Unit
+            override fun onUploadProgressChanged(bytesSent: Int, imageSize: Int, timestamp: Long) =
+                Unit
+        }
+        val manager = FirmwareUpgradeManager(transport, callback).useTestClock()
+        withTimeout(20_000) { manager.upgradeEvents(image).toList() }
+
+        assertSame(callback, manager.firmwareUpgradeCallback)
+        assertTrue(manager.isCallbackOnUiThread)
+    }
+}
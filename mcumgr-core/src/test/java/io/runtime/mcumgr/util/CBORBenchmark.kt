@@ -0,0 +1,127 @@
+package io.runtime.mcumgr.util
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory
+import io.runtime.mcumgr.response.img.McuMgrImageStateResponse
+import io.runtime.mcumgr.response.log.McuMgrLogResponse
+import io.runtime.mcumgr.response.stat.McuMgrStatResponse
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Test
+
+/**
+ * Compares decoding responses with a new mapper per call, as the library used to, against the
+ * shared mapper and cached readers used by [CBOR].
+ *
+ * The unit tests check that both decode the same values. The timing comparison depends on the
+ * load of the machine, so it is [Ignore]d and meant to be run by hand after changing [CBOR].
+ */
+class CBORBenchmark {
+
+    private val factory = CBORFactory()
+
+    private val imageState = CBOR.toBytes(mapOf(
+        "images" to List(2) { slot ->
+            mapOf(
+                "slot" to slot,
+                "version" to "3.0.$slot",
+                "hash" to ByteArray(32) { (it * slot).toByte() },
+                "bootable" to true,
+                "pending" to false,
+                "confirmed" to (slot == 0),
+                "active" to (slot == 0),
+                "permanent" to false
+            )
+        },
+        "splitStatus" to 0
+    ))
+
+    private val stat = CBOR.toBytes(mapOf(
+        "rc" to 0,
+        "name" to "ble_ll",
+        "fields" to (0 until 32).associate { "field_$it" to it.toLong() * 1000 }
+    ))
+
+    private val log = CBOR.toBytes(mapOf(
+        "next_index" to 20L,
+        "logs" to listOf(mapOf(
+            "name" to "log",
+            "type" to 1,
+            "entries" to List(20) { index ->
+                mapOf(
+                    "msg" to "Log message number $index".toByteArray(),
+                    "ts" to index * 1000L,
+                    "level" to 1,
+                    "index" to index.toLong(),
+                    "module" to 0,
+                    "type" to "str"
+                )
+            }
+        ))
+    ))
+
+    @Test
+    fun `decode image state response`() {
+        val (perCall, shared) = decode(imageState, McuMgrImageStateResponse::class.java)
+        assertEquals(2, shared.images.size)
+        assertEquals(perCall.images.map { it.version }, shared.images.map { it.version })
+        assertArrayEquals(perCall.images[1].hash, shared.images[1].hash)
+        assertEquals(perCall.images[0].confirmed, shared.images[0].confirmed)
+    }
+
+    @Test
+    fun `decode stat response`() {
+        val (perCall, shared) = decode(stat, McuMgrStatResponse::class.java)
+        assertEquals(32, shared.fields.size)
+        assertEquals(perCall.name, shared.name)
+        assertEquals(perCall.fields, shared.fields)
+    }
+
+    @Test
+    fun `decode log response`() {
+        val (perCall, shared) = decode(log, McuMgrLogResponse::class.java)
+        assertEquals(20, shared.logs[0].entries.size)
+        assertEquals(perCall.next_index, shared.next_index)
+        assertEquals(
+            perCall.logs[0].entries.map { String(it.msg) },
+            shared.logs[0].entries.map { String(it.msg) }
+        )
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    fun `shared mapper decodes faster`() {
+        compare("McuMgrImageStateResponse", imageState, McuMgrImageStateResponse::class.java)
+        compare("McuMgrStatResponse", stat, McuMgrStatResponse::class.java)
+        compare("McuMgrLogResponse", log, McuMgrLogResponse::class.java)
+    }
+
+    private fun <T> decode(data: ByteArray, type: Class<T>): Pair<T, T> =
+        ObjectMapper(factory).readValue(data, type) to CBOR.toObject(data, type)
+
+    private fun <T> compare(name: String, data: ByteArray, type: Class<T>) {
+        val perCall = measure { ObjectMapper(factory).readValue(data, type) }
+        val shared = measure { CBOR.toObject(data, type) }
+        println("$name: new mapper $perCall ns/op, shared mapper $shared ns/op")
+        assertTrue(
+            "$name: new mapper $perCall ns/op, shared mapper $shared ns/op",
+            shared * MIN_SPEEDUP <= perCall
+        )
+    }
+
+    private inline fun measure(block: () -> Any?): Long {
+        repeat(WARMUP) { block() }
+        val start = System.nanoTime()
+        repeat(ITERATIONS) { block() }
+        return (System.nanoTime() - start) / ITERATIONS
+    }
+
+    private companion object {
+        const val WARMUP = 2_000
+        const val ITERATIONS = 20_000
+        /** A new mapper introspects the type on every call, which costs far more than this. */
+        const val MIN_SPEEDUP = 2
+    }
+}
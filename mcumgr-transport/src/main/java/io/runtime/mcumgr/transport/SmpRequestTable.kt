@@ -0,0 +1,249 @@
+package io.runtime.mcumgr.transport
+
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.exception.McuMgrTimeoutException
+import java.util.ArrayDeque
+import java.util.concurrent.TimeUnit
+
+private const val MAX_ID = 255
+
+/**
+ * Requests in flight, indexed by an 8-bit ID carried in the request and echoed in the response,
+ * e.g. the sequence number of the SMP header or the token of a CoAP message.
+ *
+ * At most [capacity] requests, and never more than 256, are in flight. Further requests wait in
+ * a queue and are admitted, in order, as IDs are freed. An ID is not reused before the request
+ * holding it has completed or failed.
+ *
+ * Each request fails with [McuMgrTimeoutException] if no response has been received before its
+ * deadline. Transports which may lose packets give requests a retransmission timeout, after which
+ * the request is due to be sent again; the timeout doubles after each retransmission. The
+ * transport's I/O thread calls [expire] when [nextEvent] has passed.
+ *
+ * The ID is written into the request, at the offset given, on admission under the lock, so the
+ * packet read by any thread after taking the request from the table contains it.
+ *
+ * All methods are synchronized; callbacks of the requests are called by the transport, never
+ * under the lock.
+ */
+internal class SmpRequestTable(private val clock: () -> Long = System::nanoTime) {
+
+    /**
+     * Receives the result of a request.
+     */
+    interface Callback {
+        fun onResponse(data: ByteArray)
+        fun onFailure(e: McuMgrException)
+    }
+
+    /**
+     * A request with the packet to send and the times of its timeout and retransmission.
+     */
+    class Request(
+        /** The packet to send. */
+        val data: ByteArray,
+        /** The offset in [data] at which the ID is written when admitted, or -1. */
+        private val idOffset: Int,
+        /** The time to wait for the response, in milliseconds. */
+        val timeout: Long,
+        /** The time to wait before the first retransmission in milliseconds, or 0 for none. */
+        val retransmissionTimeout: Long,
+        val callback: Callback
+    ) {
+        /** The ID of the request once admitted, or -1 while waiting. */
+        var id = -1
+            internal set
+        /** The number of retransmissions so far. */
+        var retransmissions = 0
+            internal set
+        /** The time the request was sent, in nanoseconds. */
+        var sentTime = 0L
+            internal set
+        internal var deadline = 0L
+        internal var retransmitAt = 0L
+        internal var rto = 0L
+
+        internal fun admit(id: Int, now: Long) {
+            this.id = id
+            if (idOffset >= 0) {
+                data[idOffset] = id.toByte()
+            }
+            sentTime = now
+            deadline = now + TimeUnit.MILLISECONDS.toNanos(timeout)
+            rto = TimeUnit.MILLISECONDS.toNanos(retransmissionTimeout)
+            retransmitAt = now + rto
+        }
+    }
+
+    private val requests = arrayOfNulls<Request>(MAX_ID + 1)
+    private val waiting = ArrayDeque<Request>()
+    private var nextId = 0
+    private var count = 0
+
+    /**
+     * The maximum number of requests in flight, from 1 to 256. Lowering the capacity does not
+     * affect requests already in flight; raising it takes effect when waiting requests are next
+     * admitted.
+     */
+    @get:Synchronized
+    @set:Synchronized
+    var capacity: Int = MAX_ID + 1
+        set(value) {
+            require(value in 1..MAX_ID + 1) { "Capacity must be from 1 to ${MAX_ID + 1}: $value" }
+            field = value
+        }
+
+    /**
+     * The number of requests in flight.
+     */
+    val inFlightCount: Int
+        @Synchronized get() = count
+
+    /**
+     * The number of requests waiting for an ID.
+     */
+    val queuedCount: Int
+        @Synchronized get() = waiting.size
+
+    /**
+     * Admits the request if an ID is free, or queues it otherwise.
+     *
+     * @return True if the request has been admitted and should be sent now.
+     */
+    @Synchronized
+    fun submit(request: Request): Boolean {
+        if (waiting.isEmpty() && admit(request)) {
+            return true
+        }
+        waiting.add(request)
+        return false
+    }
+
+    /**
+     * Removes and returns the request with the given ID, e.g. when its response has been received.
+     */
+    @Synchronized
+    fun take(id: Int): Request? {
+        val request = requests.getOrNull(id) ?: return null
+        requests[id] = null
+        count--
+        return request
+    }
+
+    /**
+     * Returns the request with the given ID without removing it.
+     */
+    @Synchronized
+    fun get(id: Int): Request? = requests.getOrNull(id)
+
+    /**
+     * Stops retransmitting the request, e.g. after the peer has acknowledged the reception and
+     * promised to respond later. The request still fails after its timeout.
+     */
+    @Synchronized
+    fun stopRetransmission(request: Request) {
+        request.rto = 0
+    }
+
+    /**
+     * Admits waiting requests while IDs are free.
+     *
+     * @return The requests admitted, to be sent.
+     */
+    @Synchronized
+    fun admitWaiting(): List<Request> {
+        if (waiting.isEmpty() || count >= capacity) {
+            return emptyList()
+        }
+        val admitted = ArrayList<Request>()
+        while (waiting.isNotEmpty() && admit(waiting.peek()!!)) {
+            admitted.add(waiting.poll()!!)
+        }
+        return admitted
+    }
+
+    /**
+     * Removes the requests whose deadline has passed and schedules the retransmission of those
+     * due to be sent again.
+     *
+     * @param timedOut  receives the requests which have timed out.
+     * @param retransmit receives the requests to send again.
+     */
+    @Synchronized
+    fun expire(timedOut: MutableList<Request>, retransmit: MutableList<Request>) {
+        if (count == 0) {
+            return
+        }
+        val now = clock()
+        for (id in requests.indices) {
+            val request = requests[id] ?: continue
+            if (request.deadline - now <= 0) {
+                requests[id] = null
+                count--
+                timedOut.add(request)
+            } else if (request.rto > 0 && request.retransmitAt - now <= 0) {
+                request.retransmissions++
+                request.rto *= 2
+                request.retransmitAt = now + request.rto
+                retransmit.add(request)
+            }
+        }
+    }
+
+    /**
+     * Returns the time until the next deadline or retransmission, in milliseconds, or -1 if no
+     * request is in flight.
+     */
+    @Synchronized
+    fun nextEvent(): Long {
+        if (count == 0) {
+            return -1
+        }
+        val now = clock()
+        var next = Long.MAX_VALUE
+        for (request in requests) {
+            if (request == null) {
+                continue
+            }
+            next = minOf(next, request.deadline - now)
+            if (request.rto > 0) {
+                next = minOf(next, request.retransmitAt - now)
+            }
+        }
+        // Round up, so the event has passed after waiting
+        return maxOf(0, TimeUnit.NANOSECONDS.toMillis(next + 999_999))
+    }
+
+    /**
+     * Removes and returns all requests, in flight and waiting.
+     */
+    @Synchronized
+    fun clear(): List<Request> {
+        val all = ArrayList<Request>(count + waiting.size)
+        for (id in requests.indices) {
+            requests[id]?.let { all.add(it) }
+            requests[id] = null
+        }
+        all.addAll(waiting)
+        waiting.clear()
+        count = 0
+        return all
+    }
+
+    private fun admit(request: Request): Boolean {
+        if (count >= capacity) {
+            return false
+        }
+        repeat(requests.size) {
+            val id = nextId
+            nextId = if (id == MAX_ID) 0 else id + 1
+            if (requests[id] == null) {
+                request.admit(id, clock())
+                requests[id] = request
+                count++
+                return true
+            }
+        }
+        return false
+    }
+}
@@ -0,0 +1,198 @@
+package io.runtime.mcumgr.transport;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.response.McuMgrResponse;
+
+/**
+ * The base of the transports in this module, which keep their requests in flight in a
+ * {@link SmpRequestTable} and match them with their responses by the sequence number of the
+ * SMP header.
+ * <p>
+ * The subclass reads the responses and watches the timeouts on its own thread, and passes the
+ * requests to {@link #complete} or {@link #fail}. Callbacks and connection observers are
+ * called on that thread, unless an executor has been set using
+ * {@link #setCallbackExecutor(Executor)}. An exception thrown by a callback is logged, so it
+ * cannot stop the thread serving the transport.
+ */
+public abstract class SmpRequestTransport implements McuMgrTransport {
+
+    private final static Logger LOG = LoggerFactory.getLogger(SmpRequestTransport.class);
+
+    /**
+     * The offset of the sequence number in the SMP header.
+     */
+    protected final static int SEQUENCE_NUMBER_OFFSET = 6;
+
+    protected final SmpRequestTable mRequests = new SmpRequestTable();
+    private final List<ConnectionObserver> mConnectionObservers = new CopyOnWriteArrayList<>();
+
+    @Nullable
+    private volatile Executor mCallbackExecutor;
+
+    /**
+     * Sets the executor calling back {@link McuMgrCallback}s.
+     *
+     * @param executor the executor, or null to call back on the I/O thread of the transport
+     *                 (default).
+     */
+    public void setCallbackExecutor(@Nullable Executor executor) {
+        mCallbackExecutor = executor;
+    }
+
+    /**
+     * Returns the number of requests waiting to be sent.
+     *
+     * @return The number of queued requests.
+     */
+    public int getQueuedRequestCount() {
+        return mRequests.getQueuedCount();
+    }
+
+    /**
+     * Returns the number of requests sent and awaiting a response.
+     *
+     * @return The number of requests in flight.
+     */
+    public int getInFlightRequestCount() {
+        return mRequests.getInFlightCount();
+    }
+
+    //*******************************************************************************************
+    // Mcu Manager Transport
+    //*******************************************************************************************
+
+    @NotNull
+    @Override
+    public <T extends McuMgrResponse> T send(@NotNull byte[] payload,
+                                             @NotNull Class<T> responseType)
+            throws McuMgrException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        send(payload, responseType, new McuMgrCallback<T>() {
+            @Override
+            public void onResponse(@NotNull T response) {
+                result[0] = response;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(@NotNull McuMgrException error) {
+                result[0] = error;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new McuMgrException(e);
+        }
+        if (result[0] instanceof McuMgrException) {
+            throw (McuMgrException) result[0];
+        }
+        //noinspection unchecked
+        return (T) result[0];
+    }
+
+    @Override
+    public void addObserver(@NotNull ConnectionObserver observer) {
+        mConnectionObservers.add(observer);
+    }
+
+    @Override
+    public void removeObserver(@NotNull ConnectionObserver observer) {
+        mConnectionObservers.remove(observer);
+    }
+
+    //*******************************************************************************************
+    // Implementation
+    //*******************************************************************************************
+
+    /**
+     * Passes the response to the callback of the request taken from the table.
+     */
+    protected void complete(@NotNull final SmpRequestTable.Request request,
+                            @NotNull final byte[] response) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                request.getCallback().onResponse(response);
+            }
+        });
+    }
+
+    /**
+     * Fails the request taken from the table.
+     */
+    protected void fail(@NotNull final SmpRequestTable.Request request,
+                        @NotNull final McuMgrException e) {
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                request.getCallback().onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Notifies the observers that the transport has connected.
+     */
+    protected void notifyConnected() {
+        for (ConnectionObserver observer : mConnectionObservers) {
+            try {
+                observer.onConnected();
+            } catch (RuntimeException e) {
+                LOG.error("Connection observer failed", e);
+            }
+        }
+    }
+
+    /**
+     * Notifies the observers that the transport has disconnected.
+     */
+    protected void notifyDisconnected() {
+        for (ConnectionObserver observer : mConnectionObservers) {
+            try {
+                observer.onDisconnected();
+            } catch (RuntimeException e) {
+                LOG.error("Connection observer failed", e);
+            }
+        }
+    }
+
+    /**
+     * Calls back on the executor, or directly on the calling thread if there is none.
+     */
+    private void dispatch(@NotNull Runnable callback) {
+        try {
+            Executor executor = mCallbackExecutor;
+            if (executor == null) {
+                callback.run();
+            } else {
+                executor.execute(callback);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Request callback failed", e);
+        }
+    }
+
+    /**
+     * Returns true if the response has the group and command ID of the request.
+     */
+    protected static boolean isResponseTo(@NotNull byte[] response, @NotNull byte[] request) {
+        return response[4] == request[4] && response[5] == request[5]
+                && response[7] == request[7];
+    }
+}
@@ -0,0 +1,410 @@
+package io.runtime.mcumgr.transport.serial;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrHeader;
+import io.runtime.mcumgr.McuMgrMtuProvider;
+import io.runtime.mcumgr.McuMgrScheme;
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.exception.McuMgrTimeoutException;
+import io.runtime.mcumgr.response.McuMgrResponse;
+import io.runtime.mcumgr.transport.SmpRequestTable;
+import io.runtime.mcumgr.transport.SmpRequestTransport;
+
+/**
+ * An implementation of {@link McuMgrTransport} sending SMP packets over a serial line, such as
+ * the shell UART of a device, using the SMP console framing (nlip): each packet is base64
+ * encoded with its length and CRC16 and split into newline terminated frames starting with
+ * 0x06 0x09 or 0x04 0x14.
+ * <p>
+ * The transport works over any pair of byte streams. On Linux, a serial port or a PTY may be
+ * opened using {@link #McuMgrSerialTransport(File)}, with the baud rate set beforehand, e.g. with
+ * {@code stty}. Lines which are not frames, such as shell output, are ignored.
+ * <p>
+ * Requests are pipelined: up to {@link #setMaxRequestsInFlight(int) a number of requests} are
+ * written before their responses have been received, so the device can start on the next
+ * request while the response to the previous one is on the line. Requests are matched with their
+ * responses by the sequence number of the SMP header. A request fails with
+ * {@link McuMgrTimeoutException} if no response has been received in time, e.g. because a frame
+ * was corrupted on the line; requests are not sent again.
+ * <p>
+ * Packets are written by a single writer thread, which also watches timeouts, and read by a
+ * reader thread, both started on {@link #connect(ConnectionCallback)} or with the first request.
+ * Callbacks are called on the reader thread, unless an executor has been set using
+ * {@link #setCallbackExecutor(Executor)}, and must not block.
+ */
+public class McuMgrSerialTransport extends SmpRequestTransport implements McuMgrMtuProvider {
+
+    private final static Logger LOG = LoggerFactory.getLogger(McuMgrSerialTransport.class);
+
+    /**
+     * The default time to wait for a response, in milliseconds.
+     */
+    public final static long DEFAULT_TIMEOUT = 10_000;
+
+    /**
+     * The default number of requests written before their responses have been received.
+     */
+    public final static int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 2;
+
+    private final static int READ_BUFFER_SIZE = 4096;
+
+    private final InputStream mInput;
+    private final OutputStream mOutput;
+
+    private volatile long mTimeout = DEFAULT_TIMEOUT;
+    private volatile int mMaxPacketLength;
+
+    // Guarded by this
+    @Nullable
+    private ScheduledExecutorService mWriter;
+    @Nullable
+    private Thread mReader;
+    private boolean mClosed;
+
+    // Used only on the writer thread
+    private final SmpSerialEncoder mEncoder = new SmpSerialEncoder();
+
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            expire();
+        }
+    };
+
+    /**
+     * Creates a transport over the given streams, e.g. of a Bluetooth SPP socket or a USB
+     * serial driver.
+     *
+     * @param input  the stream receiving bytes from the device.
+     * @param output the stream sending bytes to the device.
+     */
+    public McuMgrSerialTransport(@NotNull InputStream input, @NotNull OutputStream output) {
+        mInput = input;
+        mOutput = output;
+        mRequests.setCapacity(DEFAULT_MAX_REQUESTS_IN_FLIGHT);
+    }
+
+    /**
+     * Creates a transport over the given serial port or PTY, e.g. {@code /dev/ttyACM0}.
+     *
+     * @param device the device file.
+     * @throws IOException if the device could not be opened.
+     */
+    public McuMgrSerialTransport(@NotNull File device) throws IOException {
+        this(new FileInputStream(device), new FileOutputStream(device));
+    }
+
+    @NotNull
+    @Override
+    public McuMgrScheme getScheme() {
+        return McuMgrScheme.BLE;
+    }
+
+    /**
+     * Sets the time to wait for a response before failing the request with
+     * {@link McuMgrTimeoutException}. Default is 10 seconds.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+        mTimeout = timeout;
+    }
+
+    /**
+     * Sets the number of requests written before their responses have been received. The
+     * device must be able to buffer that many requests, see
+     * {@code CONFIG_MCUMGR_SMP_SHELL_RX_BUF_COUNT} in Zephyr. Default is
+     * {@link #DEFAULT_MAX_REQUESTS_IN_FLIGHT}.
+     *
+     * @param count the number of requests in flight, from 1 (no pipelining) to 256.
+     */
+    public void setMaxRequestsInFlight(int count) {
+        mRequests.setCapacity(count);
+    }
+
+    /**
+     * Sets the largest SMP packet the device accepts, usually the size of its SMP buffer.
+     * Managers size their packets to this length.
+     *
+     * @param maxPacketLength the maximum packet length, or 0 if not known (default).
+     */
+    public void setMaxPacketLength(int maxPacketLength) {
+        mMaxPacketLength = maxPacketLength;
+    }
+
+    @Override
+    public int getMaxPacketLength() {
+        return mMaxPacketLength;
+    }
+
+    //*******************************************************************************************
+    // Mcu Manager Transport
+    //*******************************************************************************************
+
+    @Override
+    public <T extends McuMgrResponse> void send(@NotNull byte[] payload,
+                                                @NotNull final Class<T> responseType,
+                                                @NotNull final McuMgrCallback<T> callback) {
+        if (payload.length < McuMgrHeader.HEADER_LENGTH) {
+            callback.onError(new McuMgrException("Invalid McuMgrHeader"));
+            return;
+        }
+        if (!open()) {
+            callback.onError(new McuMgrException("Transport released"));
+            return;
+        }
+        SmpRequestTable.Request request = new SmpRequestTable.Request(payload.clone(),
+                SEQUENCE_NUMBER_OFFSET, mTimeout, 0,
+                new SmpRequestTable.Callback() {
+                    @Override
+                    public void onResponse(@NotNull byte[] response) {
+                        T result;
+                        try {
+                            result = McuMgrResponse.buildResponse(McuMgrScheme.BLE, response,
+                                    responseType);
+                        } catch (Exception e) {
+                            callback.onError(new McuMgrException(e));
+                            return;
+                        }
+                        callback.onResponse(result);
+                    }
+
+                    @Override
+                    public void onFailure(@NotNull McuMgrException e) {
+                        callback.onError(e);
+                    }
+                });
+        if (mRequests.submit(request)) {
+            transmit(request);
+        }
+    }
+
+    @Override
+    public void connect(@Nullable ConnectionCallback callback) {
+        boolean wasOpen;
+        synchronized (this) {
+            wasOpen = mWriter != null;
+        }
+        if (!open()) {
+            if (callback != null) {
+                callback.onError(new IOException("Transport released"));
+            }
+            return;
+        }
+        if (!wasOpen) {
+            notifyConnected();
+        }
+        if (callback != null) {
+            callback.onConnected();
+        }
+    }
+
+    /**
+     * Fails all requests, stops the threads and closes the streams. The transport cannot be used
+     * afterwards.
+     */
+    @Override
+    public void release() {
+        close(new McuMgrException("Transport released"));
+    }
+
+    //*******************************************************************************************
+    // Implementation
+    //*******************************************************************************************
+
+    /**
+     * Starts the reader and writer threads, unless already started.
+     *
+     * @return False if the transport has been released.
+     */
+    private synchronized boolean open() {
+        if (mClosed) {
+            return false;
+        }
+        if (mWriter != null) {
+            return true;
+        }
+        ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NotNull Runnable r) {
+                        Thread thread = new Thread(r, "McuMgrSerialTransport writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        // Timeout checks are scheduled with every request, most of them become obsolete
+        writer.setRemoveOnCancelPolicy(true);
+        mWriter = writer;
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "McuMgrSerialTransport reader");
+        mReader.setDaemon(true);
+        mReader.start();
+        return true;
+    }
+
+    /**
+     * Closes the streams and fails all requests with the given exception.
+     */
+    private void close(@NotNull McuMgrException e) {
+        ScheduledExecutorService writer;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            writer = mWriter;
+            mWriter = null;
+            mReader = null;
+        }
+        if (writer != null) {
+            writer.shutdownNow();
+        }
+        try {
+            mInput.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            mOutput.close();
+        } catch (IOException ignored) {
+        }
+        for (SmpRequestTable.Request request : mRequests.clear()) {
+            fail(request, e);
+        }
+        if (writer != null) {
+            notifyDisconnected();
+        }
+    }
+
+    /**
+     * Reads and decodes the input stream until it is closed.
+     */
+    private void read() {
+        final SmpSerialDecoder decoder = new SmpSerialDecoder(new SmpSerialDecoder.Listener() {
+            @Override
+            public void onPacket(@NotNull byte[] packet) {
+                receive(packet);
+            }
+        });
+        final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try {
+            int length;
+            while ((length = mInput.read(buffer)) >= 0) {
+                decoder.feed(buffer, 0, length);
+            }
+            close(new McuMgrException("End of stream"));
+        } catch (IOException e) {
+            close(new McuMgrException(e));
+        } catch (RuntimeException e) {
+            // Release the transport rather than leave it with no reader
+            LOG.error("Serial transport failed", e);
+            close(new McuMgrException(e));
+        }
+    }
+
+    /**
+     * Matches the received packet with its request.
+     */
+    private void receive(@NotNull byte[] packet) {
+        if (packet.length < McuMgrHeader.HEADER_LENGTH) {
+            LOG.warn("Ignoring packet of {} bytes", packet.length);
+            return;
+        }
+        int id = packet[SEQUENCE_NUMBER_OFFSET] & 0xFF;
+        SmpRequestTable.Request request = mRequests.get(id);
+        // A late response to a timed out request may arrive after the sequence number has been
+        // reused, so the command must match too
+        if (request == null || !isResponseTo(packet, request.getData())) {
+            LOG.debug("Ignoring unexpected response {}", id);
+            return;
+        }
+        if (mRequests.take(id) == request) {
+            complete(request, packet);
+            for (SmpRequestTable.Request admitted : mRequests.admitWaiting()) {
+                transmit(admitted);
+            }
+        }
+    }
+
+    /**
+     * Writes the admitted request on the writer thread.
+     */
+    private void transmit(@NotNull final SmpRequestTable.Request request) {
+        ScheduledExecutorService writer;
+        synchronized (this) {
+            writer = mWriter;
+        }
+        try {
+            if (writer == null) {
+                throw new RejectedExecutionException();
+            }
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(request);
+                }
+            });
+            writer.schedule(mExpire, request.getTimeout() + 1, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (mRequests.take(request.getId()) == request) {
+                fail(request, new McuMgrException("Transport released"));
+            }
+        }
+    }
+
+    private void write(@NotNull SmpRequestTable.Request request) {
+        int length = mEncoder.encode(request.getData());
+        try {
+            mOutput.write(mEncoder.getData(), 0, length);
+            mOutput.flush();
+        } catch (IOException e) {
+            LOG.error("Writing request {} failed", request.getId(), e);
+            close(new McuMgrException(e));
+        }
+    }
+
+    /**
+     * Fails the requests which have timed out and writes the requests admitted in their place.
+     */
+    private void expire() {
+        List<SmpRequestTable.Request> timedOut = new ArrayList<>();
+        mRequests.expire(timedOut, new ArrayList<SmpRequestTable.Request>());
+        if (timedOut.isEmpty()) {
+            return;
+        }
+        for (SmpRequestTable.Request request : timedOut) {
+            fail(request, new McuMgrTimeoutException());
+        }
+        for (SmpRequestTable.Request admitted : mRequests.admitWaiting()) {
+            transmit(admitted);
+        }
+    }
+}
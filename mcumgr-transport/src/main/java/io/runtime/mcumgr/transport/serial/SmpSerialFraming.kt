@@ -0,0 +1,282 @@
+package io.runtime.mcumgr.transport.serial
+
+import kotlin.math.min
+
+/** The first two bytes of the first frame of a packet. */
+internal const val FRAME_START_1 = 0x06
+internal const val FRAME_START_2 = 0x09
+
+/** The first two bytes of the following frames of a packet. */
+internal const val FRAME_CONTINUATION_1 = 0x04
+internal const val FRAME_CONTINUATION_2 = 0x14
+
+/** The number of base64 characters in a frame, so a frame with its start and newline is 127. */
+internal const val MAX_FRAME_BASE64 = 124
+
+private const val NEWLINE = '\n'.toInt()
+private const val PADDING = '='.toInt()
+
+private val ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toByteArray()
+
+private val VALUES = IntArray(256) { -1 }.also { values ->
+    ALPHABET.forEachIndexed { index, c -> values[c.toInt()] = index }
+}
+
+/**
+ * CRC-16/XMODEM (polynomial 0x1021, initial value 0), named crc16_itu_t in Zephyr, appended
+ * to SMP packets sent over a serial line.
+ */
+internal object Crc16 {
+    private val table = IntArray(256) { index ->
+        var crc = index shl 8
+        repeat(8) {
+            crc = if (crc and 0x8000 != 0) (crc shl 1) xor 0x1021 else crc shl 1
+        }
+        crc and 0xFFFF
+    }
+
+    fun update(crc: Int, data: ByteArray, offset: Int = 0, length: Int = data.size): Int {
+        var result = crc
+        for (i in offset until offset + length) {
+            result = ((result shl 8) xor table[((result shr 8) xor data[i].toInt()) and 0xFF]) and
+                    0xFFFF
+        }
+        return result
+    }
+}
+
+/**
+ * Encodes SMP packets in the SMP console framing, also known as nlip.
+ *
+ * The packet is prefixed with its length, including the CRC, and followed by its CRC16, both
+ * big-endian. The result is base64 encoded and split into frames of at most
+ * [MAX_FRAME_BASE64] characters, each ending with a newline. The first frame starts with
+ * 0x06 0x09, the following ones with 0x04 0x14.
+ *
+ * The frames of a packet are encoded into a buffer reused for the next packet, which is not
+ * thread safe.
+ */
+internal class SmpSerialEncoder {
+
+    private var buffer = ByteArray(256)
+
+    /**
+     * The encoded frames, valid until the next call to [encode].
+     */
+    val data: ByteArray
+        get() = buffer
+
+    /**
+     * Encodes the packet into [data].
+     *
+     * @return The length of the encoded frames.
+     */
+    fun encode(packet: ByteArray): Int {
+        val length = packet.size + 2
+        val crc = Crc16.update(0, packet)
+        val rawLength = 2 + length
+        val base64Length = (rawLength + 2) / 3 * 4
+        val frames = (base64Length + MAX_FRAME_BASE64 - 1) / MAX_FRAME_BASE64
+        val size = base64Length + frames * 3
+        if (buffer.size < size) {
+            buffer = ByteArray(size)
+        }
+        val out = buffer
+
+        // Returns the byte of the packet with its length and CRC at the given index
+        fun raw(index: Int): Int = when {
+            index < 2 -> (length shr (8 - 8 * index)) and 0xFF
+            index < rawLength - 2 -> packet[index - 2].toInt() and 0xFF
+            else -> (crc shr (8 - 8 * (index - rawLength + 2))) and 0xFF
+        }
+
+        var position = 0
+        var frameLength = MAX_FRAME_BASE64
+        var index = 0
+        while (index < rawLength) {
+            if (frameLength == MAX_FRAME_BASE64) {
+                if (position > 0) {
+                    out[position++] = NEWLINE.toByte()
+                    out[position++] = FRAME_CONTINUATION_1.toByte()
+                    out[position++] = FRAME_CONTINUATION_2.toByte()
+                } else {
+                    out[position++] = FRAME_START_1.toByte()
+                    out[position++] = FRAME_START_2.toByte()
+                }
+                frameLength = 0
+            }
+            val available = min(3, rawLength - index)
+            val b0 = raw(index)
+            val b1 = if (available > 1) raw(index + 1) else 0
+            val b2 = if (available > 2) raw(index + 2) else 0
+            out[position++] = ALPHABET[b0 shr 2]
+            out[position++] = ALPHABET[((b0 and 0x03) shl 4) or (b1 shr 4)]
+            out[position++] =
+                if (available > 1) ALPHABET[((b1 and 0x0F) shl 2) or (b2 shr 6)] else PADDING.toByte()
+            out[position++] = if (available > 2) ALPHABET[b2 and 0x3F] else PADDING.toByte()
+            index += 3
+            frameLength += 4
+        }
+        out[position++] = NEWLINE.toByte()
+        return position
+    }
+}
+
+/**
+ * Decodes SMP packets from a stream of bytes in the SMP console framing, see [SmpSerialEncoder].
+ *
+ * Bytes may be fed in chunks of any size. Bytes outside of frames, such as shell output sharing
+ * the line, are skipped. Base64 characters are decoded as they arrive into a
+ * buffer reused for the next packet, so the only allocation per packet is the one passed to the
+ * [Listener]. Packets with an invalid CRC are dropped.
+ */
+internal class SmpSerialDecoder(private val listener: Listener) {
+
+    interface Listener {
+        /** Called with each complete SMP packet, without the length and CRC. */
+        fun onPacket(packet: ByteArray)
+    }
+
+    private enum class State {
+        /** Outside of a frame, e.g. in shell output. */
+        IDLE,
+        /** After the first byte of a frame start or continuation. */
+        FRAME_START,
+        /** In a frame. */
+        FRAME
+    }
+
+    private var state = State.IDLE
+    private var first = 0
+    private var buffer = ByteArray(256)
+    private var decoded = 0
+    private var expected = -1
+    private var quad = 0
+    private var quadLength = 0
+    private var padding = 0
+    private var inPacket = false
+
+    /** The number of packets dropped due to an invalid CRC or framing. */
+    var droppedPackets = 0
+        private set
+
+    /**
+     * Decodes the given bytes, calling the listener with each complete packet.
+     */
+    fun feed(data: ByteArray, offset: Int, length: Int) {
+        for (i in offset until offset + length) {
+            val b = data[i].toInt() and 0xFF
+            // The control characters starting a frame are never part of base64 or shell output
+            if (b == FRAME_START_1 || b == FRAME_CONTINUATION_1) {
+                if (state == State.FRAME && inPacket) {
+                    // The frame has been cut short
+                    droppedPackets++
+                    inPacket = false
+                }
+                first = b
+                state = State.FRAME_START
+                continue
+            }
+            when (state) {
+                State.IDLE -> Unit
+                State.FRAME_START -> state = when {
+                    first == FRAME_START_1 && b == FRAME_START_2 -> {
+                        if (inPacket) {
+                            droppedPackets++
+                        }
+                        startPacket()
+                        State.FRAME
+                    }
+                    first == FRAME_CONTINUATION_1 && b == FRAME_CONTINUATION_2 && inPacket ->
+                        State.FRAME
+                    else -> State.IDLE
+                }
+                State.FRAME -> if (b == NEWLINE) {
+                    state = State.IDLE
+                } else if (!decode(b)) {
+                    droppedPackets++
+                    inPacket = false
+                    state = State.IDLE
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the packet being decoded, e.g. after the stream has been reopened.
+     */
+    fun reset() {
+        state = State.IDLE
+        inPacket = false
+    }
+
+    private fun startPacket() {
+        inPacket = true
+        decoded = 0
+        expected = -1
+        quad = 0
+        quadLength = 0
+        padding = 0
+    }
+
+    /**
+     * Decodes a base64 character.
+     *
+     * @return False if the character is invalid.
+     */
+    private fun decode(c: Int): Boolean {
+        if (c == '\r'.toInt()) {
+            return true
+        }
+        val value = if (c == PADDING) 0 else VALUES[c]
+        if (value < 0 || (padding > 0 && c != PADDING)) {
+            return false
+        }
+        if (c == PADDING) {
+            padding++
+        }
+        quad = (quad shl 6) or value
+        if (++quadLength < 4) {
+            return true
+        }
+        val count = 3 - padding
+        if (count < 1) {
+            return false
+        }
+        ensureCapacity(decoded + 3)
+        buffer[decoded] = (quad shr 16).toByte()
+        buffer[decoded + 1] = (quad shr 8).toByte()
+        buffer[decoded + 2] = quad.toByte()
+        decoded += count
+        quad = 0
+        quadLength = 0
+        padding = 0
+
+        if (expected < 0 && decoded >= 2) {
+            expected = 2 + ((buffer[0].toInt() and 0xFF) shl 8 or (buffer[1].toInt() and 0xFF))
+            ensureCapacity(expected + 2)
+        }
+        if (expected >= 0 && decoded >= expected) {
+            complete()
+        }
+        return true
+    }
+
+    private fun complete() {
+        inPacket = false
+        state = State.IDLE
+        // The CRC over the packet followed by its CRC is 0
+        if (expected < 4 || Crc16.update(0, buffer, 2, expected - 2) != 0) {
+            droppedPackets++
+            return
+        }
+        listener.onPacket(buffer.copyOfRange(2, expected - 2))
+    }
+
+    private fun ensureCapacity(capacity: Int) {
+        if (buffer.size < capacity) {
+            buffer = buffer.copyOf(maxOf(capacity, buffer.size * 2))
+        }
+    }
+}
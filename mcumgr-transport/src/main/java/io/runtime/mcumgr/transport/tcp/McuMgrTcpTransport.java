@@ -0,0 +1,544 @@
+package io.runtime.mcumgr.transport.tcp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrHeader;
+import io.runtime.mcumgr.McuMgrMtuProvider;
+import io.runtime.mcumgr.McuMgrScheme;
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.exception.McuMgrTimeoutException;
+import io.runtime.mcumgr.response.McuMgrResponse;
+import io.runtime.mcumgr.transport.SmpRequestTable;
+import io.runtime.mcumgr.transport.SmpRequestTransport;
+
+/**
+ * An implementation of {@link McuMgrTransport} sending SMP packets over a stream socket, such as
+ * a TCP connection to a local SMP server, e.g. a Zephyr native_posix build or a stand-in written
+ * for tests. Packets are sent as they are: the 8-byte SMP header, whose length field delimits the
+ * packet in the stream, followed by the CBOR payload.
+ * <p>
+ * Any {@link SocketAddress} accepted by {@link SocketChannel#open(SocketAddress)} may be used,
+ * so on Java 16 or newer the transport also connects to a Unix domain socket given its
+ * {@code UnixDomainSocketAddress}.
+ * <p>
+ * Many requests may be in flight at once; they are matched with their responses by the sequence
+ * number of the SMP header, so responses may arrive in any order. Up to 256 requests, or the
+ * number set using {@link #setMaxRequestsInFlight(int)}, are sent before their responses have
+ * been received; further requests are queued. As the stream is reliable, requests are never sent
+ * again; a request fails with {@link McuMgrTimeoutException} if no response has been received
+ * in time.
+ * <p>
+ * The connection is opened, blocking the calling thread, on {@link #connect(ConnectionCallback)}
+ * or with the first request. Requests are written on the calling thread when the socket buffer
+ * has room. Responses are read, and timeouts watched, by the I/O thread of an
+ * {@link SmpSocketSelector} shared by many transports. Callbacks are called on that thread,
+ * unless an executor has been set using {@link #setCallbackExecutor(Executor)}, and must not
+ * block.
+ */
+public class McuMgrTcpTransport extends SmpRequestTransport implements McuMgrMtuProvider {
+
+    private final static Logger LOG = LoggerFactory.getLogger(McuMgrTcpTransport.class);
+
+    /**
+     * The default time to wait for a response, in milliseconds.
+     */
+    public final static long DEFAULT_TIMEOUT = 10_000;
+
+    /**
+     * The time to wait for a TCP connection to be established, in milliseconds.
+     */
+    private final static int CONNECT_TIMEOUT = 10_000;
+
+    private final static int LENGTH_OFFSET = 2;
+    private final static int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final SocketAddress mAddress;
+    private final SmpSocketSelector mSelector;
+
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mPacketsSent = new AtomicLong();
+    private final AtomicLong mPacketsReceived = new AtomicLong();
+
+    private volatile long mTimeout = DEFAULT_TIMEOUT;
+    private volatile int mMaxPacketLength;
+
+    // Guarded by this
+    @Nullable
+    private Connection mConnection;
+
+    /**
+     * Creates a transport connecting to the given address using the
+     * {@link SmpSocketSelector#getDefault() default selector}.
+     *
+     * @param address the address of the SMP server.
+     */
+    public McuMgrTcpTransport(@NotNull SocketAddress address) {
+        this(address, SmpSocketSelector.getDefault());
+    }
+
+    /**
+     * Creates a transport connecting to the given address.
+     *
+     * @param address  the address of the SMP server.
+     * @param selector the selector serving the connection.
+     */
+    public McuMgrTcpTransport(@NotNull SocketAddress address,
+                              @NotNull SmpSocketSelector selector) {
+        mAddress = address;
+        mSelector = selector;
+    }
+
+    @NotNull
+    @Override
+    public McuMgrScheme getScheme() {
+        return McuMgrScheme.BLE;
+    }
+
+    /**
+     * Sets the time to wait for a response before failing the request with
+     * {@link McuMgrTimeoutException}. Default is 10 seconds.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+        mTimeout = timeout;
+    }
+
+    /**
+     * Sets the number of requests sent before their responses have been received, from 1 to 256
+     * (default).
+     *
+     * @param count the maximum number of requests in flight.
+     */
+    public void setMaxRequestsInFlight(int count) {
+        mRequests.setCapacity(count);
+    }
+
+    /**
+     * Sets the largest SMP packet the server accepts, usually the size of its SMP buffer.
+     * Managers size their packets to this length.
+     *
+     * @param maxPacketLength the maximum packet length, or 0 if not known (default).
+     */
+    public void setMaxPacketLength(int maxPacketLength) {
+        mMaxPacketLength = maxPacketLength;
+    }
+
+    @Override
+    public int getMaxPacketLength() {
+        return mMaxPacketLength;
+    }
+
+    /**
+     * Returns the number of bytes of the requests sent, over all connections.
+     *
+     * @return The number of bytes sent.
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    /**
+     * Returns the number of bytes received, over all connections.
+     *
+     * @return The number of bytes received.
+     */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /**
+     * Returns the number of requests sent, over all connections.
+     *
+     * @return The number of packets sent.
+     */
+    public long getPacketsSent() {
+        return mPacketsSent.get();
+    }
+
+    /**
+     * Returns the number of packets received, over all connections, including unexpected
+     * responses.
+     *
+     * @return The number of packets received.
+     */
+    public long getPacketsReceived() {
+        return mPacketsReceived.get();
+    }
+
+    //*******************************************************************************************
+    // Mcu Manager Transport
+    //*******************************************************************************************
+
+    @Override
+    public <T extends McuMgrResponse> void send(@NotNull byte[] payload,
+                                                @NotNull Class<T> responseType,
+                                                @NotNull McuMgrCallback<T> callback) {
+        send(payload, responseType, 0, callback);
+    }
+
+    /**
+     * Sends the request, waiting for the response for the given time instead of the default
+     * timeout.
+     *
+     * @param payload      the request packet.
+     * @param responseType the type of the response.
+     * @param timeout      the time to wait for the response in milliseconds, or 0 to use the
+     *                     default timeout.
+     * @param callback     the callback.
+     * @param <T>          the response type.
+     */
+    public <T extends McuMgrResponse> void send(@NotNull byte[] payload,
+                                                @NotNull final Class<T> responseType,
+                                                long timeout,
+                                                @NotNull final McuMgrCallback<T> callback) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative: " + timeout);
+        }
+        if (payload.length < McuMgrHeader.HEADER_LENGTH) {
+            callback.onError(new McuMgrException("Invalid McuMgrHeader"));
+            return;
+        }
+        final Connection connection;
+        try {
+            connection = open();
+        } catch (IOException e) {
+            callback.onError(new McuMgrException(e));
+            return;
+        }
+
+        SmpRequestTable.Request request = new SmpRequestTable.Request(payload.clone(),
+                SEQUENCE_NUMBER_OFFSET, timeout > 0 ? timeout : mTimeout, 0,
+                new SmpRequestTable.Callback() {
+                    @Override
+                    public void onResponse(@NotNull byte[] response) {
+                        T result;
+                        try {
+                            result = McuMgrResponse.buildResponse(McuMgrScheme.BLE, response,
+                                    responseType);
+                        } catch (Exception e) {
+                            callback.onError(new McuMgrException(e));
+                            return;
+                        }
+                        callback.onResponse(result);
+                    }
+
+                    @Override
+                    public void onFailure(@NotNull McuMgrException e) {
+                        callback.onError(e);
+                    }
+                });
+        if (mRequests.submit(request)) {
+            connection.transmit(request);
+        } else if (connection.isClosed()) {
+            // The connection has been closed meanwhile, nothing would admit the queued request
+            for (SmpRequestTable.Request queued : mRequests.clear()) {
+                fail(queued, new McuMgrException("Connection closed"));
+            }
+        }
+        mSelector.scheduleTimer(request.getTimeout());
+    }
+
+    @Override
+    public void connect(@Nullable ConnectionCallback callback) {
+        try {
+            open();
+            if (callback != null) {
+                callback.onConnected();
+            }
+        } catch (IOException e) {
+            if (callback != null) {
+                callback.onError(e);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        Connection connection;
+        synchronized (this) {
+            connection = mConnection;
+        }
+        if (connection != null) {
+            connection.close(new McuMgrException("Transport released"));
+        }
+    }
+
+    //*******************************************************************************************
+    // Implementation
+    //*******************************************************************************************
+
+    /**
+     * Connects to the server and registers the connection with the selector, unless already
+     * connected.
+     *
+     * @return The connection.
+     */
+    @NotNull
+    private Connection open() throws IOException {
+        Connection connection;
+        synchronized (this) {
+            if (mConnection != null) {
+                return mConnection;
+            }
+            SocketChannel channel;
+            if (mAddress instanceof InetSocketAddress) {
+                channel = SocketChannel.open();
+                try {
+                    channel.socket().setTcpNoDelay(true);
+                    channel.socket().connect(mAddress, CONNECT_TIMEOUT);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            } else {
+                channel = SocketChannel.open(mAddress);
+            }
+            try {
+                channel.configureBlocking(false);
+                connection = new Connection(channel);
+                mSelector.register(connection);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            mConnection = connection;
+        }
+        LOG.debug("Connected to {}", mAddress);
+        notifyConnected();
+        return connection;
+    }
+
+    /**
+     * Sends the requests admitted after sequence numbers have been freed.
+     */
+    private void admitWaiting(@NotNull Connection connection) {
+        for (SmpRequestTable.Request request : mRequests.admitWaiting()) {
+            connection.transmit(request);
+        }
+    }
+
+    /**
+     * A connection to the server. Data of a closed connection is ignored, so a new connection
+     * may be opened while the I/O thread is still handling the previous one.
+     */
+    private class Connection implements SmpSocketSelector.Connection {
+        private final SocketChannel mChannel;
+
+        // Guarded by this, written by the caller threads and the I/O thread
+        private final Queue<ByteBuffer> mPendingWrites = new ArrayDeque<>();
+
+        // Accessed by the I/O thread only
+        private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final byte[] mHeader = new byte[McuMgrHeader.HEADER_LENGTH];
+        private int mHeaderLength;
+        @Nullable
+        private byte[] mPacket;
+        private int mPacketLength;
+
+        private volatile boolean mClosed;
+
+        Connection(@NotNull SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        @NotNull
+        @Override
+        public SocketChannel getChannel() {
+            return mChannel;
+        }
+
+        /**
+         * Writes the admitted request, at once if the socket has room, or on the I/O thread
+         * otherwise.
+         */
+        void transmit(@NotNull SmpRequestTable.Request request) {
+            byte[] data = request.getData();
+            mPacketsSent.incrementAndGet();
+            mBytesSent.addAndGet(data.length);
+            try {
+                synchronized (this) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    if (mPendingWrites.isEmpty()) {
+                        mChannel.write(buffer);
+                        if (!buffer.hasRemaining()) {
+                            return;
+                        }
+                        mPendingWrites.add(buffer);
+                    } else {
+                        mPendingWrites.add(buffer);
+                        return;
+                    }
+                }
+                mSelector.requestWrite(this);
+            } catch (IOException e) {
+                LOG.error("Writing request {} failed", request.getId(), e);
+                close(new McuMgrException(e));
+                // The request may have been admitted after the connection was closed
+                if (mRequests.take(request.getId()) == request) {
+                    fail(request, new McuMgrException(e));
+                }
+            }
+        }
+
+        boolean isClosed() {
+            return mClosed;
+        }
+
+        @Override
+        public synchronized boolean onWritable() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = mPendingWrites.peek()) != null) {
+                mChannel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+                mPendingWrites.poll();
+            }
+            return true;
+        }
+
+        @Override
+        public void onReadable() throws IOException {
+            while (true) {
+                mReadBuffer.clear();
+                int read = mChannel.read(mReadBuffer);
+                if (read < 0) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                if (read == 0) {
+                    return;
+                }
+                mBytesReceived.addAndGet(read);
+                mReadBuffer.flip();
+                while (mReadBuffer.hasRemaining()) {
+                    parse();
+                }
+            }
+        }
+
+        /**
+         * Reads the header, then the rest of the packet, from the read buffer.
+         */
+        private void parse() {
+            if (mPacket == null) {
+                int length = Math.min(mReadBuffer.remaining(), mHeader.length - mHeaderLength);
+                mReadBuffer.get(mHeader, mHeaderLength, length);
+                mHeaderLength += length;
+                if (mHeaderLength < mHeader.length) {
+                    return;
+                }
+                int payloadLength = (mHeader[LENGTH_OFFSET] & 0xFF) << 8
+                        | (mHeader[LENGTH_OFFSET + 1] & 0xFF);
+                mPacket = new byte[mHeader.length + payloadLength];
+                System.arraycopy(mHeader, 0, mPacket, 0, mHeader.length);
+                mPacketLength = mHeader.length;
+                mHeaderLength = 0;
+            }
+            int length = Math.min(mReadBuffer.remaining(), mPacket.length - mPacketLength);
+            mReadBuffer.get(mPacket, mPacketLength, length);
+            mPacketLength += length;
+            if (mPacketLength == mPacket.length) {
+                byte[] packet = mPacket;
+                mPacket = null;
+                receive(packet);
+            }
+        }
+
+        /**
+         * Matches the received packet with its request.
+         */
+        private void receive(@NotNull byte[] packet) {
+            mPacketsReceived.incrementAndGet();
+            if (mClosed) {
+                return;
+            }
+            int id = packet[SEQUENCE_NUMBER_OFFSET] & 0xFF;
+            SmpRequestTable.Request request = mRequests.get(id);
+            // A late response to a timed out request may arrive after the sequence number has
+            // been reused, so the command must match too
+            if (request == null || !isResponseTo(packet, request.getData())) {
+                LOG.debug("Ignoring unexpected response {}", id);
+                return;
+            }
+            if (mRequests.take(id) == request) {
+                complete(request, packet);
+                admitWaiting(this);
+            }
+        }
+
+        @Override
+        public long onTimer() {
+            if (mClosed) {
+                return -1;
+            }
+            List<SmpRequestTable.Request> timedOut = new ArrayList<>();
+            mRequests.expire(timedOut, new ArrayList<SmpRequestTable.Request>());
+            for (SmpRequestTable.Request request : timedOut) {
+                fail(request, new McuMgrTimeoutException());
+            }
+            if (!timedOut.isEmpty()) {
+                admitWaiting(this);
+            }
+            return mRequests.nextEvent();
+        }
+
+        @Override
+        public void onClosed(@NotNull IOException e) {
+            if (e instanceof EOFException) {
+                LOG.info("Connection to {} closed by the server", mAddress);
+            } else if (!(e instanceof ClosedChannelException)) {
+                LOG.error("Connection to {} failed", mAddress, e);
+            }
+            close(new McuMgrException(e));
+        }
+
+        /**
+         * Closes the connection and fails all requests with the given exception.
+         */
+        void close(@NotNull McuMgrException e) {
+            synchronized (McuMgrTcpTransport.this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                if (mConnection == this) {
+                    mConnection = null;
+                }
+            }
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {
+            }
+            mSelector.unregister(this);
+            for (SmpRequestTable.Request request : mRequests.clear()) {
+                fail(request, e);
+            }
+            notifyDisconnected();
+            LOG.debug("Disconnected from {}", mAddress);
+        }
+    }
+}
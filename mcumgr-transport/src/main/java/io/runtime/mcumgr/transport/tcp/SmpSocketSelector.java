@@ -0,0 +1,321 @@
+package io.runtime.mcumgr.transport.tcp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * A single I/O thread serving the connections of many {@link McuMgrTcpTransport}s: it reads the
+ * responses, writes the requests which could not be written at once, and watches the timeouts.
+ * <p>
+ * The thread is started when the first connection is registered and stops once all connections
+ * have been closed, so a selector does not need to be shut down. Transports use the
+ * {@link #getDefault() default selector} unless given their own.
+ */
+public final class SmpSocketSelector {
+
+    private final static Logger LOG = LoggerFactory.getLogger(SmpSocketSelector.class);
+
+    /**
+     * A connection served by the selector. Methods are called on the I/O thread.
+     */
+    interface Connection {
+
+        @NotNull
+        SocketChannel getChannel();
+
+        /**
+         * Reads the data available.
+         */
+        void onReadable() throws IOException;
+
+        /**
+         * Writes pending data.
+         *
+         * @return True if all data has been written.
+         */
+        boolean onWritable() throws IOException;
+
+        /**
+         * Fails the requests which have timed out.
+         *
+         * @return The time until the next timeout in milliseconds, or -1 if none is pending.
+         */
+        long onTimer();
+
+        /**
+         * Called when the connection has failed, or could not be registered.
+         */
+        void onClosed(@NotNull IOException e);
+    }
+
+    @Nullable
+    private static SmpSocketSelector sDefault;
+
+    private final String mName;
+
+    // Guarded by this
+    private final Set<Connection> mConnections = new HashSet<>();
+    private final Queue<Connection> mRegistrations = new ArrayDeque<>();
+    private final Queue<Connection> mWriteRequests = new ArrayDeque<>();
+    @Nullable
+    private Selector mSelector;
+    @Nullable
+    private Thread mThread;
+    // Time of the next timer check, from System.nanoTime()
+    private long mTimerAt;
+    private boolean mTimerPending;
+
+    /**
+     * Returns the selector shared by transports created without one.
+     *
+     * @return The default selector.
+     */
+    @NotNull
+    public static synchronized SmpSocketSelector getDefault() {
+        if (sDefault == null) {
+            sDefault = new SmpSocketSelector("SmpSocketSelector");
+        }
+        return sDefault;
+    }
+
+    /**
+     * Creates a selector with its own I/O thread.
+     *
+     * @param name the name of the I/O thread.
+     */
+    public SmpSocketSelector(@NotNull String name) {
+        mName = name;
+    }
+
+    /**
+     * Returns the number of connections served.
+     *
+     * @return The number of connections.
+     */
+    public synchronized int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * Adds the connection, whose channel must be connected and non-blocking, starting the I/O
+     * thread if needed.
+     */
+    synchronized void register(@NotNull Connection connection) throws IOException {
+        if (mThread == null) {
+            final Selector selector = Selector.open();
+            mSelector = selector;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop(selector);
+                }
+            }, mName);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        mConnections.add(connection);
+        mRegistrations.add(connection);
+        wakeUp();
+    }
+
+    /**
+     * Removes the connection. Its channel should have been closed.
+     */
+    synchronized void unregister(@NotNull Connection connection) {
+        if (mConnections.remove(connection)) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * Writes the pending data of the connection once its channel is writable.
+     */
+    synchronized void requestWrite(@NotNull Connection connection) {
+        mWriteRequests.add(connection);
+        wakeUp();
+    }
+
+    /**
+     * Checks the timeouts of all connections after the given time, or earlier.
+     */
+    synchronized void scheduleTimer(long delay) {
+        long at = System.nanoTime() + delay * 1_000_000L;
+        if (!mTimerPending || at - mTimerAt < 0) {
+            mTimerPending = true;
+            mTimerAt = at;
+            wakeUp();
+        }
+    }
+
+    private void wakeUp() {
+        if (mSelector != null) {
+            mSelector.wakeup();
+        }
+    }
+
+    /**
+     * Serves the connections until none is left.
+     */
+    private void loop(@NotNull Selector selector) {
+        final Set<Connection> connections = new HashSet<>();
+        final List<Connection> registrations = new ArrayList<>();
+        final List<Connection> writeRequests = new ArrayList<>();
+        try {
+            while (true) {
+                long wait;
+                synchronized (this) {
+                    if (mConnections.isEmpty()) {
+                        mThread = null;
+                        mSelector = null;
+                        mTimerPending = false;
+                        return;
+                    }
+                    registrations.addAll(mRegistrations);
+                    mRegistrations.clear();
+                    writeRequests.addAll(mWriteRequests);
+                    mWriteRequests.clear();
+                    // Rounded up, so the timer is due after waiting
+                    wait = mTimerPending
+                            ? Math.max(0, (mTimerAt - System.nanoTime() + 999_999) / 1_000_000L)
+                            : -1;
+                }
+                for (Connection connection : registrations) {
+                    try {
+                        connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                    } catch (IOException e) {
+                        close(connection, e);
+                    }
+                }
+                for (Connection connection : writeRequests) {
+                    SelectionKey key = connection.getChannel().keyFor(selector);
+                    try {
+                        if (key != null) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        }
+                    } catch (CancelledKeyException e) {
+                        // The connection has been closed
+                    }
+                }
+                registrations.clear();
+                writeRequests.clear();
+
+                // A timeout of 0 would block until woken up
+                if (wait < 0) {
+                    selector.select();
+                } else if (wait == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(wait);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                checkTimers(connections);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Selector failures are not expected, close all connections. The next connection
+            // registered starts a new thread.
+            LOG.error("Selector failed", e);
+            final IOException failure = e instanceof IOException
+                    ? (IOException) e : new IOException(e);
+            synchronized (this) {
+                connections.clear();
+                connections.addAll(mConnections);
+                mConnections.clear();
+                mThread = null;
+                mSelector = null;
+                mTimerPending = false;
+            }
+            for (Connection connection : connections) {
+                close(connection, failure);
+            }
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void handle(@NotNull SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable() && connection.onWritable()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (CancelledKeyException e) {
+            // The connection has been closed
+        } catch (IOException e) {
+            close(connection, e);
+        } catch (RuntimeException e) {
+            // A failing connection must not stop the thread serving the others
+            LOG.error("Connection failed", e);
+            close(connection, new IOException(e));
+        }
+    }
+
+    /**
+     * Checks the timeouts of all connections, if due, and schedules the next check.
+     */
+    private void checkTimers(@NotNull Set<Connection> connections) {
+        synchronized (this) {
+            if (!mTimerPending || mTimerAt - System.nanoTime() > 0) {
+                return;
+            }
+            mTimerPending = false;
+            connections.addAll(mConnections);
+        }
+        long next = -1;
+        for (Connection connection : connections) {
+            long delay;
+            try {
+                delay = connection.onTimer();
+            } catch (RuntimeException e) {
+                LOG.error("Connection failed", e);
+                close(connection, new IOException(e));
+                continue;
+            }
+            if (delay >= 0 && (next < 0 || delay < next)) {
+                next = delay;
+            }
+        }
+        connections.clear();
+        if (next >= 0) {
+            scheduleTimer(next);
+        }
+    }
+
+    /**
+     * Notifies the connection that it has failed. An exception thrown meanwhile is logged.
+     */
+    private void close(@NotNull Connection connection, @NotNull IOException e) {
+        try {
+            connection.onClosed(e);
+        } catch (RuntimeException failure) {
+            LOG.error("Closing connection failed", failure);
+            unregister(connection);
+        }
+    }
+}
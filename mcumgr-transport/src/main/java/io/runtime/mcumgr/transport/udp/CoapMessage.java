@@ -0,0 +1,224 @@
+package io.runtime.mcumgr.transport.udp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import io.runtime.mcumgr.McuMgrScheme;
+import io.runtime.mcumgr.exception.McuMgrCoapException;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.response.McuMgrResponse;
+import io.runtime.mcumgr.util.CBOR;
+
+/**
+ * Minimal CoAP (RFC 7252) framing for SMP over UDP, as used by the {@code omgr} resource of
+ * newtmgr and Mynewt.
+ * <p>
+ * Requests are confirmable, with a 1-byte token holding the request ID, so the token is always at
+ * {@link #TOKEN_OFFSET}. Only what is needed to match responses is parsed: the type, code, message
+ * ID, token and the payload.
+ */
+final class CoapMessage {
+
+    /**
+     * The offset of the token in a request.
+     */
+    final static int TOKEN_OFFSET = 4;
+
+    private final static int VERSION = 1;
+    private final static int TYPE_CON = 0;
+    private final static int TYPE_ACK = 2;
+    private final static int TYPE_RST = 3;
+
+    private final static int CODE_EMPTY = 0;
+    private final static int CODE_GET = 1;
+    private final static int CODE_PUT = 3;
+
+    private final static int PAYLOAD_MARKER = 0xFF;
+
+    // The write operation of the SMP header, sent as PUT
+    private final static int OP_WRITE = 2;
+
+    // Uri-Path (option 11) "omgr", then Content-Format (option 12) application/cbor (60)
+    private final static byte[] OPTIONS = {
+            (byte) 0xB4, 'o', 'm', 'g', 'r',
+            (byte) 0x11, 60
+    };
+
+    private final int mType;
+    private final int mCode;
+    private final int mMessageId;
+    private final int mTokenId;
+    private final int mPayloadOffset;
+
+    private CoapMessage(int type, int code, int messageId, int tokenId, int payloadOffset) {
+        mType = type;
+        mCode = code;
+        mMessageId = messageId;
+        mTokenId = tokenId;
+        mPayloadOffset = payloadOffset;
+    }
+
+    boolean isConfirmable() {
+        return mType == TYPE_CON;
+    }
+
+    boolean isReset() {
+        return mType == TYPE_RST;
+    }
+
+    boolean isEmpty() {
+        return mCode == CODE_EMPTY;
+    }
+
+    int getMessageId() {
+        return mMessageId;
+    }
+
+    /**
+     * Returns the request ID held in a 1-byte token, or -1 for other tokens.
+     */
+    int getTokenId() {
+        return mTokenId;
+    }
+
+    //*******************************************************************************************
+    // Requests
+    //*******************************************************************************************
+
+    /**
+     * Wraps the SMP packet into a confirmable request. The token is written on admission of the
+     * request at {@link #TOKEN_OFFSET}.
+     *
+     * @param packet    the SMP packet built for the {@link McuMgrScheme#COAP_UDP} scheme.
+     * @param messageId the message ID.
+     * @return The CoAP message.
+     * @throws McuMgrException if the packet has no valid header.
+     */
+    @NotNull
+    static byte[] request(@NotNull byte[] packet, int messageId) throws McuMgrException {
+        byte[] header;
+        try {
+            header = CBOR.getObject(packet, "_h", byte[].class);
+        } catch (IOException e) {
+            throw new McuMgrException("Invalid McuMgrHeader", e);
+        }
+        if (header == null || header.length < 1) {
+            throw new McuMgrException("Invalid McuMgrHeader");
+        }
+        int code = header[0] == OP_WRITE ? CODE_PUT : CODE_GET;
+
+        byte[] message = new byte[TOKEN_OFFSET + 1 + OPTIONS.length + 1 + packet.length];
+        message[0] = (byte) (VERSION << 6 | TYPE_CON << 4 | 1);
+        message[1] = (byte) code;
+        message[2] = (byte) (messageId >> 8);
+        message[3] = (byte) messageId;
+        int offset = TOKEN_OFFSET + 1;
+        System.arraycopy(OPTIONS, 0, message, offset, OPTIONS.length);
+        offset += OPTIONS.length;
+        message[offset++] = (byte) PAYLOAD_MARKER;
+        System.arraycopy(packet, 0, message, offset, packet.length);
+        return message;
+    }
+
+    /**
+     * Returns an empty acknowledgement of the confirmable message with the given ID.
+     */
+    @NotNull
+    static byte[] ack(int messageId) {
+        return new byte[]{
+                (byte) (VERSION << 6 | TYPE_ACK << 4), CODE_EMPTY,
+                (byte) (messageId >> 8), (byte) messageId
+        };
+    }
+
+    /**
+     * Returns the message ID of the request.
+     */
+    static int getMessageId(@NotNull byte[] request) {
+        return (request[2] & 0xFF) << 8 | (request[3] & 0xFF);
+    }
+
+    //*******************************************************************************************
+    // Responses
+    //*******************************************************************************************
+
+    /**
+     * Parses the datagram, or returns null if it is not a valid CoAP message.
+     */
+    @Nullable
+    static CoapMessage parse(@NotNull byte[] data) {
+        if (data.length < 4 || (data[0] & 0xFF) >> 6 != VERSION) {
+            return null;
+        }
+        int type = (data[0] >> 4) & 0x03;
+        int tokenLength = data[0] & 0x0F;
+        int code = data[1] & 0xFF;
+        int messageId = getMessageId(data);
+        if (tokenLength > 8 || 4 + tokenLength > data.length) {
+            return null;
+        }
+        int tokenId = tokenLength == 1 ? data[TOKEN_OFFSET] & 0xFF : -1;
+
+        // Skip the options
+        int offset = 4 + tokenLength;
+        while (offset < data.length && (data[offset] & 0xFF) != PAYLOAD_MARKER) {
+            int delta = (data[offset] & 0xFF) >> 4;
+            int length = data[offset] & 0x0F;
+            offset++;
+            if (delta == 15 || length == 15) {
+                return null;
+            }
+            offset += extendedLength(delta) + extendedLength(length);
+            if (offset > data.length) {
+                return null;
+            }
+            if (length >= 13) {
+                length = length == 13
+                        ? (data[offset - 1] & 0xFF) + 13
+                        : ((data[offset - 2] & 0xFF) << 8 | (data[offset - 1] & 0xFF)) + 269;
+            }
+            offset += length;
+        }
+        if (offset > data.length) {
+            return null;
+        }
+        // Skip the payload marker
+        int payloadOffset = Math.min(offset + 1, data.length);
+        return new CoapMessage(type, code, messageId, tokenId, payloadOffset);
+    }
+
+    /**
+     * Builds the SMP response carried in the payload of the CoAP response.
+     *
+     * @throws McuMgrCoapException if the response code is an error.
+     * @throws IOException         if the payload could not be parsed.
+     */
+    @NotNull
+    static <T extends McuMgrResponse> T buildResponse(@NotNull byte[] data,
+                                                      @NotNull Class<T> type)
+            throws IOException, McuMgrException {
+        CoapMessage message = parse(data);
+        if (message == null) {
+            throw new IOException("Invalid CoAP message");
+        }
+        int codeClass = message.mCode >> 5;
+        int codeDetail = message.mCode & 0x1F;
+        if (codeClass == 4 || codeClass == 5) {
+            throw new McuMgrCoapException(data, codeClass, codeDetail);
+        }
+        byte[] payload = Arrays.copyOfRange(data, message.mPayloadOffset, data.length);
+        byte[] header = CBOR.getObject(payload, "_h", byte[].class);
+        if (header == null) {
+            throw new IOException("Missing McuMgrHeader");
+        }
+        return McuMgrResponse.buildCoapResponse(McuMgrScheme.COAP_UDP, data, header, payload,
+                codeClass, codeDetail, type);
+    }
+
+    private static int extendedLength(int nibble) {
+        return nibble == 13 ? 1 : nibble == 14 ? 2 : 0;
+    }
+}
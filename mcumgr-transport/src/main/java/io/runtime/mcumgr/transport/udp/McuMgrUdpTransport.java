@@ -0,0 +1,534 @@
+package io.runtime.mcumgr.transport.udp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import io.runtime.mcumgr.McuMgrCallback;
+import io.runtime.mcumgr.McuMgrHeader;
+import io.runtime.mcumgr.McuMgrMtuProvider;
+import io.runtime.mcumgr.McuMgrScheme;
+import io.runtime.mcumgr.McuMgrTransport;
+import io.runtime.mcumgr.exception.McuMgrException;
+import io.runtime.mcumgr.exception.McuMgrTimeoutException;
+import io.runtime.mcumgr.response.McuMgrResponse;
+import io.runtime.mcumgr.transport.SmpRequestTable;
+import io.runtime.mcumgr.transport.SmpRequestTransport;
+
+/**
+ * An implementation of {@link McuMgrTransport} sending SMP packets in UDP datagrams, as Zephyr's
+ * UDP transport does on {@link #DEFAULT_PORT port 1337}.
+ * <p>
+ * With the {@link McuMgrScheme#BLE} scheme, each datagram holds a plain SMP packet: the 8-byte
+ * header followed by the CBOR payload. With {@link McuMgrScheme#COAP_UDP}, the packet built by
+ * the managers is sent as the payload of a confirmable CoAP request to the {@code omgr} resource,
+ * as done by newtmgr.
+ * <p>
+ * Requests are matched with their responses by the sequence number of the SMP header, or by the
+ * token of the CoAP message, so up to 256 requests may be in flight; further requests are queued.
+ * A request is sent again if no response has been received within the retransmission timeout,
+ * which doubles after each retransmission, and fails with {@link McuMgrTimeoutException} once
+ * its timeout has passed. As a lost response cannot be told apart from a lost request, the device
+ * may receive a request more than once.
+ * <p>
+ * The datagrams are received, and the timeouts watched, by a single I/O thread started on
+ * {@link #connect(ConnectionCallback)} or with the first request. Callbacks are called on that
+ * thread, unless an executor has been set using {@link #setCallbackExecutor(Executor)}, and must
+ * not block.
+ */
+public class McuMgrUdpTransport extends SmpRequestTransport implements McuMgrMtuProvider {
+
+    private final static Logger LOG = LoggerFactory.getLogger(McuMgrUdpTransport.class);
+
+    /**
+     * The UDP port of the SMP server in Zephyr.
+     */
+    public final static int DEFAULT_PORT = 1337;
+
+    /**
+     * The default time to wait for a response, in milliseconds.
+     */
+    public final static long DEFAULT_TIMEOUT = 10_000;
+
+    /**
+     * The default time to wait before the first retransmission, in milliseconds.
+     */
+    public final static long DEFAULT_RETRANSMISSION_TIMEOUT = 1_000;
+
+    // Large enough for any datagram
+    private final static int RECEIVE_BUFFER_SIZE = 65536;
+    // Room for bursts of responses to the requests in flight
+    private final static int SOCKET_BUFFER_SIZE = 256 * 1024;
+
+    private final SocketAddress mAddress;
+    private final McuMgrScheme mScheme;
+
+    private volatile long mTimeout = DEFAULT_TIMEOUT;
+    private volatile long mRetransmissionTimeout = DEFAULT_RETRANSMISSION_TIMEOUT;
+    private volatile int mMaxPacketLength;
+
+    // Guarded by this
+    @Nullable
+    private DatagramChannel mChannel;
+    @Nullable
+    private Selector mSelector;
+    @Nullable
+    private Thread mThread;
+
+    // Message ID of the next CoAP request
+    private int mMessageId;
+
+    /**
+     * Creates a transport sending plain SMP packets to the given address.
+     *
+     * @param address the address of the device, usually with port {@link #DEFAULT_PORT}.
+     */
+    public McuMgrUdpTransport(@NotNull InetSocketAddress address) {
+        this(address, McuMgrScheme.BLE);
+    }
+
+    /**
+     * Creates a transport sending packets of the given scheme to the given address.
+     *
+     * @param address the address of the device.
+     * @param scheme  {@link McuMgrScheme#BLE} for plain SMP packets, or
+     *                {@link McuMgrScheme#COAP_UDP} for SMP over CoAP.
+     */
+    public McuMgrUdpTransport(@NotNull InetSocketAddress address, @NotNull McuMgrScheme scheme) {
+        if (scheme == McuMgrScheme.COAP_BLE) {
+            throw new IllegalArgumentException("Unsupported scheme: " + scheme);
+        }
+        mAddress = address;
+        mScheme = scheme;
+    }
+
+    @NotNull
+    @Override
+    public McuMgrScheme getScheme() {
+        return mScheme;
+    }
+
+    /**
+     * Sets the time to wait for a response before failing the request with
+     * {@link McuMgrTimeoutException}, including retransmissions. Default is 10 seconds.
+     *
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        }
+        mTimeout = timeout;
+    }
+
+    /**
+     * Sets the time to wait for a response before sending the request again. The time doubles
+     * after each retransmission. Default is 1 second.
+     *
+     * @param timeout the retransmission timeout in milliseconds, or 0 to disable retransmission.
+     */
+    public void setRetransmissionTimeout(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative: " + timeout);
+        }
+        mRetransmissionTimeout = timeout;
+    }
+
+    /**
+     * Sets the largest SMP packet the device accepts, usually the size of its SMP buffer.
+     * Managers size their packets to this length.
+     *
+     * @param maxPacketLength the maximum packet length, or 0 if not known (default).
+     */
+    public void setMaxPacketLength(int maxPacketLength) {
+        mMaxPacketLength = maxPacketLength;
+    }
+
+    @Override
+    public int getMaxPacketLength() {
+        return mMaxPacketLength;
+    }
+
+    //*******************************************************************************************
+    // Mcu Manager Transport
+    //*******************************************************************************************
+
+    @Override
+    public <T extends McuMgrResponse> void send(@NotNull byte[] payload,
+                                                @NotNull Class<T> responseType,
+                                                @NotNull McuMgrCallback<T> callback) {
+        send(payload, responseType, 0, callback);
+    }
+
+    /**
+     * Sends the request, waiting for the response for the given time instead of the default
+     * timeout.
+     *
+     * @param payload      the request packet.
+     * @param responseType the type of the response.
+     * @param timeout      the time to wait for the response in milliseconds, or 0 to use the
+     *                     default timeout.
+     * @param callback     the callback.
+     * @param <T>          the response type.
+     */
+    public <T extends McuMgrResponse> void send(@NotNull byte[] payload,
+                                                @NotNull final Class<T> responseType,
+                                                long timeout,
+                                                @NotNull final McuMgrCallback<T> callback) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative: " + timeout);
+        }
+        try {
+            open();
+        } catch (IOException e) {
+            callback.onError(new McuMgrException(e));
+            return;
+        }
+        if (mScheme == McuMgrScheme.BLE && payload.length < McuMgrHeader.HEADER_LENGTH) {
+            callback.onError(new McuMgrException("Invalid McuMgrHeader"));
+            return;
+        }
+
+        final byte[] data;
+        final int idOffset;
+        if (mScheme.isCoap()) {
+            try {
+                data = CoapMessage.request(payload, nextMessageId());
+            } catch (McuMgrException e) {
+                callback.onError(e);
+                return;
+            }
+            idOffset = CoapMessage.TOKEN_OFFSET;
+        } else {
+            data = payload.clone();
+            idOffset = SEQUENCE_NUMBER_OFFSET;
+        }
+        SmpRequestTable.Request request = new SmpRequestTable.Request(data, idOffset,
+                timeout > 0 ? timeout : mTimeout, mRetransmissionTimeout,
+                new SmpRequestTable.Callback() {
+                    @Override
+                    public void onResponse(@NotNull byte[] response) {
+                        T result;
+                        try {
+                            result = mScheme.isCoap()
+                                    ? CoapMessage.buildResponse(response, responseType)
+                                    : McuMgrResponse.buildResponse(mScheme, response, responseType);
+                        } catch (McuMgrException e) {
+                            callback.onError(e);
+                            return;
+                        } catch (Exception e) {
+                            callback.onError(new McuMgrException(e));
+                            return;
+                        }
+                        callback.onResponse(result);
+                    }
+
+                    @Override
+                    public void onFailure(@NotNull McuMgrException e) {
+                        callback.onError(e);
+                    }
+                });
+        if (mRequests.submit(request)) {
+            transmit(request);
+            wakeUp();
+        }
+    }
+
+    @Override
+    public void connect(@Nullable ConnectionCallback callback) {
+        try {
+            boolean opened = open();
+            if (opened) {
+                notifyConnected();
+            }
+            if (callback != null) {
+                callback.onConnected();
+            }
+        } catch (IOException e) {
+            if (callback != null) {
+                callback.onError(e);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        close(new McuMgrException("Transport released"));
+    }
+
+    //*******************************************************************************************
+    // Implementation
+    //*******************************************************************************************
+
+    /**
+     * Opens the channel and starts the I/O thread, unless already open.
+     *
+     * @return True if the channel has been opened, false if it was open already.
+     */
+    private synchronized boolean open() throws IOException {
+        if (mChannel != null) {
+            return false;
+        }
+        DatagramChannel channel = DatagramChannel.open();
+        Selector selector = null;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+            channel.socket().setSendBufferSize(SOCKET_BUFFER_SIZE);
+            channel.connect(mAddress);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            if (selector != null) {
+                selector.close();
+            }
+            throw e;
+        }
+        mChannel = channel;
+        mSelector = selector;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "McuMgrUdpTransport " + mAddress);
+        mThread.setDaemon(true);
+        mThread.start();
+        LOG.debug("Opened channel to {}", mAddress);
+        return true;
+    }
+
+    /**
+     * Closes the channel and fails all requests with the given exception.
+     */
+    private void close(@NotNull McuMgrException e) {
+        synchronized (this) {
+            if (mChannel == null) {
+                return;
+            }
+            try {
+                mChannel.close();
+            } catch (IOException ignored) {
+            }
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
+            mChannel = null;
+            mSelector = null;
+            mThread = null;
+        }
+        for (SmpRequestTable.Request request : mRequests.clear()) {
+            fail(request, e);
+        }
+        notifyDisconnected();
+        LOG.debug("Closed channel to {}", mAddress);
+    }
+
+    /**
+     * Receives datagrams and watches timeouts until the channel is closed.
+     */
+    private void loop() {
+        final DatagramChannel channel;
+        final Selector selector;
+        synchronized (this) {
+            channel = mChannel;
+            selector = mSelector;
+        }
+        if (channel == null || selector == null) {
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        final List<SmpRequestTable.Request> timedOut = new ArrayList<>();
+        final List<SmpRequestTable.Request> retransmit = new ArrayList<>();
+        try {
+            while (channel.isOpen()) {
+                long wait = mRequests.nextEvent();
+                // A wait of 0 would block until woken up
+                if (wait == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(Math.max(wait, 0));
+                }
+                selector.selectedKeys().clear();
+
+                // Read all datagrams received
+                while (true) {
+                    buffer.clear();
+                    if (channel.read(buffer) <= 0) {
+                        break;
+                    }
+                    buffer.flip();
+                    byte[] datagram = new byte[buffer.remaining()];
+                    buffer.get(datagram);
+                    receive(datagram);
+                }
+
+                mRequests.expire(timedOut, retransmit);
+                for (SmpRequestTable.Request request : timedOut) {
+                    fail(request, new McuMgrTimeoutException());
+                }
+                for (SmpRequestTable.Request request : retransmit) {
+                    LOG.debug("Retransmitting request {} ({})", request.getId(),
+                            request.getRetransmissions());
+                    transmit(request);
+                }
+                if (!timedOut.isEmpty()) {
+                    admitWaiting();
+                }
+                timedOut.clear();
+                retransmit.clear();
+            }
+        } catch (ClosedChannelException e) {
+            // The transport has been released
+        } catch (IOException | RuntimeException e) {
+            // Closing lets the next request open the channel again with a new thread
+            LOG.error("UDP transport failed", e);
+            close(new McuMgrException(e));
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Matches the received datagram with its request.
+     */
+    private void receive(@NotNull byte[] datagram) throws IOException {
+        if (mScheme.isCoap()) {
+            receiveCoap(datagram);
+            return;
+        }
+        if (datagram.length < McuMgrHeader.HEADER_LENGTH) {
+            LOG.warn("Ignoring datagram of {} bytes", datagram.length);
+            return;
+        }
+        int id = datagram[SEQUENCE_NUMBER_OFFSET] & 0xFF;
+        SmpRequestTable.Request request = mRequests.get(id);
+        // A late response to a retransmitted request may arrive after the sequence number has
+        // been reused, so the command must match too
+        if (request == null || !isResponseTo(datagram, request.getData())) {
+            LOG.debug("Ignoring unexpected response {}", id);
+            return;
+        }
+        if (mRequests.take(id) == request) {
+            complete(request, datagram);
+            admitWaiting();
+        }
+    }
+
+    private void receiveCoap(@NotNull byte[] datagram) throws IOException {
+        CoapMessage message = CoapMessage.parse(datagram);
+        if (message == null) {
+            LOG.warn("Ignoring invalid CoAP message of {} bytes", datagram.length);
+            return;
+        }
+        // A separate response must be acknowledged
+        if (message.isConfirmable()) {
+            write(CoapMessage.ack(message.getMessageId()));
+        }
+        if (message.isEmpty()) {
+            // An empty acknowledgement promises a separate response, a reset rejects the request
+            SmpRequestTable.Request request = findByMessageId(message.getMessageId());
+            if (request == null) {
+                return;
+            }
+            if (message.isReset()) {
+                if (mRequests.take(request.getId()) == request) {
+                    fail(request, new McuMgrException("Request rejected by the device"));
+                    admitWaiting();
+                }
+            } else {
+                mRequests.stopRetransmission(request);
+            }
+            return;
+        }
+        int id = message.getTokenId();
+        SmpRequestTable.Request request = id >= 0 ? mRequests.take(id) : null;
+        if (request == null) {
+            LOG.debug("Ignoring unexpected CoAP response {}", id);
+            return;
+        }
+        complete(request, datagram);
+        admitWaiting();
+    }
+
+    @Nullable
+    private SmpRequestTable.Request findByMessageId(int messageId) {
+        for (int id = 0; id < 256; id++) {
+            SmpRequestTable.Request request = mRequests.get(id);
+            if (request != null && CoapMessage.getMessageId(request.getData()) == messageId) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends the requests admitted after sequence numbers have been freed.
+     */
+    private void admitWaiting() {
+        for (SmpRequestTable.Request request : mRequests.admitWaiting()) {
+            transmit(request);
+        }
+    }
+
+    /**
+     * Sends the admitted request. Retransmissions are sent with the same sequence number, or
+     * the same message ID and token.
+     */
+    private void transmit(@NotNull SmpRequestTable.Request request) {
+        try {
+            write(request.getData());
+        } catch (IOException e) {
+            // The request is sent again after the retransmission timeout, if any
+            LOG.warn("Sending request {} failed: {}", request.getId(), e.toString());
+        }
+    }
+
+    private void write(@NotNull byte[] data) throws IOException {
+        DatagramChannel channel;
+        synchronized (this) {
+            channel = mChannel;
+        }
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+        // Returns 0 if the send buffer is full, the datagram is then lost
+        channel.write(ByteBuffer.wrap(data));
+    }
+
+    private synchronized int nextMessageId() {
+        int id = mMessageId;
+        mMessageId = (mMessageId + 1) & 0xFFFF;
+        return id;
+    }
+
+    /**
+     * Wakes up the I/O thread to recalculate the time of the next timeout.
+     */
+    private void wakeUp() {
+        Selector selector;
+        synchronized (this) {
+            selector = mSelector;
+        }
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+}
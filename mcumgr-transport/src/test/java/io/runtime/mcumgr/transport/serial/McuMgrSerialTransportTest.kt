@@ -0,0 +1,158 @@
+package io.runtime.mcumgr.transport.serial
+
+import io.runtime.mcumgr.McuManager
+import io.runtime.mcumgr.McuMgrCallback
+import io.runtime.mcumgr.McuMgrScheme
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.exception.McuMgrTimeoutException
+import io.runtime.mcumgr.managers.DefaultManager
+import io.runtime.mcumgr.response.dflt.McuMgrEchoResponse
+import io.runtime.mcumgr.util.CBOR
+import org.junit.After
+import org.junit.Test
+import java.io.IOException
+import java.io.PipedInputStream
+import java.io.PipedOutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class McuMgrSerialTransportTest {
+
+    private val device = Device()
+    private val transport = McuMgrSerialTransport(device.input, device.output)
+
+    @After
+    fun tearDown() {
+        transport.release()
+        device.close()
+    }
+
+    @Test
+    fun `echo over serial`() {
+        val manager = DefaultManager(transport)
+        assertEquals("Hello", manager.echo("Hello").r)
+        assertEquals("x".repeat(400), manager.echo("x".repeat(400)).r)
+    }
+
+    @Test
+    fun `requests are pipelined`() {
+        transport.setMaxRequestsInFlight(4)
+        val manager = DefaultManager(transport)
+        val count = 50
+        val latch = CountDownLatch(count)
+        val mismatches = AtomicInteger()
+        repeat(count) { i ->
+            manager.echo("$i", object : McuMgrCallback<McuMgrEchoResponse> {
+                override fun onResponse(response: McuMgrEchoResponse) {
+                    if (response.r != "$i") mismatches.incrementAndGet()
+                    latch.countDown()
+                }
+
+                override fun onError(error: McuMgrException) {
+                    mismatches.incrementAndGet()
+                    latch.countDown()
+                }
+            })
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS))
+        assertEquals(0, mismatches.get())
+        assertEquals(4, device.maxPending)
+    }
+
+    @Test
+    fun `callback throwing does not stop the reader`() {
+        val manager = DefaultManager(transport)
+        val called = CountDownLatch(1)
+        manager.echo("Hello", object : McuMgrCallback<McuMgrEchoResponse> {
+            override fun onResponse(response: McuMgrEchoResponse) {
+                called.countDown()
+                throw IllegalStateException("Callback failed")
+            }
+
+            override fun onError(error: McuMgrException) = Unit
+        })
+        assertTrue(called.await(1, TimeUnit.SECONDS))
+        assertEquals("World", manager.echo("World").r)
+    }
+
+    @Test
+    fun `request times out`() {
+        device.respond = false
+        transport.setTimeout(100)
+        assertFailsWith<McuMgrTimeoutException> { DefaultManager(transport).echo("Hello") }
+        assertEquals(0, transport.inFlightRequestCount)
+    }
+
+    /**
+     * Answers echo requests over a pair of pipes, as the SMP shell of a device would. Requests
+     * are answered in batches, so the requests written before a response has been received can
+     * be counted.
+     */
+    private class Device {
+        private val toDevice = PipedOutputStream()
+        private val fromDevice = PipedInputStream(64 * 1024)
+        private val deviceInput = PipedInputStream(toDevice, 64 * 1024)
+        private val deviceOutput = PipedOutputStream(fromDevice)
+        private val encoder = SmpSerialEncoder()
+        private val pending = mutableListOf<ByteArray>()
+
+        val input = fromDevice
+        val output = toDevice
+
+        @Volatile var respond = true
+        @Volatile var maxPending = 0
+
+        init {
+            val decoder = SmpSerialDecoder(object : SmpSerialDecoder.Listener {
+                override fun onPacket(packet: ByteArray) = handle(packet)
+            })
+            thread(isDaemon = true) {
+                val buffer = ByteArray(256)
+                try {
+                    while (true) {
+                        val length = deviceInput.read(buffer)
+                        if (length < 0) break
+                        decoder.feed(buffer, 0, length)
+                        // Answer the requests received so far
+                        if (deviceInput.available() == 0) flush()
+                    }
+                } catch (e: IOException) {
+                    // Closed
+                }
+            }
+        }
+
+        fun close() {
+            deviceInput.close()
+            deviceOutput.close()
+        }
+
+        private fun handle(packet: ByteArray) {
+            if (!respond) return
+            val request = CBOR.toObjectMap(packet.copyOfRange(8, packet.size))
+            pending.add(
+                McuManager.buildPacket(
+                    McuMgrScheme.BLE, 3, 0, packet[5].toInt(), packet[6].toInt() and 0xFF,
+                    packet[7].toInt(), mapOf("r" to request["d"])
+                )
+            )
+            maxPending = maxOf(maxPending, pending.size)
+        }
+
+        private fun flush() {
+            // Some shell output between the responses
+            deviceOutput.write("uart:~$ ".toByteArray())
+            pending.forEach { response ->
+                val length = encoder.encode(response)
+                deviceOutput.write(encoder.data, 0, length)
+            }
+            deviceOutput.flush()
+            pending.clear()
+        }
+    }
+}
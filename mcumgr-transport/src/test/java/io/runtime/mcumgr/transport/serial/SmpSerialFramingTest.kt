@@ -0,0 +1,74 @@
+package io.runtime.mcumgr.transport.serial
+
+import org.junit.Test
+import java.util.Base64
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class SmpSerialFramingTest {
+
+    private val packets = mutableListOf<ByteArray>()
+    private val decoder = SmpSerialDecoder(object : SmpSerialDecoder.Listener {
+        override fun onPacket(packet: ByteArray) {
+            packets.add(packet)
+        }
+    })
+
+    @Test
+    fun `crc16 check value`() {
+        assertEquals(0x31C3, Crc16.update(0, "123456789".toByteArray()))
+    }
+
+    @Test
+    fun `packet is encoded into frames`() {
+        val packet = ByteArray(200) { it.toByte() }
+        val encoder = SmpSerialEncoder()
+        val length = encoder.encode(packet)
+        val frames = String(encoder.data, 0, length, Charsets.ISO_8859_1).split('\n').dropLast(1)
+
+        assertEquals(3, frames.size)
+        assertTrue(frames.first().startsWith("\u0006\u0009"))
+        frames.drop(1).forEach { assertTrue(it.startsWith("\u0004\u0014")) }
+        frames.forEach { assertTrue(it.length <= 2 + MAX_FRAME_BASE64) }
+
+        val raw = Base64.getDecoder().decode(frames.joinToString("") { it.substring(2) })
+        assertEquals(204, raw.size)
+        assertEquals(202, (raw[0].toInt() and 0xFF) shl 8 or (raw[1].toInt() and 0xFF))
+        assertTrue(packet.contentEquals(raw.copyOfRange(2, 202)))
+        assertEquals(0, Crc16.update(0, raw, 2, 202))
+    }
+
+    @Test
+    fun `frames are decoded byte by byte among console output`() {
+        val encoder = SmpSerialEncoder()
+        val input = mutableListOf<Byte>()
+        input.addAll("uart:~$ \n".toByteArray().toList())
+        listOf(10, 300, 1).forEach { size ->
+            val packet = ByteArray(size) { (it * 7).toByte() }
+            val length = encoder.encode(packet)
+            input.addAll(encoder.data.copyOf(length).toList())
+            input.addAll("log line\n".toByteArray().toList())
+        }
+        input.forEach { decoder.feed(byteArrayOf(it), 0, 1) }
+
+        assertEquals(listOf(10, 300, 1), packets.map { it.size })
+        assertTrue(ByteArray(300) { (it * 7).toByte() }.contentEquals(packets[1]))
+    }
+
+    @Test
+    fun `corrupted packet is dropped`() {
+        val encoder = SmpSerialEncoder()
+        val length = encoder.encode(ByteArray(50) { it.toByte() })
+        val data = encoder.data.copyOf(length)
+        // Replace a base64 character in the middle of the frame
+        data[20] = if (data[20] == 'A'.toByte()) 'B'.toByte() else 'A'.toByte()
+        decoder.feed(data, 0, data.size)
+
+        val validLength = encoder.encode(ByteArray(5))
+        val valid = encoder.data.copyOf(validLength)
+        decoder.feed(valid, 0, valid.size)
+
+        assertEquals(1, decoder.droppedPackets)
+        assertEquals(listOf(5), packets.map { it.size })
+    }
+}
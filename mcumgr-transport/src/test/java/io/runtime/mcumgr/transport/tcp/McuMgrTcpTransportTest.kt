@@ -0,0 +1,261 @@
+package io.runtime.mcumgr.transport.tcp
+
+import io.runtime.mcumgr.McuManager
+import io.runtime.mcumgr.McuMgrCallback
+import io.runtime.mcumgr.McuMgrScheme
+import io.runtime.mcumgr.McuMgrTransport
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.exception.McuMgrTimeoutException
+import io.runtime.mcumgr.managers.DefaultManager
+import io.runtime.mcumgr.response.dflt.McuMgrEchoResponse
+import io.runtime.mcumgr.util.CBOR
+import org.junit.After
+import org.junit.Test
+import java.io.DataInputStream
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.channels.SocketChannel
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class McuMgrTcpTransportTest {
+
+    private val server = Server()
+    private val selector = SmpSocketSelector("test selector")
+    private val transports = mutableListOf<McuMgrTcpTransport>()
+
+    @After
+    fun tearDown() {
+        transports.forEach { it.release() }
+        server.close()
+    }
+
+    @Test
+    fun `echo over TCP`() {
+        val transport = newTransport()
+        val manager = DefaultManager(transport)
+        assertEquals("Hello", manager.echo("Hello").r)
+        assertEquals("x".repeat(2000), manager.echo("x".repeat(2000)).r)
+
+        assertEquals(2, transport.packetsSent)
+        assertEquals(2, transport.packetsReceived)
+        assertEquals(transport.bytesSent, transport.bytesReceived)
+    }
+
+    @Test
+    fun `responses are matched with requests in flight`() {
+        // Responses are sent in reverse order of each batch of requests
+        server.batch = 10
+        val transport = newTransport()
+        val count = 1000
+        val mismatches = AtomicInteger()
+        val latch = CountDownLatch(count)
+        // Requests are sent from several threads at once
+        List(4) { t ->
+            thread {
+                val manager = DefaultManager(transport)
+                for (i in t until count step 4) {
+                    manager.echo("$i", object : McuMgrCallback<McuMgrEchoResponse> {
+                        override fun onResponse(response: McuMgrEchoResponse) {
+                            if (response.r != "$i") mismatches.incrementAndGet()
+                            latch.countDown()
+                        }
+
+                        override fun onError(error: McuMgrException) {
+                            mismatches.incrementAndGet()
+                            latch.countDown()
+                        }
+                    })
+                }
+            }
+        }.forEach { it.join() }
+        assertTrue(latch.await(10, TimeUnit.SECONDS))
+        assertEquals(0, mismatches.get())
+        assertEquals(count.toLong(), transport.packetsReceived)
+        assertEquals(0, transport.queuedRequestCount)
+    }
+
+    @Test
+    fun `one selector serves many connections`() {
+        val clients = List(20) { newTransport() }
+        clients.forEachIndexed { i, transport ->
+            assertEquals("$i", DefaultManager(transport).echo("$i").r)
+        }
+        assertEquals(20, selector.connectionCount)
+        assertEquals(20, server.connections.get())
+
+        clients.forEach { it.release() }
+        assertEquals(0, selector.connectionCount)
+    }
+
+    @Test
+    fun `closed connection fails requests and reconnects`() {
+        server.respond = false
+        val transport = newTransport()
+        val disconnected = CountDownLatch(1)
+        transport.addObserver(object : McuMgrTransport.ConnectionObserver {
+            override fun onConnected() = Unit
+            override fun onDisconnected() = disconnected.countDown()
+        })
+        val manager = DefaultManager(transport)
+        val error = CountDownLatch(1)
+        manager.echo("Hello", object : McuMgrCallback<McuMgrEchoResponse> {
+            override fun onResponse(response: McuMgrEchoResponse) = Unit
+            override fun onError(e: McuMgrException) = error.countDown()
+        })
+        // The server accepts the connection on its own thread
+        assertTrue(server.accepted.await(1, TimeUnit.SECONDS))
+        server.disconnectAll()
+        assertTrue(error.await(1, TimeUnit.SECONDS))
+        assertTrue(disconnected.await(1, TimeUnit.SECONDS))
+
+        server.respond = true
+        assertEquals("World", manager.echo("World").r)
+        assertEquals(2, server.connections.get())
+    }
+
+    @Test
+    fun `callback throwing does not stop the selector`() {
+        val transport = newTransport()
+        transport.addObserver(object : McuMgrTransport.ConnectionObserver {
+            override fun onConnected() {
+                throw IllegalStateException("Observer failed")
+            }
+
+            override fun onDisconnected() = Unit
+        })
+        val manager = DefaultManager(transport)
+        val called = CountDownLatch(1)
+        manager.echo("Hello", object : McuMgrCallback<McuMgrEchoResponse> {
+            override fun onResponse(response: McuMgrEchoResponse) {
+                called.countDown()
+                throw IllegalStateException("Callback failed")
+            }
+
+            override fun onError(error: McuMgrException) = Unit
+        })
+        assertTrue(called.await(1, TimeUnit.SECONDS))
+        assertEquals("World", manager.echo("World").r)
+
+        // Timeouts are still watched
+        server.respond = false
+        transport.setTimeout(100)
+        assertFailsWith<McuMgrTimeoutException> { manager.echo("Hello") }
+    }
+
+    @Test
+    fun `failing connection does not stop the selector`() {
+        val channel = SocketChannel.open(InetSocketAddress(InetAddress.getLoopbackAddress(), server.port))
+        channel.configureBlocking(false)
+        val closed = CountDownLatch(1)
+        selector.register(object : SmpSocketSelector.Connection {
+            override fun getChannel(): SocketChannel = channel
+
+            override fun onReadable() {
+                throw IllegalStateException("Connection failed")
+            }
+
+            override fun onWritable() = true
+            override fun onTimer() = -1L
+
+            override fun onClosed(e: IOException) {
+                channel.close()
+                selector.unregister(this)
+                closed.countDown()
+            }
+        })
+        // Closing the socket on the server side makes the channel readable
+        assertTrue(server.accepted.await(1, TimeUnit.SECONDS))
+        server.disconnectAll()
+        assertTrue(closed.await(1, TimeUnit.SECONDS))
+
+        assertEquals("Hello", DefaultManager(newTransport()).echo("Hello").r)
+    }
+
+    @Test
+    fun `request times out`() {
+        server.respond = false
+        val transport = newTransport()
+        transport.setTimeout(100)
+        assertFailsWith<McuMgrTimeoutException> { DefaultManager(transport).echo("Hello") }
+        assertEquals(0, transport.inFlightRequestCount)
+    }
+
+    private fun newTransport(): McuMgrTcpTransport =
+        McuMgrTcpTransport(InetSocketAddress(InetAddress.getLoopbackAddress(), server.port), selector)
+            .also { transports.add(it) }
+
+    /**
+     * Answers echo requests, as a local SMP server would, on a thread per connection.
+     */
+    private class Server {
+        private val socket = ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+        private val sockets = CopyOnWriteArrayList<Socket>()
+        val port: Int = socket.localPort
+        val connections = AtomicInteger()
+        val accepted = CountDownLatch(1)
+
+        @Volatile var batch = 1
+        @Volatile var respond = true
+
+        init {
+            thread(isDaemon = true) {
+                try {
+                    while (true) {
+                        val client = socket.accept()
+                        sockets.add(client)
+                        connections.incrementAndGet()
+                        accepted.countDown()
+                        thread(isDaemon = true) { serve(client) }
+                    }
+                } catch (e: IOException) {
+                    // Closed
+                }
+            }
+        }
+
+        fun disconnectAll() = sockets.forEach { it.close() }
+
+        fun close() {
+            socket.close()
+            disconnectAll()
+        }
+
+        private fun serve(client: Socket) {
+            val input = DataInputStream(client.getInputStream().buffered())
+            val output = client.getOutputStream()
+            val pending = mutableListOf<ByteArray>()
+            try {
+                while (true) {
+                    val header = ByteArray(8)
+                    input.readFully(header)
+                    val payload = ByteArray((header[2].toInt() and 0xFF shl 8) or (header[3].toInt() and 0xFF))
+                    input.readFully(payload)
+                    if (!respond) continue
+                    val request = CBOR.toObjectMap(payload)
+                    pending.add(McuManager.buildPacket(
+                        McuMgrScheme.BLE, 3, 0, header[5].toInt(), header[6].toInt() and 0xFF,
+                        header[7].toInt(), mapOf("r" to request["d"])
+                    ))
+                    // Flush a partial batch when no more requests are coming
+                    if (pending.size >= batch || input.available() == 0) {
+                        pending.asReversed().forEach { output.write(it) }
+                        output.flush()
+                        pending.clear()
+                    }
+                }
+            } catch (e: IOException) {
+                // Closed
+            }
+        }
+    }
+}
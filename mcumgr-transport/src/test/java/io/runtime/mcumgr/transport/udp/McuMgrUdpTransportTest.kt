@@ -0,0 +1,214 @@
+package io.runtime.mcumgr.transport.udp
+
+import io.runtime.mcumgr.McuManager
+import io.runtime.mcumgr.McuMgrCallback
+import io.runtime.mcumgr.McuMgrScheme
+import io.runtime.mcumgr.exception.McuMgrException
+import io.runtime.mcumgr.exception.McuMgrTimeoutException
+import io.runtime.mcumgr.managers.DefaultManager
+import io.runtime.mcumgr.response.dflt.McuMgrEchoResponse
+import io.runtime.mcumgr.util.CBOR
+import org.junit.After
+import org.junit.Test
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.SocketAddress
+import java.net.SocketException
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+class McuMgrUdpTransportTest {
+
+    private val responder = Responder()
+    private var transport: McuMgrUdpTransport? = null
+
+    @After
+    fun tearDown() {
+        transport?.release()
+        responder.close()
+    }
+
+    @Test
+    fun `echo over plain SMP`() {
+        val manager = DefaultManager(newTransport(McuMgrScheme.BLE))
+        assertEquals("Hello", manager.echo("Hello").r)
+        assertEquals("World", manager.echo("World").r)
+    }
+
+    @Test
+    fun `echo over CoAP with separate response`() {
+        responder.separateResponse = true
+        val manager = DefaultManager(newTransport(McuMgrScheme.COAP_UDP))
+        assertEquals("Hello", manager.echo("Hello").r)
+        // The separate response has been acknowledged
+        assertTrue(responder.acks.await(1, TimeUnit.SECONDS))
+    }
+
+    @Test
+    fun `lost datagrams are retransmitted`() {
+        responder.drop = 2
+        val transport = newTransport(McuMgrScheme.BLE)
+        transport.setRetransmissionTimeout(20)
+        assertEquals("Hello", DefaultManager(transport).echo("Hello").r)
+        assertEquals(3, responder.received.get())
+    }
+
+    @Test
+    fun `request times out`() {
+        responder.drop = Int.MAX_VALUE
+        val transport = newTransport(McuMgrScheme.BLE)
+        transport.setTimeout(100)
+        transport.setRetransmissionTimeout(20)
+        assertFailsWith<McuMgrTimeoutException> { DefaultManager(transport).echo("Hello") }
+        assertEquals(0, transport.inFlightRequestCount)
+    }
+
+    @Test
+    fun `responses are matched with requests in flight`() {
+        // Responses are sent in reverse order of each batch of requests
+        responder.batch = 10
+        val transport = newTransport(McuMgrScheme.BLE)
+        val manager = DefaultManager(transport)
+        val count = 300
+        val latch = CountDownLatch(count)
+        val mismatches = AtomicInteger()
+        repeat(count) { i ->
+            manager.echo("$i", object : McuMgrCallback<McuMgrEchoResponse> {
+                override fun onResponse(response: McuMgrEchoResponse) {
+                    if (response.r != "$i") mismatches.incrementAndGet()
+                    latch.countDown()
+                }
+
+                override fun onError(error: McuMgrException) {
+                    mismatches.incrementAndGet()
+                    latch.countDown()
+                }
+            })
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS))
+        assertEquals(0, mismatches.get())
+        assertEquals(0, transport.queuedRequestCount)
+    }
+
+    @Test
+    fun `callback throwing does not stop the transport`() {
+        val transport = newTransport(McuMgrScheme.BLE)
+        val manager = DefaultManager(transport)
+        val called = CountDownLatch(1)
+        manager.echo("Hello", object : McuMgrCallback<McuMgrEchoResponse> {
+            override fun onResponse(response: McuMgrEchoResponse) {
+                called.countDown()
+                throw IllegalStateException("Callback failed")
+            }
+
+            override fun onError(error: McuMgrException) = Unit
+        })
+        assertTrue(called.await(1, TimeUnit.SECONDS))
+        assertEquals("World", manager.echo("World").r)
+
+        // Timeouts are still watched
+        responder.drop = Int.MAX_VALUE
+        transport.setTimeout(100)
+        transport.setRetransmissionTimeout(20)
+        assertFailsWith<McuMgrTimeoutException> { manager.echo("Hello") }
+    }
+
+    private fun newTransport(scheme: McuMgrScheme): McuMgrUdpTransport =
+        McuMgrUdpTransport(InetSocketAddress(InetAddress.getLoopbackAddress(), responder.port), scheme)
+            .also { transport = it }
+
+    /**
+     * Answers echo requests, as the SMP server of a device would.
+     */
+    private class Responder {
+        private val socket = DatagramSocket(0, InetAddress.getLoopbackAddress())
+        val port: Int = socket.localPort
+        val received = AtomicInteger()
+        val acks = CountDownLatch(1)
+
+        @Volatile var drop = 0
+        @Volatile var batch = 1
+        @Volatile var separateResponse = false
+
+        private val pending = Collections.synchronizedList(ArrayList<ByteArray>())
+        private var messageId = 0x8000
+
+        init {
+            thread(isDaemon = true) {
+                val buffer = ByteArray(2048)
+                try {
+                    while (true) {
+                        val packet = DatagramPacket(buffer, buffer.size)
+                        socket.receive(packet)
+                        val data = buffer.copyOf(packet.length)
+                        if (received.incrementAndGet() <= drop) {
+                            continue
+                        }
+                        handle(data, packet.socketAddress)
+                    }
+                } catch (e: SocketException) {
+                    // Closed
+                }
+            }
+        }
+
+        fun close() = socket.close()
+
+        private fun handle(data: ByteArray, address: SocketAddress) {
+            if (data[0].toInt() and 0xC0 == 0x40) {
+                handleCoap(data, address)
+                return
+            }
+            val request = CBOR.toObjectMap(data.copyOfRange(8, data.size))
+            val response = McuManager.buildPacket(
+                McuMgrScheme.BLE, 3, 0, data[5].toInt(), data[6].toInt() and 0xFF,
+                data[7].toInt(), mapOf("r" to request["d"])
+            )
+            pending.add(response)
+            if (pending.size >= batch) {
+                pending.asReversed().forEach { send(it, address) }
+                pending.clear()
+            }
+        }
+
+        private fun handleCoap(data: ByteArray, address: SocketAddress) {
+            if (data[1].toInt() == 0) {
+                // Acknowledgement of the separate response
+                acks.countDown()
+                return
+            }
+            // Requests from the transport have a 1-byte token and the payload at offset 13
+            val token = data[4]
+            val packet = data.copyOfRange(13, data.size)
+            val header = CBOR.getObject(packet, "_h", ByteArray::class.java)
+            val request = CBOR.toObjectMap(packet)
+            val smp = McuManager.buildPacket(
+                McuMgrScheme.COAP_UDP, 3, 0, header[5].toInt(), header[6].toInt() and 0xFF,
+                header[7].toInt(), mapOf("r" to request["d"])
+            )
+            val type = if (separateResponse) 0x00 else 0x20
+            if (separateResponse) {
+                send(byteArrayOf(0x60, 0, data[2], data[3]), address)
+            }
+            val mid = if (separateResponse) messageId++ else
+                (data[2].toInt() and 0xFF shl 8) or (data[3].toInt() and 0xFF)
+            val response = byteArrayOf(
+                (0x41 or type).toByte(), 0x45, (mid shr 8).toByte(), mid.toByte(), token,
+                0xFF.toByte()
+            ) + smp
+            send(response, address)
+        }
+
+        private fun send(data: ByteArray, address: SocketAddress) {
+            socket.send(DatagramPacket(data, data.size, address))
+        }
+    }
+}